@@ -0,0 +1,84 @@
+package edu.usc.cs550.rejig.client;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares building get and set command lines with String.format, as
+ * MemcachedClient used to, against the reusable CommandEncoder.  Run with
+ * the gc profiler (the default in build.gradle) to see the allocation
+ * rate; the encoder paths should allocate nothing.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class CommandEncoderBenchmark {
+
+	private static final int CONFIG_ID = 42;
+	private static final int FRAGMENT_NUM = 7;
+
+	private String[] keys;
+	private int next;
+
+	private byte[] prefix;
+	private CommandEncoder encoder;
+
+	@Setup
+	public void setup() {
+		keys = new String[ 1024 ];
+		for ( int i = 0; i < keys.length; i++ )
+			keys[i] = "user:" + i + ":profile";
+
+		prefix  = CommandEncoder.prefix( CONFIG_ID, FRAGMENT_NUM );
+		encoder = new CommandEncoder();
+	}
+
+	private String key() {
+		next = ( next + 1 ) & ( keys.length - 1 );
+		return keys[ next ];
+	}
+
+	@Benchmark
+	public byte[] getFormat() {
+		return String.format( "rj %d %d get %s\r\n", CONFIG_ID, FRAGMENT_NUM, key() ).getBytes();
+	}
+
+	@Benchmark
+	public int getEncoder() {
+		return encoder.reset()
+			.append( prefix )
+			.append( CommandEncoder.GET ).space()
+			.key( key() ).crlf()
+			.length();
+	}
+
+	@Benchmark
+	public byte[] setFormat() {
+		return String.format( "rj %d %d %s %s %d %d %d\r\n", CONFIG_ID, FRAGMENT_NUM, "set", key(), 0, 3600, 1024 ).getBytes();
+	}
+
+	@Benchmark
+	public int setEncoder() {
+		return encoder.reset()
+			.append( prefix )
+			.append( CommandEncoder.verb( "set" ) ).space()
+			.key( key() ).space()
+			.number( 0 ).space()
+			.number( 3600 ).space()
+			.number( 1024 ).crlf()
+			.length();
+	}
+}
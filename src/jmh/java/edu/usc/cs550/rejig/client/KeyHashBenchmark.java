@@ -0,0 +1,85 @@
+package edu.usc.cs550.rejig.client;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the cost of the key hashing algorithms SockIOPool can route
+ * with.  Run with the gc profiler (the default in build.gradle) to see
+ * the allocation rate of each one.
+ *
+ * NATIVE_HASH reads the hash code String caches after the first call,
+ * which is also what routing a reused key costs.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class KeyHashBenchmark {
+
+	@Param( { "16", "64", "250" } )
+	public int keyLength;
+
+	private String[] keys;
+	private int next;
+
+	@Setup
+	public void setup() {
+		keys = new String[ 1024 ];
+		for ( int i = 0; i < keys.length; i++ ) {
+			StringBuilder sb = new StringBuilder( keyLength );
+			sb.append( "user:" ).append( i ).append( ':' );
+			while ( sb.length() < keyLength )
+				sb.append( (char)( 'a' + ( sb.length() * 7 + i ) % 26 ) );
+			keys[i] = sb.toString();
+		}
+	}
+
+	private String key() {
+		next = ( next + 1 ) & ( keys.length - 1 );
+		return keys[ next ];
+	}
+
+	@Benchmark
+	public long nativeHash() {
+		return key().hashCode();
+	}
+
+	@Benchmark
+	public long oldCompat() {
+		return KeyHash.origCompat( key() );
+	}
+
+	@Benchmark
+	public long newCompat() {
+		return KeyHash.newCompat( key() );
+	}
+
+	@Benchmark
+	public long ketama() {
+		return KeyHash.fnv1a32( key() );
+	}
+
+	@Benchmark
+	public long murmur3() {
+		return KeyHash.murmur3_32( key() );
+	}
+
+	@Benchmark
+	public long xxHash64() {
+		return KeyHash.xxHash64( key() );
+	}
+}
@@ -0,0 +1,559 @@
+package edu.usc.cs550.rejig.client;
+
+import edu.usc.cs550.rejig.interfaces.RejigConfig;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Asynchronous front end to a {@link MemcachedClient}.
+ *
+ * Every operation returns a CompletableFuture instead of blocking the
+ * caller, so a thread can fan out many cache requests at once and join
+ * on the results.  The operations are run by the wrapped client, so key
+ * routing through the SockIOPool, REFRESH_AND_RETRY handling and the
+ * Rejig staleness checks on VALUE lines are exactly the same as for
+ * blocking calls; failures are still reported to the client's
+ * ErrorHandler and show up as the usual false/null/-1 results.<br/>
+ * <br/>
+ * Each call completes exceptionally with a TimeoutException if it has
+ * not finished within its timeout (the default one, or the one passed to
+ * the timed variant).  The request itself runs under the same deadline,
+ * see {@link MemcachedClient#withDeadline}, so it gives up as well rather
+ * than keeping a thread busy after its future has timed out.  An
+ * operation still queued when its deadline passes is not run at all.<br/>
+ * <br/>
+ * Operations run on the passed in Executor, or on a bounded pool of
+ * daemon threads owned by this object, whose queue is bounded as well.
+ * An operation the executor rejects, because its queue is full or it
+ * has been shut down, completes exceptionally with the
+ * RejectedExecutionException instead of piling up behind the others.
+ * Pairing this with a pool in {@link SockIOPool.TransportMode#PIPELINED}
+ * mode keeps the number of server connections small no matter how many
+ * requests are in flight.
+ *
+ * <h3>An example of fanning out lookups:</h3>
+ * <pre>
+ *	AsyncMemcachedClient async = new AsyncMemcachedClient( mc );
+ *	CompletableFuture&lt;Object&gt; user  = async.get( "user:" + id );
+ *	CompletableFuture&lt;Object&gt; prefs = async.get( "prefs:" + id );
+ *	CompletableFuture.allOf( user, prefs ).join();
+ * </pre>
+ */
+public class AsyncMemcachedClient {
+
+	// logger
+	private static Logger log =
+		Logger.getLogger( AsyncMemcachedClient.class.getName() );
+
+	// default time a call may take before its future times out
+	public static final long DEFAULT_TIMEOUT = 1000 * 5;
+
+	// default number of operations the internal pool queues
+	public static final int DEFAULT_MAX_QUEUED = 1024 * 10;
+
+	// fires the per call timeouts
+	private static final ScheduledThreadPoolExecutor timer;
+	static {
+		timer = new ScheduledThreadPoolExecutor( 1, new DaemonThreadFactory( "AsyncMemcachedClient-timer" ) );
+		timer.setRemoveOnCancelPolicy( true );
+	}
+
+	private final MemcachedClient client;
+	private final Executor executor;
+	private final boolean ownExecutor;
+	private final long defaultTimeout;
+
+	/**
+	 * Creates an async client on top of the passed in client, running
+	 * operations on an internal bounded thread pool with the default
+	 * timeout.
+	 *
+	 * @param client client to run operations with
+	 */
+	public AsyncMemcachedClient( MemcachedClient client ) {
+		this( client, null, DEFAULT_TIMEOUT );
+	}
+
+	/**
+	 * Creates an async client on top of the passed in client.
+	 *
+	 * @param client client to run operations with
+	 * @param executor executor to run operations on, or null to use an internal bounded pool
+	 * @param defaultTimeout ms a call may take before its future times out, 0 for none
+	 */
+	public AsyncMemcachedClient( MemcachedClient client, Executor executor, long defaultTimeout ) {
+		this( client, executor, defaultTimeout, DEFAULT_MAX_QUEUED );
+	}
+
+	/**
+	 * Creates an async client on top of the passed in client.
+	 *
+	 * @param client client to run operations with
+	 * @param executor executor to run operations on, or null to use an internal bounded pool
+	 * @param defaultTimeout ms a call may take before its future times out, 0 for none
+	 * @param maxQueued operations the internal pool queues before rejecting more
+	 */
+	public AsyncMemcachedClient( MemcachedClient client, Executor executor, long defaultTimeout, int maxQueued ) {
+		if ( client == null )
+			throw new IllegalArgumentException( "++++ client can not be null" );
+		if ( maxQueued < 1 )
+			throw new IllegalArgumentException( "++++ maxQueued has to be at least 1: " + maxQueued );
+
+		this.client         = client;
+		this.ownExecutor    = ( executor == null );
+		this.executor       = ownExecutor ? defaultExecutor( maxQueued ) : executor;
+		this.defaultTimeout = defaultTimeout;
+	}
+
+	/**
+	 * One thread per core times four (at least 16), since every
+	 * operation blocks its thread for a round trip.
+	 */
+	private static ExecutorService defaultExecutor( int maxQueued ) {
+		int threads = Math.max( 16, Runtime.getRuntime().availableProcessors() * 4 );
+		return new ThreadPoolExecutor( threads, threads, 60, TimeUnit.SECONDS,
+			new ArrayBlockingQueue<Runnable>( maxQueued ), new DaemonThreadFactory( "AsyncMemcachedClient" ) );
+	}
+
+	/**
+	 * Returns the client the operations are run with.
+	 */
+	public MemcachedClient getClient() {
+		return client;
+	}
+
+	/**
+	 * Stops the internal thread pool, if one was created.  Does not shut
+	 * down the wrapped client.
+	 */
+	public void shutDown() {
+		if ( ownExecutor )
+			((ExecutorService)executor).shutdown();
+	}
+
+	/**
+	 * Retrieve a key from the server.
+	 *
+	 * @param key key where data is stored
+	 * @return future of the object, null if not found
+	 * @see MemcachedClient#get(String)
+	 */
+	public CompletableFuture<Object> get( String key ) {
+		return get( key, null, defaultTimeout, TimeUnit.MILLISECONDS );
+	}
+
+	/**
+	 * Retrieve a key from the server, timing out after the passed in time.
+	 *
+	 * @param key key where data is stored
+	 * @param hashCode if not null, then the int hashcode to use
+	 * @param timeout time to wait for the result, 0 for no timeout
+	 * @param unit unit of timeout
+	 * @return future of the object, null if not found
+	 * @see MemcachedClient#get(String, Integer)
+	 */
+	public CompletableFuture<Object> get( final String key, final Integer hashCode, long timeout, TimeUnit unit ) {
+		return submit( new Supplier<Object>() {
+			public Object get() { return client.get( key, hashCode ); }
+		}, timeout, unit );
+	}
+
+	/**
+	 * Retrieve multiple keys from the servers.
+	 *
+	 * @param keys keys to retrieve
+	 * @return future of a map with an entry for each key
+	 * @see MemcachedClient#getMulti(String[])
+	 */
+	public CompletableFuture<Map<String,Object>> getMulti( String[] keys ) {
+		return getMulti( keys, null, false, defaultTimeout, TimeUnit.MILLISECONDS );
+	}
+
+	/**
+	 * Retrieve multiple keys from the servers, timing out after the passed
+	 * in time.
+	 *
+	 * @param keys keys to retrieve
+	 * @param hashCodes if not null, then the Integer array of hashCodes
+	 * @param asString if true then retrieve using String val
+	 * @param timeout time to wait for the result, 0 for no timeout
+	 * @param unit unit of timeout
+	 * @return future of a map with an entry for each key
+	 * @see MemcachedClient#getMulti(String[], Integer[], boolean)
+	 */
+	public CompletableFuture<Map<String,Object>> getMulti( final String[] keys, final Integer[] hashCodes, final boolean asString, long timeout, TimeUnit unit ) {
+		return submit( new Supplier<Map<String,Object>>() {
+			public Map<String,Object> get() { return client.getMulti( keys, hashCodes, asString ); }
+		}, timeout, unit );
+	}
+
+	/**
+	 * Stores data on the server.
+	 *
+	 * @param key key to store data under
+	 * @param value value to store
+	 * @return future of true, if the data was successfully stored
+	 * @see MemcachedClient#set(String, Object)
+	 */
+	public CompletableFuture<Boolean> set( String key, Object value ) {
+		return set( key, value, null, null, defaultTimeout, TimeUnit.MILLISECONDS );
+	}
+
+	/**
+	 * Stores data on the server, timing out after the passed in time.
+	 *
+	 * @param key key to store data under
+	 * @param value value to store
+	 * @param expiry when to expire the record, null for never
+	 * @param hashCode if not null, then the int hashcode to use
+	 * @param timeout time to wait for the result, 0 for no timeout
+	 * @param unit unit of timeout
+	 * @return future of true, if the data was successfully stored
+	 * @see MemcachedClient#set(String, Object, Date, Integer)
+	 */
+	public CompletableFuture<Boolean> set( final String key, final Object value, final Date expiry, final Integer hashCode, long timeout, TimeUnit unit ) {
+		return submit( new Supplier<Boolean>() {
+			public Boolean get() { return client.set( key, value, expiry, hashCode ); }
+		}, timeout, unit );
+	}
+
+	/**
+	 * Adds data to the server; only if the key does not already exist.
+	 *
+	 * @param key key to store data under
+	 * @param value value to store
+	 * @return future of true, if the data was successfully stored
+	 * @see MemcachedClient#add(String, Object)
+	 */
+	public CompletableFuture<Boolean> add( String key, Object value ) {
+		return add( key, value, null, null, defaultTimeout, TimeUnit.MILLISECONDS );
+	}
+
+	/**
+	 * Adds data to the server; only if the key does not already exist,
+	 * timing out after the passed in time.
+	 *
+	 * @param key key to store data under
+	 * @param value value to store
+	 * @param expiry when to expire the record, null for never
+	 * @param hashCode if not null, then the int hashcode to use
+	 * @param timeout time to wait for the result, 0 for no timeout
+	 * @param unit unit of timeout
+	 * @return future of true, if the data was successfully stored
+	 * @see MemcachedClient#add(String, Object, Date, Integer)
+	 */
+	public CompletableFuture<Boolean> add( final String key, final Object value, final Date expiry, final Integer hashCode, long timeout, TimeUnit unit ) {
+		return submit( new Supplier<Boolean>() {
+			public Boolean get() { return client.add( key, value, expiry, hashCode ); }
+		}, timeout, unit );
+	}
+
+	/**
+	 * Updates data on the server; only if the key already exists.
+	 *
+	 * @param key key to store data under
+	 * @param value value to store
+	 * @return future of true, if the data was successfully stored
+	 * @see MemcachedClient#replace(String, Object)
+	 */
+	public CompletableFuture<Boolean> replace( String key, Object value ) {
+		return replace( key, value, null, null, defaultTimeout, TimeUnit.MILLISECONDS );
+	}
+
+	/**
+	 * Updates data on the server; only if the key already exists, timing
+	 * out after the passed in time.
+	 *
+	 * @param key key to store data under
+	 * @param value value to store
+	 * @param expiry when to expire the record, null for never
+	 * @param hashCode if not null, then the int hashcode to use
+	 * @param timeout time to wait for the result, 0 for no timeout
+	 * @param unit unit of timeout
+	 * @return future of true, if the data was successfully stored
+	 * @see MemcachedClient#replace(String, Object, Date, Integer)
+	 */
+	public CompletableFuture<Boolean> replace( final String key, final Object value, final Date expiry, final Integer hashCode, long timeout, TimeUnit unit ) {
+		return submit( new Supplier<Boolean>() {
+			public Boolean get() { return client.replace( key, value, expiry, hashCode ); }
+		}, timeout, unit );
+	}
+
+	/**
+	 * Deletes an object from cache given cache key.
+	 *
+	 * @param key the key to be removed
+	 * @return future of true, if the data was deleted successfully
+	 * @see MemcachedClient#delete(String)
+	 */
+	public CompletableFuture<Boolean> delete( String key ) {
+		return delete( key, null, null, defaultTimeout, TimeUnit.MILLISECONDS );
+	}
+
+	/**
+	 * Deletes an object from cache given cache key, timing out after the
+	 * passed in time.
+	 *
+	 * @param key the key to be removed
+	 * @param hashCode if not null, then the int hashcode to use
+	 * @param expiry when to expire the record.
+	 * @param timeout time to wait for the result, 0 for no timeout
+	 * @param unit unit of timeout
+	 * @return future of true, if the data was deleted successfully
+	 * @see MemcachedClient#delete(String, Integer, Date)
+	 */
+	public CompletableFuture<Boolean> delete( final String key, final Integer hashCode, final Date expiry, long timeout, TimeUnit unit ) {
+		return submit( new Supplier<Boolean>() {
+			public Boolean get() { return client.delete( key, hashCode, expiry ); }
+		}, timeout, unit );
+	}
+
+	/**
+	 * Increment the value at the specified key by passed in val.
+	 *
+	 * @param key key where the data is stored
+	 * @param inc how much to increment by
+	 * @return future of the new value, or -1 if not exist
+	 * @see MemcachedClient#incr(String, long)
+	 */
+	public CompletableFuture<Long> incr( String key, long inc ) {
+		return incr( key, inc, null, defaultTimeout, TimeUnit.MILLISECONDS );
+	}
+
+	/**
+	 * Increment the value at the specified key by passed in val, timing
+	 * out after the passed in time.
+	 *
+	 * @param key key where the data is stored
+	 * @param inc how much to increment by
+	 * @param hashCode if not null, then the int hashcode to use
+	 * @param timeout time to wait for the result, 0 for no timeout
+	 * @param unit unit of timeout
+	 * @return future of the new value, or -1 if not exist
+	 * @see MemcachedClient#incr(String, long, Integer)
+	 */
+	public CompletableFuture<Long> incr( final String key, final long inc, final Integer hashCode, long timeout, TimeUnit unit ) {
+		return submit( new Supplier<Long>() {
+			public Long get() { return client.incr( key, inc, hashCode ); }
+		}, timeout, unit );
+	}
+
+	/**
+	 * Decrement the value at the specified key by passed in val.
+	 *
+	 * @param key key where the data is stored
+	 * @param inc how much to decrement by
+	 * @return future of the new value, or -1 if not exist
+	 * @see MemcachedClient#decr(String, long)
+	 */
+	public CompletableFuture<Long> decr( String key, long inc ) {
+		return decr( key, inc, null, defaultTimeout, TimeUnit.MILLISECONDS );
+	}
+
+	/**
+	 * Decrement the value at the specified key by passed in val, timing
+	 * out after the passed in time.
+	 *
+	 * @param key key where the data is stored
+	 * @param inc how much to decrement by
+	 * @param hashCode if not null, then the int hashcode to use
+	 * @param timeout time to wait for the result, 0 for no timeout
+	 * @param unit unit of timeout
+	 * @return future of the new value, or -1 if not exist
+	 * @see MemcachedClient#decr(String, long, Integer)
+	 */
+	public CompletableFuture<Long> decr( final String key, final long inc, final Integer hashCode, long timeout, TimeUnit unit ) {
+		return submit( new Supplier<Long>() {
+			public Long get() { return client.decr( key, inc, hashCode ); }
+		}, timeout, unit );
+	}
+
+	/**
+	 * Pushes the config to every server in it.
+	 *
+	 * @param config config to push
+	 * @param expiry when to expire the record, null for never
+	 * @return future of true, if the config was stored on every server
+	 * @see MemcachedClient#setConfig(RejigConfig, Date)
+	 */
+	public CompletableFuture<Boolean> setConfig( RejigConfig config, Date expiry ) {
+		return setConfig( config, expiry, null, defaultTimeout, TimeUnit.MILLISECONDS );
+	}
+
+	/**
+	 * Pushes the config to one server, or to every server in it if server
+	 * is null, timing out after the passed in time.
+	 *
+	 * @param config config to push
+	 * @param expiry when to expire the record, null for never
+	 * @param server ip:port of the server to push the config to, null for all
+	 * @param timeout time to wait for the result, 0 for no timeout
+	 * @param unit unit of timeout
+	 * @return future of true, if the config was stored
+	 * @see MemcachedClient#setConfig(RejigConfig, Date, String)
+	 */
+	public CompletableFuture<Boolean> setConfig( final RejigConfig config, final Date expiry, final String server, long timeout, TimeUnit unit ) {
+		return submit( new Supplier<Boolean>() {
+			public Boolean get() {
+				return ( server == null ) ? client.setConfig( config, expiry ) : client.setConfig( config, expiry, server );
+			}
+		}, timeout, unit );
+	}
+
+	/**
+	 * Grants a lease on the fragment to the specified host.
+	 *
+	 * @param fragmentNum the fragment to grant the lease to
+	 * @param expiry when to expire the lease
+	 * @param server ip:port of the server
+	 * @return future of true, if the lease was granted
+	 * @see MemcachedClient#grantLease(int, Date, String)
+	 */
+	public CompletableFuture<Boolean> grantLease( int fragmentNum, Date expiry, String server ) {
+		return grantLease( fragmentNum, expiry, server, defaultTimeout, TimeUnit.MILLISECONDS );
+	}
+
+	/**
+	 * Grants a lease on the fragment to the specified host, timing out
+	 * after the passed in time.
+	 *
+	 * @param fragmentNum the fragment to grant the lease to
+	 * @param expiry when to expire the lease
+	 * @param server ip:port of the server
+	 * @param timeout time to wait for the result, 0 for no timeout
+	 * @param unit unit of timeout
+	 * @return future of true, if the lease was granted
+	 * @see MemcachedClient#grantLease(int, Date, String)
+	 */
+	public CompletableFuture<Boolean> grantLease( final int fragmentNum, final Date expiry, final String server, long timeout, TimeUnit unit ) {
+		return submit( new Supplier<Boolean>() {
+			public Boolean get() { return client.grantLease( fragmentNum, expiry, server ); }
+		}, timeout, unit );
+	}
+
+	/**
+	 * Revokes the lease on the fragment from the specified host.
+	 *
+	 * @param fragmentNum the fragment to revoke the lease of
+	 * @param server ip:port of the server
+	 * @return future of true, if the lease was revoked
+	 * @see MemcachedClient#revokeLease(int, String)
+	 */
+	public CompletableFuture<Boolean> revokeLease( int fragmentNum, String server ) {
+		return revokeLease( fragmentNum, server, defaultTimeout, TimeUnit.MILLISECONDS );
+	}
+
+	/**
+	 * Revokes the lease on the fragment from the specified host, timing
+	 * out after the passed in time.
+	 *
+	 * @param fragmentNum the fragment to revoke the lease of
+	 * @param server ip:port of the server
+	 * @param timeout time to wait for the result, 0 for no timeout
+	 * @param unit unit of timeout
+	 * @return future of true, if the lease was revoked
+	 * @see MemcachedClient#revokeLease(int, String)
+	 */
+	public CompletableFuture<Boolean> revokeLease( final int fragmentNum, final String server, long timeout, TimeUnit unit ) {
+		return submit( new Supplier<Boolean>() {
+			public Boolean get() { return client.revokeLease( fragmentNum, server ); }
+		}, timeout, unit );
+	}
+
+	/**
+	 * Runs the operation on the executor and arms its timeout.  The
+	 * deadline counts from now, time spent queued included, and an
+	 * operation whose deadline has passed by the time it is dequeued is
+	 * skipped.
+	 */
+	private <T> CompletableFuture<T> submit( final Supplier<T> op, final long timeout, final TimeUnit unit ) {
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+		final long deadline = ( timeout > 0 ) ? System.currentTimeMillis() + unit.toMillis( timeout ) : 0;
+
+		Runnable task = new Runnable() {
+			public void run() {
+				// timed out while queued, nobody waits for it any more
+				if ( future.isDone() )
+					return;
+				if ( deadline != 0 && System.currentTimeMillis() >= deadline ) {
+					timedOut( future, timeout, unit );
+					return;
+				}
+
+				try {
+					future.complete( ( deadline != 0 ) ? Deadline.call( deadline, op ) : op.get() );
+				}
+				catch ( Throwable t ) {
+					future.completeExceptionally( t );
+				}
+			}
+		};
+
+		try {
+			executor.execute( task );
+		}
+		catch ( RejectedExecutionException e ) {
+			if ( log.isInfoEnabled() )
+				log.info( "++++ memcache operation rejected: " + e.getMessage() );
+			future.completeExceptionally( e );
+			return future;
+		}
+
+		if ( timeout <= 0 || future.isDone() )
+			return future;
+
+		final ScheduledFuture<?> timeoutTask = timer.schedule( new Runnable() {
+			public void run() {
+				timedOut( future, timeout, unit );
+			}
+		}, timeout, unit );
+
+		future.whenComplete( new BiConsumer<T,Throwable>() {
+			public void accept( T result, Throwable t ) {
+				timeoutTask.cancel( false );
+			}
+		} );
+		return future;
+	}
+
+	private static void timedOut( CompletableFuture<?> future, long timeout, TimeUnit unit ) {
+		if ( future.completeExceptionally( new TimeoutException( "++++ memcache operation timed out after " + timeout + " " + unit ) ) && log.isInfoEnabled() )
+			log.info( "++++ memcache operation timed out" );
+	}
+
+	/**
+	 * Creates named daemon threads so an unclosed client does not keep
+	 * the JVM alive.
+	 */
+	private static final class DaemonThreadFactory implements ThreadFactory {
+		private final String name;
+		private final AtomicInteger count = new AtomicInteger();
+
+		DaemonThreadFactory( String name ) {
+			this.name = name;
+		}
+
+		public Thread newThread( Runnable r ) {
+			Thread t = new Thread( r, name + "-" + count.incrementAndGet() );
+			t.setDaemon( true );
+			return t;
+		}
+	}
+}
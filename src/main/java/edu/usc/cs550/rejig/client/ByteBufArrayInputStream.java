@@ -17,17 +17,21 @@
  */
 package edu.usc.cs550.rejig.client;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public final class ByteBufArrayInputStream extends InputStream implements LineInputStream {
 	private ByteBuffer[] bufs;
 	private int currentBuf = 0;
 
+	// lines are copied here, grown as needed
+	private byte[] lineBuf = new byte[ 128 ];
+	private final ResponseLine line = new ResponseLine();
+
 	public ByteBufArrayInputStream( List<ByteBuffer> bufs ) throws Exception {
 		this( bufs.toArray( new ByteBuffer[] {} ) );
 	}
@@ -44,7 +48,7 @@ public final class ByteBufArrayInputStream extends InputStream implements LineIn
 	public int read() {
 		do {
 			if ( bufs[currentBuf].hasRemaining() )
-				return bufs[currentBuf].get();
+				return bufs[currentBuf].get() & 0xFF;
 			currentBuf++;
 		}
 		while ( currentBuf < bufs.length );
@@ -75,32 +79,31 @@ public final class ByteBufArrayInputStream extends InputStream implements LineIn
 	}
 
 	public String readLine() throws IOException {
-		byte[] b = new byte[1];
-		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		return readResponseLine().toString();
+	}
+
+	public ResponseLine readResponseLine() throws IOException {
+		int len = 0;
 		boolean eol = false;
 
-		while ( read( b, 0, 1 ) != -1 ) {
-			if ( b[0] == 13 ) {
-				eol = true;
-			}
-			else {
-				if ( eol ) {
-					if ( b[0] == 10 )
-						break;
-					eol = false;
-				}
+		int b;
+		while ( ( b = read() ) != -1 ) {
+			if ( eol && b == 10 ) {
+				len--;
+				break;
 			}
+			eol = ( b == 13 );
 
-			// cast byte into char array
-			bos.write( b, 0, 1 );
+			if ( len == lineBuf.length )
+				lineBuf = Arrays.copyOf( lineBuf, len * 2 );
+			lineBuf[len++] = (byte)b;
 		}
 
-		if ( bos == null || bos.size() <= 0 ) {
+		if ( len <= 0 && !eol ) {
 			throw new IOException( "++++ Stream appears to be dead, so closing it down" );
 		}
 
-		// else return the string
-		return bos.toString().trim();
+		return line.set( lineBuf, 0, len );
 	}
 
 	public void clearEOL() throws IOException {
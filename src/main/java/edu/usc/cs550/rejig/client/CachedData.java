@@ -0,0 +1,64 @@
+package edu.usc.cs550.rejig.client;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A value as stored in memcached: its bytes and the flags saying how
+ * they were encoded.  See {@link Transcoder}.
+ */
+public final class CachedData {
+
+	private final int flags;
+	private final ByteBuffer data;
+
+	public CachedData( int flags, byte[] data ) {
+		this( flags, ByteBuffer.wrap( data ) );
+	}
+
+	/**
+	 * The bytes between the position and the limit of the buffer are the
+	 * value.  The buffer is not copied, and must not be changed until the
+	 * value has been written.
+	 */
+	public CachedData( int flags, ByteBuffer data ) {
+		this.flags = flags;
+		this.data  = data;
+	}
+
+	public int getFlags() {
+		return flags;
+	}
+
+	/**
+	 * Returns the bytes as a buffer of their own, from position to limit.
+	 */
+	public ByteBuffer getData() {
+		return data.duplicate();
+	}
+
+	/**
+	 * Returns the bytes as an array.  It is the backing array itself when
+	 * that holds exactly the value, as for data read from a server, so it
+	 * is not to be changed.
+	 */
+	public byte[] getBytes() {
+		if ( data.hasArray() && data.arrayOffset() == 0 && data.position() == 0 && data.remaining() == data.array().length )
+			return data.array();
+
+		byte[] bytes = new byte[ data.remaining() ];
+		data.duplicate().get( bytes );
+		return bytes;
+	}
+
+	/**
+	 * Number of bytes of the value.
+	 */
+	public int length() {
+		return data.remaining();
+	}
+
+	public String toString() {
+		return "CachedData[flags=" + flags + ", length=" + length() + "]";
+	}
+}
@@ -0,0 +1,275 @@
+package edu.usc.cs550.rejig.client;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Builds command lines as ASCII straight into a reusable byte buffer.
+ *
+ * Each connection keeps one encoder, so writing a command allocates
+ * nothing once the buffer has grown to fit the longest command sent on
+ * it.  Verbs are pre-encoded below, and the <code>rj &lt;configId&gt;
+ * &lt;fragmentNum&gt; </code> prefix is pre-encoded once per fragment by
+ * {@link SockIOPool.Route}.
+ *
+ * A command, data block included, is ended with {@link #frame(int, boolean)},
+ * which records what comes back for it.  The blocking transport reads
+ * responses off the stream and has no use for that, but a pipelined
+ * channel sends every command as a request of its own and frames its
+ * response from it, without parsing the commands back.
+ */
+final class CommandEncoder {
+
+	// pre-encoded verbs
+	static final byte[] GET     = "get".getBytes();
+	static final byte[] SET     = "set".getBytes();
+	static final byte[] ADD     = "add".getBytes();
+	static final byte[] REPLACE = "replace".getBytes();
+	static final byte[] DELETE  = "delete".getBytes();
+	static final byte[] INCR    = "incr".getBytes();
+	static final byte[] DECR    = "decr".getBytes();
+	static final byte[] NOREPLY = "noreply".getBytes();
+
+	static final byte[] CRLF    = { '\r', '\n' };
+
+	// whole command, sent as a barrier after noreply commands
+	static final byte[] VERSION = "version\r\n".getBytes();
+
+	// what comes back for a command
+	static final int REPLY_LINE   = 0;	// a single line
+	static final int REPLY_VALUES = 1;	// VALUE blocks up to END
+	static final int REPLY_LINES  = 2;	// any lines up to END
+
+	private static final byte[] RJ = "rj ".getBytes();
+
+	private byte[] buf;
+	private int len;
+
+	// end, reply and whether a REFRESH_AND_RETRY carries the config, of
+	// each command framed, three ints each
+	private int[] frames;
+	private int frameCount;
+
+	CommandEncoder() {
+		this( 256 );
+	}
+
+	CommandEncoder( int size ) {
+		buf = new byte[ size ];
+	}
+
+	/**
+	 * Encodes the <code>rj &lt;configId&gt; &lt;fragmentNum&gt; </code>
+	 * prefix of a command, trailing blank included.
+	 */
+	static byte[] prefix( int configId, int fragmentNum ) {
+		CommandEncoder enc = new CommandEncoder( 24 );
+		enc.append( RJ ).number( configId ).space().number( fragmentNum ).space();
+		return enc.toByteArray();
+	}
+
+	/**
+	 * Returns the pre-encoded form of a storage or incr/decr verb.
+	 */
+	static byte[] verb( String name ) {
+		switch ( name ) {
+			case "get":     return GET;
+			case "set":     return SET;
+			case "add":     return ADD;
+			case "replace": return REPLACE;
+			case "delete":  return DELETE;
+			case "incr":    return INCR;
+			case "decr":    return DECR;
+			default:        return name.getBytes();
+		}
+	}
+
+	/**
+	 * Empties the buffer for the next command.
+	 */
+	CommandEncoder reset() {
+		len = 0;
+		frameCount = 0;
+		return this;
+	}
+
+	/**
+	 * Ends the command appended since the last one, data block included.
+	 *
+	 * @param reply REPLY_LINE, REPLY_VALUES or REPLY_LINES
+	 * @param refreshCarriesConfig whether a REFRESH_AND_RETRY for the
+	 *        command is followed by the new config, as it is for commands
+	 *        with the rj prefix apart from conf, grant and revoke
+	 */
+	CommandEncoder frame( int reply, boolean refreshCarriesConfig ) {
+		if ( frames == null )
+			frames = new int[ 12 ];
+		else if ( frameCount * 3 == frames.length )
+			frames = Arrays.copyOf( frames, frames.length * 2 );
+
+		int i = frameCount++ * 3;
+		frames[ i ]     = len;
+		frames[ i + 1 ] = reply;
+		frames[ i + 2 ] = refreshCarriesConfig ? 1 : 0;
+		return this;
+	}
+
+	/**
+	 * Number of commands ended with frame().
+	 */
+	int frames() {
+		return frameCount;
+	}
+
+	/**
+	 * Offset just past the i-th command framed.
+	 */
+	int frameEnd( int i ) {
+		return frames[ i * 3 ];
+	}
+
+	int frameReply( int i ) {
+		return frames[ i * 3 + 1 ];
+	}
+
+	boolean frameRefreshCarriesConfig( int i ) {
+		return frames[ i * 3 + 2 ] != 0;
+	}
+
+	/**
+	 * Appends the commands of another encoder, framing included.
+	 */
+	CommandEncoder append( CommandEncoder cmd ) {
+		int base = len;
+		for ( int i = 0; i < cmd.frameCount; i++ ) {
+			len = base + cmd.frameEnd( i );
+			frame( cmd.frameReply( i ), cmd.frameRefreshCarriesConfig( i ) );
+		}
+		len = base;
+		return append( cmd.buf, 0, cmd.len );
+	}
+
+	CommandEncoder append( byte[] b ) {
+		return append( b, 0, b.length );
+	}
+
+	CommandEncoder append( byte[] b, int off, int n ) {
+		ensure( n );
+		System.arraycopy( b, off, buf, len, n );
+		len += n;
+		return this;
+	}
+
+	/**
+	 * Appends the bytes between position and limit; the position is left
+	 * as is.
+	 */
+	CommandEncoder append( ByteBuffer b ) {
+		int n = b.remaining();
+		ensure( n );
+		b.duplicate().get( buf, len, n );
+		len += n;
+		return this;
+	}
+
+	CommandEncoder space() {
+		ensure( 1 );
+		buf[ len++ ] = ' ';
+		return this;
+	}
+
+	CommandEncoder crlf() {
+		ensure( 2 );
+		buf[ len++ ] = '\r';
+		buf[ len++ ] = '\n';
+		return this;
+	}
+
+	/**
+	 * Appends a key.  Sanitized keys are always ASCII and are copied char
+	 * by char; anything else is encoded with the platform charset, as
+	 * String.getBytes() did before.
+	 */
+	CommandEncoder key( String key ) {
+		int n = key.length();
+		ensure( n );
+		for ( int i = 0; i < n; i++ ) {
+			char c = key.charAt( i );
+			if ( c >= 0x80 )
+				return append( key.substring( i ).getBytes() );
+			buf[ len++ ] = (byte)c;
+		}
+		return this;
+	}
+
+	/**
+	 * Appends the decimal form of a number.
+	 */
+	CommandEncoder number( long value ) {
+		if ( value == Long.MIN_VALUE )
+			return append( Long.toString( value ).getBytes() );
+
+		ensure( 20 );
+		if ( value < 0 ) {
+			buf[ len++ ] = '-';
+			value = -value;
+		}
+
+		// digits are written backwards, then the run is reversed
+		int start = len;
+		do {
+			buf[ len++ ] = (byte)( '0' + ( value % 10 ) );
+			value /= 10;
+		} while ( value != 0 );
+
+		for ( int i = start, j = len - 1; i < j; i++, j-- ) {
+			byte t = buf[i];
+			buf[i] = buf[j];
+			buf[j] = t;
+		}
+		return this;
+	}
+
+	/**
+	 * Number of bytes number() appends for a value.
+	 */
+	static int digits( long value ) {
+		if ( value == Long.MIN_VALUE )
+			return 20;
+
+		int n = 1;
+		if ( value < 0 ) {
+			n++;
+			value = -value;
+		}
+		while ( value >= 10 ) {
+			n++;
+			value /= 10;
+		}
+		return n;
+	}
+
+	byte[] buffer() {
+		return buf;
+	}
+
+	int length() {
+		return len;
+	}
+
+	byte[] toByteArray() {
+		return Arrays.copyOf( buf, len );
+	}
+
+	private void ensure( int n ) {
+		if ( len + n > buf.length )
+			buf = Arrays.copyOf( buf, Math.max( buf.length * 2, len + n ) );
+	}
+
+	/**
+	 * The command as a String, for logging.
+	 */
+	public String toString() {
+		return new String( buf, 0, len );
+	}
+}
@@ -0,0 +1,93 @@
+package edu.usc.cs550.rejig.client;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts of what compression did with the values over the threshold,
+ * for tuning the threshold and the ratio compression has to beat.  See
+ * {@link MemcachedClient#getCompressionStats()}.
+ */
+public final class CompressionStats {
+
+	private final LongAdder compressed        = new LongAdder();
+	private final LongAdder skipped           = new LongAdder();
+	private final LongAdder notSmaller        = new LongAdder();
+	private final LongAdder bytesIn           = new LongAdder();
+	private final LongAdder bytesOut          = new LongAdder();
+	private final LongAdder bytesUncompressed = new LongAdder();
+
+	/**
+	 * Number of values stored compressed.
+	 */
+	public long getCompressed() {
+		return compressed.sum();
+	}
+
+	/**
+	 * Number of values stored as they are because a sample of them did
+	 * not compress well enough.
+	 */
+	public long getSkipped() {
+		return skipped.sum();
+	}
+
+	/**
+	 * Number of values compressed in full, then stored as they are
+	 * because that did not make them smaller.
+	 */
+	public long getNotSmaller() {
+		return notSmaller.sum();
+	}
+
+	/**
+	 * Bytes of the values stored compressed, before compression.
+	 */
+	public long getBytesIn() {
+		return bytesIn.sum();
+	}
+
+	/**
+	 * Bytes of the values stored compressed, after compression.
+	 */
+	public long getBytesOut() {
+		return bytesOut.sum();
+	}
+
+	/**
+	 * Bytes of the values skipped or not made smaller, which were stored
+	 * as they are.
+	 */
+	public long getBytesUncompressed() {
+		return bytesUncompressed.sum();
+	}
+
+	/**
+	 * Compressed size over original size of the values stored compressed,
+	 * 1 if there were none.
+	 */
+	public double getRatio() {
+		long in = bytesIn.sum();
+		return ( in == 0 ) ? 1 : (double)bytesOut.sum() / in;
+	}
+
+	void compressed( int in, int out ) {
+		compressed.increment();
+		bytesIn.add( in );
+		bytesOut.add( out );
+	}
+
+	void skipped( int length ) {
+		skipped.increment();
+		bytesUncompressed.add( length );
+	}
+
+	void notSmaller( int length ) {
+		notSmaller.increment();
+		bytesUncompressed.add( length );
+	}
+
+	public String toString() {
+		return "CompressionStats[compressed=" + getCompressed() + ", skipped=" + getSkipped()
+			+ ", notSmaller=" + getNotSmaller() + ", ratio=" + getRatio() + "]";
+	}
+}
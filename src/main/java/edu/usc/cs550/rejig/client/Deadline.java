@@ -0,0 +1,85 @@
+package edu.usc.cs550.rejig.client;
+
+import java.net.SocketTimeoutException;
+import java.util.function.Supplier;
+
+/**
+ * Deadline of the operation running on the current thread.
+ *
+ * {@link MemcachedClient#withDeadline} sets it for the duration of the
+ * operations it runs.  Everything that may block on the way, from
+ * connecting and failing over to a REFRESH_AND_RETRY retry and each read
+ * of the response, cuts its own timeout down to what is left, so the
+ * operation as a whole gives up once the deadline has passed.  Without a
+ * deadline the usual timeouts apply unchanged.
+ */
+final class Deadline {
+
+	// absolute time in ms, 0 if the thread has no deadline
+	private static final ThreadLocal<long[]> current = new ThreadLocal<long[]>() {
+		protected long[] initialValue() {
+			return new long[1];
+		}
+	};
+
+	private Deadline() { }
+
+	/**
+	 * Runs the operation with the given deadline, or with the one already
+	 * set if that is earlier.
+	 *
+	 * @param deadline absolute time in ms
+	 * @param op operation to run
+	 * @return what the operation returned
+	 */
+	static <T> T call( long deadline, Supplier<T> op ) {
+		long[] holder = current.get();
+		long outer = holder[0];
+		if ( outer == 0 || deadline < outer )
+			holder[0] = deadline;
+
+		try {
+			return op.get();
+		}
+		finally {
+			holder[0] = outer;
+		}
+	}
+
+	/**
+	 * Returns true if the thread has a deadline and it has passed.
+	 */
+	static boolean passed() {
+		long deadline = current.get()[0];
+		return deadline != 0 && deadline <= System.currentTimeMillis();
+	}
+
+	/**
+	 * Returns the earlier of the passed in time and the thread's deadline.
+	 *
+	 * @param time absolute time in ms
+	 */
+	static long cap( long time ) {
+		long deadline = current.get()[0];
+		return ( deadline != 0 && deadline < time ) ? deadline : time;
+	}
+
+	/**
+	 * Cuts a timeout down to what is left until the thread's deadline.
+	 *
+	 * @param timeout timeout in ms, 0 for none
+	 * @return the timeout to use, 0 still meaning none
+	 * @throws SocketTimeoutException if the deadline has passed
+	 */
+	static int timeout( int timeout ) throws SocketTimeoutException {
+		long deadline = current.get()[0];
+		if ( deadline == 0 )
+			return timeout;
+
+		long left = deadline - System.currentTimeMillis();
+		if ( left <= 0 )
+			throw new SocketTimeoutException( "++++ operation deadline passed" );
+
+		return ( timeout > 0 && timeout < left ) ? timeout : (int)Math.min( left, Integer.MAX_VALUE );
+	}
+}
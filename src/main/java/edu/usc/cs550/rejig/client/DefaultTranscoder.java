@@ -0,0 +1,102 @@
+package edu.usc.cs550.rejig.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The transcoder clients use unless told otherwise, storing values the
+ * way this client always has:<br/>
+ * <br/>
+ * ByteBuffers are stored as they are, flagged
+ * {@link MemcachedClient#MARKER_BYTEARR} and read back as byte[].  The
+ * types {@link NativeHandler} handles are stored in its compact form,
+ * flagged with their marker.  Everything else is Java serialized and
+ * flagged {@link MemcachedClient#F_SERIALIZED}, then read back through
+ * a {@link ContextObjectInputStream} using the client's ClassLoader.
+ */
+public class DefaultTranscoder implements Transcoder<Object> {
+
+	// logger
+	private static Logger log =
+		Logger.getLogger( DefaultTranscoder.class.getName() );
+
+	// optional loader of the classes of serialized values
+	private volatile ClassLoader classLoader;
+
+	public DefaultTranscoder() {
+		this( null );
+	}
+
+	/**
+	 * @param classLoader loader of the classes of serialized values, or
+	 *        null for the default one
+	 */
+	public DefaultTranscoder( ClassLoader classLoader ) {
+		this.classLoader = classLoader;
+	}
+
+	public void setClassLoader( ClassLoader classLoader ) {
+		this.classLoader = classLoader;
+	}
+
+	public CachedData encode( Object value ) throws IOException {
+
+		// stored as is and read back as a byte[]
+		if ( value instanceof ByteBuffer )
+			return new CachedData( MemcachedClient.MARKER_BYTEARR, ((ByteBuffer)value).duplicate() );
+
+		if ( NativeHandler.isHandled( value ) ) {
+			if ( log.isInfoEnabled() )
+				log.info( "Storing with native handler..." );
+			try {
+				return new CachedData( NativeHandler.getMarkerFlag( value ), NativeHandler.encode( value ) );
+			}
+			catch ( IOException e ) {
+				throw e;
+			}
+			catch ( Exception e ) {
+				throw new NestedIOException( "++++ failed to native handle obj", e );
+			}
+		}
+
+		// always serialize for non-primitive types
+		if ( log.isInfoEnabled() )
+			log.info( "++++ serializing for class: " + value.getClass().getName() );
+		MemcachedClient.ValueOutputStream bos = new MemcachedClient.ValueOutputStream();
+		(new ObjectOutputStream( bos )).writeObject( value );
+		return new CachedData( MemcachedClient.F_SERIALIZED, bos.toByteBuffer() );
+	}
+
+	public Object decode( CachedData data ) throws IOException {
+		int flags = data.getFlags();
+
+		if ( ( flags & MemcachedClient.F_SERIALIZED ) != MemcachedClient.F_SERIALIZED ) {
+			try {
+				return NativeHandler.decode( data.getBytes(), flags );
+			}
+			catch ( IOException e ) {
+				throw e;
+			}
+			catch ( Exception e ) {
+				throw new NestedIOException( "++++ failed to decode natively handled value", e );
+			}
+		}
+
+		// deserialize if the data is serialized
+		ContextObjectInputStream ois =
+			new ContextObjectInputStream( new ByteArrayInputStream( data.getBytes() ), classLoader );
+		try {
+			Object o = ois.readObject();
+			if ( log.isInfoEnabled() )
+				log.info( "++++ deserializing " + o.getClass() );
+			return o;
+		}
+		catch ( ClassNotFoundException e ) {
+			throw new NestedIOException( "++++ class of serialized value not found", e );
+		}
+	}
+}
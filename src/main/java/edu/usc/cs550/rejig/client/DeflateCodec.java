@@ -0,0 +1,160 @@
+package edu.usc.cs550.rejig.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses values stored with {@link MemcachedClient#F_DEFLATED}.
+ *
+ * A value is its uncompressed length, as 4 bytes big endian, followed by
+ * the raw deflate stream, so decoding allocates the result once and does
+ * not need a stream around it.  Deflaters and Inflaters are reset and
+ * pooled rather than made per value, which keeps setting up and freeing
+ * native zlib state, and finalizing it, off the path of each operation.
+ * A codec is immutable apart from its pools and is shared by the threads
+ * using a client.
+ */
+final class DeflateCodec {
+
+	// idle Deflaters/Inflaters kept, the rest are ended
+	private static final int POOL_SIZE = 2 * Runtime.getRuntime().availableProcessors();
+
+	// length of the header holding the uncompressed length
+	private static final int HEADER = 4;
+
+	// largest uncompressed length believed, far over what fits in a
+	// memcached item compressed or not, so a corrupt header can not
+	// have a huge array allocated
+	static final int MAX_LENGTH = 64 * 1024 * 1024;
+
+	// deflate can not shrink anything by more than this
+	private static final int MAX_RATIO = 1032;
+
+	private final int level;
+	private final int strategy;
+
+	private final BlockingQueue<Deflater> deflaters = new ArrayBlockingQueue<Deflater>( POOL_SIZE );
+	private final BlockingQueue<Inflater> inflaters = new ArrayBlockingQueue<Inflater>( POOL_SIZE );
+
+	/**
+	 * @param level compression level, 0-9 or Deflater.DEFAULT_COMPRESSION
+	 * @param strategy Deflater.DEFAULT_STRATEGY, FILTERED or HUFFMAN_ONLY
+	 */
+	DeflateCodec( int level, int strategy ) {
+		if ( ( level < 0 || level > 9 ) && level != Deflater.DEFAULT_COMPRESSION )
+			throw new IllegalArgumentException( "invalid compression level: " + level );
+		if ( strategy != Deflater.DEFAULT_STRATEGY && strategy != Deflater.FILTERED && strategy != Deflater.HUFFMAN_ONLY )
+			throw new IllegalArgumentException( "invalid compression strategy: " + strategy );
+
+		this.level    = level;
+		this.strategy = strategy;
+	}
+
+	int level() {
+		return level;
+	}
+
+	int strategy() {
+		return strategy;
+	}
+
+	/**
+	 * Compresses the bytes between position and limit of the buffer,
+	 * which is left as it is.
+	 */
+	ByteBuffer compress( ByteBuffer val ) {
+		byte[] in;
+		int off;
+		int len = val.remaining();
+		if ( val.hasArray() ) {
+			in  = val.array();
+			off = val.arrayOffset() + val.position();
+		}
+		else {
+			// direct buffers have to be copied out to be deflated
+			in  = new byte[ len ];
+			off = 0;
+			val.duplicate().get( in );
+		}
+
+		// zlib's bound for incompressible input, so one array almost always does
+		byte[] out = new byte[ HEADER + len + ( len >> 12 ) + ( len >> 14 ) + ( len >> 25 ) + 13 ];
+		out[0] = (byte)( len >>> 24 );
+		out[1] = (byte)( len >>> 16 );
+		out[2] = (byte)( len >>> 8 );
+		out[3] = (byte)len;
+		int size = HEADER;
+
+		Deflater deflater = deflaters.poll();
+		if ( deflater == null ) {
+			deflater = new Deflater( level, true );
+			deflater.setStrategy( strategy );
+		}
+		try {
+			deflater.setInput( in, off, len );
+			deflater.finish();
+			while ( !deflater.finished() ) {
+				if ( size == out.length )
+					out = Arrays.copyOf( out, out.length * 2 );
+				size += deflater.deflate( out, size, out.length - size );
+			}
+		}
+		finally {
+			deflater.reset();
+			if ( !deflaters.offer( deflater ) )
+				deflater.end();
+		}
+
+		return ByteBuffer.wrap( out, 0, size );
+	}
+
+	/**
+	 * Uncompresses a value made by compress().
+	 *
+	 * @throws IOException if the value is not a valid one
+	 */
+	byte[] decompress( byte[] buf ) throws IOException {
+		if ( buf.length < HEADER )
+			throw new IOException( "++++ compressed value too short: " + buf.length );
+
+		int len = ( ( buf[0] & 0xff ) << 24 ) | ( ( buf[1] & 0xff ) << 16 ) | ( ( buf[2] & 0xff ) << 8 ) | ( buf[3] & 0xff );
+		if ( len < 0 || len > MAX_LENGTH || len > (long)( buf.length - HEADER + 1 ) * MAX_RATIO )
+			throw new IOException( "++++ invalid uncompressed length: " + len + " for " + buf.length + " compressed bytes" );
+
+		byte[] out = new byte[ len ];
+		int size = 0;
+
+		Inflater inflater = inflaters.poll();
+		if ( inflater == null )
+			inflater = new Inflater( true );
+		try {
+			inflater.setInput( buf, HEADER, buf.length - HEADER );
+			while ( size < len ) {
+				int n = inflater.inflate( out, size, len - size );
+				if ( n == 0 && ( inflater.finished() || inflater.needsInput() || inflater.needsDictionary() ) )
+					throw new IOException( "++++ compressed value ends after " + size + " of " + len + " bytes" );
+				size += n;
+			}
+
+			// the stream has to end right there, not go on past the length
+			if ( !inflater.finished() && ( inflater.inflate( new byte[1] ) > 0 || !inflater.finished() ) )
+				throw new IOException( "++++ compressed value longer than its length of " + len + " bytes" );
+		}
+		catch ( DataFormatException e ) {
+			throw new NestedIOException( "++++ invalid compressed value", e );
+		}
+		finally {
+			inflater.reset();
+			if ( !inflaters.offer( inflater ) )
+				inflater.end();
+		}
+
+		return out;
+	}
+}
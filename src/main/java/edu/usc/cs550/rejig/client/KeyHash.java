@@ -0,0 +1,291 @@
+package edu.usc.cs550.rejig.client;
+
+import java.util.zip.CRC32;
+
+/**
+ * Key hashing functions used by SockIOPool to pick a fragment.
+ *
+ * MURMUR3_32 and XXHASH64 hash the UTF-8 bytes of the key (so they agree
+ * with other clients using the same functions) without allocating.  ASCII
+ * keys, by far the common case, are hashed straight from their chars;
+ * other keys are encoded into a per thread scratch buffer, which is only
+ * ever replaced for keys longer than any seen before on that thread.
+ */
+final class KeyHash {
+
+	// scratch buffer for the UTF-8 encoding of keys
+	private static final ThreadLocal<byte[]> scratch = new ThreadLocal<byte[]>() {
+		protected byte[] initialValue() { return new byte[ 256 ]; }
+	};
+
+	// murmur3 constants
+	private static final int M3_C1 = 0xcc9e2d51;
+	private static final int M3_C2 = 0x1b873593;
+
+	// xxhash64 constants
+	private static final long P1 = 0x9E3779B185EBCA87L;
+	private static final long P2 = 0xC2B2AE3D27D4EB4FL;
+	private static final long P3 = 0x165667B19E3779F9L;
+	private static final long P4 = 0x85EBCA77C2B2AE63L;
+	private static final long P5 = 0x27D4EB2F165667C5L;
+
+	private KeyHash() { }
+
+	/**
+	 * This is the original hashing algorithm from other clients.
+	 * Found to be slow and have poor distribution.
+	 */
+	static long origCompat( String key ) {
+		long hash = 0;
+		for ( int i = 0; i < key.length(); ++i )
+			hash = (hash * 33) + key.charAt( i );
+
+		return hash;
+	}
+
+	/**
+	 * This is the new hashing algorithm from other clients, CRC32 of the
+	 * key in the platform encoding.  Kept as is for compatibility.
+	 */
+	static long newCompat( String key ) {
+		CRC32 checksum = new CRC32();
+		checksum.update( key.getBytes() );
+		long crc = checksum.getValue();
+		return (crc >> 16) & 0x7fff;
+	}
+
+	/**
+	 * 32 bit FNV-1a over the chars of the key.
+	 */
+	static int fnv1a32( String key ) {
+		int hash = 0x811c9dc5;
+		for ( int i = 0; i < key.length(); i++ ) {
+			hash ^= key.charAt( i );
+			hash *= 0x01000193;
+		}
+		return hash;
+	}
+
+	/**
+	 * MurmurHash3 x86_32 (seed 0) of the UTF-8 bytes of the key.
+	 */
+	static int murmur3_32( String key ) {
+		if ( isAscii( key ) )
+			return murmur3_32( null, key, 0, key.length() );
+
+		byte[] b = scratchFor( key );
+		return murmur3_32( b, null, 0, encodeUtf8( key, b ) );
+	}
+
+	static int murmur3_32( byte[] b, int off, int len ) {
+		return murmur3_32( b, null, off, len );
+	}
+
+	/**
+	 * Hashes either the bytes or the (ASCII) chars passed in.
+	 */
+	private static int murmur3_32( byte[] b, String s, int off, int len ) {
+		int h = 0;
+		int end = off + ( len & ~3 );
+
+		for ( int i = off; i < end; i += 4 ) {
+			int k = getInt( b, s, i );
+			k *= M3_C1;
+			k = Integer.rotateLeft( k, 15 );
+			k *= M3_C2;
+
+			h ^= k;
+			h = Integer.rotateLeft( h, 13 );
+			h = h * 5 + 0xe6546b64;
+		}
+
+		// the last 1-3 bytes, little endian
+		int tail = len & 3;
+		if ( tail != 0 ) {
+			int k = getByte( b, s, end );
+			if ( tail > 1 )
+				k |= getByte( b, s, end + 1 ) << 8;
+			if ( tail > 2 )
+				k |= getByte( b, s, end + 2 ) << 16;
+			k *= M3_C1;
+			k = Integer.rotateLeft( k, 15 );
+			k *= M3_C2;
+			h ^= k;
+		}
+
+		h ^= len;
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	/**
+	 * XXH64 (seed 0) of the UTF-8 bytes of the key.
+	 */
+	static long xxHash64( String key ) {
+		if ( isAscii( key ) )
+			return xxHash64( null, key, 0, key.length() );
+
+		byte[] b = scratchFor( key );
+		return xxHash64( b, null, 0, encodeUtf8( key, b ) );
+	}
+
+	static long xxHash64( byte[] b, int off, int len ) {
+		return xxHash64( b, null, off, len );
+	}
+
+	/**
+	 * Hashes either the bytes or the (ASCII) chars passed in.
+	 */
+	private static long xxHash64( byte[] b, String s, int off, int len ) {
+		int end = off + len;
+		int i = off;
+		long h;
+
+		if ( len >= 32 ) {
+			long v1 = P1 + P2;
+			long v2 = P2;
+			long v3 = 0;
+			long v4 = -P1;
+			int limit = end - 32;
+			do {
+				v1 = round( v1, getLong( b, s, i ) );
+				v2 = round( v2, getLong( b, s, i + 8 ) );
+				v3 = round( v3, getLong( b, s, i + 16 ) );
+				v4 = round( v4, getLong( b, s, i + 24 ) );
+				i += 32;
+			} while ( i <= limit );
+
+			h = Long.rotateLeft( v1, 1 ) + Long.rotateLeft( v2, 7 ) + Long.rotateLeft( v3, 12 ) + Long.rotateLeft( v4, 18 );
+			h = mergeRound( h, v1 );
+			h = mergeRound( h, v2 );
+			h = mergeRound( h, v3 );
+			h = mergeRound( h, v4 );
+		}
+		else {
+			h = P5;
+		}
+
+		h += len;
+
+		while ( i + 8 <= end ) {
+			h ^= round( 0, getLong( b, s, i ) );
+			h = Long.rotateLeft( h, 27 ) * P1 + P4;
+			i += 8;
+		}
+
+		if ( i + 4 <= end ) {
+			h ^= ( getInt( b, s, i ) & 0xFFFFFFFFL ) * P1;
+			h = Long.rotateLeft( h, 23 ) * P2 + P3;
+			i += 4;
+		}
+
+		while ( i < end ) {
+			h ^= getByte( b, s, i ) * P5;
+			h = Long.rotateLeft( h, 11 ) * P1;
+			i++;
+		}
+
+		h ^= h >>> 33;
+		h *= P2;
+		h ^= h >>> 29;
+		h *= P3;
+		h ^= h >>> 32;
+		return h;
+	}
+
+	private static long round( long acc, long input ) {
+		acc += input * P2;
+		acc = Long.rotateLeft( acc, 31 );
+		return acc * P1;
+	}
+
+	private static long mergeRound( long acc, long val ) {
+		acc ^= round( 0, val );
+		return acc * P1 + P4;
+	}
+
+	private static int getByte( byte[] b, String s, int i ) {
+		return ( b != null ) ? b[i] & 0xFF : s.charAt( i );
+	}
+
+	private static int getInt( byte[] b, String s, int i ) {
+		if ( b != null )
+			return ( b[i] & 0xFF ) | ( ( b[i + 1] & 0xFF ) << 8 ) | ( ( b[i + 2] & 0xFF ) << 16 ) | ( b[i + 3] << 24 );
+
+		return s.charAt( i ) | ( s.charAt( i + 1 ) << 8 ) | ( s.charAt( i + 2 ) << 16 ) | ( s.charAt( i + 3 ) << 24 );
+	}
+
+	private static long getLong( byte[] b, String s, int i ) {
+		return ( getInt( b, s, i ) & 0xFFFFFFFFL ) | ( (long)getInt( b, s, i + 4 ) << 32 );
+	}
+
+	/**
+	 * Returns true if every char of the key is encoded as a single byte.
+	 */
+	private static boolean isAscii( String key ) {
+		for ( int i = 0; i < key.length(); i++ ) {
+			if ( key.charAt( i ) >= 0x80 )
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the scratch buffer of this thread, grown if needed to hold
+	 * the UTF-8 encoding of the key (at most 3 bytes per char).
+	 */
+	private static byte[] scratchFor( String key ) {
+		byte[] b = scratch.get();
+		int max = key.length() * 3;
+		if ( b.length < max ) {
+			b = new byte[ Math.max( max, b.length * 2 ) ];
+			scratch.set( b );
+		}
+		return b;
+	}
+
+	/**
+	 * Encodes the key as UTF-8 into the buffer, the same way
+	 * String.getBytes( "UTF-8" ) does (malformed surrogates become '?').
+	 *
+	 * @return number of bytes written
+	 */
+	static int encodeUtf8( String key, byte[] b ) {
+		int n = 0;
+		int len = key.length();
+		for ( int i = 0; i < len; i++ ) {
+			char c = key.charAt( i );
+			if ( c < 0x80 ) {
+				b[n++] = (byte)c;
+			}
+			else if ( c < 0x800 ) {
+				b[n++] = (byte)( 0xc0 | ( c >> 6 ) );
+				b[n++] = (byte)( 0x80 | ( c & 0x3f ) );
+			}
+			else if ( Character.isSurrogate( c ) ) {
+				char d = ( i + 1 < len ) ? key.charAt( i + 1 ) : 0;
+				if ( Character.isHighSurrogate( c ) && Character.isLowSurrogate( d ) ) {
+					int cp = Character.toCodePoint( c, d );
+					b[n++] = (byte)( 0xf0 | ( cp >> 18 ) );
+					b[n++] = (byte)( 0x80 | ( ( cp >> 12 ) & 0x3f ) );
+					b[n++] = (byte)( 0x80 | ( ( cp >> 6 ) & 0x3f ) );
+					b[n++] = (byte)( 0x80 | ( cp & 0x3f ) );
+					i++;
+				}
+				else {
+					b[n++] = (byte)'?';
+				}
+			}
+			else {
+				b[n++] = (byte)( 0xe0 | ( c >> 12 ) );
+				b[n++] = (byte)( 0x80 | ( ( c >> 6 ) & 0x3f ) );
+				b[n++] = (byte)( 0x80 | ( c & 0x3f ) );
+			}
+		}
+		return n;
+	}
+}
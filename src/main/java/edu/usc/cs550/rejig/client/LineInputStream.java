@@ -29,6 +29,14 @@ public interface LineInputStream {
 	 */
 	public String readLine() throws IOException;
 
+	/**
+	 * Same as readLine() but the line is left in place in the
+	 * read buffer of the stream instead of being copied into a
+	 * String.  It is only valid until the next read.
+	 * @return  All next up to the next end of line.
+	 */
+	public ResponseLine readResponseLine() throws IOException;
+
 	/**
 	 * Read everything up to and including the end of line.
 	 */
@@ -22,10 +22,19 @@ import edu.usc.cs550.rejig.interfaces.Fragment;
 import edu.usc.cs550.rejig.interfaces.RejigConfig;
 
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
 import java.util.zip.*;
 import java.nio.*;
 import java.net.InetAddress;
+import java.net.SocketTimeoutException;
 import java.nio.charset.*;
 import java.nio.channels.*;
 import java.nio.channels.spi.*;
@@ -185,14 +194,15 @@ public class MemcachedClient {
 	private static final String CLIENT_ERROR = "CLIENT_ERROR";	// client error in input line - invalid protocol
 	private static final String SERVER_ERROR = "SERVER_ERROR";	// server error
 
-	private static final byte[] B_END        = "END\r\n".getBytes();
-	private static final byte[] B_NOTFOUND   = "NOT_FOUND\r\n".getBytes();
-	private static final byte[] B_DELETED    = "DELETED\r\r".getBytes();
-	private static final byte[] B_STORED     = "STORED\r\r".getBytes();
-
 	// default compression threshold
 	private static final int COMPRESS_THRESH = 30720;
 
+	// default compressed over original size a sample has to beat
+	private static final double COMPRESS_RATIO = 0.9;
+
+	// length of the prefix sampled to tell whether to compress a value
+	private static final int COMPRESS_SAMPLE = 4096;
+
 	// values for cache flags
 	public static final int MARKER_BYTE             = 1;
 	public static final int MARKER_BOOLEAN          = 8192;
@@ -209,6 +219,7 @@ public class MemcachedClient {
 	public static final int MARKER_BYTEARR          = 4096;
 	public static final int F_COMPRESSED            = 2;
 	public static final int F_SERIALIZED            = 8;
+	public static final int F_DEFLATED              = 32768;
 
 	// flags
 	private boolean sanitizeKeys;
@@ -217,9 +228,20 @@ public class MemcachedClient {
 	private long compressThreshold;
 	private String defaultEncoding;
 
+	private boolean compressAdaptive;
+	private double compressRatio;
+
+	// compresses values, replaced when the level or strategy is set
+	private volatile DeflateCodec compressor;
+	private final CompressionStats compressionStats = new CompressionStats();
+
 	// pool instance
 	private AtomicReference<SockIOPool> currentPool;
 
+	// guards refreshFlight, set while a thread builds the pool of a new config
+	private final Object refreshLock = new Object();
+	private CompletableFuture<Void> refreshFlight;
+
 	// sockiopool initialization options.
 	SockIOPool.SockIOPoolOptions poolOptions;
 
@@ -229,6 +251,10 @@ public class MemcachedClient {
 	// optional passed in classloader
 	private ClassLoader classLoader;
 
+	// turns values into what is stored and back, the default one unless set
+	private final DefaultTranscoder defaultTranscoder = new DefaultTranscoder();
+	private Transcoder<Object> transcoder = defaultTranscoder;
+
 	// optional error handler
 	private ErrorHandler errorHandler;
 
@@ -318,7 +344,11 @@ public class MemcachedClient {
 		this.primitiveAsString  = false;
 		this.compressEnable     = true;
 		this.compressThreshold  = COMPRESS_THRESH;
+		this.compressAdaptive   = false;
+		this.compressRatio      = COMPRESS_RATIO;
+		this.compressor         = new DeflateCodec( Deflater.DEFAULT_COMPRESSION, Deflater.DEFAULT_STRATEGY );
 		this.defaultEncoding    = "UTF-8";
+		this.defaultTranscoder.setClassLoader( classLoader );
 		RejigConfig config = this.configReader.getConfig();
 		currentPool = new AtomicReference<SockIOPool>(createSockIOPool(config));
 	}
@@ -328,34 +358,115 @@ public class MemcachedClient {
 	 * config, and make the client use the new pool.
 	 */
 	private SockIOPool createSockIOPool(RejigConfig config) {
+		return createSockIOPool(config, null);
+	}
+
+	/**
+	 * Create and initialize a new SockIOPool for the given
+	 * config, taking over the connections of the previous pool
+	 * to the servers which are part of both configs.
+	 */
+	private SockIOPool createSockIOPool(RejigConfig config, SockIOPool previous) {
 		String poolName = String.format("%s-%d", this.poolNamePrefix, config.getId());
 		SockIOPool pool = SockIOPool.getInstance(poolName)
 			.setRejigConfig(config)
 			.setPoolOptions(poolOptions)
-			.initialize();
+			.initialize(previous);
+		pool.setNoreplyListener(new Runnable() {
+			public void run() {
+				surfaceNoreplyFailures();
+			}
+		});
 		return pool;
 	}
 
 	/**
-	 * Atomically sets the current SockIOPool to the new value.
-	 * If the set was successful, it shuts down the old pool.
-	 * If the set failed, it retries infinitely with
-	 * exponential backoff.
+	 * Moves the client off the pool a REFRESH_AND_RETRY was received on.
+	 *
+	 * Refreshes are single-flight: the first thread builds the new pool
+	 * while the others wait for it to finish, then find the pool already
+	 * replaced and go on using it.  A thread that needs a config newer than
+	 * the one just built starts the next refresh itself.
+	 *
+	 * @param oldPool pool the REFRESH_AND_RETRY was received on
+	 * @param newConfig config sent by the server, or null to get it from
+	 *        the config reader
+	 * @param host server the REFRESH_AND_RETRY came from
+	 * @return true if the client now uses a newer config than oldPool's
 	 */
-	private void compareAndSetSockIOPool(SockIOPool oldPool, SockIOPool newPool) {
-		long sleepMillis = 2000;
-		while (true) {
-			boolean ret = currentPool.compareAndSet(oldPool, newPool);
-			if (ret) {
-				oldPool.shutDown();
-				break;
+	private boolean refreshSockIOPool(SockIOPool oldPool, RejigConfig newConfig, String host) {
+		int oldId = oldPool.getRejigConfig().getId();
+		while ( true ) {
+			CompletableFuture<Void> flight;
+			synchronized ( refreshLock ) {
+				SockIOPool pool = currentPool.get();
+				if ( pool == null )
+					return false;
+
+				// somebody already got us there
+				int currentId = pool.getRejigConfig().getId();
+				if ( currentId > oldId && ( newConfig == null || currentId >= newConfig.getId() ) )
+					return true;
+
+				flight = refreshFlight;
+				if ( flight == null ) {
+					refreshFlight = new CompletableFuture<Void>();
+					break;
+				}
 			}
+
+			if ( log.isDebugEnabled() )
+				log.debug( "++++ waiting for config refresh in progress. Host: " + host );
+
 			try {
-				Thread.sleep(sleepMillis);
-				sleepMillis *= 2;
-			} catch (InterruptedException e) {
-				log.warn("++++ Backoff sleep while setting SockIOPool interrupted.");
+				int wait = Deadline.timeout( 0 );
+				if ( wait > 0 )
+					flight.get( wait, TimeUnit.MILLISECONDS );
+				else
+					flight.get();
+			}
+			catch ( InterruptedException e ) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+			catch ( ExecutionException ignoreMe ) {
+				// flights are always completed normally
+			}
+			catch ( SocketTimeoutException e ) {
+				log.error( "++++ operation deadline passed waiting for config refresh. Host: " + host );
+				return false;
 			}
+			catch ( TimeoutException e ) {
+				log.error( "++++ operation deadline passed waiting for config refresh. Host: " + host );
+				return false;
+			}
+		}
+
+		try {
+			SockIOPool pool = currentPool.get();
+			if ( newConfig == null )
+				newConfig = configReader.getConfig();
+
+			if ( newConfig.getId() <= pool.getRejigConfig().getId() ) {
+				if ( errorHandler != null ) {
+					errorHandler.handleErrorOnRefreshAndRetry( this,
+						new IOException("++++ new config id is same as old one after REFRESH_AND_RETRY. New Config id: " + newConfig.getId() + ". Old Config id: " + pool.getRejigConfig().getId() + ". Host: " + host) );
+				}
+				return pool.getRejigConfig().getId() > oldId;
+			}
+
+			// only this thread replaces the pool, so nothing can race the set
+			currentPool.set( createSockIOPool( newConfig, pool ) );
+			pool.retire();
+			return true;
+		}
+		finally {
+			CompletableFuture<Void> flight;
+			synchronized ( refreshLock ) {
+				flight = refreshFlight;
+				refreshFlight = null;
+			}
+			flight.complete( null );
 		}
 	}
 
@@ -374,6 +485,25 @@ public class MemcachedClient {
 	 */
 	public void setClassLoader( ClassLoader classLoader ) {
 		this.classLoader = classLoader;
+		this.defaultTranscoder.setClassLoader( classLoader );
+	}
+
+	/**
+	 * Sets the transcoder values are stored and read with, unless a call
+	 * is passed one of its own.  Null goes back to the
+	 * {@link DefaultTranscoder}.
+	 *
+	 * @param transcoder
+	 */
+	public void setTranscoder( Transcoder<Object> transcoder ) {
+		this.transcoder = ( transcoder != null ) ? transcoder : defaultTranscoder;
+	}
+
+	/**
+	 * Returns the transcoder values are stored and read with.
+	 */
+	public Transcoder<Object> getTranscoder() {
+		return transcoder;
 	}
 
 	/**
@@ -422,7 +552,8 @@ public class MemcachedClient {
 	 * The default is that compression is enabled.<br/>
 	 *<br/>
 	 * Even if compression is disabled, compressed data will be automatically<br/>
-	 * decompressed.
+	 * decompressed.  Values are stored raw deflated with F_DEFLATED; gzipped<br/>
+	 * ones, flagged F_COMPRESSED by earlier releases, are still read.
 	 *
 	 * @param compressEnable <CODE>true</CODE> to enable compression, <CODE>false</CODE> to disable compression
 	 */
@@ -444,6 +575,65 @@ public class MemcachedClient {
 		this.compressThreshold = compressThreshold;
 	}
 
+	/**
+	 * Sets the deflate level data is compressed with.
+	 *
+	 * From 1 (fastest) to 9 (smallest), 0 for none, or<br/>
+	 * Deflater.DEFAULT_COMPRESSION, which is the default.
+	 *
+	 * @param compressLevel compression level
+	 */
+	public void setCompressLevel( int compressLevel ) {
+		this.compressor = new DeflateCodec( compressLevel, compressor.strategy() );
+	}
+
+	/**
+	 * Sets the deflate strategy data is compressed with.
+	 *
+	 * One of Deflater.DEFAULT_STRATEGY, which is the default,<br/>
+	 * Deflater.FILTERED or Deflater.HUFFMAN_ONLY.
+	 *
+	 * @param compressStrategy compression strategy
+	 */
+	public void setCompressStrategy( int compressStrategy ) {
+		this.compressor = new DeflateCodec( compressor.level(), compressStrategy );
+	}
+
+	/**
+	 * Enable deciding whether to compress a value from a sample of it.
+	 *
+	 * If enabled, the first 4 KB of a value over the threshold are compressed<br/>
+	 * first, and the value is only compressed if the sample shrank to the ratio<br/>
+	 * set with setCompressRatio(double), so already compressed data such as images<br/>
+	 * costs little.<br/>
+	 *<br/>
+	 * The default is that it is disabled.  Either way a value is stored as it is<br/>
+	 * when compressing it did not make it smaller.
+	 *
+	 * @param compressAdaptive <CODE>true</CODE> to sample values before compressing them
+	 */
+	public void setCompressAdaptive( boolean compressAdaptive ) {
+		this.compressAdaptive = compressAdaptive;
+	}
+
+	/**
+	 * Sets the compressed over original size a sample has to come down to for its value to be compressed.
+	 *
+	 * This defaults to 0.9.
+	 *
+	 * @param compressRatio ratio between 0 and 1
+	 */
+	public void setCompressRatio( double compressRatio ) {
+		this.compressRatio = compressRatio;
+	}
+
+	/**
+	 * Returns the counts of what compression did with the values over the threshold.
+	 */
+	public CompressionStats getCompressionStats() {
+		return compressionStats;
+	}
+
 	/**
 	 * Checks to see if key exists in cache.
 	 *
@@ -513,9 +703,22 @@ public class MemcachedClient {
 			return false;
 		}
 
+		return deleteSanitized( key, hashCode, expiry );
+	}
+
+	/**
+	 * Deletes a key which has been sanitized already, such as one read
+	 * back from a server, routing on it as it is.
+	 *
+	 * @param key the sanitized key to be removed
+	 * @param hashCode if not null, then the int hashcode to use
+	 * @param expiry when to expire the record.
+	 * @return <code>true</code>, if the data was deleted successfully
+	 */
+	private boolean deleteSanitized( String key, Integer hashCode, Date expiry ) {
+
 		// get SockIO obj from hash or from key
 		SockIOPool pool = currentPool.get();
-		int client_config_id = pool.getRejigConfig().getId();
 		SockIOPool.SockAndFragmentId sockAndId = pool.getSockAndFragmentId( key, hashCode );
 
 		// return false if unable to get SockIO obj
@@ -527,28 +730,26 @@ public class MemcachedClient {
 		SockIOPool.SockIO sock = sockAndId.sock();
 
 		// build command
-		StringBuilder command = new StringBuilder( "rj " )
-			.append( client_config_id )
-			.append( " " )
-			.append( sockAndId.fragmentNum() )
-			.append( " delete " )
-			.append( key );
+		CommandEncoder command = sock.encoder()
+			.append( sockAndId.commandPrefix() )
+			.append( CommandEncoder.DELETE ).space()
+			.key( key );
 		if ( expiry != null )
-			command.append( " " + expiry.getTime() / 1000 );
+			command.space().number( expiry.getTime() / 1000 );
 
-		command.append( "\r\n" );
+		command.crlf().frame( CommandEncoder.REPLY_LINE, true );
 
 		try {
-			sock.write( command.toString().getBytes() );
+			sock.write( command );
 			sock.flush();
 
 			// if we get appropriate response back, then we return true
-			String line = sock.readLine();
-			if ( REFRESH_AND_RETRY.equals(line) ) {
+			ResponseLine line = sock.readResponseLine();
+			if ( line.is( ResponseLine.REFRESH_AND_RETRY ) ) {
 				handleRefreshAndRetry(pool, sock);
-				return delete(originalKey, hashCode, expiry);
+				return deleteSanitized( key, hashCode, expiry );
 			}
-			else if ( DELETED.equals( line ) ) {
+			else if ( line.is( ResponseLine.DELETED ) ) {
 				if ( log.isInfoEnabled() )
 					log.info( "++++ deletion of key: " + key + " from cache was a success" );
 
@@ -557,7 +758,7 @@ public class MemcachedClient {
 				sock = null;
 				return true;
 			}
-			else if ( NOTFOUND.equals( line ) ) {
+			else if ( line.is( ResponseLine.NOTFOUND ) ) {
 				if ( log.isInfoEnabled() )
 					log.info( "++++ deletion of key: " + key + " from cache failed as the key was not found" );
 			}
@@ -602,7 +803,7 @@ public class MemcachedClient {
 	 * @return true, if the data was successfully stored
 	 */
 	public boolean set( String key, Object value ) {
-		return set( "set", key, value, null, null, primitiveAsString );
+		return set( "set", key, value, null, null, primitiveAsString, transcoder );
 	}
 
 	/**
@@ -614,7 +815,7 @@ public class MemcachedClient {
 	 * @return true, if the data was successfully stored
 	 */
 	public boolean set( String key, Object value, Integer hashCode ) {
-		return set( "set", key, value, null, hashCode, primitiveAsString );
+		return set( "set", key, value, null, hashCode, primitiveAsString, transcoder );
 	}
 
 	/**
@@ -626,7 +827,7 @@ public class MemcachedClient {
 	 * @return true, if the data was successfully stored
 	 */
 	public boolean set( String key, Object value, Date expiry ) {
-		return set( "set", key, value, expiry, null, primitiveAsString );
+		return set( "set", key, value, expiry, null, primitiveAsString, transcoder );
 	}
 
 	/**
@@ -639,7 +840,21 @@ public class MemcachedClient {
 	 * @return true, if the data was successfully stored
 	 */
 	public boolean set( String key, Object value, Date expiry, Integer hashCode ) {
-		return set( "set", key, value, expiry, hashCode, primitiveAsString );
+		return set( "set", key, value, expiry, hashCode, primitiveAsString, transcoder );
+	}
+
+	/**
+	 * Stores data on the server, encoding the value with the given transcoder.
+	 *
+	 * @param key key to store data under
+	 * @param value value to store
+	 * @param expiry when to expire the record
+	 * @param tc transcoder to encode the value with
+	 * @return true, if the data was successfully stored
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> boolean set( String key, T value, Date expiry, Transcoder<T> tc ) {
+		return set( "set", key, value, expiry, null, false, (Transcoder<Object>)tc );
 	}
 
 	/**
@@ -650,7 +865,7 @@ public class MemcachedClient {
 	 * @return true, if the data was successfully stored
 	 */
 	public boolean add( String key, Object value ) {
-		return set( "add", key, value, null, null, primitiveAsString );
+		return set( "add", key, value, null, null, primitiveAsString, transcoder );
 	}
 
 	/**
@@ -662,7 +877,7 @@ public class MemcachedClient {
 	 * @return true, if the data was successfully stored
 	 */
 	public boolean add( String key, Object value, Integer hashCode ) {
-		return set( "add", key, value, null, hashCode, primitiveAsString );
+		return set( "add", key, value, null, hashCode, primitiveAsString, transcoder );
 	}
 
 	/**
@@ -674,7 +889,7 @@ public class MemcachedClient {
 	 * @return true, if the data was successfully stored
 	 */
 	public boolean add( String key, Object value, Date expiry ) {
-		return set( "add", key, value, expiry, null, primitiveAsString );
+		return set( "add", key, value, expiry, null, primitiveAsString, transcoder );
 	}
 
 	/**
@@ -687,7 +902,21 @@ public class MemcachedClient {
 	 * @return true, if the data was successfully stored
 	 */
 	public boolean add( String key, Object value, Date expiry, Integer hashCode ) {
-		return set( "add", key, value, expiry, hashCode, primitiveAsString );
+		return set( "add", key, value, expiry, hashCode, primitiveAsString, transcoder );
+	}
+
+	/**
+	 * Adds data to the server, encoding the value with the given transcoder.
+	 *
+	 * @param key key to store data under
+	 * @param value value to store
+	 * @param expiry when to expire the record
+	 * @param tc transcoder to encode the value with
+	 * @return true, if the data was successfully stored
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> boolean add( String key, T value, Date expiry, Transcoder<T> tc ) {
+		return set( "add", key, value, expiry, null, false, (Transcoder<Object>)tc );
 	}
 
 	/**
@@ -698,7 +927,7 @@ public class MemcachedClient {
 	 * @return true, if the data was successfully stored
 	 */
 	public boolean replace( String key, Object value ) {
-		return set( "replace", key, value, null, null, primitiveAsString );
+		return set( "replace", key, value, null, null, primitiveAsString, transcoder );
 	}
 
 	/**
@@ -710,7 +939,7 @@ public class MemcachedClient {
 	 * @return true, if the data was successfully stored
 	 */
 	public boolean replace( String key, Object value, Integer hashCode ) {
-		return set( "replace", key, value, null, hashCode, primitiveAsString );
+		return set( "replace", key, value, null, hashCode, primitiveAsString, transcoder );
 	}
 
 	/**
@@ -722,7 +951,7 @@ public class MemcachedClient {
 	 * @return true, if the data was successfully stored
 	 */
 	public boolean replace( String key, Object value, Date expiry ) {
-		return set( "replace", key, value, expiry, null, primitiveAsString );
+		return set( "replace", key, value, expiry, null, primitiveAsString, transcoder );
 	}
 
 	/**
@@ -735,40 +964,235 @@ public class MemcachedClient {
 	 * @return true, if the data was successfully stored
 	 */
 	public boolean replace( String key, Object value, Date expiry, Integer hashCode ) {
-		return set( "replace", key, value, expiry, hashCode, primitiveAsString );
+		return set( "replace", key, value, expiry, hashCode, primitiveAsString, transcoder );
 	}
 
 	/**
-	 * Stores data to cache.
+	 * Updates data on the server, encoding the value with the given transcoder.
 	 *
-	 * If data does not already exist for this key on the server, or if the key is being<br/>
-	 * deleted, the specified value will not be stored.<br/>
-	 * The server will automatically delete the value when the expiration time has been reached.<br/>
+	 * @param key key to store data under
+	 * @param value value to store
+	 * @param expiry when to expire the record
+	 * @param tc transcoder to encode the value with
+	 * @return true, if the data was successfully stored
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> boolean replace( String key, T value, Date expiry, Transcoder<T> tc ) {
+		return set( "replace", key, value, expiry, null, false, (Transcoder<Object>)tc );
+	}
+
+	/**
+	 * Stores data on the server without waiting for its reply.
+	 *
+	 * The command is sent with <code>noreply</code> and this returns as soon as it<br/>
+	 * has been buffered on a connection, so it costs no round trip.  The buffered<br/>
+	 * bytes go out with the next command on that connection or on {@link #flushWrites()}.<br/>
 	 * <br/>
-	 * If compression is enabled, and the data is longer than the compression threshold<br/>
-	 * the data will be stored in compressed form.<br/>
+	 * The server only answers a noreply command when it fails.  Such failures, and<br/>
+	 * commands turned down because the client's config was stale, are handed to the<br/>
+	 * errorHandler's handleErrorOnSet by the pool's maintenance thread, which also<br/>
+	 * sends out the commands left on idle connections, or sooner by the next<br/>
+	 * noreply call or flushWrites().  The key passed is the command's when it was<br/>
+	 * the only noreply command on its connection between two commands expecting a<br/>
+	 * reply; otherwise which command failed is not known and it is the host:port of<br/>
+	 * the server.
+	 *
+	 * @param key key to store data under
+	 * @param value value to store
+	 * @return true, if the command was buffered
+	 */
+	public boolean setNoreply( String key, Object value ) {
+		return noreply( "set", key, value, null, 0 );
+	}
+
+	/**
+	 * Stores data on the server without waiting for its reply, see {@link #setNoreply(String, Object)}.
+	 *
+	 * @param key key to store data under
+	 * @param value value to store
+	 * @param expiry when to expire the record
+	 * @return true, if the command was buffered
+	 */
+	public boolean setNoreply( String key, Object value, Date expiry ) {
+		return noreply( "set", key, value, expiry, 0 );
+	}
+
+	/**
+	 * Adds data to the server without waiting for its reply, see {@link #setNoreply(String, Object)}.
+	 *
+	 * @param key key to store data under
+	 * @param value value to store
+	 * @return true, if the command was buffered
+	 */
+	public boolean addNoreply( String key, Object value ) {
+		return noreply( "add", key, value, null, 0 );
+	}
+
+	/**
+	 * Adds data to the server without waiting for its reply, see {@link #setNoreply(String, Object)}.
+	 *
+	 * @param key key to store data under
+	 * @param value value to store
+	 * @param expiry when to expire the record
+	 * @return true, if the command was buffered
+	 */
+	public boolean addNoreply( String key, Object value, Date expiry ) {
+		return noreply( "add", key, value, expiry, 0 );
+	}
+
+	/**
+	 * Updates data on the server without waiting for its reply, see {@link #setNoreply(String, Object)}.
+	 *
+	 * @param key key to store data under
+	 * @param value value to store
+	 * @return true, if the command was buffered
+	 */
+	public boolean replaceNoreply( String key, Object value ) {
+		return noreply( "replace", key, value, null, 0 );
+	}
+
+	/**
+	 * Updates data on the server without waiting for its reply, see {@link #setNoreply(String, Object)}.
+	 *
+	 * @param key key to store data under
+	 * @param value value to store
+	 * @param expiry when to expire the record
+	 * @return true, if the command was buffered
+	 */
+	public boolean replaceNoreply( String key, Object value, Date expiry ) {
+		return noreply( "replace", key, value, expiry, 0 );
+	}
+
+	/**
+	 * Deletes an object without waiting for the server's reply, see {@link #setNoreply(String, Object)}.
+	 * Failures go to handleErrorOnSet as well.
+	 *
+	 * @param key the key to be removed
+	 * @return true, if the command was buffered
+	 */
+	public boolean deleteNoreply( String key ) {
+		return noreply( "delete", key, null, null, 0 );
+	}
+
+	/**
+	 * Increments the value at the specified key by 1 without waiting for the new value,<br/>
+	 * see {@link #setNoreply(String, Object)}.
+	 *
+	 * @param key key where the data is stored
+	 * @return true, if the command was buffered
+	 */
+	public boolean incrNoreply( String key ) {
+		return noreply( "incr", key, null, null, 1 );
+	}
+
+	/**
+	 * Increments the value at the specified key by passed in val without waiting for<br/>
+	 * the new value, see {@link #setNoreply(String, Object)}.
+	 *
+	 * @param key key where the data is stored
+	 * @param inc how much to increment by
+	 * @return true, if the command was buffered
+	 */
+	public boolean incrNoreply( String key, long inc ) {
+		return noreply( "incr", key, null, null, inc );
+	}
+
+	/**
+	 * Decrements the value at the specified key by 1 without waiting for the new value,<br/>
+	 * see {@link #setNoreply(String, Object)}.
+	 *
+	 * @param key key where the data is stored
+	 * @return true, if the command was buffered
+	 */
+	public boolean decrNoreply( String key ) {
+		return noreply( "decr", key, null, null, 1 );
+	}
+
+	/**
+	 * Decrements the value at the specified key by passed in value without waiting for<br/>
+	 * the new value, see {@link #setNoreply(String, Object)}.
+	 *
+	 * @param key key where the data is stored
+	 * @param inc how much to decrement by
+	 * @return true, if the command was buffered
+	 */
+	public boolean decrNoreply( String key, long inc ) {
+		return noreply( "decr", key, null, null, inc );
+	}
+
+	/**
+	 * Sends out every noreply command buffered so far and waits for the servers<br/>
+	 * to be done with them.  The failures they reported are handed to the<br/>
+	 * errorHandler before this returns.
+	 *
+	 * @return true, if every connection was flushed and no failure was left to report
+	 */
+	public boolean flushWrites() {
+		SockIOPool pool = currentPool.get();
+		boolean flushed = ( pool == null ) || pool.flushWrites();
+		return surfaceNoreplyFailures() && flushed;
+	}
+
+	/**
+	 * Runs operations of this client under a deadline.<br/>
+	 * <br/>
+	 * The deadline bounds everything the operations may block on: connecting,<br/>
+	 * failing over to another server, waiting for a config refresh and retrying<br/>
+	 * after REFRESH_AND_RETRY, and every read of a response, each of which waits<br/>
+	 * no longer than the time left.  Once it has passed, the operations fail fast<br/>
+	 * as they do when a server can not be reached: the errorHandler is told and<br/>
+	 * they return null, false or -1.  Calls can be nested, the earliest deadline<br/>
+	 * wins.<br/>
 	 * <br/>
-	 * As of the current release, all objects stored will use java serialization.
+	 * Writing a command is not bounded, as the servers read them as fast as<br/>
+	 * they come.
 	 *
-	 * @param cmdname action to take (set, add, replace)
-	 * @param key key to store cache under
-	 * @param value object to cache
-	 * @param expiry expiration
-	 * @param hashCode if not null, then the int hashcode to use
-	 * @param asString store this object as a string?
-	 * @return true/false indicating success
+	 * <h3>A lookup within 20 ms:</h3>
+	 * <pre>
+	 *	Object value = mc.withDeadline( 20, TimeUnit.MILLISECONDS, new Supplier&lt;Object&gt;() {
+	 *		public Object get() { return mc.get( key ); }
+	 *	} );
+	 * </pre>
+	 *
+	 * @param timeout time the operations may take
+	 * @param unit unit of the timeout
+	 * @param op operations to run
+	 * @return what op returned
 	 */
-	private boolean set(
+	public <T> T withDeadline( long timeout, TimeUnit unit, Supplier<T> op ) {
+		return Deadline.call( System.currentTimeMillis() + unit.toMillis( timeout ), op );
+	}
+
+	/**
+	 * Writes a command with noreply appended, see {@link #setNoreply(String, Object)}.
+	 *
+	 * @param cmdname set, add, replace, delete, incr or decr
+	 * @param key key the command is for
+	 * @param value value of a storage command, null otherwise
+	 * @param expiry expiration of a stored value, or null
+	 * @param inc amount to incr or decr by
+	 * @return true if the command was buffered
+	 */
+	private boolean noreply(
 		final String cmdname,
 		final String originalKey,
 		final Object value,
-		final Date originalExpiry,
-		final Integer hashCode,
-		final boolean asString ) {
+		final Date expiry,
+		final long inc ) {
+
+		// whatever went wrong with the earlier ones comes out now
+		surfaceNoreplyFailures();
+
+		byte[] verb = CommandEncoder.verb( cmdname );
+		boolean storage = !( verb == CommandEncoder.DELETE || verb == CommandEncoder.INCR || verb == CommandEncoder.DECR );
 
 		String key = originalKey;
-		if ( cmdname == null || cmdname.trim().equals( "" ) || key == null ) {
-			log.error( "key is null or cmd is null/empty for set()" );
+		if ( key == null ) {
+			log.error( "null key for " + cmdname + " noreply" );
+			return false;
+		}
+		if ( storage && value == null ) {
+			log.error( "trying to store a null value to cache" );
 			return false;
 		}
 
@@ -776,176 +1200,285 @@ public class MemcachedClient {
 			key = sanitizeKey( key );
 		}
 		catch ( UnsupportedEncodingException e ) {
-
-			// if we have an errorHandler, use its hook
-			if ( errorHandler != null )
-				errorHandler.handleErrorOnSet( this, e, key );
-
+			handleWriteError( verb, e, key );
 			log.error( "failed to sanitize your key!", e );
 			return false;
 		}
 
-		if ( value == null ) {
-			log.error( "trying to store a null value to cache" );
-			return false;
+		CachedData encoded = null;
+		if ( storage ) {
+			encoded = encodeValue( key, value, primitiveAsString, transcoder );
+			if ( encoded == null )
+				return false;
 		}
 
-		// get SockIO obj
 		SockIOPool pool = currentPool.get();
-		int client_config_id = pool.getRejigConfig().getId();
-		SockIOPool.SockAndFragmentId sockAndId = pool.getSockAndFragmentId( key, hashCode );
-
+		SockIOPool.SockAndFragmentId sockAndId = pool.getSockAndFragmentId( key, null );
 		if ( sockAndId == null || sockAndId.sock() == null ) {
-			if ( errorHandler != null )
-				errorHandler.handleErrorOnSet( this, new IOException( "no socket to server available" ), key );
+			handleWriteError( verb, new IOException( "no socket to server available" ), key );
 			return false;
 		}
 		SockIOPool.SockIO sock = sockAndId.sock();
 
-		Date expiry = originalExpiry;
-		if ( expiry == null )
-			expiry = new Date(0);
-
-		// store flags
-		int flags = 0;
+		CommandEncoder cmd = sock.encoder()
+			.append( sockAndId.commandPrefix() )
+			.append( verb ).space()
+			.key( key ).space();
+		if ( storage ) {
+			cmd.number( encoded.getFlags() ).space()
+				.number( ( expiry == null ) ? 0 : expiry.getTime() / 1000 ).space()
+				.number( encoded.getData().remaining() ).space();
+		}
+		else if ( verb != CommandEncoder.DELETE ) {
+			cmd.number( inc ).space();
+		}
+		cmd.append( CommandEncoder.NOREPLY ).crlf();
 
-		// byte array to hold data
-		byte[] val;
+		try {
+			sock.writeNoreply( cmd, storage ? encoded.getData() : null, key );
+			sock.close();
+			return true;
+		}
+		catch ( IOException e ) {
+			handleWriteError( verb, e, key );
 
-        if ( NativeHandler.isHandled( value ) ) {
+			log.error( "++++ exception thrown while writing bytes to server on " + cmdname + " noreply" );
+			log.error( e.getMessage(), e );
 
-			if ( asString ) {
-				// useful for sharing data between java and non-java
-				// and also for storing ints for the increment method
-				try {
-					if ( log.isInfoEnabled() )
-						log.info( "++++ storing data as a string for key: " + key + " for class: " + value.getClass().getName() );
-					val = value.toString().getBytes( defaultEncoding );
-				}
-				catch ( UnsupportedEncodingException ue ) {
+			try {
+				sock.trueClose();
+			}
+			catch ( IOException ioe ) {
+				log.error( "++++ failed to close socket : " + sock.toString() );
+			}
+			return false;
+		}
+	}
 
-					// if we have an errorHandler, use its hook
-					if ( errorHandler != null )
-						errorHandler.handleErrorOnSet( this, ue, key );
+	/**
+	 * Hands the failures of noreply commands reported since the last call to<br/>
+	 * the errorHandler.  A REFRESH_AND_RETRY means the command was dropped<br/>
+	 * for carrying a stale config id, so the config is refreshed as well.
+	 *
+	 * @return true if there were none
+	 */
+	private boolean surfaceNoreplyFailures() {
+		SockIOPool pool = currentPool.get();
+		if ( pool == null )
+			return true;
 
-					log.error( "invalid encoding type used: " + defaultEncoding, ue );
-					sock.close();
-					sock = null;
-					return false;
-				}
-			}
-			else {
-				try {
-					if ( log.isInfoEnabled() )
-						log.info( "Storing with native handler..." );
-					flags |= NativeHandler.getMarkerFlag( value );
-					val    = NativeHandler.encode( value );
-				}
-				catch ( Exception e ) {
+		List<SockIOPool.NoreplyFailure> failures = pool.drainNoreplyFailures();
+		for ( SockIOPool.NoreplyFailure failure : failures ) {
+			if ( failure.isRefreshAndRetry() )
+				refreshSockIOPool( pool, null, failure.host() );
 
-					// if we have an errorHandler, use its hook
-					if ( errorHandler != null )
-						errorHandler.handleErrorOnSet( this, e, key );
+			// the key when the server can only have meant one command, else the server
+			String key = ( failure.key() != null ) ? failure.key() : failure.host();
+			if ( errorHandler != null )
+				errorHandler.handleErrorOnSet( this, new IOException( "++++ noreply command to " + failure.host() + ( failure.key() != null ? " for " + failure.key() : "" ) + " failed: " + failure.response() ), key );
+		}
+		return failures.isEmpty();
+	}
 
-					log.error( "Failed to native handle obj", e );
+	/**
+	 * Stores bytes as they are; only the key and the value are specified.
+	 *
+	 * @param key key to store data under
+	 * @param value bytes to store
+	 * @return true, if the data was successfully stored
+	 * @see #setBytes(String, ByteBuffer, Date, Integer)
+	 */
+	public boolean setBytes( String key, byte[] value ) {
+		return setBytes( key, ( value == null ) ? null : ByteBuffer.wrap( value ), null, null );
+	}
 
-					sock.close();
-					sock = null;
-					return false;
-				}
-			}
+	/**
+	 * Stores bytes as they are; the key, value, and an expiration time are specified.
+	 *
+	 * @param key key to store data under
+	 * @param value bytes to store
+	 * @param expiry when to expire the record
+	 * @return true, if the data was successfully stored
+	 * @see #setBytes(String, ByteBuffer, Date, Integer)
+	 */
+	public boolean setBytes( String key, byte[] value, Date expiry ) {
+		return setBytes( key, ( value == null ) ? null : ByteBuffer.wrap( value ), expiry, null );
+	}
+
+	/**
+	 * Stores the bytes between position and limit of a buffer as they are.
+	 *
+	 * @param key key to store data under
+	 * @param value bytes to store
+	 * @param expiry when to expire the record
+	 * @return true, if the data was successfully stored
+	 * @see #setBytes(String, ByteBuffer, Date, Integer)
+	 */
+	public boolean setBytes( String key, ByteBuffer value, Date expiry ) {
+		return setBytes( key, value, expiry, null );
+	}
+
+	/**
+	 * Stores the bytes between position and limit of a buffer as they are.
+	 *
+	 *  The bytes are written from the buffer (heap or direct) without being<br/>
+	 *  copied, encoded or compressed, and the buffer's position is not changed.<br/>
+	 *  They are flagged as a byte[], so get() reads them back as one, and<br/>
+	 *  getBytes() as they are.
+	 *
+	 * @param key key to store data under
+	 * @param value bytes to store
+	 * @param expiry when to expire the record
+	 * @param hashCode if not null, then the int hashcode to use
+	 * @return true, if the data was successfully stored
+	 */
+	public boolean setBytes( String key, ByteBuffer value, Date expiry, Integer hashCode ) {
+		if ( key == null ) {
+			log.error( "key is null for setBytes()" );
+			return false;
 		}
-		else {
-			// always serialize for non-primitive types
-			try {
-				if ( log.isInfoEnabled() )
-					log.info( "++++ serializing for key: " + key + " for class: " + value.getClass().getName() );
-				ByteArrayOutputStream bos = new ByteArrayOutputStream();
-				(new ObjectOutputStream( bos )).writeObject( value );
-				val = bos.toByteArray();
-				flags |= F_SERIALIZED;
-			}
-			catch ( IOException e ) {
 
-				// if we have an errorHandler, use its hook
-				if ( errorHandler != null )
-					errorHandler.handleErrorOnSet( this, e, key );
+		if ( value == null ) {
+			log.error( "trying to store a null value to cache" );
+			return false;
+		}
 
-				// if we fail to serialize, then
-				// we bail
-				log.error( "failed to serialize obj", e );
-				log.error( value.toString() );
+		return store( "set", key, new CachedData( MARKER_BYTEARR, value ), expiry, hashCode );
+	}
 
-				// return socket to pool and bail
-				sock.close();
-				sock = null;
-				return false;
-			}
+	/**
+	 * Stores data to cache.
+	 *
+	 * If data does not already exist for this key on the server, or if the key is being<br/>
+	 * deleted, the specified value will not be stored.<br/>
+	 * The server will automatically delete the value when the expiration time has been reached.<br/>
+	 * <br/>
+	 * If compression is enabled, and the data is longer than the compression threshold<br/>
+	 * the data will be stored in compressed form.<br/>
+	 * <br/>
+	 * Values are encoded by the transcoder, see {@link DefaultTranscoder} for how<br/>
+	 * they are stored by default.  ByteBuffer values (heap or direct) are written as<br/>
+	 * they are, without being copied; the buffer's position is not changed.
+	 *
+	 * @param cmdname action to take (set, add, replace)
+	 * @param key key to store cache under
+	 * @param value object to cache
+	 * @param expiry expiration
+	 * @param hashCode if not null, then the int hashcode to use
+	 * @param asString store this object as a string?
+	 * @param tc transcoder to encode the value with
+	 * @return true/false indicating success
+	 */
+	private boolean set(
+		final String cmdname,
+		final String originalKey,
+		final Object value,
+		final Date originalExpiry,
+		final Integer hashCode,
+		final boolean asString,
+		final Transcoder<Object> tc ) {
+
+		if ( cmdname == null || cmdname.trim().equals( "" ) || originalKey == null ) {
+			log.error( "key is null or cmd is null/empty for set()" );
+			return false;
 		}
 
-		// now try to compress if we want to
-		// and if the length is over the threshold
-		if ( compressEnable && val.length > compressThreshold ) {
+		if ( value == null ) {
+			log.error( "trying to store a null value to cache" );
+			return false;
+		}
 
-			try {
-				if ( log.isInfoEnabled() ) {
-					log.info( "++++ trying to compress data" );
-					log.info( "++++ size prior to compression: " + val.length );
-				}
-				ByteArrayOutputStream bos = new ByteArrayOutputStream( val.length );
-				GZIPOutputStream gos = new GZIPOutputStream( bos );
-				gos.write( val, 0, val.length );
-				gos.finish();
-				gos.close();
-
-				// store it and set compression flag
-				val = bos.toByteArray();
-				flags |= F_COMPRESSED;
+		CachedData encoded = encodeValue( originalKey, value, asString, tc );
+		if ( encoded == null )
+			return false;
 
-				if ( log.isInfoEnabled() )
-					log.info( "++++ compression succeeded, size after: " + val.length );
-			}
-			catch ( IOException e ) {
+		return store( cmdname, originalKey, encoded, originalExpiry, hashCode );
+	}
 
-				// if we have an errorHandler, use its hook
-				if ( errorHandler != null )
-					errorHandler.handleErrorOnSet( this, e, key );
+	/**
+	 * Stores a value as encoded.
+	 *
+	 * @param cmdname action to take (set, add, replace)
+	 * @param key key to store cache under
+	 * @param encoded flags and bytes to store
+	 * @param expiry expiration
+	 * @param hashCode if not null, then the int hashcode to use
+	 * @return true/false indicating success
+	 */
+	private boolean store(
+		final String cmdname,
+		final String originalKey,
+		final CachedData encoded,
+		final Date originalExpiry,
+		final Integer hashCode ) {
 
-				log.error( "IOException while compressing stream: " + e.getMessage() );
-				log.error( "storing data uncompressed" );
-			}
+		String key = originalKey;
+		try {
+			key = sanitizeKey( key );
+		}
+		catch ( UnsupportedEncodingException e ) {
+
+			// if we have an errorHandler, use its hook
+			if ( errorHandler != null )
+				errorHandler.handleErrorOnSet( this, e, key );
+
+			log.error( "failed to sanitize your key!", e );
+			return false;
+		}
+
+		// get SockIO obj
+		SockIOPool pool = currentPool.get();
+		SockIOPool.SockAndFragmentId sockAndId = pool.getSockAndFragmentId( key, hashCode );
+
+		if ( sockAndId == null || sockAndId.sock() == null ) {
+			if ( errorHandler != null )
+				errorHandler.handleErrorOnSet( this, new IOException( "no socket to server available" ), key );
+			return false;
 		}
+		SockIOPool.SockIO sock = sockAndId.sock();
+
+		long expiry = ( originalExpiry == null ) ? 0 : originalExpiry.getTime() / 1000;
+
+		int flags = encoded.getFlags();
+		ByteBuffer val = encoded.getData();
 
 		// now write the data to the cache server
 		try {
-			String cmd = String.format( "rj %d %d %s %s %d %d %d\r\n", client_config_id, sockAndId.fragmentNum(), cmdname, key, flags, (expiry.getTime() / 1000), val.length );
-			sock.write( cmd.getBytes() );
-			sock.write( val );
-			sock.write( "\r\n".getBytes() );
+			CommandEncoder cmd = sock.encoder()
+				.append( sockAndId.commandPrefix() )
+				.append( CommandEncoder.verb( cmdname ) ).space()
+				.key( key ).space()
+				.number( flags ).space()
+				.number( expiry ).space()
+				.number( val.remaining() ).crlf();
+			String cmdLine = log.isInfoEnabled() ? cmd.toString() : null;
+
+			// header, value and trailer go out in one gathering write
+			sock.writeValue( cmd, val );
 			sock.flush();
 
 			// get result code
-			String line = sock.readLine();
+			ResponseLine line = sock.readResponseLine();
 			if ( log.isInfoEnabled() )
-				log.info( "++++ memcache cmd (result code): " + cmd + " (" + line + ")" );
+				log.info( "++++ memcache cmd (result code): " + cmdLine + " (" + line + ")" );
 
-			if ( REFRESH_AND_RETRY.equals( line ) ) {
+			if ( line.is( ResponseLine.REFRESH_AND_RETRY ) ) {
 				handleRefreshAndRetry(pool, sock);
-				return set(cmdname, originalKey, value, originalExpiry, hashCode, asString);
+				return store(cmdname, originalKey, encoded, originalExpiry, hashCode);
 			}
-			else if ( STORED.equals( line ) ) {
+			else if ( line.is( ResponseLine.STORED ) ) {
 				if ( log.isInfoEnabled() )
 					log.info("++++ data successfully stored for key: " + key );
 				sock.close();
 				sock = null;
 				return true;
 			}
-			else if ( NOTSTORED.equals( line ) ) {
+			else if ( line.is( ResponseLine.NOTSTORED ) ) {
 				if ( log.isInfoEnabled() )
 					log.info( "++++ data not stored in cache for key: " + key );
 			}
 			else {
-				log.error( "++++ error storing data in cache for key: " + key + " -- length: " + val.length );
+				log.error( "++++ error storing data in cache for key: " + key + " -- length: " + val.remaining() );
 				log.error( "++++ server response: " + line );
 			}
 		}
@@ -978,90 +1511,378 @@ public class MemcachedClient {
 	}
 
 	/**
-	 * Store a counter to memcached given a key
-	 *
-	 * @param key cache key
-	 * @param counter number to store
-	 * @return true/false indicating success
-	 */
-	public boolean storeCounter( String key, long counter ) {
-		return set( "set", key, new Long( counter ), null, null, true );
-	}
-
-	/**
-	 * Store a counter to memcached given a key
-	 *
-	 * @param key cache key
-	 * @param counter number to store
-	 * @return true/false indicating success
-	 */
-	public boolean storeCounter( String key, Long counter ) {
-		return set( "set", key, counter, null, null, true );
-	}
-
-	/**
-	 * Store a counter to memcached given a key
+	 * Encodes a value for storing: as a string when asked to, otherwise
+	 * with the transcoder, then compressed if it is over the threshold.
+	 * Errors are reported to the errorHandler.
 	 *
-	 * @param key cache key
-	 * @param counter number to store
-	 * @param hashCode if not null, then the int hashcode to use
-	 * @return true/false indicating success
+	 * @param key key the value is stored under
+	 * @param value object to cache
+	 * @param asString store this object as a string?
+	 * @param tc transcoder to encode the value with
+	 * @return the encoded value, or null if it could not be encoded
 	 */
-	public boolean storeCounter( String key, Long counter, Integer hashCode ) {
-		return set( "set", key, counter, null, hashCode, true );
-	}
+	private CachedData encodeValue( String key, Object value, boolean asString, Transcoder<Object> tc ) {
 
-	/**
-	 * Returns value in counter at given key as long.
-	 *
-	 * @param key cache ket
-	 * @return counter value or -1 if not found
-	 */
-	public long getCounter( String key ) {
-		return getCounter( key, null );
-	}
+		CachedData encoded;
+		if ( asString && value instanceof ByteBuffer ) {
+			// stored as is, without a marker
+			encoded = new CachedData( 0, ((ByteBuffer)value).duplicate() );
+		}
+		else if ( asString && NativeHandler.isHandled( value ) ) {
+			// useful for sharing data between java and non-java
+			// and also for storing ints for the increment method
+			try {
+				if ( log.isInfoEnabled() )
+					log.info( "++++ storing data as a string for key: " + key + " for class: " + value.getClass().getName() );
+				encoded = new CachedData( 0, value.toString().getBytes( defaultEncoding ) );
+			}
+			catch ( UnsupportedEncodingException ue ) {
 
-	/**
-	 * Returns value in counter at given key as long.
-	 *
-	 * @param key cache ket
-	 * @param hashCode if not null, then the int hashcode to use
-	 * @return counter value or -1 if not found
-	 */
-	public long getCounter( String key, Integer hashCode ) {
+				// if we have an errorHandler, use its hook
+				if ( errorHandler != null )
+					errorHandler.handleErrorOnSet( this, ue, key );
 
-		if ( key == null ) {
-			log.error( "null key for getCounter()" );
-			return -1;
+				log.error( "invalid encoding type used: " + defaultEncoding, ue );
+				return null;
+			}
 		}
+		else {
+			try {
+				encoded = tc.encode( value );
+			}
+			catch ( Exception e ) {
 
-		long counter = -1;
-		try {
-			counter = Long.parseLong( (String)get( key, hashCode, true ) );
-		}
-		catch ( Exception ex ) {
+				// if we have an errorHandler, use its hook
+				if ( errorHandler != null )
+					errorHandler.handleErrorOnSet( this, e, key );
 
-			// if we have an errorHandler, use its hook
-			if ( errorHandler != null )
-				errorHandler.handleErrorOnGet( this, ex, key );
+				// if we fail to encode, then
+				// we bail
+				log.error( "failed to encode obj for key: " + key, e );
+				return null;
+			}
+		}
 
-			// not found or error getting out
-			if ( log.isInfoEnabled() )
-				log.info( String.format( "Failed to parse Long value for key: %s", key ) );
+		// now try to compress if we want to
+		// and if the length is over the threshold
+		if ( compressEnable && encoded.length() > compressThreshold ) {
+			ByteBuffer compressed = compress( encoded.getData() );
+			if ( compressed != null )
+				encoded = new CachedData( encoded.getFlags() | F_DEFLATED, compressed );
 		}
 
-		return counter;
+		return encoded;
 	}
 
 	/**
-	 * Thread safe way to initialize and increment a counter.
+	 * Decodes a value as read: uncompresses it, then makes a string of it
+	 * when asked to, or hands it to the transcoder.  Errors are reported
+	 * to the errorHandler.
 	 *
-	 * @param key key where the data is stored
-	 * @return value of incrementer
+	 * @param key key the value was stored under
+	 * @param buf value as read
+	 * @param flags flags it was stored with
+	 * @param asString if true, and if the value is not serialized, return string val
+	 * @param tc transcoder to decode the value with
+	 * @return the value, or null if it could not be decoded
 	 */
-	public long addOrIncr( String key ) {
-		return addOrIncr( key, 0, null );
-	}
+	private Object decodeValue( String key, byte[] buf, int flags, boolean asString, Transcoder<?> tc ) {
+
+		if ( ( flags & ( F_DEFLATED | F_COMPRESSED ) ) != 0 ) {
+			try {
+				buf = decompress( buf, flags );
+			}
+			catch ( IOException e ) {
+
+				// if we have an errorHandler, use its hook
+				if ( errorHandler != null )
+					errorHandler.handleErrorOnGet( this, e, key );
+
+				log.error( "++++ IOException thrown while trying to uncompress input stream for key: " + key + " -- " + e.getMessage() );
+				return null;
+			}
+			flags &= ~( F_DEFLATED | F_COMPRESSED );
+		}
+
+		try {
+			// pulling out string value
+			if ( ( flags & F_SERIALIZED ) != F_SERIALIZED && ( primitiveAsString || asString ) ) {
+				if ( log.isInfoEnabled() )
+					log.info( "++++ retrieving object and stuffing into a string." );
+				return new String( buf, defaultEncoding );
+			}
+
+			return tc.decode( new CachedData( flags, buf ) );
+		}
+		catch ( Exception e ) {
+			/* Errors de-serializing are to be expected in the case of a
+			 * long running server that spans client restarts with updated
+			 * classes.
+			 */
+
+			// if we have an errorHandler, use its hook
+			if ( errorHandler != null )
+				errorHandler.handleErrorOnGet( this, e, key );
+
+			log.error( "++++ Exception thrown while trying to decode value for key: " + key + " -- " + e.getMessage() );
+			return null;
+		}
+	}
+
+	/**
+	 * Compresses the bytes between position and limit of the buffer, which
+	 * is left as it is, to be stored with F_DEFLATED.
+	 *
+	 * @return the compressed bytes, or null if the value is to be stored
+	 *         as it is: a sample of it did not compress well enough, or
+	 *         it did not get smaller
+	 */
+	private ByteBuffer compress( ByteBuffer val ) {
+		int length = val.remaining();
+		if ( log.isInfoEnabled() ) {
+			log.info( "++++ trying to compress data" );
+			log.info( "++++ size prior to compression: " + length );
+		}
+
+		DeflateCodec codec = compressor;
+		if ( compressAdaptive && length > COMPRESS_SAMPLE ) {
+			ByteBuffer sample = val.duplicate();
+			sample.limit( sample.position() + COMPRESS_SAMPLE );
+			int sampled = codec.compress( sample ).remaining();
+			if ( sampled > COMPRESS_SAMPLE * compressRatio ) {
+				compressionStats.skipped( length );
+				if ( log.isInfoEnabled() )
+					log.info( "++++ sample compressed to " + sampled + " of " + COMPRESS_SAMPLE + ", storing data uncompressed" );
+				return null;
+			}
+		}
+
+		ByteBuffer compressed = codec.compress( val );
+		if ( compressed.remaining() >= length ) {
+			compressionStats.notSmaller( length );
+			if ( log.isInfoEnabled() )
+				log.info( "++++ compression did not shrink data, storing it uncompressed" );
+			return null;
+		}
+
+		compressionStats.compressed( length, compressed.remaining() );
+		if ( log.isInfoEnabled() )
+			log.info( "++++ compression succeeded, size after: " + compressed.remaining() );
+		return compressed;
+	}
+
+	/**
+	 * Uncompresses a value stored with F_DEFLATED, or gzipped with
+	 * F_COMPRESSED by an earlier release.
+	 */
+	private byte[] decompress( byte[] buf, int flags ) throws IOException {
+		if ( (flags & F_DEFLATED) == F_DEFLATED )
+			return compressor.decompress( buf );
+
+		// read the input stream, and write to a byte array output stream since
+		// we have to read into a byte array, but we don't know how large it
+		// will need to be, and we don't want to resize it a bunch
+		GZIPInputStream gzi = new GZIPInputStream( new ByteArrayInputStream( buf ) );
+		ByteArrayOutputStream bos = new ByteArrayOutputStream( buf.length );
+
+		int count;
+		byte[] tmp = new byte[2048];
+		while ( (count = gzi.read(tmp)) != -1 ) {
+			bos.write( tmp, 0, count );
+		}
+		gzi.close();
+
+		return bos.toByteArray();
+	}
+
+	/**
+	 * Gzips a value to be stored with F_COMPRESSED.
+	 */
+	private static byte[] gzip( byte[] val ) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream( val.length );
+		GZIPOutputStream gos = new GZIPOutputStream( bos );
+		gos.write( val, 0, val.length );
+		gos.finish();
+		gos.close();
+		return bos.toByteArray();
+	}
+
+	/**
+	 * Store a counter to memcached given a key
+	 *
+	 * @param key cache key
+	 * @param counter number to store
+	 * @return true/false indicating success
+	 */
+	public boolean storeCounter( String key, long counter ) {
+		return setNumber( "set", key, counter, null, null );
+	}
+
+	/**
+	 * Store a counter to memcached given a key
+	 *
+	 * @param key cache key
+	 * @param counter number to store
+	 * @return true/false indicating success
+	 */
+	public boolean storeCounter( String key, Long counter ) {
+		return set( "set", key, counter, null, null, true, transcoder );
+	}
+
+	/**
+	 * Store a counter to memcached given a key
+	 *
+	 * @param key cache key
+	 * @param counter number to store
+	 * @param hashCode if not null, then the int hashcode to use
+	 * @return true/false indicating success
+	 */
+	public boolean storeCounter( String key, Long counter, Integer hashCode ) {
+		return set( "set", key, counter, null, hashCode, true, transcoder );
+	}
+
+	/**
+	 * Stores a number as a string, which incr/decr and getCounter work on.
+	 *
+	 *  The digits are written straight into the command, so no Long, String<br/>
+	 *  or array is made for the value.
+	 *
+	 * @param key key to store data under
+	 * @param value number to store
+	 * @return true, if the data was successfully stored
+	 */
+	public boolean setLong( String key, long value ) {
+		return setNumber( "set", key, value, null, null );
+	}
+
+	/**
+	 * Stores a number as a string; the key, value, and an expiration time are specified.
+	 *
+	 * @param key key to store data under
+	 * @param value number to store
+	 * @param expiry when to expire the record
+	 * @return true, if the data was successfully stored
+	 */
+	public boolean setLong( String key, long value, Date expiry ) {
+		return setNumber( "set", key, value, expiry, null );
+	}
+
+	/**
+	 * Stores a number as a string; the key, value, an expiration time and a hash code are specified.
+	 *
+	 * @param key key to store data under
+	 * @param value number to store
+	 * @param expiry when to expire the record
+	 * @param hashCode if not null, then the int hashcode to use
+	 * @return true, if the data was successfully stored
+	 */
+	public boolean setLong( String key, long value, Date expiry, Integer hashCode ) {
+		return setNumber( "set", key, value, expiry, hashCode );
+	}
+
+	/**
+	 * Stores a number as a string, see {@link #setLong(String, long)}.
+	 *
+	 * @param key key to store data under
+	 * @param value number to store
+	 * @return true, if the data was successfully stored
+	 */
+	public boolean setInt( String key, int value ) {
+		return setNumber( "set", key, value, null, null );
+	}
+
+	/**
+	 * Stores a number as a string; the key, value, and an expiration time are specified.
+	 *
+	 * @param key key to store data under
+	 * @param value number to store
+	 * @param expiry when to expire the record
+	 * @return true, if the data was successfully stored
+	 */
+	public boolean setInt( String key, int value, Date expiry ) {
+		return setNumber( "set", key, value, expiry, null );
+	}
+
+	/**
+	 * Returns value in counter at given key as long.
+	 *
+	 * @param key cache ket
+	 * @return counter value or -1 if not found
+	 */
+	public long getCounter( String key ) {
+		return getCounter( key, null );
+	}
+
+	/**
+	 * Returns value in counter at given key as long.
+	 *
+	 * @param key cache ket
+	 * @param hashCode if not null, then the int hashcode to use
+	 * @return counter value or -1 if not found
+	 */
+	public long getCounter( String key, Integer hashCode ) {
+		return getNumber( key, hashCode, -1 );
+	}
+
+	/**
+	 * Retrieves a number stored at the given key.
+	 *
+	 *  Numbers stored as strings, as by setLong and storeCounter, and Longs and<br/>
+	 *  Integers stored by set are parsed straight from the bytes read, without<br/>
+	 *  making a Long or a String.  Anything else is decoded as by get, and is read<br/>
+	 *  if it is a Number or a String holding one.
+	 *
+	 * @param key key where data is stored
+	 * @param missing value to return if the key is not found or does not hold a number
+	 * @return the number, or missing
+	 */
+	public long getLong( String key, long missing ) {
+		return getNumber( key, null, missing );
+	}
+
+	/**
+	 * Retrieves a number stored at the given key, using a specific hash.
+	 *
+	 * @param key key where data is stored
+	 * @param hashCode if not null, then the int hashcode to use
+	 * @param missing value to return if the key is not found or does not hold a number
+	 * @return the number, or missing
+	 * @see #getLong(String, long)
+	 */
+	public long getLong( String key, Integer hashCode, long missing ) {
+		return getNumber( key, hashCode, missing );
+	}
+
+	/**
+	 * Retrieves a number stored at the given key, see {@link #getLong(String, long)}.
+	 *
+	 * @param key key where data is stored
+	 * @param missing value to return if the key is not found or does not hold an int
+	 * @return the number, or missing
+	 */
+	public int getInt( String key, int missing ) {
+		long value = getNumber( key, null, missing );
+		if ( value < Integer.MIN_VALUE || value > Integer.MAX_VALUE ) {
+
+			// if we have an errorHandler, use its hook
+			if ( errorHandler != null )
+				errorHandler.handleErrorOnGet( this, new NumberFormatException( "++++ value out of int range: " + value ), key );
+
+			log.error( "++++ value out of int range for key: " + key );
+			return missing;
+		}
+		return (int)value;
+	}
+
+	/**
+	 * Thread safe way to initialize and increment a counter.
+	 *
+	 * @param key key where the data is stored
+	 * @return value of incrementer
+	 */
+	public long addOrIncr( String key ) {
+		return addOrIncr( key, 0, null );
+	}
 
 	/**
 	 * Thread safe way to initialize and increment a counter.
@@ -1083,7 +1904,7 @@ public class MemcachedClient {
 	 * @return value of incrementer
 	 */
 	public long addOrIncr( String key, long inc, Integer hashCode ) {
-		boolean ret = set( "add", key, new Long( inc ), null, hashCode, true );
+		boolean ret = setNumber( "add", key, inc, null, hashCode );
 
 		if ( ret ) {
 			return inc;
@@ -1123,7 +1944,7 @@ public class MemcachedClient {
 	 * @return value of incrementer
 	 */
 	public long addOrDecr( String key, long inc, Integer hashCode ) {
-		boolean ret = set( "add", key, new Long( inc ), null, hashCode, true );
+		boolean ret = setNumber( "add", key, inc, null, hashCode );
 
 		if ( ret ) {
 			return inc;
@@ -1241,7 +2062,6 @@ public class MemcachedClient {
 
 		// get SockIO obj for given cache key
 		SockIOPool pool = currentPool.get();
-		int client_config_id = pool.getRejigConfig().getId();
 		SockIOPool.SockAndFragmentId sockAndId = pool.getSockAndFragmentId( key, hashCode );
 
 		if ( sockAndId == null || sockAndId.sock() == null ) {
@@ -1252,26 +2072,35 @@ public class MemcachedClient {
 		SockIOPool.SockIO sock = sockAndId.sock();
 
 		try {
-			String cmd = String.format( "rj %d %d %s %s %d\r\n", client_config_id, sockAndId.fragmentNum(), cmdname, key, inc );
+			CommandEncoder cmd = sock.encoder()
+				.append( sockAndId.commandPrefix() )
+				.append( CommandEncoder.verb( cmdname ) ).space()
+				.key( key ).space()
+				.number( inc ).crlf()
+				.frame( CommandEncoder.REPLY_LINE, true );
 			if ( log.isDebugEnabled() )
 				log.debug( "++++ memcache incr/decr command: " + cmd );
 
-			sock.write( cmd.getBytes() );
+			sock.write( cmd );
 			sock.flush();
 
 			// get result back
-			String line = sock.readLine();
+			ResponseLine line = sock.readResponseLine();
 
-			if ( REFRESH_AND_RETRY.equals( line ) ) {
+			if ( line.is( ResponseLine.REFRESH_AND_RETRY ) ) {
 				handleRefreshAndRetry(pool, sock);
 				return incrdecr(cmdname, originalKey, inc, hashCode);
 			}
-			else if ( line.matches( "\\d+" ) ) {
+			else if ( line.isNumber() ) {
 
-				// return sock to pool and return result
-				sock.close();
+				// parse before the line goes back to the pool with the socket
 				try {
-					return Long.parseLong( line );
+					long result = line.toLong();
+
+					// return sock to pool and return result
+					sock.close();
+					sock = null;
+					return result;
 				}
 				catch ( Exception ex ) {
 
@@ -1282,7 +2111,7 @@ public class MemcachedClient {
 					log.error( String.format( "Failed to parse Long value for key: %s", key ) );
 				}
  			}
-			else if ( NOTFOUND.equals( line ) ) {
+			else if ( line.is( ResponseLine.NOTFOUND ) ) {
 				if ( log.isInfoEnabled() )
 					log.info( "++++ key not found to incr/decr for key: " + key );
 			}
@@ -1320,61 +2149,26 @@ public class MemcachedClient {
 	}
 
 	/**
-	 * Retrieve a key from the server, using a specific hash.
-	 *
-	 *  If the data was compressed or serialized when compressed, it will automatically<br/>
-	 *  be decompressed or serialized, as appropriate. (Inclusive or)<br/>
-	 *<br/>
-	 *  Non-serialized data will be returned as a string, so explicit conversion to<br/>
-	 *  numeric types will be necessary, if desired<br/>
-	 *
-	 * @param key key where data is stored
-	 * @return the object that was previously stored, or null if it was not previously stored
-	 */
-	public Object get( String key ) {
-		return get( key, null, false );
-	}
-
-	/**
-	 * Retrieve a key from the server, using a specific hash.
-	 *
-	 *  If the data was compressed or serialized when compressed, it will automatically<br/>
-	 *  be decompressed or serialized, as appropriate. (Inclusive or)<br/>
-	 *<br/>
-	 *  Non-serialized data will be returned as a string, so explicit conversion to<br/>
-	 *  numeric types will be necessary, if desired<br/>
-	 *
-	 * @param key key where data is stored
-	 * @param hashCode if not null, then the int hashcode to use
-	 * @return the object that was previously stored, or null if it was not previously stored
-	 */
-	public Object get( String key, Integer hashCode ) {
-		return get( key, hashCode, false );
-	}
-
-	/**
-	 * Retrieve a key from the server, using a specific hash.
-	 *
-	 *  If the data was compressed or serialized when compressed, it will automatically<br/>
-	 *  be decompressed or serialized, as appropriate. (Inclusive or)<br/>
-	 *<br/>
-	 *  Non-serialized data will be returned as a string, so explicit conversion to<br/>
-	 *  numeric types will be necessary, if desired<br/>
+	 * Stores a number as a string, writing its digits straight into the command.
 	 *
-	 * @param key key where data is stored
+	 * @param cmdname action to take (set, add, replace)
+	 * @param key key to store data under
+	 * @param value number to store
+	 * @param expiry when to expire the record
 	 * @param hashCode if not null, then the int hashcode to use
-	 * @param asString if true, then return string val
-	 * @return the object that was previously stored, or null if it was not previously stored
+	 * @return true/false indicating success
 	 */
-	public Object get(
+	private boolean setNumber(
+		final String cmdname,
 		final String originalKey,
-		final Integer hashCode,
-		final boolean asString ) {
+		final long value,
+		final Date expiry,
+		final Integer hashCode ) {
 
 		String key = originalKey;
 		if ( key == null ) {
-			log.error( "key is null for get()" );
-			return null;
+			log.error( "key is null for " + cmdname + "()" );
+			return false;
 		}
 
 		try {
@@ -1384,65 +2178,170 @@ public class MemcachedClient {
 
 			// if we have an errorHandler, use its hook
 			if ( errorHandler != null )
-				errorHandler.handleErrorOnGet( this, e, key );
+				errorHandler.handleErrorOnSet( this, e, key );
 
 			log.error( "failed to sanitize your key!", e );
-			return null;
+			return false;
 		}
 
-		// get SockIO obj using cache key
+		// get SockIO obj
 		SockIOPool pool = currentPool.get();
-		int client_config_id = pool.getRejigConfig().getId();
 		SockIOPool.SockAndFragmentId sockAndId = pool.getSockAndFragmentId( key, hashCode );
 
 		if ( sockAndId == null || sockAndId.sock() == null ) {
 			if ( errorHandler != null )
-				errorHandler.handleErrorOnGet( this, new IOException( "no socket to server available" ), key );
-			return null;
+				errorHandler.handleErrorOnSet( this, new IOException( "no socket to server available" ), key );
+			return false;
 		}
 		SockIOPool.SockIO sock = sockAndId.sock();
 
+		// now write the data to the cache server
 		try {
-			String cmd = String.format("rj %d %d get %s\r\n", client_config_id, sockAndId.fragmentNum(), key);
-			if ( log.isDebugEnabled() )
-				log.debug("++++ memcache get command: " + cmd);
+			CommandEncoder cmd = sock.encoder()
+				.append( sockAndId.commandPrefix() )
+				.append( CommandEncoder.verb( cmdname ) ).space()
+				.key( key ).space()
+				.number( 0 ).space()
+				.number( ( expiry == null ) ? 0 : expiry.getTime() / 1000 ).space()
+				.number( CommandEncoder.digits( value ) ).crlf()
+				.number( value ).crlf()
+				.frame( CommandEncoder.REPLY_LINE, true );
+			if ( log.isInfoEnabled() )
+				log.info( "++++ memcache cmd: " + cmd );
 
-			sock.write( cmd.getBytes() );
+			sock.write( cmd );
 			sock.flush();
 
-			// ready object
-			Object o = null;
+			// get result code
+			ResponseLine line = sock.readResponseLine();
+			if ( log.isInfoEnabled() )
+				log.info( "++++ memcache cmd (result code): " + line );
 
-			while ( true ) {
-				String line = sock.readLine();
+			if ( line.is( ResponseLine.REFRESH_AND_RETRY ) ) {
+				handleRefreshAndRetry(pool, sock);
+				return setNumber(cmdname, originalKey, value, expiry, hashCode);
+			}
+			else if ( line.is( ResponseLine.STORED ) ) {
+				if ( log.isInfoEnabled() )
+					log.info("++++ data successfully stored for key: " + key );
+				sock.close();
+				sock = null;
+				return true;
+			}
+			else if ( line.is( ResponseLine.NOTSTORED ) ) {
+				if ( log.isInfoEnabled() )
+					log.info( "++++ data not stored in cache for key: " + key );
+			}
+			else {
+				log.error( "++++ error storing data in cache for key: " + key );
+				log.error( "++++ server response: " + line );
+			}
+		}
+		catch ( IOException e ) {
 
-				if ( log.isDebugEnabled() )
-					log.debug( "++++ line: " + line );
+			// if we have an errorHandler, use its hook
+			if ( errorHandler != null )
+				errorHandler.handleErrorOnSet( this, e, key );
+
+			// exception thrown
+			log.error( "++++ exception thrown while writing bytes to server on set" );
+			log.error( e.getMessage(), e );
+
+			try {
+				sock.trueClose();
+			}
+			catch ( IOException ioe ) {
+				log.error( "++++ failed to close socket : " + sock.toString() );
+			}
+
+			sock = null;
+		}
+
+		if ( sock != null ) {
+			sock.close();
+			sock = null;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Retrieves a number, parsing it from the bytes read where it can.
+	 *
+	 * @param key key where data is stored
+	 * @param hashCode if not null, then the int hashcode to use
+	 * @param missing value to return if the key is not found or does not hold a number
+	 * @return the number, or missing
+	 */
+	private long getNumber( final String originalKey, final Integer hashCode, final long missing ) {
+
+		String key = originalKey;
+		if ( key == null ) {
+			log.error( "key is null for getLong()" );
+			return missing;
+		}
+
+		try {
+			key = sanitizeKey( key );
+		}
+		catch ( UnsupportedEncodingException e ) {
+
+			// if we have an errorHandler, use its hook
+			if ( errorHandler != null )
+				errorHandler.handleErrorOnGet( this, e, key );
+
+			log.error( "failed to sanitize your key!", e );
+			return missing;
+		}
+
+		// get SockIO obj using cache key
+		SockIOPool pool = currentPool.get();
+		SockIOPool.SockAndFragmentId sockAndId = pool.getSockAndFragmentId( key, hashCode );
+
+		if ( sockAndId == null || sockAndId.sock() == null ) {
+			if ( errorHandler != null )
+				errorHandler.handleErrorOnGet( this, new IOException( "no socket to server available" ), key );
+			return missing;
+		}
+		SockIOPool.SockIO sock = sockAndId.sock();
+
+		try {
+			CommandEncoder cmd = sock.encoder()
+				.append( sockAndId.commandPrefix() )
+				.append( CommandEncoder.GET ).space()
+				.key( key ).crlf()
+				.frame( CommandEncoder.REPLY_VALUES, true );
+			if ( log.isDebugEnabled() )
+				log.debug("++++ memcache get command: " + cmd);
 
-				if ( REFRESH_AND_RETRY.equals(line) ) {
+			sock.write( cmd );
+			sock.flush();
+
+			long number = missing;
+
+			while ( true ) {
+				ResponseLine line = sock.readResponseLine();
+
+				if ( line.is( ResponseLine.REFRESH_AND_RETRY ) ) {
 					handleRefreshAndRetry(pool, sock);
-					return get(originalKey, hashCode, asString);
+					return getNumber(originalKey, hashCode, missing);
 				}
-				else if ( line.startsWith( VALUE ) ) {
-					String[] info = line.split(" ");
-					int flag      = Integer.parseInt( info[2] );
-					int length    = Integer.parseInt( info[3] );
-					int key_config_id = Integer.parseInt( info[4] );
-
-					if ( log.isDebugEnabled() ) {
-						log.debug( "++++ key: " + key );
-						log.debug( "++++ flags: " + flag );
-						log.debug( "++++ length: " + length );
-						log.debug( "++++ key config id: " + key_config_id );
-					}
+				else if ( line.parseValue() ) {
+					int flag      = line.flags;
+					int length    = line.length;
+					int key_config_id = ( line.configId < 0 ) ? sockAndId.fragmentId() : line.configId;
 
 					// If fragment id is greater than the entry's config id
 					// it means that the entry is stale.
 					if ( sockAndId.fragmentId() > key_config_id ) {
+						// skip the value and END so the socket can go back to the pool
+						sock.read( new byte[length] );
+						sock.clearEOL();
+						sock.readResponseLine();
 						sock.close();
 						sock = null;
-						delete( key );
-						return null;
+						deleteSanitized( key, hashCode, null );
+						return missing;
 					}
 
 					// read obj into buffer
@@ -1450,87 +2349,31 @@ public class MemcachedClient {
 					sock.read( buf );
 					sock.clearEOL();
 
-					if ( (flag & F_COMPRESSED) == F_COMPRESSED ) {
-						try {
-							// read the input stream, and write to a byte array output stream since
-							// we have to read into a byte array, but we don't know how large it
-							// will need to be, and we don't want to resize it a bunch
-							GZIPInputStream gzi = new GZIPInputStream( new ByteArrayInputStream( buf ) );
-							ByteArrayOutputStream bos = new ByteArrayOutputStream( buf.length );
-
-							int count;
-							byte[] tmp = new byte[2048];
-							while ( (count = gzi.read(tmp)) != -1 ) {
-								bos.write( tmp, 0, count );
-							}
-
-							// store uncompressed back to buffer
-							buf = bos.toByteArray();
-							gzi.close();
-						}
-						catch ( IOException e ) {
-
-							// if we have an errorHandler, use its hook
-							if ( errorHandler != null )
-								errorHandler.handleErrorOnGet( this, e, key );
-
-							log.error( "++++ IOException thrown while trying to uncompress input stream for key: " + key + " -- " + e.getMessage() );
-							throw new NestedIOException( "++++ IOException thrown while trying to uncompress input stream for key: " + key, e );
-						}
+					try {
+						number = toNumber( key, buf, flag, missing );
 					}
+					catch ( NumberFormatException e ) {
 
-					// we can only take out serialized objects
-					if ( ( flag & F_SERIALIZED ) != F_SERIALIZED ) {
-						if ( primitiveAsString || asString ) {
-							// pulling out string value
-							if ( log.isInfoEnabled() )
-								log.info( "++++ retrieving object and stuffing into a string." );
-							o = new String( buf, defaultEncoding );
-						}
-						else {
-							// decoding object
-							try {
-								o = NativeHandler.decode( buf, flag );
-							}
-							catch ( Exception e ) {
-
-								// if we have an errorHandler, use its hook
-								if ( errorHandler != null )
-									errorHandler.handleErrorOnGet( this, e, key );
-
-								log.error( "++++ Exception thrown while trying to deserialize for key: " + key, e );
-								throw new NestedIOException( e );
-							}
-						}
-					}
-					else {
-						// deserialize if the data is serialized
-						ContextObjectInputStream ois =
-							new ContextObjectInputStream( new ByteArrayInputStream( buf ), classLoader );
-						try {
-							o = ois.readObject();
-							if ( log.isInfoEnabled() )
-								log.info( "++++ deserializing " + o.getClass() );
-						}
-						catch ( Exception e ) {
-							if ( errorHandler != null )
-								errorHandler.handleErrorOnGet( this, e, key );
+						// if we have an errorHandler, use its hook
+						if ( errorHandler != null )
+							errorHandler.handleErrorOnGet( this, e, key );
 
-							o = null;
-							log.error( "++++ Exception thrown while trying to deserialize for key: " + key + " -- " + e.getMessage() );
-						}
+						log.error( String.format( "Failed to parse Long value for key: %s", key ) );
 					}
 				}
-				else if ( END.equals( line ) ) {
-					if ( log.isDebugEnabled() )
-						log.debug( "++++ finished reading from cache server" );
+				else if ( line.is( ResponseLine.END ) ) {
+					break;
+				}
+				else if ( line.isError() ) {
+					log.error( "++++ error getting key: " + key );
+					log.error( "++++ server response: " + line );
 					break;
 				}
 			}
 
 			sock.close();
 			sock = null;
-			return o;
+			return number;
 		}
 		catch ( IOException e ) {
 
@@ -1539,7 +2382,7 @@ public class MemcachedClient {
 				errorHandler.handleErrorOnGet( this, e, key );
 
 			// exception thrown
-			log.error( "++++ exception thrown while trying to get object from cache for key: " + key + " -- " + e.getMessage() );
+			log.error( "++++ exception thrown while trying to get number from cache for key: " + key + " -- " + e.getMessage() );
 
 			try {
 				sock.trueClose();
@@ -1548,343 +2391,1670 @@ public class MemcachedClient {
 				log.error( "++++ failed to close socket : " + sock.toString() );
 			}
 			sock = null;
-	    }
+		}
 
 		if ( sock != null )
 			sock.close();
 
-		return null;
+		return missing;
 	}
 
 	/**
-	 * Retrieve multiple objects from the memcache.
+	 * Reads a number from a value as stored.
 	 *
-	 *  This is recommended over repeated calls to {@link #get(String) get()}, since it<br/>
-	 *  is more efficient.<br/>
+	 * Plain and string values are parsed as decimal digits, which incr/decr
+	 * may have left padded with spaces, and Longs and Integers from their
+	 * native form.  Other values go through decodeValue().
 	 *
-	 * @param keys String array of keys to retrieve
-	 * @return Object array ordered in same order as key array containing results
+	 * @throws NumberFormatException if the value is not a number
 	 */
-	public Object[] getMultiArray( String[] keys ) {
-		return getMultiArray( keys, null, false );
+	private long toNumber( String key, byte[] buf, int flag, long missing ) {
+		if ( flag == 0 || flag == MARKER_STRING ) {
+			int from = 0;
+			int to = buf.length;
+			while ( from < to && buf[from] == ' ' )
+				from++;
+			while ( to > from && buf[to - 1] == ' ' )
+				to--;
+
+			boolean negative = ( from < to && buf[from] == '-' );
+			int i = negative ? from + 1 : from;
+			if ( i == to || to - i > 18 )
+				return Long.parseLong( new String( buf, from, to - from ) );
+
+			// anything this short can not overflow
+			long value = 0;
+			for ( ; i < to; i++ ) {
+				int digit = buf[i] - '0';
+				if ( digit < 0 || digit > 9 )
+					throw new NumberFormatException( "For input string: \"" + new String( buf, from, to - from ) + "\"" );
+				value = value * 10 + digit;
+			}
+			return negative ? -value : value;
+		}
+
+		if ( flag == MARKER_LONG && buf.length == 8 )
+			return NativeHandler.toLong( buf );
+
+		if ( flag == MARKER_INTEGER && buf.length == 4 )
+			return NativeHandler.toInt( buf );
+
+		Object o = decodeValue( key, buf, flag, false, transcoder );
+		if ( o instanceof Number )
+			return ((Number)o).longValue();
+		if ( o instanceof String )
+			return Long.parseLong( ((String)o).trim() );
+		if ( o == null )
+			return missing;
+
+		throw new NumberFormatException( "++++ not a number: " + o.getClass().getName() );
 	}
 
 	/**
-	 * Retrieve multiple objects from the memcache.
+	 * Retrieve a key from the server, using a specific hash.
 	 *
-	 *  This is recommended over repeated calls to {@link #get(String) get()}, since it<br/>
-	 *  is more efficient.<br/>
+	 *  If the data was compressed or serialized when compressed, it will automatically<br/>
+	 *  be decompressed or serialized, as appropriate. (Inclusive or)<br/>
+	 *<br/>
+	 *  Non-serialized data will be returned as a string, so explicit conversion to<br/>
+	 *  numeric types will be necessary, if desired<br/>
 	 *
-	 * @param keys String array of keys to retrieve
-	 * @param hashCodes if not null, then the Integer array of hashCodes
-	 * @return Object array ordered in same order as key array containing results
+	 * @param key key where data is stored
+	 * @return the object that was previously stored, or null if it was not previously stored
 	 */
-	public Object[] getMultiArray( String[] keys, Integer[] hashCodes ) {
-		return getMultiArray( keys, hashCodes, false );
+	public Object get( String key ) {
+		return get( key, null, false );
 	}
 
 	/**
-	 * Retrieve multiple objects from the memcache.
+	 * Retrieve a key from the server, using a specific hash.
 	 *
-	 *  This is recommended over repeated calls to {@link #get(String) get()}, since it<br/>
-	 *  is more efficient.<br/>
+	 *  If the data was compressed or serialized when compressed, it will automatically<br/>
+	 *  be decompressed or serialized, as appropriate. (Inclusive or)<br/>
+	 *<br/>
+	 *  Non-serialized data will be returned as a string, so explicit conversion to<br/>
+	 *  numeric types will be necessary, if desired<br/>
 	 *
-	 * @param keys String array of keys to retrieve
-	 * @param hashCodes if not null, then the Integer array of hashCodes
-	 * @param asString if true, retrieve string vals
-	 * @return Object array ordered in same order as key array containing results
+	 * @param key key where data is stored
+	 * @param hashCode if not null, then the int hashcode to use
+	 * @return the object that was previously stored, or null if it was not previously stored
 	 */
-	public Object[] getMultiArray( String[] keys, Integer[] hashCodes, boolean asString ) {
-
-		Map<String,Object> data = getMulti( keys, hashCodes, asString );
-
-		if ( data == null )
-			return null;
-
-		Object[] res = new Object[ keys.length ];
-		for ( int i = 0; i < keys.length; i++ ) {
-			res[i] = data.get( keys[i] );
-		}
+	public Object get( String key, Integer hashCode ) {
+		return get( key, hashCode, false );
+	}
 
-		return res;
+	/**
+	 * Retrieve a key from the server, using a specific hash.
+	 *
+	 *  If the data was compressed or serialized when compressed, it will automatically<br/>
+	 *  be decompressed or serialized, as appropriate. (Inclusive or)<br/>
+	 *<br/>
+	 *  Non-serialized data will be returned as a string, so explicit conversion to<br/>
+	 *  numeric types will be necessary, if desired<br/>
+	 *
+	 * @param key key where data is stored
+	 * @param hashCode if not null, then the int hashcode to use
+	 * @param asString if true, then return string val
+	 * @return the object that was previously stored, or null if it was not previously stored
+	 */
+	public Object get( String key, Integer hashCode, boolean asString ) {
+		return get( key, hashCode, asString, transcoder );
 	}
 
 	/**
-	 * Retrieve multiple objects from the memcache.
+	 * Retrieve a key from the server, decoding its value with the given transcoder.
 	 *
-	 *  This is recommended over repeated calls to {@link #get(String) get()}, since it<br/>
-	 *  is more efficient.<br/>
+	 * @param key key where data is stored
+	 * @param tc transcoder to decode the value with
+	 * @return the object that was previously stored, or null if it was not previously stored
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T get( String key, Transcoder<T> tc ) {
+		return (T)get( key, null, false, (Transcoder<Object>)tc );
+	}
+
+	/**
+	 * Retrieve the bytes stored at a key as they are.
 	 *
-	 * @param keys String array of keys to retrieve
-	 * @return a hashmap with entries for each key is found by the server,
-	 *      keys that are not found are not entered into the hashmap, but attempting to
-	 *      retrieve them from the hashmap gives you null.
+	 * @param key key where data is stored
+	 * @return the bytes, or null if it was not previously stored
+	 * @see #getBytes(String, Integer, ByteBuffer)
 	 */
-	public Map<String,Object> getMulti( String[] keys ) {
-		return getMulti( keys, null, false );
+	public byte[] getBytes( String key ) {
+		return getBytes( key, (Integer)null );
 	}
 
 	/**
-	 * Retrieve multiple keys from the memcache.
+	 * Retrieve the bytes stored at a key as they are, using a specific hash.
 	 *
-	 *  This is recommended over repeated calls to {@link #get(String) get()}, since it<br/>
-	 *  is more efficient.<br/>
+	 * @param key key where data is stored
+	 * @param hashCode if not null, then the int hashcode to use
+	 * @return the bytes, or null if it was not previously stored
+	 * @see #getBytes(String, Integer, ByteBuffer)
+	 */
+	public byte[] getBytes( String key, Integer hashCode ) {
+		byte[][] value = new byte[1][];
+		getRaw( key, hashCode, null, value );
+		return value[0];
+	}
+
+	/**
+	 * Reads the bytes stored at a key into a buffer.
 	 *
-	 * @param keys keys to retrieve
-	 * @param hashCodes if not null, then the Integer array of hashCodes
-	 * @return a hashmap with entries for each key is found by the server,
-	 *      keys that are not found are not entered into the hashmap, but attempting to
-	 *      retrieve them from the hashmap gives you null.
+	 * @param key key where data is stored
+	 * @param dst buffer to read the bytes into
+	 * @return the number of bytes stored, or -1 if it was not previously stored
+	 * @see #getBytes(String, Integer, ByteBuffer)
 	 */
-	public Map<String,Object> getMulti( String[] keys, Integer[] hashCodes ) {
-		return getMulti( keys, hashCodes, false );
+	public int getBytes( String key, ByteBuffer dst ) {
+		return getBytes( key, null, dst );
 	}
 
 	/**
-	 * Retrieve multiple keys from the memcache.
+	 * Reads the bytes stored at a key into a buffer, using a specific hash.
 	 *
-	 *  This is recommended over repeated calls to {@link #get(String) get()}, since it<br/>
-	 *  is more efficient.<br/>
+	 *  The bytes are read as they are, whatever the flags they were stored<br/>
+	 *  with, so values compressed or serialized by set() come back that way;<br/>
+	 *  they are meant for values stored with setBytes().  They are put into the<br/>
+	 *  buffer from its position on, straight from the socket for heap buffers,<br/>
+	 *  and the position is moved past them.<br/>
+	 *<br/>
+	 *  If there are more bytes than the buffer has remaining, nothing is read<br/>
+	 *  into it; the number of bytes returned tells how much room is needed.
 	 *
-	 * @param keys keys to retrieve
-	 * @param hashCodes if not null, then the Integer array of hashCodes
-	 * @param asString if true then retrieve using String val
-	 * @return a hashmap with entries for each key is found by the server,
-	 *      keys that are not found are not entered into the hashmap, but attempting to
-	 *      retrieve them from the hashmap gives you null.
+	 * @param key key where data is stored
+	 * @param hashCode if not null, then the int hashcode to use
+	 * @param dst buffer to read the bytes into
+	 * @return the number of bytes stored, or -1 if it was not previously stored
 	 */
-	public Map<String,Object> getMulti( String[] keys, Integer[] hashCodes, boolean asString ) {
+	public int getBytes( String key, Integer hashCode, ByteBuffer dst ) {
+		if ( dst == null ) {
+			log.error( "buffer is null for getBytes()" );
+			return -1;
+		}
+		return getRaw( key, hashCode, dst, null );
+	}
 
-		if ( keys == null || keys.length == 0 ) {
-			log.error( "missing keys for getMulti()" );
+	private Object get(
+		final String originalKey,
+		final Integer hashCode,
+		final boolean asString,
+		final Transcoder<Object> tc ) {
+
+		String key = originalKey;
+		if ( key == null ) {
+			log.error( "key is null for get()" );
 			return null;
 		}
 
-		Map<String,StringBuilder> cmdMap =
-			new HashMap<String,StringBuilder>();
-
-		for ( int i = 0; i < keys.length; ++i ) {
+		try {
+			key = sanitizeKey( key );
+		}
+		catch ( UnsupportedEncodingException e ) {
+
+			// if we have an errorHandler, use its hook
+			if ( errorHandler != null )
+				errorHandler.handleErrorOnGet( this, e, key );
+
+			log.error( "failed to sanitize your key!", e );
+			return null;
+		}
+
+		// get SockIO obj using cache key
+		SockIOPool pool = currentPool.get();
+		SockIOPool.SockAndFragmentId sockAndId = pool.getSockAndFragmentId( key, hashCode );
+
+		if ( sockAndId == null || sockAndId.sock() == null ) {
+			if ( errorHandler != null )
+				errorHandler.handleErrorOnGet( this, new IOException( "no socket to server available" ), key );
+			return null;
+		}
+		SockIOPool.SockIO sock = sockAndId.sock();
+
+		try {
+			CommandEncoder cmd = sock.encoder()
+				.append( sockAndId.commandPrefix() )
+				.append( CommandEncoder.GET ).space()
+				.key( key ).crlf()
+				.frame( CommandEncoder.REPLY_VALUES, true );
+			if ( log.isDebugEnabled() )
+				log.debug("++++ memcache get command: " + cmd);
+
+			sock.write( cmd );
+			sock.flush();
+
+			// ready object
+			Object o = null;
+
+			while ( true ) {
+				ResponseLine line = sock.readResponseLine();
+
+				if ( log.isDebugEnabled() )
+					log.debug( "++++ line: " + line );
+
+				if ( line.is( ResponseLine.REFRESH_AND_RETRY ) ) {
+					handleRefreshAndRetry(pool, sock);
+					return get(originalKey, hashCode, asString, tc);
+				}
+				else if ( line.parseValue() ) {
+					int flag      = line.flags;
+					int length    = line.length;
+					int key_config_id = ( line.configId < 0 ) ? sockAndId.fragmentId() : line.configId;
+
+					if ( log.isDebugEnabled() ) {
+						log.debug( "++++ key: " + key );
+						log.debug( "++++ flags: " + flag );
+						log.debug( "++++ length: " + length );
+						log.debug( "++++ key config id: " + key_config_id );
+					}
+
+					// If fragment id is greater than the entry's config id
+					// it means that the entry is stale.
+					if ( sockAndId.fragmentId() > key_config_id ) {
+						// skip the value and END so the socket can go back to the pool
+						sock.read( new byte[length] );
+						sock.clearEOL();
+						sock.readResponseLine();
+						sock.close();
+						sock = null;
+						deleteSanitized( key, hashCode, null );
+						return null;
+					}
+
+					// read obj into buffer
+					byte[] buf = new byte[length];
+					sock.read( buf );
+					sock.clearEOL();
+
+					o = decodeValue( key, buf, flag, asString, tc );
+				}
+				else if ( line.is( ResponseLine.END ) ) {
+					if ( log.isDebugEnabled() )
+						log.debug( "++++ finished reading from cache server" );
+					break;
+				}
+				else if ( line.isError() ) {
+					log.error( "++++ error getting key: " + key );
+					log.error( "++++ server response: " + line );
+					break;
+				}
+			}
+
+			sock.close();
+			sock = null;
+			return o;
+		}
+		catch ( IOException e ) {
+
+			// if we have an errorHandler, use its hook
+			if ( errorHandler != null )
+				errorHandler.handleErrorOnGet( this, e, key );
+
+			// exception thrown
+			log.error( "++++ exception thrown while trying to get object from cache for key: " + key + " -- " + e.getMessage() );
+
+			try {
+				sock.trueClose();
+			}
+			catch ( IOException ioe ) {
+				log.error( "++++ failed to close socket : " + sock.toString() );
+			}
+			sock = null;
+	    }
+
+		if ( sock != null )
+			sock.close();
+
+		return null;
+	}
+
+	/**
+	 * Reads the bytes of a value as they are, into the buffer if one is
+	 * passed, and into a new array otherwise.
+	 *
+	 * @param key key where data is stored
+	 * @param hashCode if not null, then the int hashcode to use
+	 * @param dst buffer to read the bytes into, or null
+	 * @param copy if dst is null, gets the array the bytes were read into
+	 * @return the number of bytes stored, or -1 if it was not previously stored
+	 */
+	private int getRaw(
+		final String originalKey,
+		final Integer hashCode,
+		final ByteBuffer dst,
+		final byte[][] copy ) {
+
+		String key = originalKey;
+		if ( key == null ) {
+			log.error( "key is null for getBytes()" );
+			return -1;
+		}
+
+		try {
+			key = sanitizeKey( key );
+		}
+		catch ( UnsupportedEncodingException e ) {
+
+			// if we have an errorHandler, use its hook
+			if ( errorHandler != null )
+				errorHandler.handleErrorOnGet( this, e, key );
+
+			log.error( "failed to sanitize your key!", e );
+			return -1;
+		}
+
+		// get SockIO obj using cache key
+		SockIOPool pool = currentPool.get();
+		SockIOPool.SockAndFragmentId sockAndId = pool.getSockAndFragmentId( key, hashCode );
+
+		if ( sockAndId == null || sockAndId.sock() == null ) {
+			if ( errorHandler != null )
+				errorHandler.handleErrorOnGet( this, new IOException( "no socket to server available" ), key );
+			return -1;
+		}
+		SockIOPool.SockIO sock = sockAndId.sock();
+
+		try {
+			CommandEncoder cmd = sock.encoder()
+				.append( sockAndId.commandPrefix() )
+				.append( CommandEncoder.GET ).space()
+				.key( key ).crlf()
+				.frame( CommandEncoder.REPLY_VALUES, true );
+			if ( log.isDebugEnabled() )
+				log.debug("++++ memcache get command: " + cmd);
+
+			sock.write( cmd );
+			sock.flush();
+
+			int length = -1;
+
+			while ( true ) {
+				ResponseLine line = sock.readResponseLine();
+
+				if ( line.is( ResponseLine.REFRESH_AND_RETRY ) ) {
+					handleRefreshAndRetry(pool, sock);
+					return getRaw(originalKey, hashCode, dst, copy);
+				}
+				else if ( line.parseValue() ) {
+					length = line.length;
+					int key_config_id = ( line.configId < 0 ) ? sockAndId.fragmentId() : line.configId;
+
+					// If fragment id is greater than the entry's config id
+					// it means that the entry is stale.
+					if ( sockAndId.fragmentId() > key_config_id ) {
+						// skip the value and END so the socket can go back to the pool
+						sock.read( new byte[length] );
+						sock.clearEOL();
+						sock.readResponseLine();
+						sock.close();
+						sock = null;
+						deleteSanitized( key, hashCode, null );
+						return -1;
+					}
+
+					if ( dst == null ) {
+						copy[0] = new byte[length];
+						sock.read( copy[0] );
+					}
+					else if ( length <= dst.remaining() ) {
+						sock.read( dst, length );
+					}
+					else {
+						// does not fit, skip it
+						sock.read( new byte[length] );
+					}
+					sock.clearEOL();
+				}
+				else if ( line.is( ResponseLine.END ) ) {
+					break;
+				}
+				else if ( line.isError() ) {
+					log.error( "++++ error getting key: " + key );
+					log.error( "++++ server response: " + line );
+					break;
+				}
+			}
+
+			sock.close();
+			sock = null;
+			return length;
+		}
+		catch ( IOException e ) {
+
+			// if we have an errorHandler, use its hook
+			if ( errorHandler != null )
+				errorHandler.handleErrorOnGet( this, e, key );
+
+			// exception thrown
+			log.error( "++++ exception thrown while trying to get bytes from cache for key: " + key + " -- " + e.getMessage() );
+
+			try {
+				sock.trueClose();
+			}
+			catch ( IOException ioe ) {
+				log.error( "++++ failed to close socket : " + sock.toString() );
+			}
+			sock = null;
+		}
+
+		if ( sock != null )
+			sock.close();
+
+		return -1;
+	}
+
+	/**
+	 * Retrieve multiple objects from the memcache.
+	 *
+	 *  This is recommended over repeated calls to {@link #get(String) get()}, since it<br/>
+	 *  is more efficient.<br/>
+	 *
+	 * @param keys String array of keys to retrieve
+	 * @return Object array ordered in same order as key array containing results
+	 */
+	public Object[] getMultiArray( String[] keys ) {
+		return getMultiArray( keys, null, false );
+	}
+
+	/**
+	 * Retrieve multiple objects from the memcache.
+	 *
+	 *  This is recommended over repeated calls to {@link #get(String) get()}, since it<br/>
+	 *  is more efficient.<br/>
+	 *
+	 * @param keys String array of keys to retrieve
+	 * @param hashCodes if not null, then the Integer array of hashCodes
+	 * @return Object array ordered in same order as key array containing results
+	 */
+	public Object[] getMultiArray( String[] keys, Integer[] hashCodes ) {
+		return getMultiArray( keys, hashCodes, false );
+	}
+
+	/**
+	 * Retrieve multiple objects from the memcache.
+	 *
+	 *  This is recommended over repeated calls to {@link #get(String) get()}, since it<br/>
+	 *  is more efficient.<br/>
+	 *
+	 * @param keys String array of keys to retrieve
+	 * @param hashCodes if not null, then the Integer array of hashCodes
+	 * @param asString if true, retrieve string vals
+	 * @return Object array ordered in same order as key array containing results
+	 */
+	public Object[] getMultiArray( String[] keys, Integer[] hashCodes, boolean asString ) {
+
+		Map<String,Object> data = getMulti( keys, hashCodes, asString );
+
+		if ( data == null )
+			return null;
+
+		Object[] res = new Object[ keys.length ];
+		for ( int i = 0; i < keys.length; i++ ) {
+			res[i] = data.get( keys[i] );
+		}
+
+		return res;
+	}
+
+	/**
+	 * Retrieve multiple objects from the memcache.
+	 *
+	 *  This is recommended over repeated calls to {@link #get(String) get()}, since it<br/>
+	 *  is more efficient.<br/>
+	 *
+	 * @param keys String array of keys to retrieve
+	 * @return a hashmap with entries for each key is found by the server,
+	 *      keys that are not found are not entered into the hashmap, but attempting to
+	 *      retrieve them from the hashmap gives you null.
+	 */
+	public Map<String,Object> getMulti( String[] keys ) {
+		return getMulti( keys, null, false );
+	}
+
+	/**
+	 * Retrieve multiple keys from the memcache.
+	 *
+	 *  This is recommended over repeated calls to {@link #get(String) get()}, since it<br/>
+	 *  is more efficient.<br/>
+	 *
+	 * @param keys keys to retrieve
+	 * @param hashCodes if not null, then the Integer array of hashCodes
+	 * @return a hashmap with entries for each key is found by the server,
+	 *      keys that are not found are not entered into the hashmap, but attempting to
+	 *      retrieve them from the hashmap gives you null.
+	 */
+	public Map<String,Object> getMulti( String[] keys, Integer[] hashCodes ) {
+		return getMulti( keys, hashCodes, false );
+	}
+
+	/**
+	 * Retrieve multiple keys from the memcache.
+	 *
+	 *  This is recommended over repeated calls to {@link #get(String) get()}, since it<br/>
+	 *  is more efficient.<br/>
+	 *
+	 * @param keys keys to retrieve
+	 * @param hashCodes if not null, then the Integer array of hashCodes
+	 * @param asString if true then retrieve using String val
+	 * @return a hashmap with entries for each key is found by the server,
+	 *      keys that are not found are not entered into the hashmap, but attempting to
+	 *      retrieve them from the hashmap gives you null.
+	 */
+	public Map<String,Object> getMulti( String[] keys, Integer[] hashCodes, boolean asString ) {
+		return getMulti( keys, hashCodes, asString, transcoder );
+	}
+
+	/**
+	 * Retrieve multiple keys from the memcache, decoding their values with the given transcoder.
+	 *
+	 * @param keys keys to retrieve
+	 * @param tc transcoder to decode the values with
+	 * @return a hashmap with entries for each key is found by the server,
+	 *      keys that are not found are not entered into the hashmap, but attempting to
+	 *      retrieve them from the hashmap gives you null.
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> Map<String,T> getMulti( String[] keys, Transcoder<T> tc ) {
+		return (Map<String,T>)getMulti( keys, null, false, (Transcoder<Object>)tc );
+	}
+
+	private Map<String,Object> getMulti( String[] keys, Integer[] hashCodes, boolean asString, Transcoder<Object> tc ) {
+
+		if ( keys == null || keys.length == 0 ) {
+			log.error( "missing keys for getMulti()" );
+			return null;
+		}
+
+		// now query memcache
+		final Map<String,Object> ret =
+			new HashMap<String,Object>( keys.length );
+
+		getMulti( keys, hashCodes, asString, tc, new MultiGetHandler() {
+			public boolean entry( String key, Object value ) {
+				ret.put( key, value );
+				return true;
+			}
+		} );
+
+		// backfill missing keys w/ null value
+		for ( String key : keys ) {
+			if ( ! ret.containsKey( key ) )
+				ret.put( key, null );
+		}
+
+		if ( log.isDebugEnabled() )
+			log.debug( "++++ memcache: got back " + ret.size() + " results" );
+		return ret;
+	}
+
+	/**
+	 * Retrieve multiple keys from the memcache, handing out each entry as soon as it is decoded.
+	 *
+	 * @param keys keys to retrieve
+	 * @param handler receives the entries found
+	 * @return false if the handler stopped early, or if no keys were passed
+	 * @see #getMulti(String[], Integer[], boolean, MultiGetHandler)
+	 */
+	public boolean getMulti( String[] keys, MultiGetHandler handler ) {
+		return getMulti( keys, null, false, handler );
+	}
+
+	/**
+	 * Retrieve multiple keys from the memcache, handing out each entry as soon as it is decoded.<br/>
+	 * <br/>
+	 * No map of the results is built, and the first entries are handed out<br/>
+	 * before the slowest server has answered.  The handler runs on the calling<br/>
+	 * thread, and at most maxBatchesInFlight batches of keys are outstanding per<br/>
+	 * server: the next one is only sent once the handler got to the end of an<br/>
+	 * earlier one.  Keys not found are not handed out.
+	 *
+	 * @param keys keys to retrieve
+	 * @param hashCodes if not null, then the Integer array of hashCodes
+	 * @param asString if true then retrieve using String val
+	 * @param handler receives the entries found
+	 * @return false if the handler stopped early, or if no keys were passed
+	 */
+	public boolean getMulti( String[] keys, Integer[] hashCodes, boolean asString, MultiGetHandler handler ) {
+		return getMulti( keys, hashCodes, asString, transcoder, handler );
+	}
+
+	private boolean getMulti( String[] keys, Integer[] hashCodes, boolean asString, Transcoder<Object> tc, MultiGetHandler handler ) {
+
+		if ( keys == null || keys.length == 0 ) {
+			log.error( "missing keys for getMulti()" );
+			return false;
+		}
+
+		SockIOPool pool = currentPool.get();
+		List<String> cleanKeys = new ArrayList<String>( keys.length );
+		List<Integer> hashes = new ArrayList<Integer>( keys.length );
+		Map<String,String> originals = new HashMap<String,String>();
+		for ( int i = 0; i < keys.length; ++i ) {
+
+			String key = keys[i];
+			if ( key == null ) {
+				log.error( "null key, so skipping" );
+				continue;
+			}
+
+			Integer hash = null;
+			if ( hashCodes != null && hashCodes.length > i )
+				hash = hashCodes[ i ];
+
+			String cleanKey = key;
+			try {
+				cleanKey = sanitizeKey( key );
+			}
+			catch ( UnsupportedEncodingException e ) {
+
+				// if we have an errorHandler, use its hook
+				if ( errorHandler != null )
+					errorHandler.handleErrorOnGet( this, e, key );
+
+				log.error( "failed to sanitize your key!", e );
+				continue;
+			}
+
+			if ( !cleanKey.equals( key ) )
+				originals.put( cleanKey, key );
+
+			cleanKeys.add( cleanKey );
+			hashes.add( hash );
+		}
+
+		ValueStream stream = new ValueStream( handler, asString, tc, originals );
+		List<FragmentBatch> refresh = loadBatches( pool, makeBatches( pool, cleanKeys, hashes, stream ), stream );
+
+		// the servers moved to a newer config: refresh once and
+		// re-issue only the batches that were turned away
+		if ( !refresh.isEmpty() && !stream.stopped ) {
+			FragmentBatch first = refresh.get( 0 );
+			if ( refreshFromResponse( pool, first.responses[0], first.route.address() ) ) {
+				cleanKeys.clear();
+				hashes.clear();
+				for ( FragmentBatch batch : refresh ) {
+					cleanKeys.addAll( batch.keys );
+					hashes.addAll( batch.hashes );
+				}
+
+				pool = currentPool.get();
+				refresh = loadBatches( pool, makeBatches( pool, cleanKeys, hashes, stream ), stream );
+			}
+
+			for ( FragmentBatch batch : refresh ) {
+				if ( errorHandler != null )
+					errorHandler.handleErrorOnGet( this, new IOException( "++++ config still stale after refresh for " + batch ), batch.keys.toArray( new String[ batch.keys.size() ] ) );
+				log.error( "++++ giving up on multi get batch after REFRESH_AND_RETRY: " + batch );
+			}
+		}
+
+		return !stream.stopped;
+	}
+
+	/**
+	 * Stores several values at once; only the keys and the values are specified.
+	 *
+	 * @param values keys and the values to store under them
+	 * @return true for each key that was stored, or null if no values were passed
+	 * @see #setMulti(Map, Date)
+	 */
+	public Map<String,Boolean> setMulti( Map<String,Object> values ) {
+		return setMulti( values, null );
+	}
+
+	/**
+	 * Stores several values at once; the values and an expiration time are specified.<br/>
+	 * <br/>
+	 * The values are encoded as set() encodes them.  The set commands for the keys<br/>
+	 * of each fragment are written back to back on one connection, and their responses<br/>
+	 * read back in order, every server in parallel.  Keys answered with<br/>
+	 * REFRESH_AND_RETRY are sent again once the config has been refreshed.
+	 *
+	 * @param values keys and the values to store under them
+	 * @param expiry when to expire the records
+	 * @return true for each key that was stored, or null if no values were passed
+	 */
+	public Map<String,Boolean> setMulti( Map<String,Object> values, Date expiry ) {
+
+		if ( values == null || values.isEmpty() ) {
+			log.error( "missing values for setMulti()" );
+			return null;
+		}
+
+		if ( expiry == null )
+			expiry = new Date(0);
+
+		Map<String,Boolean> ret = new HashMap<String,Boolean>( values.size() * 2 );
+		List<String> origKeys = new ArrayList<String>( values.size() );
+		List<String> cleanKeys = new ArrayList<String>( values.size() );
+		List<ByteBuffer[]> bodies = new ArrayList<ByteBuffer[]>( values.size() );
+
+		CommandEncoder cmd = new CommandEncoder();
+		for ( Map.Entry<String,Object> entry : values.entrySet() ) {
+
+			String key = entry.getKey();
+			if ( key == null ) {
+				log.error( "null key, so skipping" );
+				continue;
+			}
+			ret.put( key, Boolean.FALSE );
+
+			String cleanKey = sanitizeBatchKey( CommandEncoder.SET, key );
+			if ( cleanKey == null )
+				continue;
+
+			if ( entry.getValue() == null ) {
+				log.error( "trying to store a null value to cache" );
+				continue;
+			}
+
+			CachedData encoded = encodeValue( cleanKey, entry.getValue(), primitiveAsString, transcoder );
+			if ( encoded == null )
+				continue;
+
+			cmd.reset()
+				.append( CommandEncoder.SET ).space()
+				.key( cleanKey ).space()
+				.number( encoded.getFlags() ).space()
+				.number( expiry.getTime() / 1000 ).space()
+				.number( encoded.getData().remaining() ).crlf();
+
+			origKeys.add( key );
+			cleanKeys.add( cleanKey );
+			bodies.add( new ByteBuffer[] { ByteBuffer.wrap( cmd.toByteArray() ), encoded.getData(), ByteBuffer.wrap( CommandEncoder.CRLF ) } );
+		}
+
+		Map<String,byte[]> responses = writeMulti( CommandEncoder.SET, cleanKeys, bodies );
+
+		ResponseLine line = new ResponseLine();
+		for ( int i = 0; i < origKeys.size(); i++ ) {
+			byte[] response = responses.get( cleanKeys.get( i ) );
+			if ( response == null )
+				continue;
+
+			firstLine( response, line );
+			if ( line.is( ResponseLine.STORED ) ) {
+				ret.put( origKeys.get( i ), Boolean.TRUE );
+			}
+			else if ( !line.is( ResponseLine.NOTSTORED ) ) {
+				log.error( "++++ error storing data in cache for key: " + origKeys.get( i ) );
+				log.error( "++++ server response: " + line );
+			}
+		}
+
+		if ( log.isDebugEnabled() )
+			log.debug( "++++ memcache: stored " + ret.size() + " keys" );
+		return ret;
+	}
+
+	/**
+	 * Deletes several keys at once.<br/>
+	 * <br/>
+	 * As with setMulti(), the deletes for the keys of each fragment are written back<br/>
+	 * to back on one connection and their responses read back in order.
+	 *
+	 * @param keys keys to delete
+	 * @return true for each key that was deleted, or null if no keys were passed
+	 */
+	public Map<String,Boolean> deleteMulti( String[] keys ) {
+
+		if ( keys == null || keys.length == 0 ) {
+			log.error( "missing keys for deleteMulti()" );
+			return null;
+		}
+
+		Map<String,Boolean> ret = new HashMap<String,Boolean>( keys.length * 2 );
+		List<String> origKeys = new ArrayList<String>( keys.length );
+		List<String> cleanKeys = new ArrayList<String>( keys.length );
+		List<ByteBuffer[]> bodies = new ArrayList<ByteBuffer[]>( keys.length );
+
+		CommandEncoder cmd = new CommandEncoder();
+		for ( String key : keys ) {
 
-			String key = keys[i];
 			if ( key == null ) {
 				log.error( "null key, so skipping" );
 				continue;
 			}
+			ret.put( key, Boolean.FALSE );
 
-			Integer hash = null;
-			if ( hashCodes != null && hashCodes.length > i )
-				hash = hashCodes[ i ];
+			String cleanKey = sanitizeBatchKey( CommandEncoder.DELETE, key );
+			if ( cleanKey == null )
+				continue;
 
-			String cleanKey = key;
-			try {
-				cleanKey = sanitizeKey( key );
+			cmd.reset()
+				.append( CommandEncoder.DELETE ).space()
+				.key( cleanKey ).crlf();
+
+			origKeys.add( key );
+			cleanKeys.add( cleanKey );
+			bodies.add( new ByteBuffer[] { ByteBuffer.wrap( cmd.toByteArray() ) } );
+		}
+
+		Map<String,byte[]> responses = writeMulti( CommandEncoder.DELETE, cleanKeys, bodies );
+
+		ResponseLine line = new ResponseLine();
+		for ( int i = 0; i < origKeys.size(); i++ ) {
+			byte[] response = responses.get( cleanKeys.get( i ) );
+			if ( response == null )
+				continue;
+
+			firstLine( response, line );
+			if ( line.is( ResponseLine.DELETED ) ) {
+				ret.put( origKeys.get( i ), Boolean.TRUE );
 			}
-			catch ( UnsupportedEncodingException e ) {
+			else if ( !line.is( ResponseLine.NOTFOUND ) ) {
+				log.error( "++++ error deleting key: " + origKeys.get( i ) );
+				log.error( "++++ server response: " + line );
+			}
+		}
 
-				// if we have an errorHandler, use its hook
+		return ret;
+	}
+
+	/**
+	 * Increments several counters at once by one.
+	 *
+	 * @param keys keys of the counters
+	 * @return new value of each counter, or -1 where it was not found
+	 * @see #incrMulti(String[], long)
+	 */
+	public Map<String,Long> incrMulti( String[] keys ) {
+		return incrdecrMulti( CommandEncoder.INCR, keys, 1 );
+	}
+
+	/**
+	 * Increments several counters at once by the same amount.<br/>
+	 * <br/>
+	 * As with setMulti(), the commands for the keys of each fragment are written back<br/>
+	 * to back on one connection and their responses read back in order.
+	 *
+	 * @param keys keys of the counters
+	 * @param inc how much to increment by
+	 * @return new value of each counter, or -1 where it was not found
+	 */
+	public Map<String,Long> incrMulti( String[] keys, long inc ) {
+		return incrdecrMulti( CommandEncoder.INCR, keys, inc );
+	}
+
+	/**
+	 * Decrements several counters at once by one.
+	 *
+	 * @param keys keys of the counters
+	 * @return new value of each counter, or -1 where it was not found
+	 * @see #incrMulti(String[], long)
+	 */
+	public Map<String,Long> decrMulti( String[] keys ) {
+		return incrdecrMulti( CommandEncoder.DECR, keys, 1 );
+	}
+
+	/**
+	 * Decrements several counters at once by the same amount.
+	 *
+	 * @param keys keys of the counters
+	 * @param inc how much to decrement by
+	 * @return new value of each counter, or -1 where it was not found
+	 * @see #incrMulti(String[], long)
+	 */
+	public Map<String,Long> decrMulti( String[] keys, long inc ) {
+		return incrdecrMulti( CommandEncoder.DECR, keys, inc );
+	}
+
+	/**
+	 * Increments/decrements several counters at once.
+	 *
+	 * @param verb CommandEncoder.INCR or CommandEncoder.DECR
+	 * @param keys keys of the counters
+	 * @param inc how much to increment/decrement by
+	 * @return new value of each counter, or -1 where it was not found
+	 */
+	private Map<String,Long> incrdecrMulti( byte[] verb, String[] keys, long inc ) {
+
+		if ( keys == null || keys.length == 0 ) {
+			log.error( "missing keys for incrMulti()/decrMulti()" );
+			return null;
+		}
+
+		Map<String,Long> ret = new HashMap<String,Long>( keys.length * 2 );
+		List<String> origKeys = new ArrayList<String>( keys.length );
+		List<String> cleanKeys = new ArrayList<String>( keys.length );
+		List<ByteBuffer[]> bodies = new ArrayList<ByteBuffer[]>( keys.length );
+
+		CommandEncoder cmd = new CommandEncoder();
+		for ( String key : keys ) {
+
+			if ( key == null ) {
+				log.error( "null key, so skipping" );
+				continue;
+			}
+			ret.put( key, -1L );
+
+			String cleanKey = sanitizeBatchKey( verb, key );
+			if ( cleanKey == null )
+				continue;
+
+			cmd.reset()
+				.append( verb ).space()
+				.key( cleanKey ).space()
+				.number( inc ).crlf();
+
+			origKeys.add( key );
+			cleanKeys.add( cleanKey );
+			bodies.add( new ByteBuffer[] { ByteBuffer.wrap( cmd.toByteArray() ) } );
+		}
+
+		Map<String,byte[]> responses = writeMulti( verb, cleanKeys, bodies );
+
+		ResponseLine line = new ResponseLine();
+		for ( int i = 0; i < origKeys.size(); i++ ) {
+			byte[] response = responses.get( cleanKeys.get( i ) );
+			if ( response == null )
+				continue;
+
+			firstLine( response, line );
+			if ( line.isNumber() ) {
+				try {
+					ret.put( origKeys.get( i ), line.toLong() );
+				}
+				catch ( Exception ex ) {
+					log.error( String.format( "Failed to parse Long value for key: %s", origKeys.get( i ) ) );
+				}
+			}
+			else if ( !line.is( ResponseLine.NOTFOUND ) ) {
+				log.error( "++++ error incr/decr key: " + origKeys.get( i ) );
+				log.error( "++++ server response: " + line );
+			}
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Sanitizes a key of a batch write.
+	 *
+	 * @return the sanitized key, or null if it could not be
+	 */
+	private String sanitizeBatchKey( byte[] verb, String key ) {
+		try {
+			return sanitizeKey( key );
+		}
+		catch ( UnsupportedEncodingException e ) {
+
+			// if we have an errorHandler, use its hook
+			handleWriteError( verb, e, key );
+
+			log.error( "failed to sanitize your key!", e );
+			return null;
+		}
+	}
+
+	/**
+	 * Commands for keys of one fragment, sent back to back on one
+	 * connection and answered in order.  A multi get is a single
+	 * <code>rj &lt;configId&gt; &lt;fragmentNum&gt; get ...</code> command
+	 * for all of its keys; the batch writes send one command per key.
+	 * Large calls are cut into several batches per fragment, bounded by
+	 * maxBatchKeys and maxBatchBytes.
+	 */
+	private static final class FragmentBatch {
+		final SockIOPool.Route route;
+		// verb of the commands, picks the error hook
+		final byte[] verb;
+		final List<String> keys = new ArrayList<String>();
+		final List<Integer> hashes = new ArrayList<Integer>();
+		// command of each key without its rj prefix, for batch writes
+		final List<ByteBuffer[]> bodies = new ArrayList<ByteBuffer[]>();
+		// decoders of the commands, in the order they are sent
+		final List<PipelinedTransport.Request<byte[]>> requests = new ArrayList<PipelinedTransport.Request<byte[]>>();
+		// response to each command, null until read
+		byte[][] responses;
+		// size of the keys or commands, bounded by maxBatchBytes
+		int bytes;
+
+		FragmentBatch( SockIOPool.Route route, byte[] verb ) {
+			this.route = route;
+			this.verb  = verb;
+		}
+
+		/**
+		 * Adds a command; the batch is answered once every command is.
+		 */
+		void add( ByteBuffer[] command, int kind ) {
+			requests.add( new PipelinedTransport.FramedRequest( command, kind, true ) );
+		}
+
+		void add( PipelinedTransport.Request<byte[]> request ) {
+			requests.add( request );
+		}
+
+		/**
+		 * Keys whose command got no response.
+		 */
+		List<String> unansweredKeys() {
+			if ( requests.size() != keys.size() )
+				return ( responses[0] == null ) ? keys : Collections.<String>emptyList();
+
+			List<String> unanswered = new ArrayList<String>();
+			for ( int i = 0; i < responses.length; i++ ) {
+				if ( responses[i] == null )
+					unanswered.add( keys.get( i ) );
+			}
+			return unanswered;
+		}
+
+		public String toString() {
+			return keys.size() + " keys of " + route;
+		}
+	}
+
+	/**
+	 * ByteArrayOutputStream handing out its buffer instead of a copy.
+	 */
+	static final class ValueOutputStream extends ByteArrayOutputStream {
+
+		ValueOutputStream() {
+			super();
+		}
+
+		ValueOutputStream( int size ) {
+			super( size );
+		}
+
+		ByteBuffer toByteBuffer() {
+			return ByteBuffer.wrap( buf, 0, count );
+		}
+	}
+
+	/**
+	 * Groups the keys per fragment of the pool's config, one get per
+	 * fragment, whose values go to the passed in stream.
+	 */
+	private List<FragmentBatch> makeBatches( SockIOPool pool, List<String> keys, List<Integer> hashes, ValueStream stream ) {
+		SockIOPool.SockIOPoolOptions options = pool.getPoolOptions();
+		Map<Integer,FragmentBatch> open = new HashMap<Integer,FragmentBatch>();
+		List<FragmentBatch> batches = new ArrayList<FragmentBatch>();
+
+		for ( int i = 0; i < keys.size(); i++ ) {
+			String key = keys.get( i );
+			SockIOPool.Route route = pool.route( key, hashes.get( i ) );
+
+			if ( route == null ) {
 				if ( errorHandler != null )
-					errorHandler.handleErrorOnGet( this, e, key );
+					errorHandler.handleErrorOnGet( this, new IOException( "no socket to server available" ), key );
+				continue;
+			}
 
-				log.error( "failed to sanitize your key!", e );
+			// the key and the blank before it
+			FragmentBatch batch = batchFor( open, batches, route, CommandEncoder.GET, key.length() + 1, options );
+			batch.keys.add( key );
+			batch.hashes.add( hashes.get( i ) );
+		}
+
+		CommandEncoder cmd = new CommandEncoder();
+		for ( FragmentBatch batch : batches ) {
+			cmd.reset()
+				.append( batch.route.commandPrefix() )
+				.append( CommandEncoder.GET );
+			for ( String key : batch.keys )
+				cmd.space().key( key );
+			batch.add( stream.request( batch, new ByteBuffer[] { ByteBuffer.wrap( cmd.crlf().toByteArray() ) } ) );
+		}
+
+		if ( log.isInfoEnabled() )
+			log.info( "multi get batch count : " + batches.size() );
+
+		return batches;
+	}
+
+	/**
+	 * Returns the open batch of the route's fragment, or a new one if
+	 * adding that many bytes would take it past maxBatchKeys or
+	 * maxBatchBytes.  A batch always takes at least one key.
+	 */
+	private static FragmentBatch batchFor( Map<Integer,FragmentBatch> open, List<FragmentBatch> batches, SockIOPool.Route route, byte[] verb, int bytes, SockIOPool.SockIOPoolOptions options ) {
+		FragmentBatch batch = open.get( route.fragmentIndex() );
+		if ( batch == null
+				|| batch.keys.size() >= options.maxBatchKeys
+				|| batch.bytes + bytes > options.maxBatchBytes ) {
+			batch = new FragmentBatch( route, verb );
+			open.put( route.fragmentIndex(), batch );
+			batches.add( batch );
+		}
+		batch.bytes += bytes;
+		return batch;
+	}
+
+	/**
+	 * Sends all batches, every server in parallel, and loads the values
+	 * into the map of the stream as they come in.
+	 *
+	 * @return the batches which were answered with REFRESH_AND_RETRY
+	 */
+	private List<FragmentBatch> loadBatches( SockIOPool pool, List<FragmentBatch> batches, ValueStream stream ) {
+
+		sendBatches( pool, batches, stream );
+
+		// the values are in, what is left is how each response ended
+		List<FragmentBatch> refresh = new ArrayList<FragmentBatch>();
+		ResponseLine line = new ResponseLine();
+		for ( FragmentBatch batch : batches ) {
+			if ( batch.responses[0] == null )
+				continue;
+
+			firstLine( batch.responses[0], line );
+			if ( line.is( ResponseLine.REFRESH_AND_RETRY ) )
+				refresh.add( batch );
+			else if ( !line.is( ResponseLine.END ) )
+				log.error( "++++ error response on multi get: " + line );
+		}
+
+		// same as get(): entries older than their fragment are removed,
+		// by the keys as sent and the hashcodes they were routed with
+		List<String> stale = stream.takeStale();
+		if ( !stale.isEmpty() ) {
+			Map<String,Integer> hashes = new HashMap<String,Integer>();
+			for ( FragmentBatch batch : batches ) {
+				for ( int i = 0; i < batch.keys.size(); i++ ) {
+					if ( batch.hashes.get( i ) != null )
+						hashes.put( batch.keys.get( i ), batch.hashes.get( i ) );
+				}
+			}
+
+			for ( String key : stale )
+				deleteSanitized( key, hashes.get( key ), null );
+		}
+
+		return refresh;
+	}
+
+	/**
+	 * Values of a multi get.  The event loop queues them as they are read
+	 * and the calling thread decodes them while it waits for the rest, so
+	 * no response is kept in full and the first values are decoded before
+	 * the last ones arrive.  Answered batches are queued along with them
+	 * by pipelinedMulti().
+	 */
+	private final class ValueStream {
+
+		private final BlockingQueue<Object> arrivals = new LinkedBlockingQueue<Object>();
+
+		private final MultiGetHandler handler;
+		private final boolean asString;
+		private final Transcoder<Object> tc;
+		// keys as passed in, by the sanitized ones which differ
+		private final Map<String,String> originals;
+		private final List<String> stale = new ArrayList<String>();
+
+		// set once the handler asked to stop
+		boolean stopped;
+
+		ValueStream( MultiGetHandler handler, boolean asString, Transcoder<Object> tc, Map<String,String> originals ) {
+			this.handler   = handler;
+			this.asString  = asString;
+			this.tc        = tc;
+			this.originals = originals;
+		}
+
+		/**
+		 * Returns the request for a batch's get, feeding this stream.
+		 */
+		PipelinedTransport.ValuesRequest request( FragmentBatch batch, ByteBuffer[] command ) {
+			final int fragmentId = batch.route.fragmentId();
+			return new PipelinedTransport.ValuesRequest( command, new PipelinedTransport.ValueSink() {
+				public void value( String key, int flags, int configId, byte[] data ) {
+					arrivals.add( new StreamedValue( key, flags, ( configId < 0 ) ? fragmentId : configId, fragmentId, data ) );
+				}
+			} );
+		}
+
+		/**
+		 * Decodes whatever has arrived and not been decoded yet.
+		 */
+		void drain() {
+			Object arrival;
+			while ( ( arrival = arrivals.poll() ) != null ) {
+				if ( arrival instanceof StreamedValue )
+					load( (StreamedValue)arrival );
+			}
+		}
+
+		/**
+		 * Keys of the stale entries seen so far, which are forgotten.
+		 * These are the sanitized keys, as sent to the servers.
+		 */
+		List<String> takeStale() {
+			List<String> keys = new ArrayList<String>( stale );
+			stale.clear();
+			return keys;
+		}
+
+		void load( StreamedValue value ) {
+			if ( stopped )
+				return;
+
+			Object o = loadValue( value.key, value.data, value.flags, value.configId, asString, tc, value.fragmentId, stale );
+			if ( o == null )
+				return;
+
+			String key = originals.get( value.key );
+			if ( !handler.entry( ( key != null ) ? key : value.key, o ) )
+				stopped = true;
+		}
+	}
+
+	/**
+	 * A value of a multi get as read off the wire.
+	 */
+	private static final class StreamedValue {
+		final String key;
+		final int flags;
+		final int configId;
+		final int fragmentId;
+		final byte[] data;
+
+		StreamedValue( String key, int flags, int configId, int fragmentId, byte[] data ) {
+			this.key        = key;
+			this.flags      = flags;
+			this.configId   = configId;
+			this.fragmentId = fragmentId;
+			this.data       = data;
+		}
+	}
+
+	/**
+	 * Sends one command per key, pipelined: the commands for the keys of
+	 * each fragment are written back to back on one connection, and the
+	 * responses are read back in order.  Keys answered with
+	 * REFRESH_AND_RETRY are sent once more after moving to the newer
+	 * config.
+	 *
+	 * @param verb verb of the commands, picks the error hook
+	 * @param keys sanitized keys
+	 * @param bodies command of each key, without its rj prefix
+	 * @return the response to the command of each key; keys whose command failed are left out
+	 */
+	private Map<String,byte[]> writeMulti( byte[] verb, List<String> keys, List<ByteBuffer[]> bodies ) {
+
+		Map<String,byte[]> ret = new HashMap<String,byte[]>( keys.size() * 2 );
+		SockIOPool pool = currentPool.get();
+		boolean refreshed = false;
+
+		while ( !keys.isEmpty() ) {
+			List<FragmentBatch> batches = makeWriteBatches( pool, verb, keys, bodies );
+			sendBatches( pool, batches );
+
+			List<String> retryKeys = new ArrayList<String>();
+			List<ByteBuffer[]> retryBodies = new ArrayList<ByteBuffer[]>();
+			FragmentBatch refreshFrom = null;
+			int refreshIndex = 0;
+
+			ResponseLine line = new ResponseLine();
+			for ( FragmentBatch batch : batches ) {
+				for ( int i = 0; i < batch.keys.size(); i++ ) {
+					byte[] response = batch.responses[i];
+					if ( response == null )
+						continue;
+
+					if ( firstLine( response, line ).is( ResponseLine.REFRESH_AND_RETRY ) ) {
+						retryKeys.add( batch.keys.get( i ) );
+						retryBodies.add( batch.bodies.get( i ) );
+						if ( refreshFrom == null ) {
+							refreshFrom  = batch;
+							refreshIndex = i;
+						}
+					}
+					else {
+						ret.put( batch.keys.get( i ), response );
+					}
+				}
+			}
+
+			if ( retryKeys.isEmpty() )
+				break;
+
+			// the servers moved to a newer config: refresh once and
+			// re-issue only the commands that were turned away
+			if ( !refreshed && refreshFromResponse( pool, refreshFrom.responses[ refreshIndex ], refreshFrom.route.address() ) ) {
+				refreshed = true;
+				pool   = currentPool.get();
+				keys   = retryKeys;
+				bodies = retryBodies;
+				continue;
+			}
+
+			IOException e = new IOException( "++++ config still stale after refresh" );
+			for ( String key : retryKeys )
+				handleWriteError( verb, e, key );
+			log.error( "++++ giving up on " + retryKeys.size() + " batch writes after REFRESH_AND_RETRY" );
+			break;
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Groups the commands per fragment of the pool's config, each one
+	 * prefixed for its fragment.
+	 */
+	private List<FragmentBatch> makeWriteBatches( SockIOPool pool, byte[] verb, List<String> keys, List<ByteBuffer[]> bodies ) {
+		SockIOPool.SockIOPoolOptions options = pool.getPoolOptions();
+		Map<Integer,FragmentBatch> open = new HashMap<Integer,FragmentBatch>();
+		List<FragmentBatch> batches = new ArrayList<FragmentBatch>();
+
+		for ( int i = 0; i < keys.size(); i++ ) {
+			String key = keys.get( i );
+			SockIOPool.Route route = pool.route( key, null );
+
+			if ( route == null ) {
+				handleWriteError( verb, new IOException( "no socket to server available" ), key );
 				continue;
 			}
 
-			// get SockIO obj from cache key
-			SockIOPool pool = currentPool.get();
-			SockIOPool.SockIO sock = pool.getSockAndFragmentId( cleanKey, hash ).sock();
+			ByteBuffer[] body = bodies.get( i );
+			ByteBuffer[] command = new ByteBuffer[ body.length + 1 ];
+			command[0] = ByteBuffer.wrap( route.commandPrefix() );
+			int bytes = command[0].remaining();
+			for ( int j = 0; j < body.length; j++ ) {
+				command[ j + 1 ] = body[j].duplicate();
+				bytes += body[j].remaining();
+			}
+
+			FragmentBatch batch = batchFor( open, batches, route, verb, bytes, options );
+
+			batch.keys.add( key );
+			batch.hashes.add( null );
+			batch.bodies.add( body );
+			batch.add( command, PipelinedTransport.FramedRequest.SINGLE );
+		}
+
+		if ( log.isInfoEnabled() )
+			log.info( "batch write count : " + batches.size() );
+
+		return batches;
+	}
+
+	/**
+	 * Sends the batches, the ones for each server back to back and every
+	 * server in parallel, and stores the responses in the batches.
+	 */
+	private void sendBatches( SockIOPool pool, List<FragmentBatch> batches ) {
+		sendBatches( pool, batches, null );
+	}
+
+	/**
+	 * Same as {@link #sendBatches(SockIOPool, List)}, decoding the values
+	 * of multi gets into the passed in stream while waiting.
+	 */
+	private void sendBatches( SockIOPool pool, List<FragmentBatch> batches, ValueStream stream ) {
+
+		Map<String,List<FragmentBatch>> hostBatches = new HashMap<String,List<FragmentBatch>>();
+		for ( FragmentBatch batch : batches ) {
+			batch.responses = new byte[ batch.requests.size() ][];
 
-			if ( sock == null ) {
-				if ( errorHandler != null )
-					errorHandler.handleErrorOnGet( this, new IOException( "no socket to server available" ), key );
-				continue;
+			List<FragmentBatch> list = hostBatches.get( batch.route.address() );
+			if ( list == null ) {
+				list = new ArrayList<FragmentBatch>();
+				hostBatches.put( batch.route.address(), list );
 			}
+			list.add( batch );
+		}
 
-			// store in map and list if not already
-			if ( !cmdMap.containsKey( sock.getHost() ) )
-				cmdMap.put( sock.getHost(), new StringBuilder( "get" ) );
+		// long lived channels; pooled blocking sockets are left alone
+		PipelinedTransport transport = pool.getBatchTransport();
+		if ( transport == null ) {
+			handleMultiError( new IOException( "no socket to server available" ), batches );
+			return;
+		}
 
-			cmdMap.get( sock.getHost() ).append( " " + cleanKey );
+		// those channels are not the pooled sockets, so noreply commands
+		// buffered on the latter have to go out first
+		if ( !pool.isPipelined() )
+			pool.flushWrites();
 
-			// return to pool
-			sock.close();
-		}
+		pipelinedMulti( pool, transport, hostBatches, stream );
+	}
 
-		if ( log.isInfoEnabled() )
-			log.info( "multi get socket count : " + cmdMap.size() );
+	/**
+	 * Sends the batches over the given channels.  At most
+	 * maxBatchesInFlight batches are outstanding per server and the next
+	 * one goes out as soon as one of them is answered, so a huge call
+	 * neither holds every response at once nor keeps other callers off a
+	 * channel for its whole length.
+	 */
+	private void pipelinedMulti( SockIOPool pool, PipelinedTransport transport, Map<String,List<FragmentBatch>> hostBatches, ValueStream stream ) {
 
-		// now query memcache
-		Map<String,Object> ret =
-			new HashMap<String,Object>( keys.length );
+		SockIOPool.SockIOPoolOptions options = pool.getPoolOptions();
+		int window = Math.max( 1, options.maxBatchesInFlight );
 
-		// now use new NIO implementation
-		(new NIOLoader( this )).doMulti( asString, cmdMap, keys, ret );
+		// large responses may take a while
+		long deadline = Deadline.cap( System.currentTimeMillis() + options.maxBusyTime );
 
-		// fix the return array in case we had to rewrite any of the keys
-		for ( String key : keys ) {
+		// answered batches, queued along with the values if any
+		BlockingQueue<Object> events = ( stream != null ) ? stream.arrivals : new LinkedBlockingQueue<Object>();
 
-			String cleanKey = key;
+		Map<String,Deque<FragmentBatch>> pending = new HashMap<String,Deque<FragmentBatch>>();
+		Set<FragmentBatch> inFlight = new HashSet<FragmentBatch>();
+		for ( Map.Entry<String,List<FragmentBatch>> entry : hostBatches.entrySet() ) {
+			Deque<FragmentBatch> queue = new ArrayDeque<FragmentBatch>( entry.getValue() );
+			pending.put( entry.getKey(), queue );
+			for ( int i = 0; i < window; i++ )
+				submitBatch( transport, entry.getKey(), queue, inFlight, events );
+		}
+
+		while ( !inFlight.isEmpty() ) {
+			Object event = null;
 			try {
-				cleanKey = sanitizeKey( key );
+				long wait = deadline - System.currentTimeMillis();
+				if ( wait > 0 )
+					event = events.poll( wait, TimeUnit.MILLISECONDS );
+			}
+			catch ( InterruptedException e ) {
+				Thread.currentThread().interrupt();
+				handleMultiError( e, unsent( inFlight, pending ) );
+				return;
 			}
-			catch ( UnsupportedEncodingException e ) {
-
-				// if we have an errorHandler, use its hook
-				if ( errorHandler != null )
-					errorHandler.handleErrorOnGet( this, e, key );
 
-				log.error( "failed to sanitize your key!", e );
-				continue;
+			if ( event == null ) {
+				handleMultiError( new TimeoutException(), unsent( inFlight, pending ) );
+				return;
 			}
 
-			if ( ! key.equals( cleanKey ) && ret.containsKey( cleanKey ) ) {
-				ret.put( key, ret.get( cleanKey ) );
-				ret.remove( cleanKey );
+			if ( event instanceof StreamedValue ) {
+				stream.load( (StreamedValue)event );
+
+				// what is still in flight is left to the event loop
+				if ( stream.stopped )
+					return;
+				continue;
 			}
 
-			// backfill missing keys w/ null value
-			if ( ! ret.containsKey( key ) )
-				ret.put( key, null );
+			FragmentBatch batch = (FragmentBatch)event;
+			inFlight.remove( batch );
+			collectBatch( batch );
+			submitBatch( transport, batch.route.address(), pending.get( batch.route.address() ), inFlight, events );
 		}
 
-		if ( log.isDebugEnabled() )
-			log.debug( "++++ memcache: got back " + ret.size() + " results" );
-		return ret;
+		if ( stream != null )
+			stream.drain();
 	}
 
 	/**
-	 * This method loads the data from cache into a Map.
-	 *
-	 * Pass a SockIO object which is ready to receive data and a HashMap<br/>
-	 * to store the results.
-	 *
-	 * @param sock socket waiting to pass back data
-	 * @param hm hashmap to store data into
-	 * @param asString if true, and if we are using NativehHandler, return string val
-	 * @throws IOException if io exception happens while reading from socket
+	 * Submits the next pending batch of a server, if any, which is queued
+	 * to the events once every command of it is answered.  If the server
+	 * can not be reached, the batch and the rest of the server's are
+	 * reported.
 	 */
-	private void loadMulti( LineInputStream input, Map<String,Object> hm, boolean asString ) throws IOException {
+	private void submitBatch( PipelinedTransport transport, String host, Deque<FragmentBatch> queue, Set<FragmentBatch> inFlight, final BlockingQueue<Object> events ) {
+		final FragmentBatch batch = queue.poll();
+		if ( batch == null )
+			return;
 
-		while ( true ) {
-			String line = input.readLine();
-			if ( log.isDebugEnabled() )
-				log.debug( "++++ line: " + line );
-
-			if ( line.startsWith( VALUE ) ) {
-				String[] info = line.split(" ");
-				String key    = info[1];
-				int flag      = Integer.parseInt( info[2] );
-				int length    = Integer.parseInt( info[3] );
-
-				if ( log.isDebugEnabled() ) {
-					log.debug( "++++ key: " + key );
-					log.debug( "++++ flags: " + flag );
-					log.debug( "++++ length: " + length );
-				}
+		CompletableFuture<?>[] futures = new CompletableFuture<?>[ batch.requests.size() ];
+		for ( int i = 0; i < futures.length; i++ ) {
+			PipelinedTransport.Request<byte[]> request = batch.requests.get( i );
+			if ( !transport.submit( host, request ) ) {
+				List<FragmentBatch> failed = new ArrayList<FragmentBatch>();
+				failed.add( batch );
+				failed.addAll( queue );
+				queue.clear();
+				handleMultiError( new IOException( "no socket to server available" ), failed );
+				return;
+			}
+			futures[i] = request.future();
+		}
 
-				// read obj into buffer
-				byte[] buf = new byte[length];
-				input.read( buf );
-				input.clearEOL();
+		inFlight.add( batch );
+		CompletableFuture.allOf( futures ).whenComplete( new BiConsumer<Void,Throwable>() {
+			public void accept( Void done, Throwable error ) {
+				events.add( batch );
+			}
+		} );
+	}
 
-				// ready object
-				Object o;
+	/**
+	 * Stores the responses of an answered batch.  A failed command fails
+	 * the rest of the batch with it.
+	 */
+	private void collectBatch( FragmentBatch batch ) {
+		for ( int i = 0; i < batch.requests.size(); i++ ) {
+			try {
+				batch.responses[i] = batch.requests.get( i ).future().get();
+			}
+			catch ( ExecutionException e ) {
+				handleMultiError( e.getCause(), Collections.singletonList( batch ) );
+				return;
+			}
+			catch ( InterruptedException e ) {
+				// the futures are done, this does not happen
+				Thread.currentThread().interrupt();
+				handleMultiError( e, Collections.singletonList( batch ) );
+				return;
+			}
+		}
+	}
 
-				// check for compression
-				if ( (flag & F_COMPRESSED) == F_COMPRESSED ) {
-					try {
-						// read the input stream, and write to a byte array output stream since
-						// we have to read into a byte array, but we don't know how large it
-						// will need to be, and we don't want to resize it a bunch
-						GZIPInputStream gzi = new GZIPInputStream( new ByteArrayInputStream( buf ) );
-						ByteArrayOutputStream bos = new ByteArrayOutputStream( buf.length );
-
-						int count;
-						byte[] tmp = new byte[2048];
-						while ( (count = gzi.read(tmp)) != -1 ) {
-							bos.write( tmp, 0, count );
-						}
+	/**
+	 * Batches still in flight or not sent yet.
+	 */
+	private static List<FragmentBatch> unsent( Set<FragmentBatch> inFlight, Map<String,Deque<FragmentBatch>> pending ) {
+		List<FragmentBatch> batches = new ArrayList<FragmentBatch>( inFlight );
+		for ( Deque<FragmentBatch> queue : pending.values() )
+			batches.addAll( queue );
+		return batches;
+	}
 
-						// store uncompressed back to buffer
-						buf = bos.toByteArray();
-						gzi.close();
-					}
-					catch ( IOException e ) {
+	/**
+	 * Reports a batch failure for the keys of the passed in batches which
+	 * got no response.
+	 */
+	private void handleMultiError( Throwable e, List<FragmentBatch> batches ) {
+		List<String> keys = new ArrayList<String>();
+		for ( FragmentBatch batch : batches )
+			keys.addAll( batch.unansweredKeys() );
 
-						// if we have an errorHandler, use its hook
-						if ( errorHandler != null )
-							errorHandler.handleErrorOnGet( this, e, key );
+		if ( keys.isEmpty() )
+			return;
 
-						log.error( "++++ IOException thrown while trying to uncompress input stream for key: " + key + " -- " + e.getMessage() );
-						throw new NestedIOException( "++++ IOException thrown while trying to uncompress input stream for key: " + key, e );
-					}
-				}
+		byte[] verb = batches.get( 0 ).verb;
+		if ( verb == CommandEncoder.GET ) {
+			// if we have an errorHandler, use its hook
+			if ( errorHandler != null )
+				errorHandler.handleErrorOnGet( this, e, keys.toArray( new String[ keys.size() ] ) );
+		}
+		else {
+			for ( String key : keys )
+				handleWriteError( verb, e, key );
+		}
 
-				// we can only take out serialized objects
-				if ( ( flag & F_SERIALIZED ) != F_SERIALIZED ) {
-					if ( primitiveAsString || asString ) {
-						// pulling out string value
-						if ( log.isInfoEnabled() )
-							log.info( "++++ retrieving object and stuffing into a string." );
-						o = new String( buf, defaultEncoding );
-					}
-					else {
-						// decoding object
-						try {
-							o = NativeHandler.decode( buf, flag );
-						}
-						catch ( Exception e ) {
+		// exception thrown
+		log.error( "++++ exception thrown while " + ( verb == CommandEncoder.GET ? "getting from" : "writing to" ) + " cache on batch of " + keys.size() + " keys" );
+		log.error( e.getMessage() );
+	}
 
-							// if we have an errorHandler, use its hook
-							if ( errorHandler != null )
-								errorHandler.handleErrorOnGet( this, e, key );
+	/**
+	 * Reports the failure of a batch write through the hook of its
+	 * single key counterpart.
+	 */
+	private void handleWriteError( byte[] verb, Throwable e, String key ) {
+		if ( errorHandler == null )
+			return;
 
-							log.error( "++++ Exception thrown while trying to deserialize for key: " + key + " -- " + e.getMessage() );
-							throw new NestedIOException( e );
-						}
-					}
-				}
-				else {
-					// deserialize if the data is serialized
-					ContextObjectInputStream ois =
-						new ContextObjectInputStream( new ByteArrayInputStream( buf ), classLoader );
-					try {
-						o = ois.readObject();
-						if ( log.isInfoEnabled() )
-							log.info( "++++ deserializing " + o.getClass() );
-					}
-					catch ( InvalidClassException e ) {
-						/* Errors de-serializing are to be expected in the case of a
-						 * long running server that spans client restarts with updated
-						 * classes.
-						 */
-						// if we have an errorHandler, use its hook
-						if ( errorHandler != null )
-							errorHandler.handleErrorOnGet( this, e, key );
+		if ( verb == CommandEncoder.DELETE )
+			errorHandler.handleErrorOnDelete( this, e, key );
+		else
+			errorHandler.handleErrorOnSet( this, e, key );
+	}
 
-						o = null;
-						log.error( "++++ InvalidClassException thrown while trying to deserialize for key: " + key + " -- " + e.getMessage() );
-					}
-					catch ( ClassNotFoundException e ) {
+	/**
+	 * Refreshes the config from a REFRESH_AND_RETRY response.
+	 *
+	 * @return true if the client moved to a newer config
+	 */
+	private boolean refreshFromResponse( SockIOPool pool, byte[] response, String host ) {
+		try {
+			LineInputStream input = responseStream( response );
+			input.readLine();
+			RejigConfig newConfig = readRefreshedConfig( input, host );
+			return refreshSockIOPool( pool, newConfig, host );
+		}
+		catch ( IOException e ) {
+			if ( errorHandler != null )
+				errorHandler.handleErrorOnRefreshAndRetry( this, e );
 
-						// if we have an errorHandler, use its hook
-						if ( errorHandler != null )
-							errorHandler.handleErrorOnGet( this, e, key );
+			log.error( "++++ failed to refresh config on batch: " + e.getMessage() );
+			return false;
+		}
+	}
 
-						o = null;
-						log.error( "++++ ClassNotFoundException thrown while trying to deserialize for key: " + key + " -- " + e.getMessage() );
-					}
-				}
+	/**
+	 * Points the line at the first line of a complete response.
+	 */
+	private static ResponseLine firstLine( byte[] response, ResponseLine line ) {
+		int end = 0;
+		while ( end + 1 < response.length && !( response[ end ] == '\r' && response[ end + 1 ] == '\n' ) )
+			end++;
+		return line.set( response, 0, end );
+	}
 
-				// store the object into the cache
-				if ( o != null )
-					hm.put( key, o );
-			}
-			else if ( END.equals( line ) ) {
-				if ( log.isDebugEnabled() )
-					log.debug( "++++ finished reading from cache server" );
-				break;
-			}
+	/**
+	 * Wraps a complete response for reading.
+	 */
+	private static LineInputStream responseStream( byte[] response ) throws IOException {
+		ByteBuffer buf = ByteBuffer.wrap( response );
+		buf.position( response.length );
+		try {
+			return new ByteBufArrayInputStream( new ByteBuffer[] { buf } );
+		}
+		catch ( Exception e ) {
+			throw new NestedIOException( e );
+		}
+	}
+
+	/**
+	 * Decodes a value of a multi get.
+	 *
+	 * Entries written under a config older than their fragment are left
+	 * out and their keys added to staleKeys, as in get().
+	 *
+	 * @param key key the value was stored under
+	 * @param buf value as read
+	 * @param flag flags it was stored with
+	 * @param key_config_id config id it was written under
+	 * @param asString if true, and if the value is not serialized, return string val
+	 * @param tc transcoder to decode the value with
+	 * @param fragmentId id of the fragment the key was read from
+	 * @param staleKeys list to add the keys of stale entries to
+	 * @return the value, or null if it is stale or could not be decoded
+	 */
+	private Object loadValue( String key, byte[] buf, int flag, int key_config_id, boolean asString, Transcoder<Object> tc, int fragmentId, List<String> staleKeys ) {
+
+		// If fragment id is greater than the entry's config id
+		// it means that the entry is stale.
+		if ( fragmentId > key_config_id ) {
+			staleKeys.add( key );
+			return null;
 		}
+
+		return decodeValue( key, buf, flag, asString, tc );
 	}
 
 	private String sanitizeKey( String key ) throws UnsupportedEncodingException {
@@ -1953,7 +4123,7 @@ public class MemcachedClient {
 			String command = "flush_all\r\n";
 
 			try {
-				sock.write( command.getBytes() );
+				sock.write( sock.encoder().append( command.getBytes() ).frame( CommandEncoder.REPLY_LINE, false ) );
 				sock.flush();
 
 				// if we get appropriate response back, then we return true
@@ -2140,7 +4310,7 @@ public class MemcachedClient {
 
 			// build command
 			try {
-				sock.write( command.getBytes() );
+				sock.write( sock.encoder().append( command.getBytes() ).frame( CommandEncoder.REPLY_LINES, false ) );
 				sock.flush();
 
 				// map to hold key value pairs
@@ -2287,25 +4457,12 @@ public class MemcachedClient {
 		}
 
 		// now try to compress if we want to
-		// and if the length is over the threshold
+		// and if the length is over the threshold.  configs stay gzipped
+		// under F_COMPRESSED, as clients before F_DEFLATED read them too
 		if ( compressEnable && val.length > compressThreshold ) {
 			try {
-				if ( log.isInfoEnabled() ) {
-					log.info( "++++ trying to compress data" );
-					log.info( "++++ size prior to compression: " + val.length );
-				}
-				ByteArrayOutputStream bos = new ByteArrayOutputStream( val.length );
-				GZIPOutputStream gos = new GZIPOutputStream( bos );
-				gos.write( val, 0, val.length );
-				gos.finish();
-				gos.close();
-
-				// store it and set compression flag
-				val = bos.toByteArray();
+				val = gzip( val );
 				flags |= F_COMPRESSED;
-
-				if ( log.isInfoEnabled() )
-					log.info( "++++ compression succeeded, size after: " + val.length );
 			}
 			catch ( IOException e ) {
 				// if we have an errorHandler, use its hook
@@ -2320,9 +4477,10 @@ public class MemcachedClient {
 		// now write the data to the cache server
 		try {
 			String cmd = String.format( "rj %d %d conf %d %d %d\r\n", config.getId(), config.getFragmentCount(), flags, (expiry.getTime() / 1000), val.length );
-			sock.write( cmd.getBytes() );
-			sock.write( val );
-			sock.write( "\r\n".getBytes() );
+			sock.write( sock.encoder()
+				.append( cmd.getBytes() )
+				.append( val ).crlf()
+				.frame( CommandEncoder.REPLY_LINE, false ) );
 			sock.flush();
 
 			// get result code
@@ -2410,7 +4568,7 @@ public class MemcachedClient {
 		// now write the data to the cache server
 		try {
 			String cmd = String.format( "rj %d %d grant %d\r\n", client_config_id, fragmentNum, (expiry.getTime() / 1000) );
-			sock.write( cmd.getBytes() );
+			sock.write( sock.encoder().append( cmd.getBytes() ).frame( CommandEncoder.REPLY_LINE, false ) );
 			sock.flush();
 
 			// get result code
@@ -2489,7 +4647,7 @@ public class MemcachedClient {
 		// now write the data to the cache server
 		try {
 			String cmd = String.format( "rj %d %d revoke\r\n", client_config_id, fragmentNum );
-			sock.write( cmd.getBytes() );
+			sock.write( sock.encoder().append( cmd.getBytes() ).frame( CommandEncoder.REPLY_LINE, false ) );
 			sock.flush();
 
 			// get result code
@@ -2550,10 +4708,27 @@ public class MemcachedClient {
 			log.debug("++++ refresh and retry. Host: " + sock.getHost());
 		}
 
+		String host = sock.getHost();
+		RejigConfig newConfig = readRefreshedConfig( sock, host );
+		sock.close();
+		sock = null;
+		refreshSockIOPool( pool, newConfig, host );
+	}
+
+	/**
+	 * Reads the part of a REFRESH_AND_RETRY response following the
+	 * REFRESH_AND_RETRY line: either END, in which case the config has to
+	 * be fetched from the config reader, or the new config itself.
+	 *
+	 * @param input stream positioned after the REFRESH_AND_RETRY line
+	 * @param host server the response came from
+	 * @return the config to move to, or null on END
+	 */
+	private RejigConfig readRefreshedConfig( LineInputStream input, String host ) throws IOException {
 		RejigConfig newConfig = null;
-		String line = sock.readLine();
+		String line = input.readLine();
 		if ( END.equals(line) ) {
-			newConfig = configReader.getConfig();
+			return null;
 		}
 		else if ( line.startsWith( VALUE ) ) {
 			String[] info = line.split(" ");
@@ -2574,26 +4749,12 @@ public class MemcachedClient {
 
 			// read the config bytes into buffer
 			byte[] buf = new byte[length];
-			sock.read( buf );
-			sock.clearEOL();
+			input.read( buf );
+			input.clearEOL();
 
-			if ( (flag & F_COMPRESSED) == F_COMPRESSED ) {
+			if ( ( flag & ( F_DEFLATED | F_COMPRESSED ) ) != 0 ) {
 				try {
-					// read the input stream, and write to a byte array output stream since
-					// we have to read into a byte array, but we don't know how large it
-					// will need to be, and we don't want to resize it a bunch
-					GZIPInputStream gzi = new GZIPInputStream( new ByteArrayInputStream( buf ) );
-					ByteArrayOutputStream bos = new ByteArrayOutputStream( buf.length );
-
-					int count;
-					byte[] tmp = new byte[2048];
-					while ( (count = gzi.read(tmp)) != -1 ) {
-						bos.write( tmp, 0, count );
-					}
-
-					// store uncompressed back to buffer
-					buf = bos.toByteArray();
-					gzi.close();
+					buf = decompress( buf, flag );
 				}
 				catch ( IOException e ) {
 					// if we have an errorHandler, use its hook
@@ -2608,16 +4769,11 @@ public class MemcachedClient {
 			log.info( "++++ succesfully parsed rejig config." );
 		}
 
-		if (newConfig.getId() <= pool.getRejigConfig().getId()) {
-			if (errorHandler != null) {
-				errorHandler.handleErrorOnRefreshAndRetry( this,
-					new IOException("++++ new config id is same as old one after REFRESH_AND_RETRY. New Config id: " + newConfig.getId() + ". Old Config id: " + pool.getRejigConfig().getId() + ". Host: " + sock.getHost()) );
-			}
-			return;
+		else {
+			throw new IOException( "++++ unexpected response after REFRESH_AND_RETRY: " + line );
 		}
-		sock.close();
-		sock = null;
-		compareAndSetSockIOPool(pool, createSockIOPool(newConfig));
+
+		return newConfig;
 	}
 
 	private static HashSet<String> getAllHosts(RejigConfig config) {
@@ -2627,256 +4783,4 @@ public class MemcachedClient {
 		}
 		return serverSet;
 	}
-
-	protected final class NIOLoader {
-		protected Selector selector;
-		protected int numConns = 0;
-		protected MemcachedClient mc;
-		protected Connection[] conns;
-
-		public NIOLoader( MemcachedClient mc ) {
-			this.mc = mc;
-		}
-
-		private final class Connection {
-
-			public List<ByteBuffer> incoming = new ArrayList<ByteBuffer>();
-			public ByteBuffer outgoing;
-			public SockIOPool.SockIO sock;
-			public SocketChannel channel;
-			private boolean isDone = false;
-
-			public Connection( SockIOPool.SockIO sock, StringBuilder request ) throws IOException {
-				if ( log.isDebugEnabled() )
-					log.debug( "setting up connection to "+sock.getHost() );
-
-				this.sock = sock;
-				outgoing = ByteBuffer.wrap( request.append( "\r\n" ).toString().getBytes() );
-
-				channel = sock.getChannel();
-				if ( channel == null )
-					throw new IOException( "dead connection to: " + sock.getHost() );
-
-				channel.configureBlocking( false );
-				channel.register( selector, SelectionKey.OP_WRITE, this );
-			}
-
-			public void close() {
-				try {
-					if ( isDone ) {
-						// turn off non-blocking IO and return to pool
-						if ( log.isDebugEnabled() )
-							log.debug( "++++ gracefully closing connection to "+sock.getHost() );
-
-						channel.configureBlocking( true );
-						sock.close();
-						return;
-					}
-				}
-				catch ( IOException e ) {
-					log.warn( "++++ memcache: unexpected error closing normally" );
-				}
-
-				try {
-					if ( log.isDebugEnabled() )
-						log.debug("forcefully closing connection to "+sock.getHost());
-
-					channel.close();
-					sock.trueClose();
-				}
-				catch ( IOException ignoreMe ) { }
-			}
-
-			public boolean isDone() {
-				// if we know we're done, just say so
-				if ( isDone )
-					return true;
-
-				// else find out the hard way
-				int strPos = B_END.length-1;
-
-				int bi = incoming.size() - 1;
-				while ( bi >= 0 && strPos >= 0 ) {
-					ByteBuffer buf = incoming.get( bi );
-					int pos = buf.position()-1;
-					while ( pos >= 0 && strPos >= 0 ) {
-					    if ( buf.get( pos-- ) != B_END[strPos--] )
-							return false;
-					}
-
-					bi--;
-				}
-
-				isDone = strPos < 0;
-				return isDone;
-			}
-
-			public ByteBuffer getBuffer() {
-				int last = incoming.size()-1;
-				if ( last >= 0 && incoming.get( last ).hasRemaining() ) {
-					return incoming.get( last );
-				}
-				else {
-					ByteBuffer newBuf = ByteBuffer.allocate( 8192 );
-					incoming.add( newBuf );
-					return newBuf;
-				}
-			}
-
-			public String toString() {
-				return "Connection to " + sock.getHost() + " with " + incoming.size() + " bufs; done is " + isDone;
-			}
-		}
-
-		public void doMulti( boolean asString, Map<String, StringBuilder> sockKeys, String[] keys, Map<String, Object> ret ) {
-
-			long timeRemaining = 0;
-			try {
-				selector = Selector.open();
-
-				// get the sockets, flip them to non-blocking, and set up data
-				// structures
-				conns = new Connection[sockKeys.keySet().size()];
-				numConns = 0;
-				SockIOPool pool = currentPool.get();
-				for ( Iterator<String> i = sockKeys.keySet().iterator(); i.hasNext(); ) {
-					// get SockIO obj from hostname
-					String host = i.next();
-
-					SockIOPool.SockIO sock = pool.getConnection( host );
-
-					if ( sock == null ) {
-						if ( errorHandler != null )
-							errorHandler.handleErrorOnGet( this.mc, new IOException( "no socket to server available" ), keys );
-						return;
-					}
-
-					conns[numConns++] = new Connection( sock, sockKeys.get( host ) );
-				}
-
-				// the main select loop; ends when
-				// 1) we've received data from all the servers, or
-				// 2) we time out
-				long startTime = System.currentTimeMillis();
-
-				long timeout = pool.getPoolOptions().maxBusyTime;
-				timeRemaining = timeout;
-
-				while ( numConns > 0 && timeRemaining > 0 ) {
-					int n = selector.select( Math.min( timeout,  5000 ) );
-					if ( n > 0 ) {
-					    // we've got some activity; handle it
-					    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
-					    while ( it.hasNext() ) {
-					        SelectionKey key = it.next();
-					        it.remove();
-					        handleKey( key );
-					    }
-					}
-					else {
-					    // timeout likely... better check
-						// TODO:  This seems like a problem area that we need to figure out how to handle.
-						log.error( "selector timed out waiting for activity" );
-					}
-
-					timeRemaining = timeout - (System.currentTimeMillis() - startTime);
-				}
-			}
-			catch ( IOException e ) {
-				// errors can happen just about anywhere above, from
-				// connection setup to any of the mechanics
-				handleError( e, keys );
-				return;
-			}
-			finally {
-				if ( log.isDebugEnabled() )
-					log.debug( "Disconnecting; numConns=" + numConns + "  timeRemaining=" + timeRemaining );
-
-				// run through our conns and either return them to the pool
-				// or forcibly close them
-				try {
-					if ( selector != null )
-						selector.close();
-				}
-				catch ( IOException ignoreMe ) { }
-
-				for ( Connection c : conns ) {
-					if ( c != null )
-						c.close();
-				}
-			}
-
-			// Done!  Build the list of results and return them.  If we get
-			// here by a timeout, then some of the connections are probably
-			// not done.  But we'll return what we've got...
-			for ( Connection c : conns ) {
-				try {
-					if ( c.incoming.size() > 0 && c.isDone() )
-						loadMulti( new ByteBufArrayInputStream( c.incoming ), ret, asString );
-				}
-				catch ( Exception e ) {
-					// shouldn't happen; we have all the data already
-					log.warn( "Caught the aforementioned exception on "+c );
-				}
-			}
-		}
-
-		private void handleError( Throwable e, String[] keys ) {
-		    // if we have an errorHandler, use its hook
-		    if ( errorHandler != null )
-		        errorHandler.handleErrorOnGet( MemcachedClient.this, e, keys );
-
-		    // exception thrown
-		    log.error( "++++ exception thrown while getting from cache on getMulti" );
-		    log.error( e.getMessage() );
-		}
-
-		private void handleKey( SelectionKey key ) throws IOException {
-			if ( log.isDebugEnabled() )
-				log.debug( "handling selector op " + key.readyOps() + " for key " + key );
-
-			if ( key.isReadable() )
-				readResponse( key );
-			else if ( key.isWritable() )
-				writeRequest( key );
-		}
-
-		public void writeRequest( SelectionKey key ) throws IOException {
-			ByteBuffer buf = ((Connection) key.attachment()).outgoing;
-			SocketChannel sc = (SocketChannel)key.channel();
-
-			if ( buf.hasRemaining() ) {
-				if ( log.isDebugEnabled() )
-				    log.debug( "writing " + buf.remaining() + "B to " + ((SocketChannel) key.channel()).socket().getInetAddress() );
-
-				sc.write( buf );
-			}
-
-			if ( !buf.hasRemaining() ) {
-			    if ( log.isDebugEnabled() )
-			        log.debug( "switching to read mode for server " + ((SocketChannel)key.channel()).socket().getInetAddress() );
-
-				key.interestOps( SelectionKey.OP_READ );
-			}
-		}
-
-		public void readResponse( SelectionKey key ) throws IOException {
-			Connection conn = (Connection)key.attachment();
-			ByteBuffer buf = conn.getBuffer();
-			int count = conn.channel.read( buf );
-			if ( count > 0 ) {
-				if ( log.isDebugEnabled() )
-					log.debug( "read  " + count + " from " + conn.channel.socket().getInetAddress() );
-
-				if ( conn.isDone() ) {
-					if ( log.isDebugEnabled() )
-						log.debug( "connection done to  " + conn.channel.socket().getInetAddress() );
-
-					key.cancel();
-					numConns--;
-					return;
-				}
-			}
-		}
-	}
 }
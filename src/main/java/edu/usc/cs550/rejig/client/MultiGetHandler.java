@@ -0,0 +1,23 @@
+package edu.usc.cs550.rejig.client;
+
+/**
+ * Receives the entries of a streaming multi get, see
+ * {@link MemcachedClient#getMulti(String[], Integer[], boolean, MultiGetHandler)}.
+ *
+ * The handler is called on the thread which called getMulti, one entry
+ * at a time, so it needs no synchronization of its own.  The next
+ * batches of keys are only sent as the handler gets through the entries
+ * of the previous ones, so a slow handler holds back the requests
+ * instead of letting values pile up in memory.
+ */
+public interface MultiGetHandler {
+
+	/**
+	 * Called for each key found, as soon as its value is decoded.
+	 *
+	 * @param key key as passed to getMulti
+	 * @param value value stored under it
+	 * @return false to stop; keys not handed out yet are dropped
+	 */
+	public boolean entry( String key, Object value );
+}
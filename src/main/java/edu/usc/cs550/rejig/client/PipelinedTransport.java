@@ -0,0 +1,1418 @@
+package edu.usc.cs550.rejig.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Multiplexed transport used by a SockIOPool in
+ * {@link SockIOPool.TransportMode#PIPELINED} mode, and by blocking pools
+ * for multi key batches.
+ *
+ * Instead of checking a blocking socket out of the pool for every
+ * operation, each server gets a small, fixed number of long lived
+ * non-blocking SocketChannels which are driven by a single event loop
+ * thread.  Requests from any number of threads are queued on a channel,
+ * written back to back (gathered into as few writes as possible) and
+ * their responses are matched up in FIFO order as they come back.
+ *
+ * Callers keep using the SockIO api: {@link #getSock(String)} hands out a
+ * light-weight view which buffers writes until flush(), then submits them
+ * as one request per command, framed as recorded with
+ * {@link CommandEncoder#frame(int, boolean)}, and blocks in
+ * readLine()/read() until the response of that command has arrived.  The commands on the wire are
+ * exactly the ones the blocking transport sends (including the
+ * <code>rj &lt;configId&gt; &lt;fragmentNum&gt;</code> prefix), so
+ * REFRESH_AND_RETRY handling is unchanged.
+ *
+ * Commands sent with noreply are written without being waited for.  A
+ * channel follows them with a version command before the next command
+ * expecting a reply, and at the end of the write, so whatever the server
+ * says about them is never taken for the reply to another command.
+ */
+public class PipelinedTransport {
+
+	// logger
+	private static Logger log =
+		Logger.getLogger( PipelinedTransport.class.getName() );
+
+	// max number of requests gathered into a single write
+	private static final int MAX_WRITE_BATCH = 128;
+
+	// size of the per channel read buffer
+	private static final int READ_BUF_SIZE = 64 * 1024;
+
+	private volatile SockIOPool pool;
+	private final SockIOPool.SockIOPoolOptions options;
+	private final int connsPerHost;
+
+	// per host channels and dead host backoff
+	private final ConcurrentMap<String,Connection[]> hosts =
+		new ConcurrentHashMap<String,Connection[]>();
+	private final ConcurrentMap<String,long[]> hostDead =
+		new ConcurrentHashMap<String,long[]>();
+	// channels being connected, by host and slot
+	private final ConcurrentMap<String,CompletableFuture<Connection>> connecting =
+		new ConcurrentHashMap<String,CompletableFuture<Connection>>();
+
+	// event loop
+	private final Selector selector;
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private final AtomicBoolean wakeupPending = new AtomicBoolean();
+	private final EventLoop loop;
+	private volatile boolean running = true;
+	// set once the loop has stopped running tasks, apart from those it
+	// finds queued on its way out
+	private volatile boolean loopDone = false;
+
+	public PipelinedTransport( SockIOPool pool, SockIOPool.SockIOPoolOptions options, String name ) throws IOException {
+		this.pool         = pool;
+		this.options      = options;
+		this.connsPerHost = Math.max( 1, options.pipelinedConns );
+		this.selector     = Selector.open();
+		this.loop         = new EventLoop( name );
+		this.loop.start();
+	}
+
+	/**
+	 * Returns a SockIO view bound to one of the channels of the given host,
+	 * connecting it first if needed.
+	 *
+	 * @param host host:port
+	 * @return SockIO view or null if the host can not be reached
+	 */
+	public SockIOPool.SockIO getSock( String host ) {
+		return getSock( host, options.socketTO );
+	}
+
+	/**
+	 * Same as {@link #getSock(String)} but reads give up only after the
+	 * server has been silent for the passed in time instead of socketTO.
+	 *
+	 * @param host host:port
+	 * @param timeout ms to wait for data on reads
+	 * @return SockIO view or null if the host can not be reached
+	 */
+	public SockIOPool.SockIO getSock( String host, long timeout ) {
+		Connection conn = getConnection( host );
+		return ( conn == null ) ? null : new PipelinedSockIO( pool, host, conn, timeout );
+	}
+
+	/**
+	 * Submits a request on one of the channels of the given host.
+	 *
+	 * @param host host:port
+	 * @param request request to send
+	 * @return false if no channel to the host could be established
+	 */
+	public boolean submit( String host, Request<?> request ) {
+		Connection conn = getConnection( host );
+		if ( conn == null )
+			return false;
+
+		conn.submit( request );
+		return true;
+	}
+
+	/**
+	 * Sends a barrier on every open channel and waits for them, so the
+	 * servers are done with every noreply command submitted before.
+	 *
+	 * @return false if a channel failed or did not answer within socketTO
+	 */
+	boolean flushWrites() {
+		List<CompletableFuture<byte[]>> barriers = new ArrayList<CompletableFuture<byte[]>>();
+		for ( Connection[] conns : hosts.values() ) {
+			for ( Connection conn : conns ) {
+				if ( conn == null || !conn.isOpen() )
+					continue;
+
+				FramedRequest barrier = barrier( conn.getHost() );
+				conn.submit( barrier );
+				barriers.add( barrier.future() );
+			}
+		}
+
+		boolean flushed = true;
+		long deadline = Deadline.cap( System.currentTimeMillis() + options.socketTO );
+		for ( CompletableFuture<byte[]> barrier : barriers ) {
+			try {
+				barrier.get( Math.max( 1, deadline - System.currentTimeMillis() ), TimeUnit.MILLISECONDS );
+			}
+			catch ( ExecutionException e ) {
+				// already logged when the channel was closed
+				flushed = false;
+			}
+			catch ( TimeoutException e ) {
+				log.error( "++++ timed out flushing noreply commands" );
+				flushed = false;
+			}
+			catch ( InterruptedException e ) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return flushed;
+	}
+
+	/**
+	 * A version command whose reply shows the server is done with the
+	 * noreply commands sent before it on the channel.  Whatever came back
+	 * for those goes to the pool.
+	 */
+	private FramedRequest barrier( final String host ) {
+		final FramedRequest barrier = new FramedRequest( CommandEncoder.VERSION, 0, CommandEncoder.VERSION.length, FramedRequest.BARRIER, false );
+		barrier.future().thenRun( new Runnable() {
+			public void run() {
+				String key = barrier.noreplyKey();
+				for ( String failure : barrier.failures() ) {
+					log.error( "++++ noreply command to " + host + ( key != null ? " for " + key : "" ) + " failed: " + failure );
+					pool.noreplyFailed( host, key, failure );
+				}
+			}
+		} );
+		return barrier;
+	}
+
+	/**
+	 * Hands the transport over to the pool of a new config.  Channels to
+	 * servers which are not part of it any more are closed as soon as the
+	 * requests already sent on them have been answered.
+	 *
+	 * @param pool pool now owning the transport
+	 * @param keep addresses of the servers of the new config
+	 */
+	void adopt( SockIOPool pool, Set<String> keep ) {
+		this.pool = pool;
+
+		for ( Iterator<Map.Entry<String,Connection[]>> i = hosts.entrySet().iterator(); i.hasNext(); ) {
+			Map.Entry<String,Connection[]> entry = i.next();
+			if ( keep.contains( entry.getKey() ) )
+				continue;
+
+			i.remove();
+			for ( final Connection conn : entry.getValue() ) {
+				if ( conn == null )
+					continue;
+
+				if ( log.isDebugEnabled() )
+					log.debug( "++++ draining " + conn );
+
+				execute( new Runnable() {
+					public void run() { conn.drain(); }
+				} );
+			}
+		}
+	}
+
+	/**
+	 * Returns true if connecting to the host failed recently and it is
+	 * not to be retried yet.
+	 */
+	public boolean isHostDead( String host ) {
+		long[] dead = hostDead.get( host );
+		return dead != null && dead[0] > System.currentTimeMillis();
+	}
+
+	/**
+	 * Returns an open channel for the host; the one picked depends on the
+	 * calling thread so a thread keeps using the same channel.
+	 *
+	 * A slot is connected by the first thread finding it closed, holding
+	 * no lock while it does; other threads wanting the same slot wait for
+	 * that connect instead of opening channels of their own.
+	 */
+	private Connection getConnection( String host ) {
+		if ( !running || host == null )
+			return null;
+
+		Connection[] conns = hosts.get( host );
+		if ( conns == null ) {
+			hosts.putIfAbsent( host, new Connection[ connsPerHost ] );
+			conns = hosts.get( host );
+		}
+
+		int slot = (int)( Thread.currentThread().getId() % connsPerHost );
+		Connection conn = conns[ slot ];
+		if ( conn != null && conn.isOpen() )
+			return conn;
+
+		String id = host + "#" + slot;
+		CompletableFuture<Connection> connect = new CompletableFuture<Connection>();
+		CompletableFuture<Connection> other = connecting.putIfAbsent( id, connect );
+		if ( other != null )
+			return awaitConnect( host, other );
+
+		try {
+			synchronized ( conns ) {
+				conn = conns[ slot ];
+			}
+			if ( conn == null || !conn.isOpen() ) {
+				conn = connect( host );
+				synchronized ( conns ) {
+					conns[ slot ] = conn;
+				}
+			}
+		}
+		finally {
+			connecting.remove( id );
+			connect.complete( conn );
+		}
+		return conn;
+	}
+
+	/**
+	 * Waits for a channel another thread is connecting, no longer than
+	 * the connect timeout or the deadline of the operation.
+	 */
+	private Connection awaitConnect( String host, CompletableFuture<Connection> connect ) {
+		try {
+			int wait = Deadline.timeout( options.socketConnectTO );
+			return ( wait > 0 ) ? connect.get( wait, TimeUnit.MILLISECONDS ) : connect.get();
+		}
+		catch ( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+		}
+		catch ( ExecutionException e ) {
+			// never completed exceptionally, a failed connect gives null
+		}
+		catch ( TimeoutException e ) {
+			log.error( "++++ timed out waiting for pipelined channel to: " + host );
+		}
+		catch ( SocketTimeoutException e ) {
+			// the deadline of the operation has passed
+		}
+		return null;
+	}
+
+	/**
+	 * Opens and registers a new channel.
+	 *
+	 * Follows the same fall off as SockIOPool.createSocket: a host we
+	 * failed to connect to is not tried again until a duration has passed,
+	 * which doubles after each failed attempt.
+	 */
+	private Connection connect( String host ) {
+
+		long[] dead = hostDead.get( host );
+		if ( options.failover && options.failback && dead != null && dead[0] > System.currentTimeMillis() )
+			return null;
+
+		// an operation deadline cuts the connect short; timing out on
+		// that says nothing about the host, which is not marked dead
+		int connectTO;
+		try {
+			connectTO = Deadline.timeout( options.socketConnectTO );
+		}
+		catch ( SocketTimeoutException e ) {
+			return null;
+		}
+
+		SocketChannel channel = null;
+		try {
+			String[] ip = host.split( ":" );
+			channel = SocketChannel.open();
+			channel.socket().connect( new InetSocketAddress( ip[0], Integer.parseInt( ip[1] ) ), connectTO );
+			channel.socket().setTcpNoDelay( !options.nagle );
+			channel.configureBlocking( false );
+
+			hostDead.remove( host );
+			if ( log.isDebugEnabled() )
+				log.debug( "++++ created pipelined channel (" + channel + ") for host: " + host );
+
+			final Connection conn = new Connection( host, channel );
+			execute( new Runnable() {
+				public void run() { conn.register(); }
+			} );
+			return conn;
+		}
+		catch ( Exception ex ) {
+			if ( channel != null ) {
+				try { channel.close(); } catch ( IOException ignoreMe ) { }
+			}
+
+			if ( connectTO != options.socketConnectTO && ex instanceof SocketTimeoutException ) {
+				log.error( "++++ operation deadline passed connecting to: " + host );
+				return null;
+			}
+
+			log.error( "++++ failed to open pipelined channel to: " + host );
+			log.error( ex.getMessage(), ex );
+
+			long expire = ( dead != null ) ? Math.min( dead[1] * 2, SockIOPool.MAX_RETRY_DELAY ) : 1000;
+			hostDead.put( host, new long[] { System.currentTimeMillis() + expire, expire } );
+			return null;
+		}
+	}
+
+	/**
+	 * Runs the task on the event loop thread.
+	 */
+	private void execute( Runnable task ) {
+		tasks.add( task );
+		if ( wakeupPending.compareAndSet( false, true ) )
+			selector.wakeup();
+	}
+
+	/**
+	 * Runs the task on the event loop thread, or on this one once the loop
+	 * has stopped and will not get to it.  Either way it runs only once.
+	 */
+	private void executeOrRun( final Runnable task ) {
+		final AtomicBoolean ran = new AtomicBoolean();
+		Runnable once = new Runnable() {
+			public void run() {
+				if ( ran.compareAndSet( false, true ) )
+					task.run();
+			}
+		};
+
+		execute( once );
+		if ( loopDone || !loop.isAlive() )
+			once.run();
+	}
+
+	/**
+	 * Stops the event loop and closes all channels, failing anything
+	 * still in flight.
+	 */
+	public void shutDown() {
+		running = false;
+		selector.wakeup();
+		try {
+			loop.join( 5000 );
+		}
+		catch ( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+		}
+
+		IOException closed = new IOException( "++++ pipelined transport shut down" );
+		for ( Connection[] conns : hosts.values() ) {
+			for ( Connection conn : conns ) {
+				if ( conn != null )
+					conn.close( closed );
+			}
+		}
+		hosts.clear();
+
+		try { selector.close(); } catch ( IOException ignoreMe ) { }
+	}
+
+	/**
+	 * The thread owning the selector.  All channel reads and writes, and
+	 * all interest op changes, happen on this thread.
+	 */
+	private final class EventLoop extends Thread {
+
+		EventLoop( String name ) {
+			super( "PipelinedTransport-" + name );
+			setDaemon( true );
+		}
+
+		public void run() {
+			while ( running ) {
+				try {
+					selector.select();
+					wakeupPending.set( false );
+
+					Runnable task;
+					while ( ( task = tasks.poll() ) != null )
+						task.run();
+
+					Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+					while ( it.hasNext() ) {
+						SelectionKey key = it.next();
+						it.remove();
+
+						Connection conn = (Connection)key.attachment();
+						if ( !key.isValid() )
+							continue;
+						if ( key.isReadable() )
+							conn.handleRead();
+						if ( key.isValid() && key.isWritable() )
+							conn.handleWrite();
+					}
+				}
+				catch ( Throwable t ) {
+					log.error( "++++ unexpected error in pipelined event loop", t );
+				}
+			}
+
+			// whatever was posted while stopping, failing channels above all
+			loopDone = true;
+			Runnable task;
+			while ( ( task = tasks.poll() ) != null ) {
+				try {
+					task.run();
+				}
+				catch ( Throwable t ) {
+					log.error( "++++ unexpected error in pipelined event loop", t );
+				}
+			}
+		}
+	}
+
+	/**
+	 * One multiplexed channel to a server.
+	 */
+	final class Connection implements Runnable {
+
+		private final String host;
+		private final SocketChannel channel;
+		private SelectionKey key;
+
+		// submitted but not yet written
+		private final Queue<Request<?>> pending = new ConcurrentLinkedQueue<Request<?>>();
+		// set while a write is scheduled or in progress
+		private final AtomicBoolean writeScheduled = new AtomicBoolean();
+		private volatile boolean closed = false;
+		// close once nothing is queued or in flight; event loop only
+		private boolean draining = false;
+		// last time any bytes came in, lets waiters tell a slow response from a dead one
+		private volatile long lastRead = System.currentTimeMillis();
+
+		// only touched by the event loop thread
+		private final ArrayDeque<Request<?>> inFlight = new ArrayDeque<Request<?>>();
+		// noreply commands were gathered since the last barrier, and the
+		// key of the one gathered if there was only one
+		private boolean noreplyWritten = false;
+		private String noreplyKey;
+		private final ByteBuffer readBuf = ByteBuffer.allocate( READ_BUF_SIZE );
+		private final List<ByteBuffer> writeList = new ArrayList<ByteBuffer>();
+		private ByteBuffer[] writeBufs;
+		private int writeOffset;
+
+		Connection( String host, SocketChannel channel ) {
+			this.host    = host;
+			this.channel = channel;
+		}
+
+		boolean isOpen() {
+			return !closed;
+		}
+
+		String getHost() {
+			return host;
+		}
+
+		void submit( Request<?> request ) {
+			pending.add( request );
+
+			// lost a race against fail(); make sure nothing is left behind
+			if ( closed ) {
+				failPending( new ClosedChannelException() );
+				return;
+			}
+
+			if ( writeScheduled.compareAndSet( false, true ) )
+				execute( this );
+		}
+
+		void register() {
+			try {
+				key = channel.register( selector, SelectionKey.OP_READ, this );
+				if ( !pending.isEmpty() )
+					handleWrite();
+			}
+			catch ( IOException e ) {
+				fail( e );
+			}
+		}
+
+		/**
+		 * Scheduled write, runs on the event loop.
+		 */
+		public void run() {
+			if ( key != null )
+				handleWrite();
+		}
+
+		void handleWrite() {
+			try {
+				while ( true ) {
+					if ( writeBufs == null ) {
+						// gather the next batch of queued requests
+						Request<?> request;
+						int n = 0;
+						while ( n < MAX_WRITE_BATCH && ( request = pending.poll() ) != null ) {
+							gather( request );
+							n++;
+						}
+
+						// whatever comes back for noreply commands has to be told
+						// apart from the next reply
+						if ( noreplyWritten )
+							gather( barrier( host ) );
+
+						if ( n == 0 ) {
+							writeScheduled.set( false );
+
+							// somebody may have queued a request and seen the flag still set
+							if ( pending.isEmpty() || !writeScheduled.compareAndSet( false, true ) ) {
+								key.interestOps( SelectionKey.OP_READ );
+								return;
+							}
+							continue;
+						}
+
+						writeBufs   = writeList.toArray( new ByteBuffer[ writeList.size() ] );
+						writeOffset = 0;
+						writeList.clear();
+					}
+
+					channel.write( writeBufs, writeOffset, writeBufs.length - writeOffset );
+					while ( writeOffset < writeBufs.length && !writeBufs[ writeOffset ].hasRemaining() )
+						writeOffset++;
+
+					if ( writeOffset < writeBufs.length ) {
+						// socket buffer is full, wait to become writable
+						key.interestOps( SelectionKey.OP_READ | SelectionKey.OP_WRITE );
+						return;
+					}
+
+					writeBufs = null;
+				}
+			}
+			catch ( IOException e ) {
+				fail( e );
+			}
+		}
+
+		/**
+		 * Adds a request to the write being put together.  Noreply commands
+		 * are done with once written; a command expecting a reply after
+		 * some gets a barrier in front of it.
+		 */
+		private void gather( Request<?> request ) {
+			if ( request.noreply() ) {
+				noreplyKey = noreplyWritten ? null : ( (NoreplyRequest)request ).key();
+				noreplyWritten = true;
+				request.complete();
+			}
+			else {
+				if ( noreplyWritten && !request.barrier() )
+					gather( barrier( host ) );
+
+				if ( request.barrier() && noreplyWritten )
+					( (FramedRequest)request ).setNoreplyKey( noreplyKey );
+				noreplyWritten = false;
+				noreplyKey = null;
+				inFlight.add( request );
+			}
+
+			for ( ByteBuffer b : request.buffers() )
+				writeList.add( b );
+		}
+
+		void handleRead() {
+			try {
+				int count = channel.read( readBuf );
+				if ( count < 0 )
+					throw new IOException( "++++ connection closed by server: " + host );
+				lastRead = System.currentTimeMillis();
+
+				readBuf.flip();
+				while ( readBuf.hasRemaining() ) {
+					Request<?> request = inFlight.peek();
+					if ( request == null )
+						throw new IOException( "++++ unexpected data from server: " + host );
+
+					if ( !request.decode( readBuf ) )
+						break;
+
+					inFlight.poll();
+					request.complete();
+				}
+				readBuf.compact();
+
+				if ( draining )
+					drain();
+			}
+			catch ( IOException e ) {
+				fail( e );
+			}
+		}
+
+		/**
+		 * Closes the channel once every request sent on it has been
+		 * answered, otherwise checks again after the next read.
+		 */
+		void drain() {
+			draining = true;
+			if ( !closed && inFlight.isEmpty() && pending.isEmpty() && writeBufs == null ) {
+				if ( log.isDebugEnabled() )
+					log.debug( "++++ closing drained " + this );
+				close( new ClosedChannelException() );
+			}
+		}
+
+		/**
+		 * Closes the channel and fails every request on it.
+		 */
+		void fail( IOException e ) {
+			if ( !closed )
+				log.error( "++++ closing pipelined channel to " + host + ": " + e.getMessage() );
+			close( e );
+		}
+
+		/**
+		 * Closes the channel, failing anything queued or in flight with
+		 * the passed in cause.  Requests in flight belong to the event
+		 * loop, so off the loop they are failed by a task posted to it.
+		 */
+		void close( final IOException e ) {
+			closed = true;
+
+			if ( key != null )
+				key.cancel();
+			try { channel.close(); } catch ( IOException ignoreMe ) { }
+
+			failPending( e );
+			if ( Thread.currentThread() == loop ) {
+				failInFlight( e );
+			}
+			else {
+				executeOrRun( new Runnable() {
+					public void run() { failInFlight( e ); }
+				} );
+			}
+		}
+
+		private void failInFlight( IOException e ) {
+			Request<?> request;
+			while ( ( request = inFlight.poll() ) != null )
+				request.fail( e );
+		}
+
+		private void failPending( IOException e ) {
+			Request<?> request;
+			while ( ( request = pending.poll() ) != null )
+				request.fail( e );
+		}
+
+		public String toString() {
+			return "pipelined channel to " + host + " (" + channel + ")";
+		}
+	}
+
+	/**
+	 * A command sent over a pipelined channel together with the logic to
+	 * recognize (and keep) its response.
+	 */
+	public static abstract class Request<T> {
+
+		protected final CompletableFuture<T> future = new CompletableFuture<T>();
+
+		/**
+		 * Bytes to put on the wire.
+		 */
+		protected abstract ByteBuffer[] buffers();
+
+		/**
+		 * Consumes response bytes; called on the event loop thread as data
+		 * arrives.  Must consume everything it can from the buffer and
+		 * return true once the full response has been read.  Bytes left in
+		 * the buffer belong to the next request.
+		 */
+		protected abstract boolean decode( ByteBuffer in ) throws IOException;
+
+		/**
+		 * Value to complete the future with once decode() returned true.
+		 */
+		protected abstract T result();
+
+		void complete() {
+			future.complete( result() );
+		}
+
+		/**
+		 * True for commands sent with noreply, which get no response.
+		 */
+		boolean noreply() {
+			return false;
+		}
+
+		/**
+		 * True for the version commands sent after noreply commands.
+		 */
+		boolean barrier() {
+			return false;
+		}
+
+		void fail( Throwable t ) {
+			future.completeExceptionally( t );
+		}
+
+		public CompletableFuture<T> future() {
+			return future;
+		}
+	}
+
+	/**
+	 * Command sent with noreply.  Its future completes once it has been
+	 * handed to the channel.
+	 */
+	static final class NoreplyRequest extends Request<Void> {
+
+		private final ByteBuffer[] out;
+		private final String key;
+
+		NoreplyRequest( ByteBuffer[] out, String key ) {
+			this.out = out;
+			this.key = key;
+		}
+
+		String key() {
+			return key;
+		}
+
+		protected ByteBuffer[] buffers() {
+			return out;
+		}
+
+		protected boolean decode( ByteBuffer in ) {
+			// never in flight
+			return true;
+		}
+
+		protected Void result() {
+			return null;
+		}
+
+		boolean noreply() {
+			return true;
+		}
+	}
+
+	/**
+	 * Request whose response is kept verbatim, framed according to the
+	 * shape of response the command produces.
+	 */
+	static final class FramedRequest extends Request<byte[]> {
+
+		// response is a single line
+		static final int SINGLE  = CommandEncoder.REPLY_LINE;
+		// VALUE blocks terminated by END
+		static final int VALUES  = CommandEncoder.REPLY_VALUES;
+		// any lines terminated by END
+		static final int LINES   = CommandEncoder.REPLY_LINES;
+		// failures of noreply commands terminated by VERSION
+		static final int BARRIER = 3;
+
+		private static final byte[] B_VALUE   = "VALUE ".getBytes();
+		private static final byte[] B_END     = "END".getBytes();
+		private static final byte[] B_REFRESH = "REFRESH_AND_RETRY".getBytes();
+		private static final byte[] B_ERROR   = "ERROR".getBytes();
+		private static final byte[] B_CERROR  = "CLIENT_ERROR".getBytes();
+		private static final byte[] B_SERROR  = "SERVER_ERROR".getBytes();
+		private static final byte[] B_VERSION = "VERSION".getBytes();
+
+		private final ByteBuffer[] out;
+		private final int kind;
+		private final boolean refreshCarriesConfig;
+
+		// response accumulated so far
+		private byte[] acc = new byte[ 128 ];
+		private int len = 0;
+		private int lineStart = 0;
+		private int dataRemaining = 0;
+		private boolean firstLine = true;
+		private boolean refreshTrailer = false;
+		private boolean doneAfterData = false;
+		// lines a barrier read before VERSION
+		private List<String> failures;
+		// key of the noreply command ahead of a barrier, if it was the only one
+		private String noreplyKey;
+
+		FramedRequest( byte[] cmd, int off, int length, int kind, boolean refreshCarriesConfig ) {
+			this( new ByteBuffer[] { ByteBuffer.wrap( cmd, off, length ) }, kind, refreshCarriesConfig );
+		}
+
+		/**
+		 * Request for a command made of several buffers, which are written
+		 * with one gathering write.
+		 */
+		FramedRequest( ByteBuffer[] out, int kind, boolean refreshCarriesConfig ) {
+			this.out  = out;
+			this.kind = kind;
+			this.refreshCarriesConfig = refreshCarriesConfig;
+		}
+
+		protected ByteBuffer[] buffers() {
+			return out;
+		}
+
+		boolean barrier() {
+			return kind == BARRIER;
+		}
+
+		void setNoreplyKey( String key ) {
+			this.noreplyKey = key;
+		}
+
+		String noreplyKey() {
+			return noreplyKey;
+		}
+
+		/**
+		 * Lines a barrier read before the VERSION line.
+		 */
+		List<String> failures() {
+			return ( failures == null ) ? java.util.Collections.<String>emptyList() : failures;
+		}
+
+		protected byte[] result() {
+			return ( acc.length == len ) ? acc : java.util.Arrays.copyOf( acc, len );
+		}
+
+		protected boolean decode( ByteBuffer in ) throws IOException {
+			while ( in.hasRemaining() ) {
+				if ( dataRemaining > 0 ) {
+					int n = Math.min( dataRemaining, in.remaining() );
+					append( in, n );
+					dataRemaining -= n;
+					lineStart = len;
+					if ( dataRemaining == 0 && doneAfterData )
+						return true;
+					continue;
+				}
+
+				byte b = in.get();
+				append( b );
+				if ( b != '\n' || len - lineStart < 2 || acc[ len - 2 ] != '\r' )
+					continue;
+
+				int start = lineStart;
+				int end   = len - 2;
+				lineStart = len;
+				if ( lineDone( start, end ) )
+					return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Handles a complete response line.
+		 *
+		 * @return true if this completes the response
+		 */
+		private boolean lineDone( int start, int end ) throws IOException {
+			boolean first = firstLine;
+			firstLine = false;
+
+			if ( refreshTrailer ) {
+				// REFRESH_AND_RETRY is followed by END or the new config
+				if ( startsWith( start, end, B_VALUE ) ) {
+					dataRemaining = valueLength( start, end ) + 2;
+					doneAfterData = ( kind != BARRIER );
+					refreshTrailer = false;
+					return false;
+				}
+				refreshTrailer = false;
+				return kind != BARRIER;
+			}
+
+			if ( kind == BARRIER ) {
+				if ( startsWith( start, end, B_VERSION ) )
+					return true;
+
+				if ( failures == null )
+					failures = new ArrayList<String>();
+				failures.add( new String( acc, start, end - start ) );
+				refreshTrailer = equals( start, end, B_REFRESH );
+				return false;
+			}
+
+			if ( first && refreshCarriesConfig && equals( start, end, B_REFRESH ) ) {
+				refreshTrailer = true;
+				return false;
+			}
+
+			if ( equals( start, end, B_ERROR ) || startsWith( start, end, B_CERROR ) || startsWith( start, end, B_SERROR ) )
+				return true;
+
+			switch ( kind ) {
+				case VALUES:
+					if ( startsWith( start, end, B_VALUE ) ) {
+						dataRemaining = valueLength( start, end ) + 2;
+						return false;
+					}
+					return equals( start, end, B_END );
+				case LINES:
+					return equals( start, end, B_END );
+				default:
+					return true;
+			}
+		}
+
+		/**
+		 * Parses the length field of a VALUE line:
+		 * VALUE &lt;key&gt; &lt;flags&gt; &lt;bytes&gt; [&lt;config id&gt;]
+		 */
+		private int valueLength( int start, int end ) throws IOException {
+			int field = 0;
+			int value = 0;
+			boolean inField = false;
+			for ( int i = start; i < end; i++ ) {
+				byte b = acc[i];
+				if ( b == ' ' ) {
+					if ( inField && field == 4 )
+						return value;
+					inField = false;
+					continue;
+				}
+				if ( !inField ) {
+					inField = true;
+					field++;
+				}
+				if ( field == 4 ) {
+					if ( b < '0' || b > '9' )
+						throw new IOException( "++++ malformed VALUE line" );
+					value = value * 10 + ( b - '0' );
+				}
+			}
+			if ( field >= 4 )
+				return value;
+			throw new IOException( "++++ malformed VALUE line" );
+		}
+
+		private boolean equals( int start, int end, byte[] token ) {
+			return ( end - start ) == token.length && startsWith( start, end, token );
+		}
+
+		private boolean startsWith( int start, int end, byte[] token ) {
+			if ( end - start < token.length )
+				return false;
+			for ( int i = 0; i < token.length; i++ ) {
+				if ( acc[ start + i ] != token[i] )
+					return false;
+			}
+			return true;
+		}
+
+		private void append( byte b ) {
+			ensure( 1 );
+			acc[ len++ ] = b;
+		}
+
+		private void append( ByteBuffer in, int n ) {
+			ensure( n );
+			in.get( acc, len, n );
+			len += n;
+		}
+
+		private void ensure( int n ) {
+			if ( len + n > acc.length )
+				acc = java.util.Arrays.copyOf( acc, Math.max( acc.length * 2, len + n ) );
+		}
+	}
+
+	/**
+	 * Receives the values of a multi get as they are read.  Called on the
+	 * event loop thread, so it must hand them off and not block.
+	 */
+	interface ValueSink {
+		void value( String key, int flags, int configId, byte[] data );
+	}
+
+	/**
+	 * Multi get whose values are decoded as they arrive instead of being
+	 * kept until the whole response is in.
+	 *
+	 * Each value is read straight into an array of its own and passed to
+	 * the sink as soon as it is complete, so a response never sits in
+	 * memory as a whole.  The future completes with what is left of the
+	 * response: END, an error line, or a REFRESH_AND_RETRY response in full.
+	 */
+	static final class ValuesRequest extends Request<byte[]> {
+
+		private final ByteBuffer[] out;
+		private final ValueSink sink;
+
+		// current line, and the same as parsed
+		private byte[] line = new byte[ 128 ];
+		private int lineLen = 0;
+		private final ResponseLine text = new ResponseLine();
+		private boolean first = true;
+
+		// value being read, and bytes of its trailing CRLF still to skip
+		private String key;
+		private int flags;
+		private int configId;
+		private byte[] data;
+		private int dataPos;
+		private int skip;
+
+		// REFRESH_AND_RETRY is handed on to be framed as it always was
+		private FramedRequest refresh;
+		private byte[] tail;
+
+		ValuesRequest( ByteBuffer[] out, ValueSink sink ) {
+			this.out  = out;
+			this.sink = sink;
+		}
+
+		protected ByteBuffer[] buffers() {
+			return out;
+		}
+
+		protected byte[] result() {
+			return ( refresh != null ) ? refresh.result() : tail;
+		}
+
+		protected boolean decode( ByteBuffer in ) throws IOException {
+			if ( refresh != null )
+				return refresh.decode( in );
+
+			while ( in.hasRemaining() ) {
+				if ( data != null ) {
+					int n = Math.min( data.length - dataPos, in.remaining() );
+					in.get( data, dataPos, n );
+					dataPos += n;
+					if ( dataPos < data.length )
+						return false;
+
+					sink.value( key, flags, configId, data );
+					data = null;
+					skip = 2;
+					continue;
+				}
+
+				if ( skip > 0 ) {
+					int n = Math.min( skip, in.remaining() );
+					in.position( in.position() + n );
+					skip -= n;
+					continue;
+				}
+
+				byte b = in.get();
+				if ( lineLen == line.length )
+					line = java.util.Arrays.copyOf( line, line.length * 2 );
+				line[ lineLen++ ] = b;
+				if ( b != '\n' || lineLen < 2 || line[ lineLen - 2 ] != '\r' )
+					continue;
+
+				int end = lineLen;
+				lineLen = 0;
+				boolean firstLine = first;
+				first = false;
+
+				text.set( line, 0, end - 2 );
+				if ( text.parseValue() ) {
+					key      = text.key();
+					flags    = text.flags;
+					configId = text.configId;
+					data     = new byte[ text.length ];
+					dataPos  = 0;
+					continue;
+				}
+
+				if ( firstLine && text.is( ResponseLine.REFRESH_AND_RETRY ) ) {
+					refresh = new FramedRequest( (ByteBuffer[])null, FramedRequest.SINGLE, true );
+					refresh.decode( ByteBuffer.wrap( line, 0, end ) );
+					return refresh.decode( in );
+				}
+
+				// END, or an error, ends the response
+				tail = java.util.Arrays.copyOf( line, end );
+				return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * SockIO view over a pipelined channel.
+	 *
+	 * Writes are buffered until flush(), which splits them into commands
+	 * where they were framed and submits one request per command.  Reads
+	 * block until the response of the oldest unread command has arrived
+	 * and then read from it.
+	 * There is nothing to check in, so close() just drops the view.
+	 */
+	static final class PipelinedSockIO extends SockIOPool.SockIO {
+
+		private final Connection conn;
+		private final long timeout;
+
+		// commands written since the last flush
+		private CommandEncoder pending = new CommandEncoder();
+
+		private final ArrayDeque<CompletableFuture<byte[]>> responses =
+			new ArrayDeque<CompletableFuture<byte[]>>();
+		private byte[] rbuf;
+		private int rpos;
+		private final ResponseLine line = new ResponseLine();
+
+		PipelinedSockIO( SockIOPool pool, String host, Connection conn, long timeout ) {
+			super( pool, host );
+			this.conn    = conn;
+			this.timeout = timeout;
+		}
+
+		void write( byte[] b ) throws IOException {
+			pending.append( b );
+		}
+
+		void write( byte[] b, int off, int len ) throws IOException {
+			pending.append( b, off, len );
+		}
+
+		/**
+		 * Commands are encoded straight into the pending writes, so
+		 * there is nothing to copy when they are written.
+		 */
+		CommandEncoder encoder() {
+			return pending;
+		}
+
+		void write( CommandEncoder cmd ) throws IOException {
+			if ( cmd != pending )
+				pending.append( cmd );
+		}
+
+		/**
+		 * Sends the commands written so far, then the storage command as
+		 * its own request whose value buffer is handed to the channel's
+		 * gathering write as it is.
+		 */
+		void writeValue( CommandEncoder cmd, ByteBuffer value ) throws IOException {
+			ByteBuffer header;
+			if ( cmd == pending ) {
+				// the header was encoded into the pending writes, take it out
+				byte[] b = pending.buffer();
+				int len  = pending.length();
+				if ( indexOfEOL( b, 0, len ) + 2 != len )
+					throw new IOException( "++++ value written after unflushed commands" );
+
+				header  = ByteBuffer.wrap( b, 0, len );
+				pending = new CommandEncoder();
+			}
+			else {
+				flush();
+				header = ByteBuffer.wrap( cmd.toByteArray() );
+			}
+
+			if ( !conn.isOpen() )
+				throw new IOException( "++++ attempting to write to closed channel" );
+
+			FramedRequest request = new FramedRequest( new ByteBuffer[] {
+				header,
+				value.duplicate(),
+				ByteBuffer.wrap( CommandEncoder.CRLF )
+			}, FramedRequest.SINGLE, true );
+			responses.add( request.future() );
+			conn.submit( request );
+		}
+
+		/**
+		 * Submits the noreply command as a request of its own, which
+		 * nobody waits for.  The value is copied, as the caller may reuse
+		 * its buffer as soon as this returns.
+		 */
+		void writeNoreply( CommandEncoder cmd, ByteBuffer value, String key ) throws IOException {
+			if ( cmd == pending ) {
+				// the command was encoded into the pending writes, take it out
+				if ( indexOfEOL( pending.buffer(), 0, pending.length() ) + 2 != pending.length() )
+					throw new IOException( "++++ noreply command written after unflushed commands" );
+				pending = new CommandEncoder();
+			}
+			else {
+				flush();
+			}
+
+			if ( !conn.isOpen() )
+				throw new IOException( "++++ attempting to write to closed channel" );
+
+			if ( value != null )
+				cmd.append( value ).crlf();
+			conn.submit( new NoreplyRequest( new ByteBuffer[] { ByteBuffer.wrap( cmd.toByteArray() ) }, key ) );
+		}
+
+		/**
+		 * The channel puts the barriers in itself, see
+		 * {@link PipelinedTransport#flushWrites()}.
+		 */
+		boolean hasNoreplyWrites() {
+			return false;
+		}
+
+		void sync() throws IOException {
+			flush();
+		}
+
+		void flush() throws IOException {
+			if ( !conn.isOpen() )
+				throw new IOException( "++++ attempting to write to closed channel" );
+
+			byte[] wbuf = pending.buffer();
+			int wlen = pending.length();
+
+			int frames = pending.frames();
+			if ( wlen != ( ( frames == 0 ) ? 0 : pending.frameEnd( frames - 1 ) ) )
+				throw new IOException( "++++ command written without its framing" );
+
+			// one request per command so each response is framed on its own
+			int pos = 0;
+			for ( int i = 0; i < frames; i++ ) {
+				int end = pending.frameEnd( i );
+				FramedRequest request = new FramedRequest( wbuf, pos, end - pos, pending.frameReply( i ), pending.frameRefreshCarriesConfig( i ) );
+				responses.add( request.future() );
+				conn.submit( request );
+				pos = end;
+			}
+
+			// the requests own the old buffer now
+			pending = new CommandEncoder();
+		}
+
+		public String readLine() throws IOException {
+			return readResponseLine().toString();
+		}
+
+		public ResponseLine readResponseLine() throws IOException {
+			byte[] buf = current();
+			int eol = indexOfEOL( buf, rpos, buf.length );
+			if ( eol < 0 )
+				throw new IOException( "++++ Stream appears to be dead, so closing it down" );
+
+			line.set( buf, rpos, eol );
+			rpos = eol + 2;
+			return line;
+		}
+
+		public void clearEOL() throws IOException {
+			byte[] buf = current();
+			int eol = indexOfEOL( buf, rpos, buf.length );
+			rpos = ( eol < 0 ) ? buf.length : eol + 2;
+		}
+
+		public int read( byte[] b ) throws IOException {
+			byte[] buf = current();
+			int n = Math.min( b.length, buf.length - rpos );
+			System.arraycopy( buf, rpos, b, 0, n );
+			rpos += n;
+			if ( n < b.length )
+				throw new IOException( "++++ response ended before all data was read" );
+			return n;
+		}
+
+		void read( ByteBuffer dst, int length ) throws IOException {
+			byte[] buf = current();
+			int n = Math.min( length, buf.length - rpos );
+			dst.put( buf, rpos, n );
+			rpos += n;
+			if ( n < length )
+				throw new IOException( "++++ response ended before all data was read" );
+		}
+
+		/**
+		 * Returns the response being read, waiting for the next one when
+		 * the current one has been consumed.
+		 */
+		private byte[] current() throws IOException {
+			if ( rbuf != null && rpos < rbuf.length )
+				return rbuf;
+
+			CompletableFuture<byte[]> next = responses.poll();
+			if ( next == null )
+				throw new IOException( "++++ no outstanding request to read a response for" );
+
+			try {
+				// like a socket read timeout, only give up once the
+				// server has sent nothing for the whole timeout, or
+				// when the deadline of the operation has passed
+				while ( true ) {
+					int wait = Deadline.timeout( (int)Math.min( timeout, Integer.MAX_VALUE ) );
+					try {
+						rbuf = ( wait > 0 ) ? next.get( wait, TimeUnit.MILLISECONDS ) : next.get();
+						rpos = 0;
+						return rbuf;
+					}
+					catch ( TimeoutException e ) {
+						if ( System.currentTimeMillis() - conn.lastRead >= timeout )
+							throw new SocketTimeoutException( "++++ timed out waiting for response from " + getHost() );
+					}
+				}
+			}
+			catch ( ExecutionException e ) {
+				throw new NestedIOException( "++++ request to " + getHost() + " failed", e.getCause() );
+			}
+			catch ( InterruptedException e ) {
+				Thread.currentThread().interrupt();
+				throw new NestedIOException( "++++ interrupted waiting for response from " + getHost(), e );
+			}
+		}
+
+		private static int indexOfEOL( byte[] buf, int from, int to ) {
+			for ( int i = from; i + 1 < to; i++ ) {
+				if ( buf[i] == '\r' && buf[ i + 1 ] == '\n' )
+					return i;
+			}
+			return -1;
+		}
+
+		boolean isConnected() {
+			return conn.isOpen();
+		}
+
+		boolean isAlive() {
+			if ( !isConnected() )
+				return false;
+
+			try {
+				pending.append( CommandEncoder.VERSION ).frame( FramedRequest.SINGLE, false );
+				flush();
+				readLine();
+			}
+			catch ( IOException ex ) {
+				return false;
+			}
+			return true;
+		}
+
+		void close() {
+			responses.clear();
+			rbuf = null;
+		}
+
+		public void trueClose( boolean addToDeadPool ) throws IOException {
+			// the channel is shared; errors on it are handled by the transport
+			close();
+		}
+
+		public java.nio.channels.SocketChannel getChannel() {
+			return null;
+		}
+
+		public int hashCode() {
+			return System.identityHashCode( this );
+		}
+
+		public String toString() {
+			return "view on " + conn;
+		}
+	}
+}
@@ -0,0 +1,192 @@
+package edu.usc.cs550.rejig.client;
+
+/**
+ * One line of a server response, scanned in place.
+ *
+ * The line is a window onto the read buffer of the stream it came from
+ * and is only valid until the next read on that stream.  Status lines are
+ * matched against the pre-encoded constants below and VALUE headers are
+ * parsed straight into primitive fields, so reading a response builds no
+ * Strings other than the keys of a multi get.
+ */
+public final class ResponseLine {
+
+	// pre-encoded status lines
+	static final byte[] VALUE             = "VALUE ".getBytes();
+	static final byte[] END               = "END".getBytes();
+	static final byte[] STORED            = "STORED".getBytes();
+	static final byte[] NOTSTORED         = "NOT_STORED".getBytes();
+	static final byte[] DELETED           = "DELETED".getBytes();
+	static final byte[] NOTFOUND          = "NOT_FOUND".getBytes();
+	static final byte[] REFRESH_AND_RETRY = "REFRESH_AND_RETRY".getBytes();
+	static final byte[] ERROR             = "ERROR".getBytes();
+	static final byte[] CLIENT_ERROR      = "CLIENT_ERROR".getBytes();
+	static final byte[] SERVER_ERROR      = "SERVER_ERROR".getBytes();
+	static final byte[] VERSION           = "VERSION".getBytes();
+
+	private byte[] buf;
+	private int start;
+	private int end;
+
+	// fields of a VALUE header, set by parseValue()
+	private int keyStart;
+	private int keyEnd;
+	int flags;
+	int length;
+	int configId;
+
+	/**
+	 * Points the line at the given bytes, not including the CRLF.  Leading
+	 * and trailing blanks are dropped, as String.trim() used to.
+	 */
+	ResponseLine set( byte[] buf, int start, int end ) {
+		while ( start < end && buf[start] <= ' ' )
+			start++;
+		while ( end > start && buf[end - 1] <= ' ' )
+			end--;
+
+		this.buf   = buf;
+		this.start = start;
+		this.end   = end;
+		return this;
+	}
+
+	boolean isEmpty() {
+		return start == end;
+	}
+
+	/**
+	 * Returns true if the line is exactly the given token.
+	 */
+	boolean is( byte[] token ) {
+		return ( end - start ) == token.length && startsWith( token );
+	}
+
+	boolean startsWith( byte[] token ) {
+		if ( end - start < token.length )
+			return false;
+		for ( int i = 0; i < token.length; i++ ) {
+			if ( buf[start + i] != token[i] )
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns true for ERROR, CLIENT_ERROR and SERVER_ERROR lines.
+	 */
+	boolean isError() {
+		return startsWith( ERROR ) || startsWith( CLIENT_ERROR ) || startsWith( SERVER_ERROR );
+	}
+
+	/**
+	 * Parses a <code>VALUE &lt;key&gt; &lt;flags&gt; &lt;bytes&gt;
+	 * [&lt;configId&gt;]</code> header.  configId is -1 if the server did
+	 * not send one.
+	 *
+	 * @return false if the line is not a VALUE header
+	 */
+	boolean parseValue() {
+		if ( !startsWith( VALUE ) )
+			return false;
+
+		int pos = start + VALUE.length;
+		keyStart = pos;
+		while ( pos < end && buf[pos] != ' ' )
+			pos++;
+		keyEnd = pos;
+
+		pos = skipBlank( pos );
+		int fieldEnd = fieldEnd( pos );
+		if ( pos == fieldEnd )
+			return false;
+		flags = (int)parseLong( pos, fieldEnd );
+
+		pos = skipBlank( fieldEnd );
+		fieldEnd = fieldEnd( pos );
+		if ( pos == fieldEnd )
+			return false;
+		length = (int)parseLong( pos, fieldEnd );
+
+		pos = skipBlank( fieldEnd );
+		fieldEnd = fieldEnd( pos );
+		configId = ( pos == fieldEnd ) ? -1 : (int)parseLong( pos, fieldEnd );
+
+		return flags >= 0 && length >= 0;
+	}
+
+	/**
+	 * Key of the VALUE header last parsed.
+	 */
+	String key() {
+		return ascii( keyStart, keyEnd );
+	}
+
+	/**
+	 * Returns true if the line is an unsigned number, as sent back
+	 * by incr and decr.
+	 */
+	boolean isNumber() {
+		if ( start == end )
+			return false;
+		for ( int i = start; i < end; i++ ) {
+			if ( buf[i] < '0' || buf[i] > '9' )
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Value of a line for which isNumber() returned true.
+	 *
+	 * @throws NumberFormatException if it does not fit in a long
+	 */
+	long toLong() {
+		// anything this short can not overflow
+		if ( end - start <= 18 )
+			return parseLong( start, end );
+		return Long.parseLong( toString() );
+	}
+
+	private int skipBlank( int pos ) {
+		while ( pos < end && buf[pos] == ' ' )
+			pos++;
+		return pos;
+	}
+
+	private int fieldEnd( int pos ) {
+		while ( pos < end && buf[pos] != ' ' )
+			pos++;
+		return pos;
+	}
+
+	/**
+	 * Parses the digits in [from, to); returns -1 on anything else.
+	 */
+	private long parseLong( int from, int to ) {
+		long value = 0;
+		for ( int i = from; i < to; i++ ) {
+			int digit = buf[i] - '0';
+			if ( digit < 0 || digit > 9 )
+				return -1;
+			value = value * 10 + digit;
+		}
+		return value;
+	}
+
+	@SuppressWarnings( "deprecation" )
+	private String ascii( int from, int to ) {
+		for ( int i = from; i < to; i++ ) {
+			if ( buf[i] < 0 )
+				return new String( buf, from, to - from );
+		}
+		return new String( buf, 0, from, to - from );
+	}
+
+	/**
+	 * The line as a String, for the callers which still want one.
+	 */
+	public String toString() {
+		return new String( buf, start, end - start );
+	}
+}
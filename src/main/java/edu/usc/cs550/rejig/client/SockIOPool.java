@@ -29,6 +29,7 @@ import java.util.List;
 import java.util.Set;
 import java.util.Iterator;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.IdentityHashMap;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -36,12 +37,18 @@ import java.util.Date;
 import java.util.Arrays;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.Queue;
 
 import java.util.zip.*;
 import java.net.*;
 import java.io.*;
 import java.nio.*;
 import java.nio.channels.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 import org.apache.log4j.Logger;
 
@@ -139,14 +146,22 @@ public class SockIOPool {
 		new HashMap<String,SockIOPool>();
 
 	// Constants
-	private static final Integer ZERO       = new Integer( 0 );
 	public static final long MAX_RETRY_DELAY = 10 * 60 * 1000;  // max of 10 minute delay for fall off
 
 	// Hashing algorithm to use to select the fragment to assign a key to.
 	public static enum FragmentHashingAlgo {
 		NATIVE_HASH,			// native String.hashCode();
 		OLD_COMPAT_HASH,	// original compatibility hashing algorithm (works with other clients)
-		NEW_COMPAT_HASH		// new CRC32 based compatibility hashing algorithm (works with other clients)
+		NEW_COMPAT_HASH,	// new CRC32 based compatibility hashing algorithm (works with other clients)
+		KETAMA,				// consistent hashing on a continuum of virtual nodes per fragment
+		MURMUR3_32,			// MurmurHash3 x86_32 of the UTF-8 key, allocation free
+		XXHASH64			// xxHash64 of the UTF-8 key, allocation free
+	}
+
+	// How requests are carried to the servers.
+	public static enum TransportMode {
+		BLOCKING,			// one pooled blocking socket checked out per operation
+		PIPELINED			// few shared non-blocking channels per server, requests pipelined
 	}
 
 	// Pool data
@@ -185,6 +200,18 @@ public class SockIOPool {
 		public boolean nagle = false;
 		/** Default to using the native hash as it is the fastest */
 		public FragmentHashingAlgo hashingAlg = FragmentHashingAlgo.NATIVE_HASH;
+		/** Number of points each fragment gets on the continuum when using KETAMA */
+		public int ketamaVirtualNodes = 160;
+		/** Default to a pool of blocking sockets */
+		public TransportMode transportMode = TransportMode.BLOCKING;
+		/** Number of shared channels per server when pipelined */
+		public int pipelinedConns = 1;
+		/** Max number of keys in one batch of a multi key call */
+		public int maxBatchKeys = 1000;
+		/** Max size of the keys (gets) or commands (writes) of one batch */
+		public int maxBatchBytes = 64 * 1024;
+		/** Max number of batches of one multi key call in flight per server */
+		public int maxBatchesInFlight = 4;
 
 		public SockIOPoolOptions copy() {
 			SockIOPoolOptions copy = new SockIOPoolOptions();
@@ -201,6 +228,12 @@ public class SockIOPool {
 			copy.failback = failback;
 			copy.nagle = nagle;
 			copy.hashingAlg = hashingAlg;
+			copy.ketamaVirtualNodes = ketamaVirtualNodes;
+			copy.transportMode = transportMode;
+			copy.pipelinedConns = pipelinedConns;
+			copy.maxBatchKeys = maxBatchKeys;
+			copy.maxBatchBytes = maxBatchBytes;
+			copy.maxBatchesInFlight = maxBatchesInFlight;
 			return copy;
 		}
 	}
@@ -216,16 +249,46 @@ public class SockIOPool {
 	// list of all servers
 	private RejigConfig config;
 
+	// routes to each fragment of the config, by fragment index
+	private Route[] routes;
+
+	// ketama continuum: sorted points and the fragment index owning each
+	private int[] continuumPoints;
+	private int[] continuumFragments;
+
 	// dead server map
 	private Map<String,Date> hostDead;
 	private Map<String,Long> hostDeadDur;
 
-	// map to hold all available sockets
-	// map to hold busy sockets
-	// set to hold sockets to close
-	private Map<String,Map<SockIO,Long>> availPool;
-	private Map<String,Map<SockIO,Long>> busyPool;
-	private Map<SockIO,Integer> deadPool;
+	// per host avail/busy sockets
+	// queue to hold sockets to close
+	private ConcurrentMap<String,HostPool> hostPools;
+	private Queue<SockIO> deadPool;
+
+	// shared channels when running in pipelined mode
+	private PipelinedTransport transport;
+
+	// in blocking mode, channels for multi key batches, created on first use
+	private volatile PipelinedTransport batchTransport;
+
+	// pool of the next config, which took over our connections
+	private volatile SockIOPool successor;
+
+	// avail sockets holding unflushed noreply commands, and what the
+	// servers said about the ones which failed
+	private final Set<SockIO> noreplySockets =
+		Collections.newSetFromMap( new ConcurrentHashMap<SockIO,Boolean>() );
+	private final Queue<NoreplyFailure> noreplyFailures =
+		new ConcurrentLinkedQueue<NoreplyFailure>();
+
+	// run by the maint thread when it finds noreply failures queued
+	private volatile Runnable noreplyListener;
+
+	// set once retired: time after which busy sockets are no longer waited for
+	private volatile long retireDeadline = 0;
+
+	// name the pool is registered under
+	private String poolName;
 
 	// empty constructor
 	protected SockIOPool() { }
@@ -241,6 +304,7 @@ public class SockIOPool {
 			return pools.get( poolName );
 
 		SockIOPool pool = new SockIOPool();
+		pool.poolName = poolName;
 		pools.put( poolName, pool );
 
 		return pool;
@@ -277,71 +341,130 @@ public class SockIOPool {
 	}
 
 	/**
-	 * Internal private hashing method.
-	 *
-	 * This is the original hashing algorithm from other clients.
-	 * Found to be slow and have poor distribution.
+	 * Returns a bucket to check for a given key.
 	 *
-	 * @param key String to hash
-	 * @return hashCode for this string using our own hashing algorithm
+	 * @param key String key cache is stored under
+	 * @return int bucket
 	 */
-	private static long origCompatHashingAlg( String key ) {
-		long hash   = 0;
-		char[] cArr = key.toCharArray();
+	private long getHash( String key, Integer hashCode ) {
 
-		for ( int i = 0; i < cArr.length; ++i ) {
-			hash = (hash * 33) + cArr[i];
+		if ( hashCode != null ) {
+				return hashCode.longValue();
+		}
+		else {
+			return hash( options.hashingAlg, key );
 		}
-
-		return hash;
 	}
 
 	/**
-	 * Internal private hashing method.
-	 *
-	 * This is the new hashing algorithm from other clients.
-	 * Found to be fast and have very good distribution.
+	 * Returns the hash an algorithm gives a key.  For KETAMA this is the
+	 * point of the key on the continuum.
 	 *
-	 * UPDATE: This is dog slow under java
-	 *
-	 * @param key
-	 * @return
+	 * @param alg hashing algorithm
+	 * @param key String key cache is stored under
+	 * @return the hash of the key
 	 */
-	private static long newCompatHashingAlg( String key ) {
-		CRC32 checksum = new CRC32();
-		checksum.update( key.getBytes() );
-		long crc = checksum.getValue();
-		return (crc >> 16) & 0x7fff;
+	public static long hash( FragmentHashingAlgo alg, String key ) {
+		switch ( alg ) {
+			case OLD_COMPAT_HASH:
+				return KeyHash.origCompat( key );
+			case NEW_COMPAT_HASH:
+				return KeyHash.newCompat( key );
+			case KETAMA:
+				return KeyHash.fnv1a32( key );
+			case MURMUR3_32:
+				return KeyHash.murmur3_32( key );
+			case XXHASH64:
+				return KeyHash.xxHash64( key );
+			default:
+				// use the native hash as a default
+				return (long)key.hashCode();
+		}
 	}
 
 	/**
-	 * Returns a bucket to check for a given key.
+	 * Builds the ketama continuum for the current config.
 	 *
-	 * @param key String key cache is stored under
-	 * @return int bucket
+	 * Each fragment gets ketamaVirtualNodes points, four per MD5 digest as
+	 * in the original ketama.  Points are derived from the server address
+	 * and the count of fragments of that server before this one, not from
+	 * the fragment number: adding or removing a fragment then moves only
+	 * the keys of that fragment, where numbers would shift every fragment
+	 * after it.  A fragment moved to another server takes new points, as
+	 * a replaced server does in ketama.
 	 */
-	private long getHash( String key, Integer hashCode ) {
+	private void buildContinuum() {
+		int fragments = config.getFragmentCount();
+		int digests   = Math.max( 1, ( options.ketamaVirtualNodes + 3 ) / 4 );
 
-		if ( hashCode != null ) {
-				return hashCode.longValue();
-		}
-		else {
-			switch ( options.hashingAlg ) {
-				case NATIVE_HASH:
-					return (long)key.hashCode();
-				case OLD_COMPAT_HASH:
-					return origCompatHashingAlg( key );
-				case NEW_COMPAT_HASH:
-					return newCompatHashingAlg( key );
-				default:
-					// use the native hash as a default
-					options.hashingAlg = FragmentHashingAlgo.NATIVE_HASH;
-					return (long)key.hashCode();
+		long[] entries = new long[ fragments * digests * 4 ];
+		int n = 0;
+		try {
+			MessageDigest md5 = MessageDigest.getInstance( "MD5" );
+			Map<String,Integer> perServer = new HashMap<String,Integer>();
+			for ( int f = 0; f < fragments; f++ ) {
+				String address = routes[f].address();
+				Integer seen = perServer.get( address );
+				int occurrence = ( seen == null ) ? 0 : seen.intValue();
+				perServer.put( address, occurrence + 1 );
+
+				for ( int d = 0; d < digests; d++ ) {
+					byte[] digest = md5.digest( ( address + "-" + occurrence + "-" + d ).getBytes( "UTF-8" ) );
+					for ( int h = 0; h < 4; h++ ) {
+						int point = ( ( digest[ 3 + h * 4 ] & 0xFF ) << 24 )
+							| ( ( digest[ 2 + h * 4 ] & 0xFF ) << 16 )
+							| ( ( digest[ 1 + h * 4 ] & 0xFF ) << 8 )
+							| ( digest[ h * 4 ] & 0xFF );
+
+						// sort on the point, keep the fragment index in the low bits
+						entries[ n++ ] = ( (long)point << 32 ) | f;
+					}
+				}
 			}
 		}
+		catch ( NoSuchAlgorithmException e ) {
+			throw new IllegalStateException( "++++ no md5 algorithm found", e );
+		}
+		catch ( UnsupportedEncodingException e ) {
+			throw new IllegalStateException( "++++ no UTF-8 encoding found", e );
+		}
+
+		Arrays.sort( entries );
+		int[] points = new int[ n ];
+		int[] owners = new int[ n ];
+		for ( int i = 0; i < n; i++ ) {
+			points[i] = (int)( entries[i] >> 32 );
+			owners[i] = (int)entries[i];
+		}
+
+		continuumPoints    = points;
+		continuumFragments = owners;
+
+		if ( log.isDebugEnabled() )
+			log.debug( "++++ built ketama continuum with " + n + " points for " + fragments + " fragments" );
+	}
+
+	/**
+	 * Returns the fragment owning the first point at or after the
+	 * passed in point, wrapping around the continuum.
+	 */
+	private long findContinuumBucket( int point ) {
+		int[] points = continuumPoints;
+		int i = Arrays.binarySearch( points, point );
+		if ( i < 0 ) {
+			i = -i - 1;
+			if ( i == points.length )
+				i = 0;
+		}
+		return continuumFragments[i];
 	}
 
 	private long getBucket( String key, Integer hashCode ) {
+		if ( options.hashingAlg == FragmentHashingAlgo.KETAMA ) {
+			int point = ( hashCode != null ) ? hashCode.intValue() : KeyHash.fnv1a32( key );
+			return findContinuumBucket( point );
+		}
+
 		long hc = getHash( key, hashCode );
 
 		long bucket = hc % config.getFragmentCount();
@@ -353,21 +476,34 @@ public class SockIOPool {
 	 * Initializes the pool.
 	 */
 	public SockIOPool initialize() {
+		return initialize( null );
+	}
+
+	/**
+	 * Initializes the pool, taking over the connections of the pool of the
+	 * previous config.
+	 *
+	 * Idle connections to servers found in both configs move to this pool,
+	 * so only servers new to this config are connected to.  Connections
+	 * busy in the previous pool follow once they are checked in, while the
+	 * ones to servers which are no longer part of the config are closed
+	 * instead.
+	 *
+	 * @param previous pool of the previous config, may be null
+	 */
+	public SockIOPool initialize( SockIOPool previous ) {
 
 		synchronized( this ) {
 
 			// check to see if already initialized
-			if ( initialized
-					&& ( availPool != null )
-					&& ( busyPool != null ) ) {
-						log.error( "++++ trying to initialize an already initialized pool" );
+			if ( initialized && ( hostPools != null ) ) {
+				log.error( "++++ trying to initialize an already initialized pool" );
 				return this;
 			}
 
 			// pools
-			availPool   = new HashMap<String,Map<SockIO,Long>>( config.getFragmentCount() * options.initConn );
-			busyPool    = new HashMap<String,Map<SockIO,Long>>( config.getFragmentCount() * options.initConn );
-			deadPool    = new IdentityHashMap<SockIO,Integer>();
+			hostPools   = new ConcurrentHashMap<String,HostPool>( config.getFragmentCount() );
+			deadPool    = new ConcurrentLinkedQueue<SockIO>();
 
 			hostDeadDur = new HashMap<String,Long>();
 			hostDead    = new HashMap<String,Date>();
@@ -387,8 +523,48 @@ public class SockIOPool {
 				throw new IllegalStateException( "++++ trying to initialize with no servers" );
 			}
 
-			// initalize our internal hashing structures
-			populateBuckets();
+			routes = new Route[ config.getFragmentCount() ];
+			for ( int i = 0; i < routes.length; i++ ) {
+				Fragment fragment = config.getFragment( i );
+				routes[i] = new Route( config.getId(), i, fragment.getAddress(), fragment.getId() );
+			}
+
+			// place the fragments on the continuum once per config
+			if ( options.hashingAlg == FragmentHashingAlgo.KETAMA )
+				buildContinuum();
+
+			if ( previous == this || ( previous != null && !previous.isInitialized() ) )
+				previous = null;
+
+			// in pipelined mode the transport owns the connections,
+			// otherwise initalize our internal hashing structures
+			if ( options.transportMode == TransportMode.PIPELINED ) {
+				if ( previous != null && previous.transport != null ) {
+					transport = previous.transport;
+					transport.adopt( this, getAllHosts() );
+					previous.successor = this;
+				}
+				else {
+					try {
+						transport = new PipelinedTransport( this, options, "config-" + config.getId() );
+					}
+					catch ( IOException e ) {
+						log.error( "++++ failed to start pipelined transport", e );
+						throw new IllegalStateException( "++++ failed to start pipelined transport", e );
+					}
+				}
+			}
+			else if ( previous != null && previous.transport == null ) {
+				takeOver( previous );
+
+				if ( previous.batchTransport != null ) {
+					batchTransport = previous.batchTransport;
+					batchTransport.adopt( this, getAllHosts() );
+				}
+			}
+			else {
+				populateBuckets();
+			}
 
 			// mark pool as initialized
 			this.initialized = true;
@@ -405,24 +581,283 @@ public class SockIOPool {
 		if ( log.isDebugEnabled() )
 			log.debug( "++++ initializing internal hashing structure for consistent hashing" );
 
-		for ( int i = 0; i < config.getFragmentCount(); i++ ) {
-			String server = config.getFragment(i).getAddress();
-			// create initial connections
+		for ( String server : getAllHosts() )
+			createInitialConnections( server );
+	}
+
+	/**
+	 * Moves the idle connections of the previous pool to the servers
+	 * still in the config to this pool, and connects to the new servers.
+	 *
+	 * @param previous pool of the previous config
+	 */
+	private void takeOver( SockIOPool previous ) {
+		if ( log.isDebugEnabled() )
+			log.debug( "++++ taking over connections of config " + previous.getRejigConfig().getId() );
+
+		// from now on the previous pool hands sockets checked in to us
+		previous.successor = this;
+
+		Map<String,HostPool> previousPools = previous.hostPools;
+		for ( String server : getAllHosts() ) {
+			HostPool previousPool = ( previousPools != null ) ? previousPools.get( server ) : null;
+			if ( previousPool == null ) {
+				createInitialConnections( server );
+				continue;
+			}
+
+			HostPool hostPool = getHostPool( server );
+			SockIO socket;
+			int moved = 0;
+			while ( ( socket = previousPool.pollAvail() ) != null ) {
+				socket.pool = this;
+				if ( socket.hasNoreplyWrites() )
+					noreplySockets.add( socket );
+				addSocketToPool( hostPool, socket );
+				moved++;
+			}
+
 			if ( log.isDebugEnabled() )
-				log.debug( "+++ creating initial connections (" + options.initConn + ") for host: " + server);
+				log.debug( "++++ took over " + moved + " idle sockets for host: " + server );
+		}
 
-			for ( int j = 0; j < options.initConn; j++ ) {
-				SockIO socket = createSocket( server );
-				if ( socket == null ) {
-					log.error( "++++ failed to create connection to: " + server + " -- only " + j + " created." );
-					break;
+		// no point in hammering a server the previous pool gave up on
+		previous.hostDeadLock.lock();
+		try {
+			if ( previous.hostDead != null ) {
+				for ( String server : getAllHosts() ) {
+					if ( previous.hostDead.containsKey( server ) && previous.hostDeadDur.containsKey( server ) ) {
+						hostDead.put( server, previous.hostDead.get( server ) );
+						hostDeadDur.put( server, previous.hostDeadDur.get( server ) );
+					}
 				}
+			}
+		}
+		finally {
+			previous.hostDeadLock.unlock();
+		}
+	}
 
-				addSocketToPool( availPool, server, socket );
-				if ( log.isDebugEnabled() )
-					log.debug( "++++ created and added socket: " + socket.toString() + " for host " + server );
+	private void createInitialConnections( String server ) {
+		// create initial connections
+		if ( log.isDebugEnabled() )
+			log.debug( "+++ creating initial connections (" + options.initConn + ") for host: " + server);
+
+		for ( int j = 0; j < options.initConn; j++ ) {
+			SockIO socket = createSocket( server );
+			if ( socket == null ) {
+				log.error( "++++ failed to create connection to: " + server + " -- only " + j + " created." );
+				break;
+			}
+
+			addSocketToPool( getHostPool( server ), socket );
+			if ( log.isDebugEnabled() )
+				log.debug( "++++ created and added socket: " + socket.toString() + " for host " + server );
+		}
+	}
+
+	/**
+	 * Returns the distinct addresses of the fragments of the config.
+	 */
+	private Set<String> getAllHosts() {
+		Set<String> hosts = new HashSet<String>();
+		for ( Route route : routes )
+			hosts.add( route.address() );
+		return hosts;
+	}
+
+	/**
+	 * Returns true if requests are pipelined over shared channels
+	 * instead of using a checked out socket each.
+	 */
+	public boolean isPipelined() {
+		return transport != null;
+	}
+
+	/**
+	 * Sends out the noreply commands still sitting in the write buffers of
+	 * pooled sockets, or queued on the pipelined channels, and waits for
+	 * the servers to be done with them.  The failures they reported can
+	 * then be taken with {@link #drainNoreplyFailures()}.
+	 *
+	 * A socket some other thread is using is waited for until socketTO;
+	 * the command that thread sends carries the barrier anyway.
+	 *
+	 * @return false if some connection could not be flushed
+	 */
+	public boolean flushWrites() {
+		if ( !this.initialized ) {
+			SockIOPool next = this.successor;
+			return ( next != null ) ? next.flushWrites() : true;
+		}
+
+		if ( transport != null )
+			return transport.flushWrites();
+
+		boolean flushed = true;
+		long deadline = Deadline.cap( System.currentTimeMillis() + options.socketTO );
+		for ( Iterator<SockIO> i = noreplySockets.iterator(); i.hasNext(); ) {
+			SockIO socket = i.next();
+			i.remove();
+			if ( !sync( socket, deadline ) )
+				flushed = false;
+		}
+		return flushed;
+	}
+
+	/**
+	 * Checks an avail socket out to sync it, see {@link SockIO#sync()}.
+	 */
+	private boolean sync( SockIO socket, long deadline ) {
+		Map<String,HostPool> pools = this.hostPools;
+		HostPool hostPool = ( pools != null ) ? pools.get( socket.getHost() ) : null;
+		if ( hostPool == null )
+			return !socket.hasNoreplyWrites();
+
+		try {
+			if ( !hostPool.awaitCheckIn( socket, deadline ) )
+				return !socket.hasNoreplyWrites();
+		}
+		catch ( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+
+		hostPool.markBusy( socket );
+		try {
+			socket.sync();
+			socket.close();
+			return true;
+		}
+		catch ( IOException e ) {
+			log.error( "++++ failed to flush noreply commands to " + socket.getHost() + ": " + e.getMessage() );
+			try { socket.trueClose(); } catch ( IOException ignoreMe ) { }
+			return false;
+		}
+	}
+
+	/**
+	 * Syncs the sockets holding noreply commands which are idle right now,
+	 * so the commands do not wait for the next use of the socket to go out,
+	 * then has the failures reported.  Sockets in use are left alone: the
+	 * next command on them carries the barrier.  Run by the maint thread.
+	 */
+	private void syncIdleSockets() {
+		for ( Iterator<SockIO> i = noreplySockets.iterator(); i.hasNext(); ) {
+			SockIO socket = i.next();
+			HostPool hostPool = hostPools.get( socket.getHost() );
+
+			// a busy socket is put back in the set on check-in if it still needs it
+			i.remove();
+			if ( hostPool == null || !socket.hasNoreplyWrites() || !hostPool.removeAvail( socket ) )
+				continue;
+
+			hostPool.markBusy( socket );
+			try {
+				socket.sync();
+				socket.close();
+			}
+			catch ( IOException e ) {
+				log.error( "++++ failed to flush noreply commands to " + socket.getHost() + ": " + e.getMessage() );
+				try { socket.trueClose(); } catch ( IOException ignoreMe ) { }
+			}
+		}
+
+		Runnable listener = this.noreplyListener;
+		if ( listener != null && !noreplyFailures.isEmpty() ) {
+			try {
+				listener.run();
+			}
+			catch ( RuntimeException e ) {
+				log.error( "++++ failed to report noreply failures", e );
+			}
+		}
+	}
+
+	/**
+	 * Sets what the maint thread runs when failures of noreply commands
+	 * are queued, so they are reported without waiting for the next call
+	 * into the client.
+	 *
+	 * @param listener takes the failures with drainNoreplyFailures()
+	 */
+	void setNoreplyListener( Runnable listener ) {
+		this.noreplyListener = listener;
+	}
+
+	/**
+	 * Queues what a server sent back for a failed noreply command.  A
+	 * retired pool passes it on to the pool the client uses now.
+	 */
+	void noreplyFailed( String host, String key, String response ) {
+		SockIOPool next = this.successor;
+		if ( next != null )
+			next.noreplyFailed( host, key, response );
+		else
+			noreplyFailures.add( new NoreplyFailure( host, key, response ) );
+	}
+
+	/**
+	 * Takes the failures of noreply commands reported so far.
+	 *
+	 * @return failures, oldest first; empty if there were none
+	 */
+	public List<NoreplyFailure> drainNoreplyFailures() {
+		if ( noreplyFailures.isEmpty() )
+			return Collections.emptyList();
+
+		List<NoreplyFailure> failures = new ArrayList<NoreplyFailure>();
+		NoreplyFailure failure;
+		while ( ( failure = noreplyFailures.poll() ) != null )
+			failures.add( failure );
+		return failures;
+	}
+
+	/**
+	 * Returns the shared channels of a pipelined pool.
+	 *
+	 * @return transport or null if the pool uses blocking sockets
+	 */
+	PipelinedTransport getTransport() {
+		return transport;
+	}
+
+	/**
+	 * Returns the channels multi key batches are sent on.
+	 *
+	 * A pipelined pool sends them on its shared channels.  A blocking pool<br/>
+	 * keeps non-blocking channels of its own for them, driven by one event<br/>
+	 * loop thread, so no socket is ever flipped between blocking modes and<br/>
+	 * no selector is opened per call.  They are opened on first use and<br/>
+	 * handed on to the pool of the next config like the sockets are.
+	 *
+	 * @return transport or null if the pool was shut down
+	 */
+	PipelinedTransport getBatchTransport() {
+		if ( transport != null )
+			return transport;
+
+		PipelinedTransport batches = batchTransport;
+		if ( batches != null )
+			return batches;
+
+		synchronized( this ) {
+			if ( batchTransport == null && this.initialized && this.successor == null ) {
+				try {
+					batchTransport = new PipelinedTransport( this, options, "batch-config-" + config.getId() );
+				}
+				catch ( IOException e ) {
+					log.error( "++++ failed to start transport for batches", e );
+				}
 			}
+			batches = batchTransport;
 		}
+
+		// a retired pool leaves it to the pool of the new config
+		SockIOPool next = this.successor;
+		if ( batches == null && next != null )
+			return next.getBatchTransport();
+		return batches;
 	}
 
 	/**
@@ -466,16 +901,31 @@ public class SockIOPool {
 			hostDeadLock.unlock();
 		}
 
+		// an operation deadline cuts the connect short; timing out on
+		// that says nothing about the host, which is not marked dead
+		int connectTO;
+		try {
+			connectTO = Deadline.timeout( options.socketConnectTO );
+		}
+		catch ( SocketTimeoutException e ) {
+			return null;
+		}
+
 		try {
-			socket = new SockIO( this, host, this.options.socketTO, this.options.socketConnectTO, this.options.nagle );
+			socket = new SockIO( this, host, this.options.socketTO, connectTO, this.options.nagle );
 
 			if ( !socket.isConnected() ) {
 				log.error( "++++ failed to get SockIO obj for: " + host + " -- new socket is not connected" );
-				deadPool.put( socket, ZERO );
+				deadPool.offer( socket );
 				socket = null;
 			}
 		}
 		catch ( Exception ex ) {
+			if ( connectTO != options.socketConnectTO && ex instanceof SocketTimeoutException ) {
+				log.error( "++++ operation deadline passed connecting to: " + host );
+				return null;
+			}
+
 			log.error( "++++ failed to get SockIO obj for: " + host );
 			log.error( ex.getMessage(), ex );
 			socket = null;
@@ -498,8 +948,8 @@ public class SockIOPool {
 				if ( log.isDebugEnabled() )
 					log.debug( "++++ ignoring dead host: " + host + " for " + expire + " ms" );
 
-				// also clear all entries for this host from availPool
-				clearHostFromPool( availPool, host );
+				// also clear all avail entries for this host
+				clearHostFromPool( host );
 			}
 			else {
 				if ( log.isDebugEnabled() )
@@ -533,17 +983,112 @@ public class SockIOPool {
 	 * @return
 	 */
 	public String getHost( String key, Integer hashcode ) {
-		SockIO socket = getSockAndFragmentId( key, hashcode ).sock();
-		String host = socket.getHost();
-		socket.close();
-		return host;
+		Route route = route( key, hashcode );
+		return ( route == null ) ? null : route.address();
+	}
+
+	/**
+	 * Returns the fragment a key maps to without checking out a connection.
+	 *
+	 * Uses the same hashing and, when failover is on, the same rehashing
+	 * as getSockAndFragmentId; servers currently marked dead are skipped.
+	 * Routes are created once per config so this does not allocate unless
+	 * a dead server has to be skipped.
+	 *
+	 * @param key cache key
+	 * @param hashCode if not null, then the int hashcode to use
+	 * @return route to the fragment, or null if no server is available
+	 */
+	public Route route( String key, Integer hashCode ) {
+
+		// callers still holding a retired pool are routed by its successor
+		SockIOPool next = retiredTo();
+		if ( next != null )
+			return next.route( key, hashCode );
+
+		if ( !this.initialized ) {
+			log.error( "attempting to route with uninitialized pool!" );
+			return null;
+		}
+
+		Route[] routes = this.routes;
+		if ( routes.length == 0 )
+			return null;
+
+		if ( routes.length == 1 )
+			return routes[0];
+
+		Route route = routes[ (int)getBucket( key, hashCode ) ];
+		if ( !options.failover || !isHostDead( route.address ) )
+			return route;
+
+		// same rehashing as getSockAndFragmentId
+		Set<Route> tryRoutes = new HashSet<Route>( Arrays.asList( routes ) );
+		while ( true ) {
+			tryRoutes.remove( route );
+			if ( tryRoutes.isEmpty() )
+				return null;
+
+			int rehashTries = 0;
+			while ( !tryRoutes.contains( route ) ) {
+				// the same key String.format( "%s%s", ... ) makes in getSockAndFragmentId
+				String newKey = rehashTries + key;
+				if ( log.isDebugEnabled() )
+					log.debug( "rehashing with: " + newKey );
+
+				route = routes[ (int)getBucket( newKey, null ) ];
+				rehashTries++;
+			}
+
+			if ( !isHostDead( route.address ) )
+				return route;
+		}
+	}
+
+	/**
+	 * Returns the pool which took this one over, once this one is retired
+	 * or shut down, null while this one is still in use.
+	 */
+	private SockIOPool retiredTo() {
+		return ( retireDeadline != 0 || !this.initialized ) ? this.successor : null;
+	}
+
+	/**
+	 * Returns true if connecting to the host failed recently and it is
+	 * not to be retried yet.
+	 */
+	private boolean isHostDead( String host ) {
+		if ( transport != null )
+			return transport.isHostDead( host );
+
+		hostDeadLock.lock();
+		try {
+			if ( hostDead.isEmpty() )
+				return false;
+
+			Date store = hostDead.get( host );
+			Long expire = hostDeadDur.get( host );
+			return store != null && expire != null && ( store.getTime() + expire.longValue() ) > System.currentTimeMillis();
+		}
+		finally {
+			hostDeadLock.unlock();
+		}
 	}
 
 	public SockAndFragmentId getHostSockAndFragmentId( String host ) {
+		// once retired, the host is reached as a fragment of the successor's
+		// config, unless it is not part of it any more
+		SockIOPool next = retiredTo();
+		if ( next != null ) {
+			SockAndFragmentId sockAndId = next.getHostSockAndFragmentId( host );
+			if ( sockAndId != null )
+				return sockAndId;
+		}
+
 		int i = 0;
 		for (Fragment f: config.getFragmentList()) {
 			if (f.getAddress().equals(host)) {
-				return getSockAndFragmentId( null, i );
+				return getSockAndFragmentId( null, null, i );
 			}
 			i++;
 		}
@@ -575,15 +1120,35 @@ public class SockIOPool {
 	 * @return SockAndFragmentId obj connected to server
 	 */
 	public SockAndFragmentId getSockAndFragmentId( String key, Integer hashCode ) {
+		return getSockAndFragmentId( key, hashCode, -1 );
+	}
+
+	/**
+	 * Same as {@link #getSockAndFragmentId(String, Integer)}, but starts
+	 * at the passed in bucket when it is not negative instead of hashing
+	 * the key.
+	 */
+	private SockAndFragmentId getSockAndFragmentId( String key, Integer hashCode, long startBucket ) {
 
 		if ( log.isDebugEnabled() )
 			log.debug( "cache socket pick " + key + " " + hashCode );
 
+		// callers still holding a retired pool are served by its successor,
+		// socket and fragment both, so commands carry the current config
+		SockIOPool next = retiredTo();
+		if ( next != null && startBucket < 0 )
+			return next.getSockAndFragmentId( key, hashCode, startBucket );
+
 		if ( !this.initialized ) {
 			log.error( "attempting to get SockIO from uninitialized pool!" );
 			return null;
 		}
 
+		if ( Deadline.passed() ) {
+			log.error( "++++ operation deadline passed before a server was picked for: " + key );
+			return null;
+		}
+
 		// if no servers return null
 		if ( config != null && config.getFragmentCount() == 0 )
 			return null;
@@ -604,13 +1169,12 @@ public class SockIOPool {
 			}
 			else {
 				if ( sock != null ) {
-					deadPool.put( sock, ZERO );
+					deadPool.offer( sock );
 					sock = null;
 				}
 			}
 
-			return new SockAndFragmentId(
-				sock, config.getFragment(0).getId(), 1);
+			return new SockAndFragmentId( sock, routes[0] );
 		}
 
 		// from here on, we are working w/ multiple servers
@@ -619,9 +1183,8 @@ public class SockIOPool {
 		Set<Fragment> tryServers = new HashSet<Fragment>( config.getFragmentList() );
 
 		// get initial bucket
-		long bucket = getBucket( key, hashCode );
+		long bucket = ( startBucket >= 0 ) ? startBucket : getBucket( key, hashCode );
 		Fragment fragment = config.getFragment( (int)bucket );
-		int fragmentNum = ((int)bucket) + 1;
 
 		while ( !tryServers.isEmpty() ) {
 
@@ -635,7 +1198,7 @@ public class SockIOPool {
 			if ( sock != null && sock.isConnected() ) {
 				if ( options.aliveCheck ) {
 					if ( sock.isAlive() ) {
-						return new SockAndFragmentId(sock, fragment.getId(), fragmentNum);
+						return new SockAndFragmentId( sock, routes[ (int)bucket ] );
 					}
 					else {
 						sock.close();
@@ -644,12 +1207,12 @@ public class SockIOPool {
 					}
 				}
 				else {
-					return new SockAndFragmentId(sock, fragment.getId(), fragmentNum);
+					return new SockAndFragmentId( sock, routes[ (int)bucket ] );
 				}
 			}
 			else {
 				if ( sock != null ) {
-					deadPool.put( sock, ZERO );
+					deadPool.offer( sock );
 					sock = null;
 				}
 			}
@@ -661,7 +1224,8 @@ public class SockIOPool {
 			// log that we tried
 			tryServers.remove( fragment );
 
-			if ( tryServers.isEmpty() )
+			// failing over is only worth it with time left
+			if ( tryServers.isEmpty() || Deadline.passed() )
 				break;
 
 			// if we failed to get a socket from this server
@@ -697,6 +1261,10 @@ public class SockIOPool {
 	public SockIO getConnection( String host ) {
 
 		if ( !this.initialized ) {
+			SockIOPool next = this.successor;
+			if ( next != null )
+				return next.getConnection( host );
+
 			log.error( "attempting to get SockIO from uninitialized pool!" );
 			return null;
 		}
@@ -704,129 +1272,108 @@ public class SockIOPool {
 		if ( host == null )
 			return null;
 
-		synchronized( this ) {
+		if ( transport != null )
+			return transport.getSock( host );
 
-			// if we have items in the pool
-			// then we can return it
-			if ( availPool != null && !availPool.isEmpty() ) {
+		// once retired, connections come from the pool of the new config
+		SockIOPool next = this.successor;
+		if ( retireDeadline != 0 && next != null ) {
+			Map<String,HostPool> nextPools = next.hostPools;
+			if ( nextPools != null && nextPools.containsKey( host ) )
+				return next.getConnection( host );
+		}
 
-				// take first connected socket
-				Map<SockIO,Long> aSockets = availPool.get( host );
+		HostPool hostPool = getHostPool( host );
 
-				if ( aSockets != null && !aSockets.isEmpty() ) {
+		// if we have items in the pool
+		// then we can return the first connected one
+		SockIO socket;
+		while ( ( socket = hostPool.pollAvail() ) != null ) {
 
-					for ( Iterator<SockIO> i = aSockets.keySet().iterator(); i.hasNext(); ) {
-						SockIO socket = i.next();
+			if ( socket.isConnected() ) {
+				if ( log.isDebugEnabled() )
+					log.debug( "++++ moving socket for host (" + host + ") to busy pool ... socket: " + socket );
 
-						if ( socket.isConnected() ) {
-							if ( log.isDebugEnabled() )
-								log.debug( "++++ moving socket for host (" + host + ") to busy pool ... socket: " + socket );
+				// add to busy pool and return socket
+				hostPool.markBusy( socket );
+				return socket;
+			}
 
-							// remove from avail pool
-							i.remove();
+			// add to deadpool for later reaping
+			deadPool.offer( socket );
+		}
 
-							// add to busy pool
-							addSocketToPool( busyPool, host, socket );
+		// create one socket -- let the maint thread take care of creating more
+		socket = createSocket( host );
+		if ( socket != null )
+			hostPool.markBusy( socket );
 
-							// return socket
-							return socket;
-						}
-						else {
-							// add to deadpool for later reaping
-							deadPool.put( socket, ZERO );
-
-							// remove from avail pool
-							i.remove();
-						}
-					}
-				}
-			}
-		}
-
-		// create one socket -- let the maint thread take care of creating more
-		SockIO socket = createSocket( host );
-		if ( socket != null ) {
-			synchronized( this ) {
-				addSocketToPool( busyPool, host, socket );
-			}
-		}
-
-		return socket;
-	}
+		return socket;
+	}
 
 	/**
-	 * Adds a socket to a given pool for the given host.
-	 * THIS METHOD IS NOT THREADSAFE, SO BE CAREFUL WHEN USING!
-	 *
-	 * Internal utility method.
+	 * Returns the per host pool for the given host, creating it
+	 * if this is the first time we see the host.
 	 *
-	 * @param pool pool to add to
-	 * @param host host this socket is connected to
-	 * @param socket socket to add
+	 * @param host host:port of the pool
+	 * @return per host pool
 	 */
-	protected void addSocketToPool( Map<String,Map<SockIO,Long>> pool, String host, SockIO socket ) {
-
-		if ( pool.containsKey( host ) ) {
-			Map<SockIO,Long> sockets = pool.get( host );
-
-			if ( sockets != null ) {
-				sockets.put( socket, new Long( System.currentTimeMillis() ) );
-				return;
-			}
-		}
-
-		Map<SockIO,Long> sockets =
-			new IdentityHashMap<SockIO,Long>();
+	protected HostPool getHostPool( String host ) {
+		HostPool hostPool = hostPools.get( host );
+		if ( hostPool != null )
+			return hostPool;
+
+		hostPool = new HostPool( host, stripeCount() );
+		HostPool prev = hostPools.putIfAbsent( host, hostPool );
+		return ( prev != null ) ? prev : hostPool;
+	}
 
-		sockets.put( socket, new Long( System.currentTimeMillis() ) );
-		pool.put( host, sockets );
+	/**
+	 * Number of avail stacks per host.  One per core (rounded up to a
+	 * power of two) so threads on different cores rarely touch the same
+	 * stack head.
+	 */
+	private static int stripeCount() {
+		int cores = Runtime.getRuntime().availableProcessors();
+		int stripes = 1;
+		while ( stripes < cores && stripes < 64 )
+			stripes <<= 1;
+		return stripes;
 	}
 
 	/**
-	 * Removes a socket from specified pool for host.
-	 * THIS METHOD IS NOT THREADSAFE, SO BE CAREFUL WHEN USING!
+	 * Adds a socket to the avail stack of the given host pool.
 	 *
 	 * Internal utility method.
 	 *
-	 * @param pool pool to remove from
-	 * @param host host pool
-	 * @param socket socket to remove
+	 * @param hostPool pool to add to
+	 * @param socket socket to add
 	 */
-	protected void removeSocketFromPool( Map<String,Map<SockIO,Long>> pool, String host, SockIO socket ) {
-		if ( pool.containsKey( host ) ) {
-			Map<SockIO,Long> sockets = pool.get( host );
-			if ( sockets != null )
-				sockets.remove( socket );
-		}
+	protected void addSocketToPool( HostPool hostPool, SockIO socket ) {
+		socket.lastCheckIn = System.currentTimeMillis();
+		hostPool.pushAvail( socket );
 	}
 
 	/**
-	 * Closes and removes all sockets from specified pool for host.
-	 * THIS METHOD IS NOT THREADSAFE, SO BE CAREFUL WHEN USING!
+	 * Closes and removes all avail sockets for host.
 	 *
 	 * Internal utility method.
 	 *
-	 * @param pool pool to clear
 	 * @param host host to clear
 	 */
-	protected void clearHostFromPool( Map<String,Map<SockIO,Long>> pool, String host ) {
+	protected void clearHostFromPool( String host ) {
 
-		if ( pool.containsKey( host ) ) {
-			Map<SockIO,Long> sockets = pool.get( host );
+		HostPool hostPool = hostPools.get( host );
+		if ( hostPool == null )
+			return;
 
-			if ( sockets != null && sockets.size() > 0 ) {
-				for ( Iterator<SockIO> i = sockets.keySet().iterator(); i.hasNext(); ) {
-					SockIO socket = i.next();
-					try {
-						socket.trueClose();
-					}
-					catch ( IOException ioe ) {
-						log.error( "++++ failed to close socket: " + ioe.getMessage() );
-					}
-
-					i.remove();
-					socket = null;
-				}
+		SockIO socket;
+		while ( ( socket = hostPool.pollAvail() ) != null ) {
+			try {
+				socket.trueClose( false );
+			}
+			catch ( IOException ioe ) {
+				log.error( "++++ failed to close socket: " + ioe.getMessage() );
 			}
 		}
 	}
@@ -846,22 +1393,54 @@ public class SockIOPool {
 		if ( log.isDebugEnabled() )
 			log.debug( "++++ calling check-in on socket: " + socket.toString() + " for host: " + host );
 
-		synchronized( this ) {
-			// remove from the busy pool
-			if ( log.isDebugEnabled() )
-				log.debug( "++++ removing socket (" + socket.toString() + ") from busy pool for host: " + host );
-			removeSocketFromPool( busyPool, host, socket );
-
-			if ( socket.isConnected() && addToAvail ) {
-				// add to avail pool
-				if ( log.isDebugEnabled() )
-					log.debug( "++++ returning socket (" + socket.toString() + " to avail pool for host: " + host );
-				addSocketToPool( availPool, host, socket );
+		// busy when the pool was retired, hand it on; the next pool keeps
+		// it if the server is still in the config.  until retire() the pool
+		// still serves requests, and keeps its sockets as usual
+		if ( retireDeadline != 0 ) {
+			SockIOPool next = this.successor;
+			Map<String,HostPool> pools = this.hostPools;
+			HostPool hostPool = ( pools != null ) ? pools.get( host ) : null;
+			if ( hostPool != null )
+				hostPool.busy.remove( socket );
+
+			if ( next != null ) {
+				socket.pool = next;
+				next.checkIn( socket, addToAvail );
 			}
-			else {
-				deadPool.put( socket, ZERO );
-				socket = null;
+			else if ( addToAvail ) {
+				try { socket.trueClose( false ); } catch ( IOException ioe ) { log.error( "++++ failed to close socket: " + ioe.getMessage() ); }
 			}
+
+			// the last one out closes the retired pool
+			if ( busyCount() == 0 )
+				finishRetire( false );
+			return;
+		}
+
+		Map<String,HostPool> pools = this.hostPools;
+		if ( pools == null ) {
+			// pool was shut down underneath us
+			try { socket.trueClose( false ); } catch ( IOException ioe ) { log.error( "++++ failed to close socket: " + ioe.getMessage() ); }
+			return;
+		}
+
+		// remove from the busy pool
+		if ( log.isDebugEnabled() )
+			log.debug( "++++ removing socket (" + socket.toString() + ") from busy pool for host: " + host );
+		HostPool hostPool = pools.get( host );
+		if ( hostPool != null )
+			hostPool.busy.remove( socket );
+
+		if ( socket.isConnected() && addToAvail && hostPool != null ) {
+			// add to avail pool
+			if ( log.isDebugEnabled() )
+				log.debug( "++++ returning socket (" + socket.toString() + " to avail pool for host: " + host );
+			if ( socket.hasNoreplyWrites() )
+				noreplySockets.add( socket );
+			addSocketToPool( hostPool, socket );
+		}
+		else {
+			deadPool.offer( socket );
 		}
 	}
 
@@ -879,31 +1458,104 @@ public class SockIOPool {
 	}
 
 	/**
-	 * Closes all sockets in the passed in pool.
+	 * Closes all avail and busy sockets in the passed in host pool.
 	 *
 	 * Internal utility method.
 	 *
-	 * @param pool pool to close
+	 * @param hostPool pool to close
 	 */
-	protected void closePool( Map<String,Map<SockIO,Long>> pool ) {
-		 for ( Iterator<String> i = pool.keySet().iterator(); i.hasNext(); ) {
-			 String host = i.next();
-			 Map<SockIO,Long> sockets = pool.get( host );
-
-			 for ( Iterator<SockIO> j = sockets.keySet().iterator(); j.hasNext(); ) {
-				 SockIO socket = j.next();
-
-				 try {
-					 socket.trueClose();
-				 }
-				 catch ( IOException ioe ) {
-					 log.error( "++++ failed to trueClose socket: " + socket.toString() + " for host: " + host );
-				 }
-
-				 j.remove();
-				 socket = null;
-			 }
-		 }
+	protected void closePool( HostPool hostPool ) {
+		List<SockIO> sockets = new ArrayList<SockIO>( hostPool.busy.keySet() );
+		hostPool.busy.clear();
+
+		SockIO socket;
+		while ( ( socket = hostPool.pollAvail() ) != null )
+			sockets.add( socket );
+
+		for ( SockIO s : sockets ) {
+			try {
+				s.trueClose( false );
+			}
+			catch ( IOException ioe ) {
+				log.error( "++++ failed to trueClose socket: " + s.toString() + " for host: " + hostPool.host );
+			}
+		}
+	}
+
+	/**
+	 * Retires a pool which has been replaced by the pool of a newer config.
+	 *
+	 * The pool stops handing out its own connections (they come from the
+	 * pool which took it over instead) and closes its idle ones.  Once every
+	 * busy socket has been checked in, or maxBusyTime has passed and the
+	 * ones left are considered hung, the pool shuts down and is removed
+	 * from the pool registry.
+	 */
+	public void retire() {
+		synchronized( this ) {
+			if ( !initialized || retireDeadline != 0 )
+				return;
+
+			retireDeadline = System.currentTimeMillis() + options.maxBusyTime;
+		}
+
+		if ( log.isDebugEnabled() )
+			log.debug( "++++ retiring pool " + poolName + " with " + busyCount() + " busy sockets" );
+
+		Map<String,HostPool> pools = this.hostPools;
+		if ( pools != null ) {
+			for ( String host : pools.keySet() )
+				clearHostFromPool( host );
+		}
+
+		if ( busyCount() == 0 ) {
+			finishRetire( false );
+			return;
+		}
+
+		// the maint thread enforces the deadline
+		synchronized( this ) {
+			if ( maintThread == null ) {
+				maintThread = new MaintThread( this );
+				maintThread.setInterval( 1000 );
+				maintThread.start();
+			}
+		}
+	}
+
+	/**
+	 * Shuts down a retired pool, closing the sockets still busy if
+	 * the deadline has passed.
+	 *
+	 * @param expired true if the deadline has passed
+	 */
+	private void finishRetire( boolean expired ) {
+		synchronized( this ) {
+			if ( !initialized )
+				return;
+
+			if ( expired ) {
+				log.warn( "++++ closing " + busyCount() + " sockets still busy in retired pool " + poolName );
+				for ( HostPool hostPool : hostPools.values() )
+					closePool( hostPool );
+			}
+
+			shutDown();
+		}
+	}
+
+	/**
+	 * Returns the number of sockets checked out of this pool.
+	 */
+	private int busyCount() {
+		Map<String,HostPool> pools = this.hostPools;
+		if ( pools == null )
+			return 0;
+
+		int count = 0;
+		for ( HostPool hostPool : pools.values() )
+			count += hostPool.busy.size();
+		return count;
 	}
 
 	/**
@@ -912,6 +1564,7 @@ public class SockIOPool {
 	 * Cleanly closes all sockets.<br/>
 	 * Stops the maint thread.<br/>
 	 * Nulls out all internal maps<br/>
+	 * Removes the pool from the pool registry.<br/>
 	 */
 	public void shutDown() {
 		synchronized( this ) {
@@ -922,24 +1575,45 @@ public class SockIOPool {
 				// stop the main thread
 				stopMaintThread();
 
-				// wait for the thread to finish
-				while ( maintThread.isRunning() ) {
+				// wait for the thread to finish, unless we are it; the maint
+				// thread of a retired pool only ever shuts the pool down, so
+				// it may be blocked on us
+				while ( maintThread.isRunning() && maintThread != Thread.currentThread() && retireDeadline == 0 ) {
 					if ( log.isDebugEnabled() )
 						log.debug( "++++ waiting for main thread to finish run +++" );
-					try { Thread.sleep( 500 ); } catch ( Exception ex ) { }
+					try { maintThread.join( 500 ); } catch ( Exception ex ) { }
 				}
 			}
 
 			if ( log.isDebugEnabled() )
 				log.debug( "++++ closing all internal pools." );
-			closePool( availPool );
-			closePool( busyPool );
-			availPool         = null;
-			busyPool          = null;
+
+			// once taken over, busy sockets are left to drain on check in
+			// and the transport belongs to the next pool
+			SockIOPool next = this.successor;
+			for ( HostPool hostPool : hostPools.values() ) {
+				if ( next == null )
+					closePool( hostPool );
+				else
+					clearHostFromPool( hostPool.host );
+			}
+			if ( transport != null && ( next == null || next.transport != transport ) )
+				transport.shutDown();
+			if ( batchTransport != null && ( next == null || next.batchTransport != batchTransport ) )
+				batchTransport.shutDown();
+			transport         = null;
+			batchTransport    = null;
+			hostPools         = null;
 			hostDeadDur       = null;
 			hostDead          = null;
 			maintThread       = null;
 			initialized       = false;
+
+			synchronized( SockIOPool.class ) {
+				if ( poolName != null && pools.get( poolName ) == this )
+					pools.remove( poolName );
+			}
+
 			if ( log.isDebugEnabled() )
 				log.debug( "++++ SockIOPool finished shutting down." );
 		}
@@ -984,144 +1658,95 @@ public class SockIOPool {
 	 * This is typically called by the maintenance thread to manage pool size.
 	 */
 	protected void selfMaint() {
+		// a retired pool only waits for its busy sockets
+		if ( retireDeadline != 0 ) {
+			if ( busyCount() == 0 || retireDeadline < System.currentTimeMillis() )
+				finishRetire( busyCount() > 0 );
+			return;
+		}
+
 		if ( log.isDebugEnabled() )
 			log.debug( "++++ Starting self maintenance...." );
 
-		// go through avail sockets and create sockets
-		// as needed to maintain pool settings
-		Map<String,Integer> needSockets =
-			new HashMap<String,Integer>();
+		// noreply commands do not sit in idle sockets until their next use
+		syncIdleSockets();
 
-		synchronized( this ) {
-			// find out how many to create
-			for ( Iterator<String> i = availPool.keySet().iterator(); i.hasNext(); ) {
-				String host              = i.next();
-				Map<SockIO,Long> sockets = availPool.get( host );
-
-				if ( log.isDebugEnabled() )
-					log.debug( "++++ Size of avail pool for host (" + host + ") = " + sockets.size() );
-
-				// if pool is too small (n < minSpare)
-				if ( sockets.size() < options.minConn ) {
-					// need to create new sockets
-					int need = options.minConn - sockets.size();
-					needSockets.put( host, need );
-				}
-			}
-		}
-
-		// now create
-		Map<String,Set<SockIO>> newSockets =
-			new HashMap<String,Set<SockIO>>();
-
-		for ( String host : needSockets.keySet() ) {
-			Integer need = needSockets.get( host );
+		for ( HostPool hostPool : hostPools.values() ) {
+			String host = hostPool.host;
+			int avail   = hostPool.availSize();
 
 			if ( log.isDebugEnabled() )
-				log.debug( "++++ Need to create " + need + " new sockets for pool for host: " + host );
+				log.debug( "++++ Size of avail pool for host (" + host + ") = " + avail );
 
-			Set<SockIO> newSock = new HashSet<SockIO>( need );
-			for ( int j = 0; j < need; j++ ) {
-				SockIO socket = createSocket( host );
-
-				if ( socket == null )
-					break;
+			// if pool is too small (n < minSpare)
+			if ( avail < options.minConn ) {
+				// need to create new sockets
+				int need = options.minConn - avail;
+				if ( log.isDebugEnabled() )
+					log.debug( "++++ Need to create " + need + " new sockets for pool for host: " + host );
 
-				newSock.add( socket );
-			}
+				for ( int j = 0; j < need; j++ ) {
+					SockIO socket = createSocket( host );
 
-			newSockets.put( host, newSock );
-		}
+					if ( socket == null )
+						break;
 
-		// synchronize to add and remove to/from avail pool
-		// as well as clean up the busy pool (no point in releasing
-		// lock here as should be quick to pool adjust and no
-		// blocking ops here)
-		synchronized( this ) {
-			for ( String host : newSockets.keySet() ) {
-				Set<SockIO> sockets = newSockets.get( host );
-				for ( SockIO socket : sockets )
-					addSocketToPool( availPool, host, socket );
+					addSocketToPool( hostPool, socket );
+				}
 			}
+			else if ( avail > options.maxConn ) {
+				// need to close down some sockets
+				int diff        = avail - options.maxConn;
+				int needToClose = (diff <= poolMultiplier)
+					? diff
+					: (diff) / poolMultiplier;
 
-			for ( Iterator<String> i = availPool.keySet().iterator(); i.hasNext(); ) {
-				String host              = i.next();
-				Map<SockIO,Long> sockets = availPool.get( host );
 				if ( log.isDebugEnabled() )
-					log.debug( "++++ Size of avail pool for host (" + host + ") = " + sockets.size() );
+					log.debug( "++++ need to remove " + needToClose + " spare sockets for pool for host: " + host );
+
+				long now = System.currentTimeMillis();
+				for ( SockIO socket : hostPool.availSnapshot() ) {
+					if ( needToClose <= 0 )
+						break;
 
-				if ( sockets.size() > options.maxConn ) {
-					// need to close down some sockets
-					int diff        = sockets.size() - options.maxConn;
-					int needToClose = (diff <= poolMultiplier)
-						? diff
-						: (diff) / poolMultiplier;
+					// if past idle time
+					// then close socket
+					// and remove from pool
+					// (only if no other thread grabbed it meanwhile)
+					if ( (socket.lastCheckIn + options.maxIdle) < now && hostPool.removeAvail( socket ) ) {
+						if ( log.isDebugEnabled() )
+							log.debug( "+++ removing stale entry from pool as it is past its idle timeout and pool is over max spare" );
 
-					if ( log.isDebugEnabled() )
-						log.debug( "++++ need to remove " + needToClose + " spare sockets for pool for host: " + host );
-
-					for ( Iterator<SockIO> j = sockets.keySet().iterator(); j.hasNext(); ) {
-						if ( needToClose <= 0 )
-							break;
-
-						// remove stale entries
-						SockIO socket = j.next();
-						long expire   = sockets.get( socket ).longValue();
-
-						// if past idle time
-						// then close socket
-						// and remove from pool
-						if ( (expire + options.maxIdle) < System.currentTimeMillis() ) {
-							if ( log.isDebugEnabled() )
-								log.debug( "+++ removing stale entry from pool as it is past its idle timeout and pool is over max spare" );
-
-							// remove from the availPool
-							deadPool.put( socket, ZERO );
-							j.remove();
-							needToClose--;
-						}
+						deadPool.offer( socket );
+						needToClose--;
 					}
 				}
 			}
 
 			// go through busy sockets and destroy sockets
 			// as needed to maintain pool settings
-			for ( Iterator<String> i = busyPool.keySet().iterator(); i.hasNext(); ) {
-
-				String host              = i.next();
-				Map<SockIO,Long> sockets = busyPool.get( host );
-
-				if ( log.isDebugEnabled() )
-					log.debug( "++++ Size of busy pool for host (" + host + ")  = " + sockets.size() );
-
-				// loop through all connections and check to see if we have any hung connections
-				for ( Iterator<SockIO> j = sockets.keySet().iterator(); j.hasNext(); ) {
-					// remove stale entries
-					SockIO socket = j.next();
-					long hungTime = sockets.get( socket ).longValue();
-
-					// if past max busy time
-					// then close socket
-					// and remove from pool
-					if ( (hungTime + options.maxBusyTime) < System.currentTimeMillis() ) {
-						log.error( "+++ removing potentially hung connection from busy pool ... socket in pool for " + (System.currentTimeMillis() - hungTime) + "ms" );
-
-						// remove from the busy pool
-						deadPool.put( socket, ZERO );
-						j.remove();
-					}
+			if ( log.isDebugEnabled() )
+				log.debug( "++++ Size of busy pool for host (" + host + ")  = " + hostPool.busy.size() );
+
+			// loop through all connections and check to see if we have any hung connections
+			for ( Map.Entry<SockIO,Long> entry : hostPool.busy.entrySet() ) {
+				SockIO socket = entry.getKey();
+				long hungTime = entry.getValue().longValue();
+
+				// if past max busy time
+				// then close socket
+				// and remove from pool
+				if ( (hungTime + options.maxBusyTime) < System.currentTimeMillis()
+						&& hostPool.busy.remove( socket, entry.getValue() ) ) {
+					log.error( "+++ removing potentially hung connection from busy pool ... socket in pool for " + (System.currentTimeMillis() - hungTime) + "ms" );
+					deadPool.offer( socket );
 				}
 			}
 		}
 
 		// finally clean out the deadPool
-		Set<SockIO> toClose;
-		synchronized( deadPool ) {
-			toClose  = deadPool.keySet();
-			deadPool = new IdentityHashMap<SockIO,Integer>();
-		}
-
-		for ( SockIO socket : toClose ) {
+		SockIO socket;
+		while ( ( socket = deadPool.poll() ) != null ) {
 			try {
 				socket.trueClose( false );
 			}
@@ -1129,8 +1754,6 @@ public class SockIOPool {
 				log.error( "++++ failed to close SockIO obj from deadPool" );
 				log.error( ex.getMessage(), ex );
 			}
-
-			socket = null;
 		}
 
 		if ( log.isDebugEnabled() )
@@ -1200,6 +1823,138 @@ public class SockIOPool {
 		}
 	}
 
+	/**
+	 * Avail and busy sockets for a single host.
+	 *
+	 * Avail sockets are kept on several lock-free LIFO stacks (one per
+	 * core) and threads push and pop on the stack picked by their thread
+	 * id, falling back to the other stacks when their own is empty.  This
+	 * keeps checkout/checkin off any pool wide monitor.  Busy sockets are
+	 * tracked in a concurrent map along with the time they were checked out
+	 * so the maint thread can still reap hung connections.
+	 */
+	protected static final class HostPool {
+
+		private final String host;
+		private final ConcurrentLinkedDeque<SockIO>[] avail;
+		private final int stripeMask;
+		private final ConcurrentMap<SockIO,Long> busy;
+
+		// threads in awaitCheckIn, check-ins only notify while there are some
+		private final AtomicInteger waiters = new AtomicInteger();
+
+		@SuppressWarnings( "unchecked" )
+		HostPool( String host, int stripes ) {
+			this.host       = host;
+			this.avail      = (ConcurrentLinkedDeque<SockIO>[])new ConcurrentLinkedDeque<?>[ stripes ];
+			this.stripeMask = stripes - 1;
+			this.busy       = new ConcurrentHashMap<SockIO,Long>( 16, 0.75f, stripes );
+			for ( int i = 0; i < stripes; i++ )
+				avail[i] = new ConcurrentLinkedDeque<SockIO>();
+		}
+
+		private int homeStripe() {
+			return (int)Thread.currentThread().getId() & stripeMask;
+		}
+
+		/**
+		 * Pops the most recently returned avail socket, or null if none.
+		 */
+		SockIO pollAvail() {
+			int home = homeStripe();
+			for ( int i = 0; i <= stripeMask; i++ ) {
+				SockIO socket = avail[ (home + i) & stripeMask ].pollFirst();
+				if ( socket != null )
+					return socket;
+			}
+			return null;
+		}
+
+		void pushAvail( SockIO socket ) {
+			avail[ homeStripe() ].offerFirst( socket );
+			wakeWaiters();
+		}
+
+		/**
+		 * Wakes the threads in awaitCheckIn to look at their socket again.
+		 */
+		void wakeWaiters() {
+			if ( waiters.get() > 0 ) {
+				synchronized( this ) {
+					notifyAll();
+				}
+			}
+		}
+
+		/**
+		 * Takes a socket holding noreply commands out of the avail stacks,
+		 * waiting for whoever uses it to check it in.
+		 *
+		 * @param socket socket to take
+		 * @param deadline time to give up at
+		 * @return true if taken; false if it no longer holds noreply commands
+		 *         or the deadline passed first
+		 */
+		boolean awaitCheckIn( SockIO socket, long deadline ) throws InterruptedException {
+			waiters.incrementAndGet();
+			try {
+				synchronized( this ) {
+					while ( socket.hasNoreplyWrites() ) {
+						if ( removeAvail( socket ) )
+							return true;
+
+						long left = deadline - System.currentTimeMillis();
+						if ( left <= 0 )
+							return false;
+						wait( left );
+					}
+					return false;
+				}
+			}
+			finally {
+				waiters.decrementAndGet();
+			}
+		}
+
+		/**
+		 * Removes the given socket from the avail stacks.
+		 *
+		 * @return false if some other thread got to it first
+		 */
+		boolean removeAvail( SockIO socket ) {
+			for ( ConcurrentLinkedDeque<SockIO> stack : avail ) {
+				if ( stack.removeLastOccurrence( socket ) )
+					return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Weakly consistent copy of the avail sockets, oldest first.
+		 */
+		List<SockIO> availSnapshot() {
+			List<SockIO> sockets = new ArrayList<SockIO>();
+			for ( ConcurrentLinkedDeque<SockIO> stack : avail ) {
+				for ( Iterator<SockIO> i = stack.descendingIterator(); i.hasNext(); )
+					sockets.add( i.next() );
+			}
+			return sockets;
+		}
+
+		int availSize() {
+			int size = 0;
+			for ( ConcurrentLinkedDeque<SockIO> stack : avail )
+				size += stack.size();
+			return size;
+		}
+
+		void markBusy( SockIO socket ) {
+			busy.put( socket, new Long( System.currentTimeMillis() ) );
+		}
+
+		public String getHost() { return host; }
+	}
+
 	/**
 	 * MemCached client for Java, utility class for Socket IO.
 	 *
@@ -1215,16 +1970,43 @@ public class SockIOPool {
 		private static Logger log =
 			Logger.getLogger( SockIO.class.getName() );
 
-		// pool
-		private SockIOPool pool;
+		// pool, changes when the pool of a new config takes the socket over
+		private volatile SockIOPool pool;
 
 		// data
 		private String host;
 		private Socket sock;
 
-		private DataInputStream in;
+		private InputStream in;
+
+		// read buffer, responses are scanned in place
+		private byte[] rbuf;
+		private int rpos;
+		private int rlim;
+		private final ResponseLine line = new ResponseLine();
 		private BufferedOutputStream out;
 
+		// read timeout of the socket, and what it is set to right now,
+		// which is less while an operation deadline is close
+		private int readTimeout;
+		private int soTimeout;
+
+		// command lines are encoded here before being written
+		private CommandEncoder encoder;
+
+		// noreply commands written since the last barrier, and whether a
+		// barrier went out whose reply has not been read yet
+		private volatile int noreplyWrites;
+		private volatile boolean barrierPending;
+
+		// key of the noreply command before the next barrier, and of the one
+		// before the pending barrier, when it was the only one; else null
+		private String noreplyKey;
+		private String barrierKey;
+
+		// time this socket was last put back into the avail pool
+		volatile long lastCheckIn;
+
 		/**
 		 * creates a new SockIO object wrapping a socket
 		 * connection to host:port, and its input and output streams
@@ -1247,12 +2029,14 @@ public class SockIOPool {
 
 			if ( timeout >= 0 )
 				sock.setSoTimeout( timeout );
+			readTimeout = soTimeout = Math.max( timeout, 0 );
 
 			// testing only
 			sock.setTcpNoDelay( noDelay );
 
 			// wrap streams
-			in  = new DataInputStream( new BufferedInputStream( sock.getInputStream() ) );
+			in  = sock.getInputStream();
+			rbuf = new byte[ 8192 ];
 			out = new BufferedOutputStream( sock.getOutputStream() );
 
 			this.host = host + ":" + port;
@@ -1280,17 +2064,31 @@ public class SockIOPool {
 
 			if ( timeout >= 0 )
 				this.sock.setSoTimeout( timeout );
+			readTimeout = soTimeout = Math.max( timeout, 0 );
 
 			// testing only
 			sock.setTcpNoDelay( noDelay );
 
 			// wrap streams
-			in   = new DataInputStream( new BufferedInputStream( sock.getInputStream() ) );
+			in   = sock.getInputStream();
+			rbuf = new byte[ 8192 ];
 			out  = new BufferedOutputStream( sock.getOutputStream() );
 
 			this.host = host;
 		}
 
+		/**
+		 * creates a SockIO object which is not backed by its own socket;
+		 * used by transports which override the io methods.
+		 *
+		 * @param pool Pool this object is tied to
+		 * @param host hostname:port
+		 */
+		protected SockIO( SockIOPool pool, String host ) {
+			this.pool = pool;
+			this.host = host;
+		}
+
 		/**
 		 * Method which gets a connection from SocketChannel.
 		 *
@@ -1339,6 +2137,22 @@ public class SockIOPool {
 			if ( log.isDebugEnabled() )
 				log.debug( "++++ Closing socket for real: " + toString() );
 
+			// noreply commands still in the buffer go out first
+			if ( noreplyWrites > 0 && out != null ) {
+				try { out.flush(); } catch ( IOException ignoreMe ) { }
+			}
+			if ( noreplyWrites > 0 || barrierPending ) {
+				noreplyWrites  = 0;
+				barrierPending = false;
+
+				// a sync waiting for this socket can stop
+				SockIOPool owner = this.pool;
+				Map<String,HostPool> pools = ( owner != null ) ? owner.hostPools : null;
+				HostPool hostPool = ( pools != null ) ? pools.get( host ) : null;
+				if ( hostPool != null )
+					hostPool.wakeWaiters();
+			}
+
 			boolean err = false;
 			StringBuilder errMsg = new StringBuilder();
 
@@ -1386,6 +2200,7 @@ public class SockIOPool {
 				pool.checkIn( this, false );
 
 			in = null;
+			rpos = rlim = 0;
 			out = null;
 			sock = null;
 
@@ -1444,39 +2259,39 @@ public class SockIOPool {
 		 * @throws IOException if io problems during read
 		 */
 		public String readLine() throws IOException {
+			return readResponseLine().toString();
+		}
+
+		/**
+		 * reads a line without copying it out of the read buffer
+		 *
+		 * @return the line, valid until the next read
+		 * @throws IOException if io problems during read
+		 */
+		public ResponseLine readResponseLine() throws IOException {
 			if ( sock == null || !sock.isConnected() ) {
 				log.error( "++++ attempting to read from closed socket" );
 				throw new IOException( "++++ attempting to read from closed socket" );
 			}
 
-			byte[] b = new byte[1];
-			ByteArrayOutputStream bos = new ByteArrayOutputStream();
-			boolean eol = false;
-
-			while ( in.read( b, 0, 1 ) != -1 ) {
-
-				if ( b[0] == 13 ) {
-					eol = true;
-				}
-				else {
-					if ( eol ) {
-						if ( b[0] == 10 )
-							break;
-
-						eol = false;
-					}
-				}
+			if ( barrierPending )
+				readBarrier();
 
-				// cast byte into char array
-				bos.write( b, 0, 1 );
-			}
+			return nextLine();
+		}
 
-			if ( bos == null || bos.size() <= 0 ) {
-				throw new IOException( "++++ Stream appears to be dead, so closing it down" );
+		private ResponseLine nextLine() throws IOException {
+			int eol = findEOL();
+			if ( eol < 0 ) {
+				// stream ended without an end of line
+				if ( rlim == rpos )
+					throw new IOException( "++++ Stream appears to be dead, so closing it down" );
+				eol = rlim;
 			}
 
-			// else return the string
-			return bos.toString().trim();
+			line.set( rbuf, rpos, eol );
+			rpos = Math.min( eol + 2, rlim );
+			return line;
 		}
 
 		/**
@@ -1490,23 +2305,55 @@ public class SockIOPool {
 				throw new IOException( "++++ attempting to read from closed socket" );
 			}
 
-			byte[] b = new byte[1];
-			boolean eol = false;
-			while ( in.read( b, 0, 1 ) != -1 ) {
+			int eol = findEOL();
+			rpos = ( eol < 0 ) ? rlim : eol + 2;
+		}
 
-				// only stop when we see
-				// \r (13) followed by \n (10)
-				if ( b[0] == 13 ) {
-					eol = true;
-					continue;
+		/**
+		 * Scans the read buffer for \r\n (13, 10), reading more from the
+		 * socket as needed.  The buffer is compacted or grown so a line
+		 * always ends up contiguous.
+		 *
+		 * @return index of the \r, or -1 if the stream ended first
+		 */
+		private int findEOL() throws IOException {
+			int scan = rpos;
+			while ( true ) {
+				for ( int i = scan; i + 1 < rlim; i++ ) {
+					if ( rbuf[i] == 13 && rbuf[i + 1] == 10 )
+						return i;
 				}
-
-				if ( eol ) {
-					if ( b[0] == 10 )
-						break;
-
-					eol = false;
+				scan = Math.max( rpos, rlim - 1 );
+
+				// make room for more
+				if ( rpos > 0 ) {
+					System.arraycopy( rbuf, rpos, rbuf, 0, rlim - rpos );
+					scan -= rpos;
+					rlim -= rpos;
+					rpos  = 0;
 				}
+				if ( rlim == rbuf.length )
+					rbuf = Arrays.copyOf( rbuf, rbuf.length * 2 );
+
+				armTimeout();
+				int count = in.read( rbuf, rlim, rbuf.length - rlim );
+				if ( count < 0 )
+					return -1;
+				rlim += count;
+			}
+		}
+
+		/**
+		 * Sets the socket timeout for the next read: the read timeout, or
+		 * less if the deadline of the operation is closer.
+		 *
+		 * @throws SocketTimeoutException if the deadline has passed
+		 */
+		private void armTimeout() throws IOException {
+			int timeout = Deadline.timeout( readTimeout );
+			if ( timeout != soTimeout ) {
+				sock.setSoTimeout( timeout );
+				soTimeout = timeout;
 			}
 		}
 
@@ -1522,15 +2369,65 @@ public class SockIOPool {
 				throw new IOException( "++++ attempting to read from closed socket" );
 			}
 
-			int count = 0;
+			// whatever is buffered first, the rest straight from the socket
+			int count = Math.min( b.length, rlim - rpos );
+			System.arraycopy( rbuf, rpos, b, 0, count );
+			rpos += count;
+
 			while ( count < b.length ) {
+				armTimeout();
 				int cnt = in.read( b, count, (b.length - count) );
+				if ( cnt < 0 )
+					throw new IOException( "++++ Stream appears to be dead, so closing it down" );
 				count += cnt;
 			}
 
 			return count;
 		}
 
+		/**
+		 * Reads length bytes into the buffer, from its position on, without
+		 * an array of their own.  Heap buffers are read into straight from
+		 * the socket, direct ones through the read buffer.
+		 *
+		 * @param dst buffer with at least length bytes remaining
+		 * @param length number of bytes to read
+		 * @throws IOException if io problems during read
+		 */
+		void read( ByteBuffer dst, int length ) throws IOException {
+			if ( sock == null || !sock.isConnected() ) {
+				log.error( "++++ attempting to read from closed socket" );
+				throw new IOException( "++++ attempting to read from closed socket" );
+			}
+
+			// whatever is buffered first, the rest straight from the socket
+			int count = Math.min( length, rlim - rpos );
+			dst.put( rbuf, rpos, count );
+			rpos += count;
+			if ( count == length )
+				return;
+
+			// the read buffer is empty from here on
+			rpos = rlim = 0;
+			while ( count < length ) {
+				armTimeout();
+				int cnt;
+				if ( dst.hasArray() ) {
+					cnt = in.read( dst.array(), dst.arrayOffset() + dst.position(), length - count );
+					if ( cnt > 0 )
+						dst.position( dst.position() + cnt );
+				}
+				else {
+					cnt = in.read( rbuf, 0, Math.min( rbuf.length, length - count ) );
+					if ( cnt > 0 )
+						dst.put( rbuf, 0, cnt );
+				}
+				if ( cnt < 0 )
+					throw new IOException( "++++ Stream appears to be dead, so closing it down" );
+				count += cnt;
+			}
+		}
+
 		/**
 		 * flushes output stream
 		 *
@@ -1555,9 +2452,200 @@ public class SockIOPool {
 				log.error( "++++ attempting to write to closed socket" );
 				throw new IOException( "++++ attempting to write to closed socket" );
 			}
+			beforeRequest();
 			out.write( b );
 		}
 
+		/**
+		 * writes part of a byte array to the output stream
+		 *
+		 * @param b byte array to write
+		 * @param off offset of the first byte to write
+		 * @param len number of bytes to write
+		 * @throws IOException if an io error happens
+		 */
+		void write( byte[] b, int off, int len ) throws IOException {
+			if ( sock == null || !sock.isConnected() ) {
+				log.error( "++++ attempting to write to closed socket" );
+				throw new IOException( "++++ attempting to write to closed socket" );
+			}
+			beforeRequest();
+			out.write( b, off, len );
+		}
+
+		/**
+		 * Returns the encoder of this connection, emptied, to build the
+		 * next command in.
+		 *
+		 * @return command encoder
+		 */
+		CommandEncoder encoder() {
+			if ( encoder == null )
+				encoder = new CommandEncoder();
+			return encoder.reset();
+		}
+
+		/**
+		 * writes a command built with {@link #encoder()}
+		 *
+		 * @param cmd encoded command
+		 * @throws IOException if an io error happens
+		 */
+		void write( CommandEncoder cmd ) throws IOException {
+			write( cmd.buffer(), 0, cmd.length() );
+		}
+
+		/**
+		 * writes a storage command: its header line, the value and the
+		 * trailing CRLF, with one gathering write on the channel so the
+		 * value goes to the kernel without being copied through the
+		 * output buffer.  Anything written before is flushed first.
+		 *
+		 * @param cmd header line built with {@link #encoder()}
+		 * @param value bytes between position and limit are sent, the position is left as is
+		 * @throws IOException if an io error happens
+		 */
+		void writeValue( CommandEncoder cmd, ByteBuffer value ) throws IOException {
+			if ( sock == null || !sock.isConnected() ) {
+				log.error( "++++ attempting to write to closed socket" );
+				throw new IOException( "++++ attempting to write to closed socket" );
+			}
+
+			beforeRequest();
+			gather( cmd, value );
+		}
+
+		private void gather( CommandEncoder cmd, ByteBuffer value ) throws IOException {
+			SocketChannel channel = sock.getChannel();
+			if ( channel == null ) {
+				// not opened through a channel, so the value has to be copied
+				byte[] b = new byte[ value.remaining() ];
+				value.duplicate().get( b );
+				out.write( cmd.buffer(), 0, cmd.length() );
+				out.write( b );
+				out.write( CommandEncoder.CRLF );
+				return;
+			}
+
+			out.flush();
+			ByteBuffer[] bufs = {
+				ByteBuffer.wrap( cmd.buffer(), 0, cmd.length() ),
+				value.duplicate(),
+				ByteBuffer.wrap( CommandEncoder.CRLF )
+			};
+			while ( bufs[2].hasRemaining() )
+				channel.write( bufs );
+		}
+
+		/**
+		 * writes a command sent with <code>noreply</code>, followed by its
+		 * value for a storage command.  Nothing is flushed: the bytes go
+		 * out with the next command on this socket, once the buffer fills
+		 * or on {@link #sync()}.
+		 *
+		 * The server only answers a noreply command when it fails, so the
+		 * next command expecting a reply gets a version command put in
+		 * front of it; everything read before the VERSION line is handed
+		 * to the pool as a failure, see {@link SockIOPool#drainNoreplyFailures()}.
+		 *
+		 * @param cmd command line built with {@link #encoder()}, ending in noreply
+		 * @param value value of a storage command, or null
+		 * @param key key of the command, reported if it fails
+		 * @throws IOException if an io error happens
+		 */
+		void writeNoreply( CommandEncoder cmd, ByteBuffer value, String key ) throws IOException {
+			if ( sock == null || !sock.isConnected() ) {
+				log.error( "++++ attempting to write to closed socket" );
+				throw new IOException( "++++ attempting to write to closed socket" );
+			}
+
+			if ( value == null ) {
+				out.write( cmd.buffer(), 0, cmd.length() );
+			}
+			else if ( value.hasArray() || sock.getChannel() == null ) {
+				// large arrays bypass the buffer anyway, only direct buffers get copied
+				out.write( cmd.buffer(), 0, cmd.length() );
+				if ( value.hasArray() ) {
+					out.write( value.array(), value.arrayOffset() + value.position(), value.remaining() );
+				}
+				else {
+					byte[] b = new byte[ value.remaining() ];
+					value.duplicate().get( b );
+					out.write( b );
+				}
+				out.write( CommandEncoder.CRLF );
+			}
+			else {
+				gather( cmd, value );
+			}
+			noreplyKey = ( noreplyWrites == 0 ) ? key : null;
+			noreplyWrites++;
+		}
+
+		/**
+		 * Returns true if noreply commands were written on this socket
+		 * which the server has not been seen to be done with.
+		 */
+		boolean hasNoreplyWrites() {
+			return noreplyWrites > 0 || barrierPending;
+		}
+
+		/**
+		 * Flushes the noreply commands written on this socket and waits for
+		 * the server to be done with them, handing its complaints, if any,
+		 * to the pool.
+		 *
+		 * @throws IOException if an io error happens
+		 */
+		void sync() throws IOException {
+			if ( sock == null || !sock.isConnected() ) {
+				log.error( "++++ attempting to write to closed socket" );
+				throw new IOException( "++++ attempting to write to closed socket" );
+			}
+
+			beforeRequest();
+			out.flush();
+			if ( barrierPending )
+				readBarrier();
+		}
+
+		/**
+		 * Puts the version barrier in front of a command expecting a reply
+		 * when noreply commands were written before it.
+		 */
+		private void beforeRequest() throws IOException {
+			if ( noreplyWrites > 0 ) {
+				out.write( CommandEncoder.VERSION );
+				barrierKey     = noreplyKey;
+				noreplyKey     = null;
+				noreplyWrites  = 0;
+				barrierPending = true;
+			}
+		}
+
+		/**
+		 * Reads up to and including the reply to the version barrier.
+		 */
+		private void readBarrier() throws IOException {
+			barrierPending = false;
+			while ( true ) {
+				ResponseLine reply = nextLine();
+				if ( reply.startsWith( ResponseLine.VERSION ) )
+					return;
+
+				String failure = reply.toString();
+				if ( reply.is( ResponseLine.REFRESH_AND_RETRY ) ) {
+					// followed by END or the new config, the client goes to its reader instead
+					ResponseLine trailer = nextLine();
+					if ( trailer.parseValue() )
+						read( new byte[ trailer.length + 2 ] );
+				}
+
+				log.error( "++++ noreply command to " + host + ( barrierKey != null ? " for " + barrierKey : "" ) + " failed: " + failure );
+				pool.noreplyFailed( host, barrierKey, failure );
+			}
+		}
+
 		/**
 		 * use the sockets hashcode for this object
 		 * so we can key off of SockIOs
@@ -1600,27 +2688,130 @@ public class SockIOPool {
 	public static class SockAndFragmentId {
 		// The socket.
 		private SockIO sock;
-		// The fragment id of the fragment that the socket belongs to.
-		private int fragmentId;
-		// The fragment number (index in the fragments array + 1).
-		private int fragmentNum;
+		// The fragment the socket belongs to.
+		private Route route;
 
-		SockAndFragmentId(SockIO sock, int id, int fragmentNum) {
+		SockAndFragmentId(SockIO sock, Route route) {
 			this.sock = sock;
-			this.fragmentId = id;
-			this.fragmentNum = fragmentNum;
+			this.route = route;
 		}
 
 		public SockIO sock() {
 			return sock;
 		}
 
+		/**
+		 * The fragment id of the fragment that the socket belongs to.
+		 */
+		public int fragmentId() {
+			return route.fragmentId();
+		}
+
+		/**
+		 * The fragment number (index in the fragments array + 1).
+		 */
+		public int fragmentNum() {
+			return route.fragmentNum();
+		}
+
+		/**
+		 * Pre-encoded <code>rj &lt;configId&gt; &lt;fragmentNum&gt; </code>
+		 * prefix of commands sent to this fragment.
+		 */
+		byte[] commandPrefix() {
+			return route.commandPrefix();
+		}
+	}
+
+	/**
+	 * What a server sent back for a noreply command that failed.  Which
+	 * command it was is only known when it was the only noreply command
+	 * sent on its connection between two commands expecting a reply;
+	 * otherwise just the server it went to is.
+	 */
+	public static final class NoreplyFailure {
+		private final String host;
+		private final String key;
+		private final String response;
+
+		NoreplyFailure( String host, String key, String response ) {
+			this.host     = host;
+			this.key      = key;
+			this.response = response;
+		}
+
+		public String host() {
+			return host;
+		}
+
+		/**
+		 * Key of the command which failed, or null if not known.
+		 */
+		public String key() {
+			return key;
+		}
+
+		/**
+		 * The reply line, e.g. SERVER_ERROR out of memory or REFRESH_AND_RETRY.
+		 */
+		public String response() {
+			return response;
+		}
+
+		public boolean isRefreshAndRetry() {
+			return "REFRESH_AND_RETRY".equals( response );
+		}
+
+		public String toString() {
+			return ( key == null ) ? host + ": " + response : host + " " + key + ": " + response;
+		}
+	}
+
+	/**
+	 * Where a key lives: the fragment and the server currently holding it.
+	 */
+	public static final class Route {
+		// Index of the fragment in the config.
+		private final int fragmentIndex;
+		// host:port of the server holding the fragment.
+		private final String address;
+		// The fragment id (config id the fragment was last changed in).
+		private final int fragmentId;
+		// "rj <configId> <fragmentNum> ", encoded once per config.
+		private final byte[] commandPrefix;
+
+		Route( int configId, int fragmentIndex, String address, int fragmentId ) {
+			this.fragmentIndex = fragmentIndex;
+			this.address = address;
+			this.fragmentId = fragmentId;
+			this.commandPrefix = CommandEncoder.prefix( configId, fragmentIndex + 1 );
+		}
+
+		public int fragmentIndex() {
+			return fragmentIndex;
+		}
+
+		public String address() {
+			return address;
+		}
+
 		public int fragmentId() {
 			return fragmentId;
 		}
 
+		/**
+		 * The fragment number used on the wire (index + 1).
+		 */
 		public int fragmentNum() {
-			return fragmentNum;
+			return fragmentIndex + 1;
+		}
+
+		byte[] commandPrefix() {
+			return commandPrefix;
+		}
+
+		public String toString() {
+			return "fragment " + fragmentNum() + " on " + address;
 		}
 	}
 }
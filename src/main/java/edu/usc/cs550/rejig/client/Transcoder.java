@@ -0,0 +1,45 @@
+package edu.usc.cs550.rejig.client;
+
+import java.io.IOException;
+
+/**
+ * Turns values into the flags and bytes stored in memcached, and back.
+ *
+ * A client uses a {@link DefaultTranscoder} unless another one is set
+ * with {@link MemcachedClient#setTranscoder(Transcoder)}, and single
+ * calls can be given one of their own, e.g. to store domain objects with
+ * a compact binary format instead of Java serialization.<br/>
+ * <br/>
+ * Compression is left to the client, which applies it to the encoded
+ * bytes and owns the {@link MemcachedClient#F_DEFLATED} and
+ * {@link MemcachedClient#F_COMPRESSED} flags: encode() must leave them
+ * clear, and decode() gets the bytes uncompressed with the flags cleared.<br/>
+ * <br/>
+ * Values read with asString, or stored while the client stores
+ * primitives as strings, do not go through the transcoder either.<br/>
+ * <br/>
+ * A transcoder is shared by every thread using the client and has to be
+ * thread safe.
+ *
+ * @param <T> type of the values
+ */
+public interface Transcoder<T> {
+
+	/**
+	 * Encodes a value for storing.
+	 *
+	 * @param value value to store, never null
+	 * @return its flags and bytes
+	 * @throws IOException if the value can not be encoded
+	 */
+	public CachedData encode( T value ) throws IOException;
+
+	/**
+	 * Decodes a value as stored by encode().
+	 *
+	 * @param data flags and bytes read from the server
+	 * @return the value
+	 * @throws IOException if the bytes can not be decoded
+	 */
+	public T decode( CachedData data ) throws IOException;
+}
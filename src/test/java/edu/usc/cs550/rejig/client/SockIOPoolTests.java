@@ -0,0 +1,731 @@
+package edu.usc.cs550.rejig.client;
+
+import edu.usc.cs550.rejig.client.configreader.RejigConfigReader;
+import edu.usc.cs550.rejig.interfaces.Fragment;
+import edu.usc.cs550.rejig.interfaces.RejigConfig;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+/**
+ * Tests of how pools hand sockets on across config changes, of the
+ * transports and of command encoding, which need the package private
+ * side of the client.  Run against memcached servers on localhost:11210
+ * and up, on their own or from UnitTests.
+ */
+public class SockIOPoolTests {
+
+	/**
+	 * A retired pool waits for its busy sockets, hands them on to the pool
+	 * which took it over, and shuts down once the last one is back.
+	 */
+	public static void testRetire() {
+		SockIOPool first = SockIOPool.getInstance( "retire-1" )
+			.setRejigConfig( createConfig( 1, "localhost:11210", "localhost:11211" ) )
+			.setPoolOptions( blockingOptions() )
+			.initialize();
+		SockIOPool.SockIO busy = first.getConnection( "localhost:11211" );
+		assertion( busy != null, "+ checking out of the first pool failed" );
+
+		SockIOPool second = SockIOPool.getInstance( "retire-2" )
+			.setRejigConfig( createConfig( 2, "localhost:11211", "localhost:11212" ) )
+			.setPoolOptions( blockingOptions() )
+			.initialize( first );
+
+		// until it is retired the first pool keeps what is checked in to it
+		SockIOPool.SockIO early = first.getConnection( "localhost:11211" );
+		early.close();
+		assertion( first.getConnection( "localhost:11211" ) == early, "+ socket checked in before retire was handed on test failed" );
+		early.close();
+
+		first.retire();
+		assertion( !early.isConnected(), "+ idle socket of a retired pool not closed test failed" );
+		assertion( first.isInitialized(), "+ retired pool shut down with a busy socket test failed" );
+
+		busy.close();
+		assertion( !first.isInitialized(), "+ retired pool still up after its busy socket drained test failed" );
+		assertion( busy.isConnected(), "+ socket checked in to a retired pool was not handed on test failed" );
+
+		SockIOPool.SockIO next = second.getConnection( "localhost:11211" );
+		SockIOPool.SockIO other = second.getConnection( "localhost:11211" );
+		assertion( next == busy || other == busy, "+ socket handed on not in the next pool test failed" );
+		next.close();
+		other.close();
+
+		second.shutDown();
+	}
+
+	/**
+	 * Idle connections to servers in both configs move to the new pool,
+	 * and a retired pool routes by the new config, socket and fragment.
+	 */
+	public static void testTakeOver() {
+		SockIOPool first = SockIOPool.getInstance( "takeover-1" )
+			.setRejigConfig( createConfig( 1, "localhost:11210", "localhost:11211" ) )
+			.setPoolOptions( blockingOptions() )
+			.initialize();
+		SockIOPool.SockIO kept = first.getConnection( "localhost:11211" );
+		SockIOPool.SockIO dropped = first.getConnection( "localhost:11210" );
+
+		// keeps the first pool retiring rather than shut down
+		SockIOPool.SockIO busy = first.getConnection( "localhost:11210" );
+		kept.close();
+		dropped.close();
+
+		SockIOPool second = SockIOPool.getInstance( "takeover-2" )
+			.setRejigConfig( createConfig( 2, "localhost:11211", "localhost:11212" ) )
+			.setPoolOptions( blockingOptions() )
+			.initialize( first );
+		first.retire();
+		assertion( !dropped.isConnected(), "+ connection to a server left out of the config not closed test failed" );
+
+		SockIOPool.SockIO sock = second.getConnection( "localhost:11211" );
+		assertion( sock == kept, "+ connection to an unchanged server did not survive the config change test failed" );
+		sock.close();
+
+		for ( int i = 0; i < 20; i++ ) {
+			SockIOPool.SockAndFragmentId sockAndId = first.getSockAndFragmentId( "key" + i );
+			assertion( sockAndId != null && sockAndId.sock() != null, "+ no socket from retired pool test failed" );
+			assertion( new String( sockAndId.commandPrefix() ).startsWith( "rj 2 " ), "+ retired pool routed by the old config test failed" );
+			assertion( first.route( "key" + i, null ) == second.route( "key" + i, null ), "+ retired pool routes differently test failed" );
+			sockAndId.sock().close();
+		}
+
+		busy.close();
+		assertion( !first.isInitialized(), "+ retired pool still up test failed" );
+
+		second.shutDown();
+	}
+
+	/**
+	 * Noreply commands left in an idle socket are sent by the maint thread,
+	 * which has their failures reported, with the key when it is known.
+	 */
+	public static void testNoreplyMaint() throws Exception {
+		ScriptedServer server = new NoreplyServer();
+		SockIOPool.SockIOPoolOptions options = blockingOptions();
+		options.maintSleep = 20;
+		final SockIOPool pool = SockIOPool.getInstance( "noreply-maint" )
+			.setRejigConfig( createConfig( 1, server.host() ) )
+			.setPoolOptions( options )
+			.initialize();
+
+		final List<SockIOPool.NoreplyFailure> failures = new CopyOnWriteArrayList<SockIOPool.NoreplyFailure>();
+		pool.setNoreplyListener( new Runnable() {
+			public void run() {
+				failures.addAll( pool.drainNoreplyFailures() );
+			}
+		} );
+
+		// one command: the failure is known to be its
+		writeNoreply( pool, "maint1" );
+		awaitSize( failures, 1 );
+		assertion( "maint1".equals( failures.get( 0 ).key() ), "+ key of failed noreply command test failed: " + failures );
+		assertion( failures.get( 0 ).response().startsWith( "SERVER_ERROR" ), "+ response of failed noreply command test failed" );
+
+		// two: only the server is
+		SockIOPool.SockIO sock = pool.getConnection( server.host() );
+		sock.writeNoreply( noreplySet( sock, "maint2" ), ByteBuffer.wrap( VALUE ), "maint2" );
+		sock.writeNoreply( noreplySet( sock, "maint3" ), ByteBuffer.wrap( VALUE ), "maint3" );
+		sock.close();
+		awaitSize( failures, 3 );
+		assertion( failures.get( 1 ).key() == null && failures.get( 2 ).key() == null, "+ key of one of several noreply commands test failed" );
+		assertion( server.host().equals( failures.get( 1 ).host() ), "+ host of failed noreply command test failed" );
+
+		pool.shutDown();
+		server.close();
+	}
+
+	/**
+	 * flushWrites waits for a socket holding noreply commands which is in
+	 * use, and syncs it once it is checked in.
+	 */
+	public static void testNoreplySync() throws Exception {
+		ScriptedServer server = new NoreplyServer();
+		SockIOPool pool = SockIOPool.getInstance( "noreply-sync" )
+			.setRejigConfig( createConfig( 1, server.host() ) )
+			.setPoolOptions( blockingOptions() )
+			.initialize();
+
+		writeNoreply( pool, "sync1" );
+		final SockIOPool.SockIO busy = pool.getConnection( server.host() );
+		new Thread() {
+			public void run() {
+				try { Thread.sleep( 200 ); } catch ( InterruptedException ignoreMe ) { }
+				busy.close();
+			}
+		}.start();
+
+		assertion( pool.flushWrites(), "+ flushWrites of a busy socket test failed" );
+		List<SockIOPool.NoreplyFailure> failures = pool.drainNoreplyFailures();
+		assertion( failures.size() == 1 && "sync1".equals( failures.get( 0 ).key() ), "+ failure synced from a busy socket test failed: " + failures );
+
+		pool.shutDown();
+		server.close();
+	}
+
+	/**
+	 * get, set and multi-get over a pipelined channel, with every reply
+	 * arriving split across reads.
+	 */
+	public static void testPipelinedSplit() throws Exception {
+		ScriptedServer server = new TricklingServer();
+		MemcachedClient mc = pipelinedClient( "pipelined-split", server.host() );
+
+		StringBuilder value = new StringBuilder();
+		for ( int i = 0; i < 300; i++ )
+			value.append( (char)( 'a' + i % 26 ) );
+
+		String[] keys = new String[ 10 ];
+		for ( int i = 0; i < keys.length; i++ ) {
+			keys[i] = "split" + i;
+			assertion( mc.set( keys[i], value + keys[i] ), "+ pipelined set of split reply test failed" );
+		}
+		for ( int i = 0; i < keys.length; i++ )
+			assertion( ( value + keys[i] ).equals( mc.get( keys[i] ) ), "+ pipelined get of split reply test failed" );
+
+		Map<String,Object> values = mc.getMulti( keys );
+		assertion( values.size() == keys.length, "+ pipelined multi-get of split reply test failed: " + values.keySet() );
+		for ( String key : keys )
+			assertion( ( value + key ).equals( values.get( key ) ), "+ pipelined multi-get value of split reply test failed" );
+
+		assertion( mc.delete( keys[0] ), "+ pipelined delete of split reply test failed" );
+		assertion( mc.get( keys[0] ) == null, "+ pipelined get after delete test failed" );
+
+		mc.shutDown();
+		server.close();
+	}
+
+	/**
+	 * Requests in flight on a channel fail as soon as it is closed, by the
+	 * server or by shutting the client down, not once socketTO is up.
+	 */
+	public static void testPipelinedClosed() throws Exception {
+		ScriptedServer server = new SilentServer( 3 );
+		MemcachedClient mc = pipelinedClient( "pipelined-hangup", server.host() );
+
+		// three gets on the one channel, which the server closes once it
+		// has read them all
+		long start = System.currentTimeMillis();
+		List<Thread> gets = new ArrayList<Thread>();
+		for ( int i = 0; i < 3; i++ )
+			gets.add( get( mc, "hangup" + i ) );
+		for ( Thread get : gets )
+			get.join( 10000 );
+		for ( Thread get : gets )
+			assertion( !get.isAlive(), "+ get in flight on a channel closed by the server still waiting test failed" );
+		assertion( System.currentTimeMillis() - start < 5000, "+ gets in flight on a channel closed by the server waited out socketTO test failed" );
+		mc.shutDown();
+
+		// and a get in flight when the client is shut down
+		mc = pipelinedClient( "pipelined-shutdown", server.host() );
+		Thread get = get( mc, "shutdown" );
+		Thread.sleep( 200 );
+		start = System.currentTimeMillis();
+		mc.shutDown();
+		get.join( 10000 );
+		assertion( !get.isAlive() && System.currentTimeMillis() - start < 7000, "+ get in flight at shut down still waiting test failed" );
+
+		server.close();
+	}
+
+	/**
+	 * Threads getting REFRESH_AND_RETRY at once have the config fetched
+	 * and a pool built once between them, not once each.
+	 */
+	public static void testRefreshSingleFlight() throws Exception {
+		ScriptedServer server = new RefreshServer( 2 );
+		final RejigConfig first  = createConfig( 1, server.host() );
+		final RejigConfig second = createConfig( 2, server.host() );
+		final AtomicInteger fetches = new AtomicInteger();
+
+		SockIOPool.SockIOPoolOptions options = blockingOptions();
+		options.maxConn = 64;
+		final MemcachedClient mc = new MemcachedClient( "refresh", new RejigConfigReader() {
+			public RejigConfig getConfig() {
+				if ( fetches.getAndIncrement() == 0 )
+					return first;
+
+				// slow enough for every thread to hit the old config
+				try { Thread.sleep( 300 ); } catch ( InterruptedException ignoreMe ) { }
+				return second;
+			}
+		}, options );
+
+		final CountDownLatch start = new CountDownLatch( 1 );
+		List<Thread> gets = new ArrayList<Thread>();
+		for ( int i = 0; i < 32; i++ ) {
+			final String key = "refresh" + i;
+			Thread get = new Thread() {
+				public void run() {
+					try { start.await(); } catch ( InterruptedException ignoreMe ) { }
+					mc.get( key );
+				}
+			};
+			get.start();
+			gets.add( get );
+		}
+		start.countDown();
+		for ( Thread get : gets )
+			get.join( 10000 );
+
+		assertion( mc.getSockIOPool().getRejigConfig().getId() == 2, "+ client not on the refreshed config test failed" );
+		assertion( fetches.get() == 2, "+ concurrent refreshes fetched the config " + ( fetches.get() - 1 ) + " times test failed" );
+
+		mc.shutDown();
+		server.close();
+	}
+
+	/**
+	 * Response lines come out whole when they straddle the 8 KB read
+	 * buffer of a socket, arrive in pieces, have their CR and LF in
+	 * different reads, or are longer than the buffer.
+	 */
+	public static void testSplitLines() throws Exception {
+		List<String> lines = new ArrayList<String>();
+		int size = 0;
+		while ( size + 200 <= 8194 ) {
+			lines.add( pad( "STAT line" + lines.size() + " ", 98 ) );
+			size += 100;
+		}
+
+		// the CR of this one is the last byte of the buffer, its LF the first of the next read
+		lines.add( pad( "STAT edge ", 8192 - size ) );
+		int edge = 8193;
+		lines.add( pad( "STAT long ", 12000 ) );
+		for ( int i = 0; i < 50; i++ )
+			lines.add( pad( "STAT tail" + i + " ", 98 ) );
+		lines.add( "END" );
+
+		ScriptedServer server = new LinesServer( lines, 5000, 8191, edge, edge + 6000 );
+		SockIOPool pool = SockIOPool.getInstance( "split-lines" )
+			.setRejigConfig( createConfig( 1, server.host() ) )
+			.setPoolOptions( blockingOptions() )
+			.initialize();
+
+		SockIOPool.SockIO sock = pool.getConnection( server.host() );
+		sock.write( sock.encoder().append( "stats\r\n".getBytes() ).frame( CommandEncoder.REPLY_LINES, false ) );
+		sock.flush();
+		for ( String line : lines ) {
+			String read = sock.readLine();
+			assertion( line.equals( read ), "+ line split across reads test failed: expected " + line.length() + " bytes, got " + read.length() );
+		}
+		sock.close();
+
+		pool.shutDown();
+		server.close();
+	}
+
+	// the prefix padded with x to a length
+	private static String pad( String prefix, int length ) {
+		StringBuilder line = new StringBuilder( prefix );
+		while ( line.length() < length )
+			line.append( 'x' );
+		return line.toString();
+	}
+
+	/**
+	 * Commands come out as String.format made them, framing included.
+	 */
+	public static void testCommandEncoder() {
+		CommandEncoder cmd = new CommandEncoder( 4 );
+		long[] numbers = { 0, 7, -7, 10, 99, 100, 1234567890123L, Long.MAX_VALUE, Long.MIN_VALUE };
+		for ( long n : numbers ) {
+			cmd.reset().number( n );
+			assertion( Long.toString( n ).equals( cmd.toString() ), "+ encoding " + n + " test failed: " + cmd );
+			assertion( CommandEncoder.digits( n ) == cmd.length(), "+ digits of " + n + " test failed" );
+		}
+
+		cmd.reset()
+			.append( CommandEncoder.prefix( 12, 3 ) )
+			.append( CommandEncoder.verb( "set" ) ).space()
+			.key( "k\u00e9y" ).space()
+			.number( 32 ).space().number( 0 ).space().number( 5 ).crlf()
+			.frame( CommandEncoder.REPLY_LINE, true );
+		assertion( Arrays.equals( String.format( "rj %d %d %s %s %d %d %d\r\n", 12, 3, "set", "k\u00e9y", 32, 0, 5 ).getBytes(), cmd.toByteArray() ), "+ set header test failed: " + cmd );
+
+		CommandEncoder get = new CommandEncoder()
+			.append( CommandEncoder.GET ).space().key( "a" ).crlf()
+			.frame( CommandEncoder.REPLY_VALUES, true );
+		int header = cmd.length();
+		cmd.append( get );
+		assertion( cmd.frames() == 2 && cmd.frameEnd( 0 ) == header && cmd.frameEnd( 1 ) == cmd.length(), "+ frames of appended commands test failed" );
+		assertion( cmd.frameReply( 1 ) == CommandEncoder.REPLY_VALUES && cmd.frameRefreshCarriesConfig( 1 ), "+ reply of appended command test failed" );
+		assertion( cmd.reset().frames() == 0 && cmd.length() == 0, "+ reset of encoder test failed" );
+	}
+
+	public static void runAlTests() throws Exception {
+		testCommandEncoder();
+		testRetire();
+		testTakeOver();
+		testNoreplyMaint();
+		testNoreplySync();
+		testPipelinedSplit();
+		testPipelinedClosed();
+		testRefreshSingleFlight();
+		testSplitLines();
+	}
+
+	// pool options for tests checking sockets out directly: one
+	// connection per server, and no maint thread topping them up
+	private static SockIOPool.SockIOPoolOptions blockingOptions() {
+		SockIOPool.SockIOPoolOptions options = new SockIOPool.SockIOPoolOptions();
+		options.initConn = 1;
+		options.maintSleep = 0;
+		options.transportMode = SockIOPool.TransportMode.BLOCKING;
+		return options;
+	}
+
+	// client on one pipelined channel to the server, with a socketTO far
+	// longer than any test waits
+	private static MemcachedClient pipelinedClient( String name, String server ) {
+		SockIOPool.SockIOPoolOptions options = new SockIOPool.SockIOPoolOptions();
+		options.maintSleep = 0;
+		options.socketTO = 30000;
+		options.transportMode = SockIOPool.TransportMode.PIPELINED;
+		options.pipelinedConns = 1;
+
+		final RejigConfig config = createConfig( 1, server );
+		return new MemcachedClient( name, new RejigConfigReader() {
+			public RejigConfig getConfig() {
+				return config;
+			}
+		}, options );
+	}
+
+	// gets the key on a thread of its own
+	private static Thread get( final MemcachedClient mc, final String key ) {
+		Thread get = new Thread() {
+			public void run() {
+				mc.get( key );
+			}
+		};
+		get.setDaemon( true );
+		get.start();
+		return get;
+	}
+
+	private static RejigConfig createConfig( int id, String... servers ) {
+		RejigConfig.Builder builder = RejigConfig.newBuilder()
+			.setId( id );
+		for ( String server : servers ) {
+			builder.addFragment( Fragment.newBuilder()
+				.setId( id )
+				.setAddress( server )
+				.build()
+			);
+		}
+		return builder.build();
+	}
+
+	private static final byte[] VALUE = "value".getBytes();
+
+	private static CommandEncoder noreplySet( SockIOPool.SockIO sock, String key ) {
+		return sock.encoder()
+			.append( CommandEncoder.SET ).space().key( key ).space()
+			.number( 0 ).space().number( 0 ).space().number( VALUE.length ).space()
+			.append( CommandEncoder.NOREPLY ).crlf();
+	}
+
+	// writes a noreply set on a socket of the pool and checks it back in
+	private static void writeNoreply( SockIOPool pool, String key ) throws IOException {
+		SockIOPool.SockIO sock = pool.getConnection( pool.getRejigConfig().getFragment( 0 ).getAddress() );
+		sock.writeNoreply( noreplySet( sock, key ), ByteBuffer.wrap( VALUE ), key );
+		sock.close();
+	}
+
+	private static void awaitSize( List<?> list, int size ) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while ( list.size() < size && System.currentTimeMillis() < deadline )
+			Thread.sleep( 10 );
+		assertion( list.size() == size, "+ expected " + size + " entries, got " + list );
+	}
+
+	/**
+	 * Server on an ephemeral port answering each connection with a script,
+	 * for replies a memcached server can not be made to send on demand.
+	 */
+	private static abstract class ScriptedServer extends Thread {
+
+		private final ServerSocket server;
+
+		ScriptedServer() throws IOException {
+			server = new ServerSocket( 0 );
+			setDaemon( true );
+			start();
+		}
+
+		String host() {
+			return "localhost:" + server.getLocalPort();
+		}
+
+		void close() throws IOException {
+			server.close();
+		}
+
+		public void run() {
+			try {
+				while ( true ) {
+					final Socket sock = server.accept();
+					sock.setTcpNoDelay( true );
+					Thread conn = new Thread() {
+						public void run() {
+							try {
+								serve( sock.getInputStream(), sock.getOutputStream() );
+							}
+							catch ( IOException ignoreMe ) {
+								// client went away
+							}
+							finally {
+								try { sock.close(); } catch ( IOException ignoreMe ) { }
+							}
+						}
+					};
+					conn.setDaemon( true );
+					conn.start();
+				}
+			}
+			catch ( IOException e ) {
+				// closed
+			}
+		}
+
+		/**
+		 * Talks to one client until it goes away.
+		 */
+		abstract void serve( InputStream in, OutputStream out ) throws IOException;
+
+		/**
+		 * Reads a line without its CRLF, null at the end of the stream.
+		 */
+		static String readLine( InputStream in ) throws IOException {
+			ByteArrayOutputStream line = new ByteArrayOutputStream();
+			int b;
+			while ( ( b = in.read() ) != '\n' ) {
+				if ( b < 0 )
+					return null;
+				if ( b != '\r' )
+					line.write( b );
+			}
+			return line.toString();
+		}
+
+		static void skip( InputStream in, int n ) throws IOException {
+			while ( n > 0 ) {
+				long skipped = in.skip( n );
+				if ( skipped <= 0 )
+					throw new IOException( "stream ended" );
+				n -= skipped;
+			}
+		}
+	}
+
+	/**
+	 * Fails every noreply set, answers version.
+	 */
+	private static final class NoreplyServer extends ScriptedServer {
+
+		NoreplyServer() throws IOException {
+			super();
+		}
+
+		void serve( InputStream in, OutputStream out ) throws IOException {
+			String line;
+			while ( ( line = readLine( in ) ) != null ) {
+				String[] cmd = line.split( " " );
+				if ( cmd[0].equals( "set" ) ) {
+					skip( in, Integer.parseInt( cmd[4] ) + 2 );
+					out.write( "SERVER_ERROR out of memory storing object\r\n".getBytes() );
+				}
+				else if ( cmd[0].equals( "version" ) ) {
+					out.write( "VERSION 1.0\r\n".getBytes() );
+				}
+				else {
+					out.write( "ERROR\r\n".getBytes() );
+				}
+				out.flush();
+			}
+		}
+	}
+
+	/**
+	 * Keeps what is set in memory and answers get, set and delete, writing
+	 * every reply a few bytes at a time so it arrives split across reads.
+	 */
+	private static final class TricklingServer extends ScriptedServer {
+
+		// VALUE line and data block of each item, as get sends them
+		private final Map<String,byte[]> items = new ConcurrentHashMap<String,byte[]>();
+
+		TricklingServer() throws IOException {
+			super();
+		}
+
+		void serve( InputStream in, OutputStream out ) throws IOException {
+			DataInputStream data = new DataInputStream( in );
+			String line;
+			while ( ( line = readLine( in ) ) != null ) {
+				String[] cmd = line.split( " " );
+				String configId = "0";
+				int off = 0;
+				if ( cmd[0].equals( "rj" ) ) {
+					configId = cmd[1];
+					off = 3;
+				}
+
+				ByteArrayOutputStream reply = new ByteArrayOutputStream();
+				if ( cmd[ off ].equals( "set" ) ) {
+					byte[] value = new byte[ Integer.parseInt( cmd[ off + 4 ] ) ];
+					data.readFully( value );
+					skip( in, 2 );
+
+					ByteArrayOutputStream item = new ByteArrayOutputStream();
+					item.write( ( "VALUE " + cmd[ off + 1 ] + " " + cmd[ off + 2 ] + " " + value.length + " " + configId + "\r\n" ).getBytes() );
+					item.write( value );
+					item.write( CommandEncoder.CRLF );
+					items.put( cmd[ off + 1 ], item.toByteArray() );
+					reply.write( "STORED\r\n".getBytes() );
+				}
+				else if ( cmd[ off ].equals( "get" ) ) {
+					for ( int i = off + 1; i < cmd.length; i++ ) {
+						byte[] item = items.get( cmd[i] );
+						if ( item != null )
+							reply.write( item );
+					}
+					reply.write( "END\r\n".getBytes() );
+				}
+				else if ( cmd[ off ].equals( "delete" ) ) {
+					reply.write( ( items.remove( cmd[ off + 1 ] ) != null ? "DELETED\r\n" : "NOT_FOUND\r\n" ).getBytes() );
+				}
+				else if ( cmd[ off ].equals( "version" ) ) {
+					reply.write( "VERSION 1.0\r\n".getBytes() );
+				}
+				else {
+					reply.write( "ERROR\r\n".getBytes() );
+				}
+
+				byte[] b = reply.toByteArray();
+				for ( int i = 0; i < b.length; i += 16 ) {
+					out.write( b, i, Math.min( 16, b.length - i ) );
+					out.flush();
+					try { Thread.sleep( 1 ); } catch ( InterruptedException ignoreMe ) { }
+				}
+			}
+		}
+	}
+
+	/**
+	 * Answers REFRESH_AND_RETRY, leaving the config to the reader, to any
+	 * command for a config older than the current one, and END to gets.
+	 */
+	private static final class RefreshServer extends ScriptedServer {
+
+		private final int configId;
+
+		RefreshServer( int configId ) throws IOException {
+			super();
+			this.configId = configId;
+		}
+
+		void serve( InputStream in, OutputStream out ) throws IOException {
+			String line;
+			while ( ( line = readLine( in ) ) != null ) {
+				String[] cmd = line.split( " " );
+				int off = cmd[0].equals( "rj" ) ? 3 : 0;
+				if ( off > 0 && Integer.parseInt( cmd[1] ) < configId )
+					out.write( "REFRESH_AND_RETRY\r\nEND\r\n".getBytes() );
+				else if ( cmd[ off ].equals( "get" ) )
+					out.write( "END\r\n".getBytes() );
+				else
+					out.write( "ERROR\r\n".getBytes() );
+				out.flush();
+			}
+		}
+	}
+
+	/**
+	 * Answers any command with the same lines, written in pieces cut at
+	 * the given offsets, pausing between them so each is a read of its own.
+	 */
+	private static final class LinesServer extends ScriptedServer {
+
+		private final byte[] response;
+		private final int[] cuts;
+
+		LinesServer( List<String> lines, int... cuts ) throws IOException {
+			super();
+			StringBuilder response = new StringBuilder();
+			for ( String line : lines )
+				response.append( line ).append( "\r\n" );
+			this.response = response.toString().getBytes();
+			this.cuts = cuts;
+		}
+
+		void serve( InputStream in, OutputStream out ) throws IOException {
+			while ( readLine( in ) != null ) {
+				int pos = 0;
+				for ( int cut : cuts ) {
+					out.write( response, pos, cut - pos );
+					out.flush();
+					pos = cut;
+					try { Thread.sleep( 50 ); } catch ( InterruptedException ignoreMe ) { }
+				}
+				out.write( response, pos, response.length - pos );
+				out.flush();
+			}
+		}
+	}
+
+	/**
+	 * Reads commands without answering any, and hangs up once it has read
+	 * a number of them, if one is given.
+	 */
+	private static final class SilentServer extends ScriptedServer {
+
+		private final int hangupAfter;
+
+		SilentServer( int hangupAfter ) throws IOException {
+			super();
+			this.hangupAfter = hangupAfter;
+		}
+
+		void serve( InputStream in, OutputStream out ) throws IOException {
+			int read = 0;
+			while ( readLine( in ) != null ) {
+				if ( ++read == hangupAfter )
+					return;
+			}
+		}
+	}
+
+	private static void assertion( boolean condition, String errorMessage ) {
+		if ( !condition )
+			throw new AssertionError( errorMessage );
+	}
+
+	public static void main( String[] args ) throws Exception {
+		BasicConfigurator.configure();
+		Logger.getRootLogger().setLevel( Level.WARN );
+
+		runAlTests();
+		System.out.println( "Pool tests passed." );
+	}
+}
@@ -50,6 +50,10 @@ public class MemcachedBench {
 		options.maintSleep = 20 ;
 		options.nagle = false;
 
+		// optional third arg selects the transport, e.g. PIPELINED
+		if ( args.length > 2 )
+			options.transportMode = SockIOPool.TransportMode.valueOf( args[2].toUpperCase() );
+
 		// get client instance
 		MockRejigConfigReader configReader = new MockRejigConfigReader();
 		configReader.setConfig(RejigConfig.newBuilder()
@@ -23,7 +23,24 @@ import edu.usc.cs550.rejig.interfaces.Fragment;
 import edu.usc.cs550.rejig.interfaces.RejigConfig;
 
 import java.util.*;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
 
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
@@ -320,6 +337,400 @@ public class UnitTests {
 		}
 	}
 
+	public static void test25() {
+		AsyncMemcachedClient async = new AsyncMemcachedClient( mc );
+
+		String[] keys = { "async1", "async2", "async3", "async4" };
+		List<CompletableFuture<Boolean>> sets = new ArrayList<CompletableFuture<Boolean>>();
+		for ( String key : keys )
+			sets.add( async.set( key, key ) );
+		for ( CompletableFuture<Boolean> f : sets )
+			assertion( f.join(), "+ async set test failed" );
+
+		List<CompletableFuture<Object>> gets = new ArrayList<CompletableFuture<Object>>();
+		for ( String key : keys )
+			gets.add( async.get( key ) );
+		for ( int i = 0; i < keys.length; i++ )
+			assertion( keys[i].equals( gets.get( i ).join() ), "+ async get test failed" );
+
+		Map<String,Object> results = async.getMulti( keys ).join();
+		for ( String key : keys )
+			assertion( key.equals( results.get( key ) ), "+ async getMulti test failed" );
+
+		assertion( async.delete( keys[0] ).join(), "+ async delete test failed" );
+		assertion( async.get( keys[0] ).join() == null, "+ async delete test failed" );
+
+		async.shutDown();
+	}
+
+	public static void test26() {
+		byte[] b = new byte[ 512 * 1024 ];
+		for ( int i = 0; i < b.length; i++ )
+			b[i] = (byte)( i * 31 );
+
+		// only the bytes between position and limit are stored
+		ByteBuffer heap = ByteBuffer.allocate( b.length + 16 );
+		heap.position( 8 );
+		heap.put( b );
+		heap.flip();
+		heap.position( 8 );
+
+		mc.set( "foo", heap );
+		assertion(
+			Arrays.equals( (byte[])mc.get( "foo" ), b ) && heap.position() == 8,
+			"+ store/retrieve heap ByteBuffer test failed"
+		);
+
+		ByteBuffer direct = ByteBuffer.allocateDirect( b.length );
+		direct.put( b );
+		direct.flip();
+
+		mc.set( "foo", direct );
+		assertion(
+			Arrays.equals( (byte[])mc.get( "foo" ), b ) && direct.remaining() == b.length,
+			"+ store/retrieve direct ByteBuffer test failed"
+		);
+	}
+
+	public static void test27() {
+		Map<String,Object> values = new HashMap<String,Object>();
+		String[] keys = new String[ 100 ];
+		for ( int i = 0; i < keys.length; i++ ) {
+			keys[i] = "batch" + i;
+			values.put( keys[i], "value" + i );
+		}
+
+		Map<String,Boolean> stored = mc.setMulti( values );
+		assertion( stored.size() == keys.length && !stored.containsValue( Boolean.FALSE ), "+ setMulti test failed" );
+
+		Map<String,Object> results = mc.getMulti( keys );
+		for ( int i = 0; i < keys.length; i++ )
+			assertion( ( "value" + i ).equals( results.get( keys[i] ) ), "+ setMulti test failed" );
+
+		String[] counters = { "counter1", "counter2", "counter3" };
+		for ( String counter : counters )
+			mc.storeCounter( counter, 10 );
+
+		Map<String,Long> incr = mc.incrMulti( counters, 5 );
+		Map<String,Long> decr = mc.decrMulti( counters, 3 );
+		for ( String counter : counters ) {
+			assertion( incr.get( counter ) == 15, "+ incrMulti test failed" );
+			assertion( decr.get( counter ) == 12, "+ decrMulti test failed" );
+		}
+
+		Map<String,Boolean> deleted = mc.deleteMulti( keys );
+		assertion( deleted.size() == keys.length && !deleted.containsValue( Boolean.FALSE ), "+ deleteMulti test failed" );
+		for ( Object o : mc.getMulti( keys ).values() )
+			assertion( o == null, "+ deleteMulti test failed" );
+
+		deleted = mc.deleteMulti( keys );
+		assertion( !deleted.containsValue( Boolean.TRUE ), "+ deleteMulti of missing keys test failed" );
+
+		mc.deleteMulti( counters );
+		assertion( mc.incrMulti( counters ).get( counters[0] ) == -1, "+ incrMulti of missing key test failed" );
+	}
+
+	public static void test28() {
+		String[] keys = new String[ 100 ];
+		for ( int i = 0; i < keys.length; i++ ) {
+			keys[i] = "noreply" + i;
+			assertion( mc.setNoreply( keys[i], "value" + i ), "+ setNoreply test failed" );
+		}
+
+		// read back without flushing; the writes go out ahead of the gets
+		for ( int i = 0; i < keys.length; i++ )
+			assertion( ( "value" + i ).equals( mc.get( keys[i] ) ), "+ setNoreply test failed" );
+
+		mc.addNoreply( keys[0], "added" );
+		mc.replaceNoreply( keys[1], "replaced" );
+		mc.storeCounter( "noreplyCounter", 10 );
+		mc.incrNoreply( "noreplyCounter", 5 );
+		mc.decrNoreply( "noreplyCounter" );
+		for ( int i = 2; i < keys.length; i++ )
+			mc.deleteNoreply( keys[i] );
+
+		assertion( mc.flushWrites(), "+ flushWrites test failed" );
+		assertion( "value0".equals( mc.get( keys[0] ) ), "+ addNoreply test failed" );
+		assertion( "replaced".equals( mc.get( keys[1] ) ), "+ replaceNoreply test failed" );
+		assertion( mc.getCounter( "noreplyCounter" ) == 14, "+ incrNoreply/decrNoreply test failed" );
+		for ( int i = 2; i < keys.length; i++ )
+			assertion( mc.get( keys[i] ) == null, "+ deleteNoreply test failed" );
+
+		mc.delete( keys[0] );
+		mc.delete( keys[1] );
+		mc.delete( "noreplyCounter" );
+	}
+
+	public static void test29() {
+		Map<String,Object> values = new HashMap<String,Object>();
+		String[] keys = new String[ 3000 ];
+		for ( int i = 0; i < keys.length; i++ ) {
+			keys[i] = "chunk" + i;
+			values.put( keys[i], ( i % 7 == 0 ) ? new String( new char[ 4096 ] ).replace( '\0', 'x' ) + i : "value" + i );
+		}
+
+		// far more keys and bytes per fragment than one batch takes
+		Map<String,Boolean> stored = mc.setMulti( values );
+		assertion( stored.size() == keys.length && !stored.containsValue( Boolean.FALSE ), "+ chunked setMulti test failed" );
+
+		Map<String,Object> results = mc.getMulti( keys );
+		assertion( results.size() == keys.length, "+ chunked getMulti test failed" );
+		for ( String key : keys )
+			assertion( values.get( key ).equals( results.get( key ) ), "+ chunked getMulti test failed" );
+
+		Map<String,Boolean> deleted = mc.deleteMulti( keys );
+		assertion( deleted.size() == keys.length && !deleted.containsValue( Boolean.FALSE ), "+ chunked deleteMulti test failed" );
+	}
+
+	public static void test30() {
+		final Map<String,Object> values = new HashMap<String,Object>();
+		String[] keys = new String[ 500 ];
+		for ( int i = 0; i < keys.length; i++ ) {
+			keys[i] = "stream key " + i;
+			values.put( keys[i], "value" + i );
+		}
+		mc.setMulti( values );
+
+		// entries come back under the keys as passed in
+		final Map<String,Object> seen = new HashMap<String,Object>();
+		boolean done = mc.getMulti( keys, new MultiGetHandler() {
+			public boolean entry( String key, Object value ) {
+				assertion( values.get( key ).equals( value ), "+ streaming getMulti test failed" );
+				assertion( seen.put( key, value ) == null, "+ streaming getMulti duplicate entry" );
+				return true;
+			}
+		} );
+		assertion( done && seen.size() == keys.length, "+ streaming getMulti test failed" );
+
+		final int[] count = { 0 };
+		done = mc.getMulti( keys, new MultiGetHandler() {
+			public boolean entry( String key, Object value ) {
+				return ++count[0] < 10;
+			}
+		} );
+		assertion( !done && count[0] == 10, "+ stopping streaming getMulti test failed" );
+
+		mc.deleteMulti( keys );
+	}
+
+	public static void test31() {
+		mc.set( "deadline", "value" );
+
+		Supplier<Object> get = new Supplier<Object>() {
+			public Object get() { return mc.get( "deadline" ); }
+		};
+		assertion( "value".equals( mc.withDeadline( 1, TimeUnit.SECONDS, get ) ), "+ get within deadline test failed" );
+
+		// a deadline already passed fails fast, the error handler throws
+		boolean failed = false;
+		try {
+			mc.withDeadline( -1, TimeUnit.MILLISECONDS, get );
+		}
+		catch ( RuntimeException e ) {
+			failed = true;
+		}
+		assertion( failed, "+ get past deadline test failed" );
+
+		// the sockets are back to their own timeouts afterwards
+		assertion( "value".equals( mc.get( "deadline" ) ), "+ get after deadline test failed" );
+
+		AsyncMemcachedClient async = new AsyncMemcachedClient( mc );
+		assertion( "value".equals( async.get( "deadline", null, 1, TimeUnit.SECONDS ).join() ), "+ async get within deadline test failed" );
+		async.shutDown();
+
+		mc.delete( "deadline" );
+	}
+
+	public static void test32() {
+		TestClassTranscoder tc = new TestClassTranscoder();
+		TestClass value = new TestClass( "foo", "bar", 32 );
+
+		mc.set( "transcoded", value, null, tc );
+		assertion( value.equals( mc.get( "transcoded", tc ) ), "+ get with transcoder test failed" );
+
+		// not java serialized, so the default transcoder can not read it back
+		assertion( !value.equals( mc.get( "transcoded" ) ), "+ get without transcoder test failed" );
+
+		Map<String,TestClass> results = mc.getMulti( new String[] { "transcoded", "missing" }, tc );
+		assertion( value.equals( results.get( "transcoded" ) ) && results.get( "missing" ) == null, "+ getMulti with transcoder test failed" );
+
+		// a long value is compressed by the client, not the transcoder
+		TestClass big = new TestClass( new String( new char[ 48 * 1024 ] ).replace( '\0', 'x' ), "bar", 32 );
+		mc.set( "transcoded", big, null, tc );
+		assertion( big.equals( mc.get( "transcoded", tc ) ), "+ get compressed with transcoder test failed" );
+
+		@SuppressWarnings("unchecked")
+		Transcoder<Object> any = (Transcoder<Object>)(Transcoder<?>)tc;
+		mc.setTranscoder( any );
+		mc.set( "transcoded", value );
+		assertion( value.equals( mc.get( "transcoded" ) ), "+ get with client transcoder test failed" );
+		mc.setTranscoder( null );
+
+		assertion( mc.getTranscoder() instanceof DefaultTranscoder, "+ default transcoder test failed" );
+		mc.delete( "transcoded" );
+	}
+
+	public static void test33() {
+		String value = new String( new char[ 64 * 1024 ] ).replace( '\0', 'c' );
+
+		for ( int level : new int[] { 1, 9, Deflater.DEFAULT_COMPRESSION } ) {
+			mc.setCompressLevel( level );
+			mc.set( "deflated", value );
+			assertion( value.equals( mc.get( "deflated" ) ), "+ get deflated at level " + level + " test failed" );
+		}
+
+		// gzipped entries, as stored by earlier releases, still decode
+		final byte[] raw = value.getBytes();
+		Transcoder<Object> gzipped = new Transcoder<Object>() {
+			public CachedData encode( Object value ) throws IOException {
+				ByteArrayOutputStream bos = new ByteArrayOutputStream();
+				GZIPOutputStream gos = new GZIPOutputStream( bos );
+				gos.write( raw );
+				gos.close();
+				return new CachedData( MemcachedClient.F_COMPRESSED | MemcachedClient.MARKER_BYTEARR, bos.toByteArray() );
+			}
+			public Object decode( CachedData data ) throws IOException {
+				throw new UnsupportedOperationException();
+			}
+		};
+		mc.set( "gzipped", raw, null, gzipped );
+		assertion( Arrays.equals( raw, (byte[])mc.get( "gzipped" ) ), "+ get gzipped test failed" );
+		assertion( Arrays.equals( raw, (byte[])mc.getMulti( new String[] { "gzipped" } ).get( "gzipped" ) ), "+ getMulti gzipped test failed" );
+
+		// a length header that can not be right is refused before anything is allocated
+		byte[] stream = new byte[ raw.length ];
+		Deflater deflater = new Deflater( 9, true );
+		deflater.setInput( raw );
+		deflater.finish();
+		int n = deflater.deflate( stream );
+		deflater.end();
+		int[] lengths = { -1, Integer.MAX_VALUE, n * 2000, raw.length / 2, raw.length + 1 };
+		for ( final int len : lengths ) {
+			final byte[] corrupt = new byte[ 4 + n ];
+			corrupt[0] = (byte)( len >>> 24 );
+			corrupt[1] = (byte)( len >>> 16 );
+			corrupt[2] = (byte)( len >>> 8 );
+			corrupt[3] = (byte)len;
+			System.arraycopy( stream, 0, corrupt, 4, n );
+			mc.set( "corrupt", raw, null, new Transcoder<Object>() {
+				public CachedData encode( Object value ) {
+					return new CachedData( MemcachedClient.F_DEFLATED | MemcachedClient.MARKER_BYTEARR, corrupt );
+				}
+				public Object decode( CachedData data ) {
+					throw new UnsupportedOperationException();
+				}
+			} );
+			boolean refused = false;
+			try {
+				mc.get( "corrupt" );
+			}
+			catch ( RuntimeException e ) {
+				refused = e.getCause() instanceof IOException;
+			}
+			assertion( refused, "+ get with uncompressed length " + len + " test failed" );
+		}
+
+		mc.delete( "deflated" );
+		mc.delete( "gzipped" );
+		mc.delete( "corrupt" );
+	}
+
+	public static void test34( boolean compressed ) {
+		byte[] noise = new byte[ 64 * 1024 ];
+		new Random( 34 ).nextBytes( noise );
+		String text = new String( new char[ 64 * 1024 ] ).replace( '\0', 't' );
+		CompressionStats stats = mc.getCompressionStats();
+
+		// a sample tells random bytes apart without compressing them in full
+		mc.setCompressAdaptive( true );
+		long skipped = stats.getSkipped();
+		mc.set( "adaptive", noise );
+		assertion( Arrays.equals( noise, (byte[])mc.get( "adaptive" ) ), "+ get sampled test failed" );
+		assertion( stats.getSkipped() == skipped + ( compressed ? 1 : 0 ), "+ skipped count test failed" );
+
+		long count = stats.getCompressed();
+		mc.set( "adaptive", text );
+		assertion( text.equals( mc.get( "adaptive" ) ), "+ get adaptive compressed test failed" );
+		assertion( stats.getCompressed() == count + ( compressed ? 1 : 0 ), "+ compressed count test failed" );
+		mc.setCompressAdaptive( false );
+
+		// without sampling they are compressed, but stored as they are
+		long notSmaller = stats.getNotSmaller();
+		mc.set( "adaptive", noise );
+		assertion( Arrays.equals( noise, (byte[])mc.get( "adaptive" ) ), "+ get not smaller test failed" );
+		assertion( stats.getNotSmaller() == notSmaller + ( compressed ? 1 : 0 ), "+ not smaller count test failed" );
+
+		mc.delete( "adaptive" );
+	}
+
+	public static void test35() {
+		mc.delete( "number" );
+		assertion( mc.getLong( "number", Long.MIN_VALUE ) == Long.MIN_VALUE, "+ getLong miss test failed" );
+		assertion( mc.getCounter( "number" ) == -1, "+ getCounter miss test failed" );
+
+		mc.setLong( "number", 100 );
+		assertion( mc.getLong( "number", -1 ) == 100, "+ setLong/getLong test failed" );
+		assertion( mc.incr( "number", 5 ) == 105, "+ incr after setLong test failed" );
+
+		// decr leaves the value padded with spaces
+		assertion( mc.decr( "number", 10 ) == 95, "+ decr after setLong test failed" );
+		assertion( mc.getLong( "number", -1 ) == 95 && mc.getInt( "number", -1 ) == 95, "+ getLong after decr test failed" );
+
+		mc.setLong( "number", -1234567890123L );
+		assertion( mc.getLong( "number", 0 ) == -1234567890123L, "+ negative setLong test failed" );
+		mc.setLong( "number", Long.MAX_VALUE );
+		assertion( mc.getLong( "number", 0 ) == Long.MAX_VALUE, "+ max setLong test failed" );
+
+		mc.setInt( "number", 42 );
+		assertion( mc.getInt( "number", -1 ) == 42 && mc.getCounter( "number" ) == 42, "+ setInt/getInt test failed" );
+
+		// values stored by set are read too
+		mc.set( "number", Long.valueOf( 7L ) );
+		assertion( mc.getLong( "number", -1 ) == 7, "+ getLong of Long test failed" );
+		mc.set( "number", Integer.valueOf( -8 ) );
+		assertion( mc.getInt( "number", 0 ) == -8, "+ getInt of Integer test failed" );
+		mc.set( "number", "12" );
+		assertion( mc.getLong( "number", -1 ) == 12, "+ getLong of String test failed" );
+
+		mc.delete( "number" );
+		assertion( mc.addOrIncr( "number", 3 ) == 3 && mc.addOrIncr( "number", 3 ) == 6, "+ addOrIncr test failed" );
+		mc.delete( "number" );
+	}
+
+	public static void test36() {
+		mc.delete( "raw" );
+		assertion( mc.getBytes( "raw" ) == null && mc.getBytes( "raw", ByteBuffer.allocate( 16 ) ) == -1, "+ getBytes miss test failed" );
+
+		byte[] small = "raw bytes".getBytes();
+		mc.setBytes( "raw", small );
+		assertion( Arrays.equals( small, mc.getBytes( "raw" ) ), "+ setBytes/getBytes test failed" );
+		assertion( Arrays.equals( small, (byte[])mc.get( "raw" ) ), "+ get of setBytes test failed" );
+
+		// more than the read buffer holds, so most of it comes straight from the socket
+		byte[] big = new byte[ 200 * 1024 ];
+		new Random( 36 ).nextBytes( big );
+		ByteBuffer direct = ByteBuffer.allocateDirect( big.length );
+		direct.put( big ).flip();
+		mc.setBytes( "raw", direct, null );
+		assertion( direct.position() == 0 && Arrays.equals( big, mc.getBytes( "raw" ) ), "+ setBytes direct test failed" );
+
+		for ( ByteBuffer dst : new ByteBuffer[] { ByteBuffer.allocate( big.length + 8 ), ByteBuffer.allocateDirect( big.length + 8 ) } ) {
+			dst.position( 8 );
+			assertion( mc.getBytes( "raw", dst ) == big.length && dst.position() == big.length + 8, "+ getBytes into buffer test failed" );
+			byte[] read = new byte[ big.length ];
+			dst.position( 8 );
+			dst.get( read );
+			assertion( Arrays.equals( big, read ), "+ getBytes into buffer content test failed" );
+		}
+
+		// too small, nothing is read but the length tells how much is needed
+		ByteBuffer tooSmall = ByteBuffer.allocate( 16 );
+		assertion( mc.getBytes( "raw", tooSmall ) == big.length && tooSmall.position() == 0, "+ getBytes too small test failed" );
+		assertion( Arrays.equals( big, mc.getBytes( "raw" ) ), "+ getBytes after too small test failed" );
+
+		mc.delete( "raw" );
+	}
+
 	// Sets the config object into the client and grant a
 	// lease to all fragments for 10 mins.
 	public static void setup(RejigConfig config) {
@@ -345,13 +756,189 @@ public class UnitTests {
 		}
 	}
 
+	/**
+	 * Published reference values, seed 0, of the hashes keys are routed by.
+	 */
+	public static void test37() {
+		String fox = "The quick brown fox jumps over the lazy dog";
+		String[] keys = { "", "a", "abc", "foo", "hello", "hello world", fox, "xxhash", "Nobody inspects the spammish repetition" };
+
+		int[] murmur3 = { 0, 0x3c2569b2, 0xb3dd93fa, 0xf6a5c420, 0x248bfa47, 0x5e928f0f, 0x2e4ff723 };
+		for ( int i = 0; i < murmur3.length; i++ )
+			assertion( (int)SockIOPool.hash( SockIOPool.FragmentHashingAlgo.MURMUR3_32, keys[i] ) == murmur3[i], "+ murmur3_32 of \"" + keys[i] + "\" test failed" );
+
+		long[] xxhash64 = { 0xef46db3751d8e999L, 0xd24ec4f1a98c6e5bL, 0x44bc2cf5ad770999L };
+		for ( int i = 0; i < xxhash64.length; i++ )
+			assertion( SockIOPool.hash( SockIOPool.FragmentHashingAlgo.XXHASH64, keys[i] ) == xxhash64[i], "+ xxhash64 of \"" + keys[i] + "\" test failed" );
+		assertion( SockIOPool.hash( SockIOPool.FragmentHashingAlgo.XXHASH64, fox ) == 0x0b242d361fda71bcL, "+ xxhash64 of fox test failed" );
+		assertion( SockIOPool.hash( SockIOPool.FragmentHashingAlgo.XXHASH64, keys[7] ) == 0x32dd38952c4bc720L, "+ xxhash64 of xxhash test failed" );
+		assertion( SockIOPool.hash( SockIOPool.FragmentHashingAlgo.XXHASH64, keys[8] ) == 0xfbcea83c8a378bf1L, "+ xxhash64 of 39 bytes test failed" );
+	}
+
+	/**
+	 * Removing a fragment from a KETAMA config moves the keys of that
+	 * fragment, and only those.
+	 */
+	public static void test38() {
+		SockIOPool.SockIOPoolOptions options = new SockIOPool.SockIOPoolOptions();
+		options.initConn = 1;
+		options.maintSleep = 0;
+		options.hashingAlg = SockIOPool.FragmentHashingAlgo.KETAMA;
+
+		SockIOPool all = SockIOPool.getInstance( "ketama-all" )
+			.setRejigConfig( createConfig( 1, "localhost:11210", "localhost:11211", "localhost:11212", "localhost:11213", "localhost:11214" ) )
+			.setPoolOptions( options )
+			.initialize();
+		SockIOPool less = SockIOPool.getInstance( "ketama-less" )
+			.setRejigConfig( createConfig( 2, "localhost:11210", "localhost:11211", "localhost:11213", "localhost:11214" ) )
+			.setPoolOptions( options )
+			.initialize();
+
+		int moved = 0;
+		for ( int i = 0; i < 10000; i++ ) {
+			String key = "ketama" + i;
+			String before = all.route( key, null ).address();
+			String after  = less.route( key, null ).address();
+			if ( before.equals( "localhost:11212" ) )
+				moved++;
+			else
+				assertion( before.equals( after ), "+ " + key + " moved from " + before + " to " + after + " test failed" );
+		}
+		assertion( moved > 1000 && moved < 3000, "+ share of keys on the removed fragment test failed: " + moved );
+
+		all.shutDown();
+		less.shutDown();
+	}
+
+	/**
+	 * get, set and multi-get through a client in pipelined transportMode,
+	 * with values small and larger than a read.
+	 */
+	public static void test39() {
+		SockIOPool.SockIOPoolOptions options = new SockIOPool.SockIOPoolOptions();
+		options.maintSleep = 0;
+		options.transportMode = SockIOPool.TransportMode.PIPELINED;
+		options.pipelinedConns = 2;
+
+		MockRejigConfigReader reader = new MockRejigConfigReader()
+			.setConfig( createConfig( 1, "localhost:11210", "localhost:11211", "localhost:11212" ) );
+		MemcachedClient pmc = new MemcachedClient( null, new MockErrorHandler(), "pipelined", reader, options );
+
+		StringBuilder large = new StringBuilder();
+		while ( large.length() < 200 * 1024 )
+			large.append( "pipelined value " ).append( large.length() );
+
+		String[] keys = new String[ 40 ];
+		Map<String,Object> expected = new HashMap<String,Object>();
+		for ( int i = 0; i < keys.length; i++ ) {
+			keys[i] = "pipelined" + i;
+			Object value = ( i % 10 == 0 ) ? large + keys[i] : ( i % 2 == 0 ) ? (Object)keys[i] : (Object)Integer.valueOf( i );
+			expected.put( keys[i], value );
+			assertion( pmc.set( keys[i], value ), "+ pipelined set of " + keys[i] + " test failed" );
+		}
+
+		for ( String key : keys )
+			assertion( expected.get( key ).equals( pmc.get( key ) ), "+ pipelined get of " + key + " test failed" );
+
+		Map<String,Object> values = pmc.getMulti( keys );
+		assertion( expected.equals( values ), "+ pipelined multi-get test failed" );
+
+		assertion( pmc.delete( keys[0] ) && pmc.get( keys[0] ) == null, "+ pipelined delete test failed" );
+		values = pmc.getMulti( new String[] { keys[0], keys[1] } );
+		assertion( values.get( keys[0] ) == null && expected.get( keys[1] ).equals( values.get( keys[1] ) ), "+ pipelined multi-get of a deleted key test failed" );
+
+		for ( String key : keys )
+			pmc.delete( key );
+		pmc.shutDown();
+	}
+
+	/**
+	 * An async client rejects what its executor has no room for, and
+	 * skips an operation whose deadline passed while it was queued.
+	 */
+	public static void test40() throws Exception {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor( 1, 1, 0, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>( 1 ) );
+		AsyncMemcachedClient async = new AsyncMemcachedClient( mc, executor, 0 );
+
+		// keeps the one thread busy until released
+		final CountDownLatch release = new CountDownLatch( 1 );
+		executor.execute( new Runnable() {
+			public void run() {
+				try { release.await(); } catch ( InterruptedException ignoreMe ) { }
+			}
+		} );
+
+		mc.delete( "asyncQueued" );
+		CompletableFuture<Boolean> queued = async.set( "asyncQueued", "value", null, null, 50, TimeUnit.MILLISECONDS );
+		CompletableFuture<Boolean> rejected = async.set( "asyncRejected", "value" );
+		assertion( rejected.isCompletedExceptionally(), "+ async op over a full queue not rejected test failed" );
+		try {
+			rejected.join();
+		}
+		catch ( CompletionException e ) {
+			assertion( e.getCause() instanceof RejectedExecutionException, "+ async op rejected with " + e.getCause() + " test failed" );
+		}
+
+		try {
+			queued.join();
+			assertion( false, "+ async op queued past its timeout did not time out test failed" );
+		}
+		catch ( CompletionException e ) {
+			assertion( e.getCause() instanceof TimeoutException, "+ async op queued timed out with " + e.getCause() + " test failed" );
+		}
+
+		// the timed out set is dropped, not run once a thread is free
+		release.countDown();
+		executor.shutdown();
+		assertion( executor.awaitTermination( 5, TimeUnit.SECONDS ), "+ async executor did not drain test failed" );
+		assertion( mc.get( "asyncQueued" ) == null, "+ async op run after its deadline passed in the queue test failed" );
+		assertion( mc.get( "asyncRejected" ) == null, "+ rejected async op run test failed" );
+	}
+
+	/**
+	 * An entry older than its fragment is removed under the key it was
+	 * stored with, which needs sanitizing, when a client a config ahead
+	 * reads it.
+	 */
+	public static void test41() {
+		SockIOPool.SockIOPoolOptions options = new SockIOPool.SockIOPoolOptions();
+		options.maintSleep = 0;
+
+		MemcachedClient older = new MemcachedClient( null, new MockErrorHandler(), "stale-1",
+			new MockRejigConfigReader().setConfig( createConfig( 1, "localhost:11215" ) ), options );
+		MemcachedClient newer = new MemcachedClient( null, new MockErrorHandler(), "stale-2",
+			new MockRejigConfigReader().setConfig( createConfig( 2, "localhost:11215" ) ), options );
+
+		String[] keys = { "stale:get", "stale key get", "stale:multi", "stale key multi" };
+		for ( String key : keys )
+			assertion( older.set( key, key ), "+ set of " + key + " test failed" );
+
+		assertion( newer.get( keys[0] ) == null && newer.get( keys[1] ) == null, "+ get of stale entry test failed" );
+		assertion( older.get( keys[0] ) == null && older.get( keys[1] ) == null, "+ stale entry left after get test failed" );
+
+		Map<String,Object> values = newer.getMulti( new String[] { keys[2], keys[3] } );
+		assertion( values.get( keys[2] ) == null && values.get( keys[3] ) == null, "+ multi-get of stale entry test failed" );
+		assertion( older.get( keys[2] ) == null && older.get( keys[3] ) == null, "+ stale entry left after multi-get test failed" );
+
+		assertion( older.setLong( "stale:long", 41 ), "+ setLong of stale:long test failed" );
+		assertion( newer.getLong( "stale:long", -2 ) == -2, "+ getLong of stale entry test failed" );
+		assertion( older.getLong( "stale:long", -2 ) == -2, "+ stale entry left after getLong test failed" );
+
+		assertion( older.setBytes( "stale:bytes", "bytes".getBytes() ), "+ setBytes of stale:bytes test failed" );
+		assertion( newer.getBytes( "stale:bytes" ) == null, "+ getBytes of stale entry test failed" );
+		assertion( older.getBytes( "stale:bytes" ) == null, "+ stale entry left after getBytes test failed" );
+
+		older.shutDown();
+		newer.shutDown();
+	}
+
 	private static void assertion(boolean condition, String errorMessage) {
 		if (!condition) {
 			throw new AssertionError(errorMessage);
 		}
 	}
 
-	public static void runAlTests( MemcachedClient mc, boolean run14 ) {
+	public static void runAlTests( MemcachedClient mc, boolean run14 ) throws Exception {
 		if (run14) {
 			test14();
 		}
@@ -378,6 +965,19 @@ public class UnitTests {
 			test22();
 			test23();
 			test24();
+			test25();
+			test26();
+			test27();
+			test28();
+			test29();
+			test30();
+			test31();
+			test32();
+			test33();
+			test34( ( t&1 ) == 1 );
+			test35();
+			test36();
+			test40();
 
 			for ( int i = 0; i < 3; i++ )
 				test19();
@@ -408,7 +1008,7 @@ public class UnitTests {
 	/**
 	 * This runs through some simple tests of the MemcacheClient.
 	 */
-	public static void main(String[] args) {
+	public static void main(String[] args) throws Exception {
 
 		BasicConfigurator.configure();
 		org.apache.log4j.Logger.getRootLogger().setLevel( Level.WARN );
@@ -433,6 +1033,11 @@ public class UnitTests {
 		options.nagle = false;
 		options.hashingAlg = SockIOPool.FragmentHashingAlgo.NATIVE_HASH;
 
+		// small batches, so the multi key tests span several per server
+		options.maxBatchKeys = 50;
+		options.maxBatchBytes = 16 * 1024;
+		options.maxBatchesInFlight = 2;
+
 		// set RejigConfig
 		RejigConfig config = createConfig1(serverlist);
 		MockRejigConfigReader configReader = new MockRejigConfigReader();
@@ -445,6 +1050,11 @@ public class UnitTests {
 		// run tests.
 		mc.flushAll();
 		System.out.println("Running tests.");
+		test37();
+		test38();
+		test39();
+		test41();
+		SockIOPoolTests.runAlTests();
 		setup(config);
 		runAlTests( mc, true );
 
@@ -478,6 +1088,19 @@ public class UnitTests {
 		return builder.build();
 	}
 
+	private static RejigConfig createConfig(int id, String... servers) {
+		RejigConfig.Builder builder = RejigConfig.newBuilder()
+			.setId(id);
+		for (String server : servers) {
+			builder.addFragment(Fragment.newBuilder()
+				.setId(id)
+				.setAddress(server)
+				.build()
+			);
+		}
+		return builder.build();
+	}
+
 	private static void setConfig2(RejigConfig curr, MockRejigConfigReader configReader, MemcachedClient mc) {
 		RejigConfig.Builder builder = curr.toBuilder().setId(2);
 		for (int i = 9; i < 14; i++) {
@@ -495,6 +1118,32 @@ public class UnitTests {
 		mc.setConfig(config, null, "localhost:11214");
 	}
 
+	/**
+	 * Stores TestClass fields as they are, without java serialization.
+	 */
+	public static final class TestClassTranscoder implements Transcoder<TestClass> {
+
+		private static final int FLAGS = 65536;
+
+		public CachedData encode( TestClass value ) throws IOException {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream( bos );
+			out.writeUTF( value.getField1() );
+			out.writeUTF( value.getField2() );
+			out.writeInt( value.getField3() );
+			out.close();
+			return new CachedData( FLAGS, bos.toByteArray() );
+		}
+
+		public TestClass decode( CachedData data ) throws IOException {
+			if ( data.getFlags() != FLAGS )
+				throw new IOException( "not a TestClass: " + data );
+
+			DataInputStream in = new DataInputStream( new ByteArrayInputStream( data.getBytes() ) );
+			return new TestClass( in.readUTF(), in.readUTF(), in.readInt() );
+		}
+	}
+
 	/**
 	 * Class for testing serializing of objects.
 	 *